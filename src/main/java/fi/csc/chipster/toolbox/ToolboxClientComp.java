@@ -3,14 +3,25 @@ package fi.csc.chipster.toolbox;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -25,10 +36,27 @@ import org.apache.log4j.Logger;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 
+/**
+ * Client for the toolbox service. Tools can be cached for the given time to keep the 
+ * toolbox request out of the job submission. An expired tool is still returned while 
+ * it's refreshed in the background, and {@link #invalidate()} drops all cached tools 
+ * when the toolbox has been updated.
+ */
 public class ToolboxClientComp {
 
+	private static class CachedTool {
+		private ToolboxTool tool;
+		private long fetched;
+		private boolean refreshing;
+	}
+
 	private String baseUri;
 	private Client client;
+	
+	private long cacheTtl;
+	private ConcurrentHashMap<String, CachedTool> toolCache = new ConcurrentHashMap<String, CachedTool>();
+	private AtomicLong cacheVersion = new AtomicLong();
+	private ExecutorService refreshExecutor;
 
 	private final static String MODULES_ZIP_PATH = "/modules/zip";
 	
@@ -39,11 +67,129 @@ public class ToolboxClientComp {
 	
 	
 	public ToolboxClientComp(String toolboxUri) {
+		this(toolboxUri, 0);
+	}
+
+	/**
+	 * @param toolboxUri
+	 * @param cacheTtl time to use a cached tool before refreshing it, milliseconds, 0 to disable the cache
+	 */
+	public ToolboxClientComp(String toolboxUri, long cacheTtl) {
 		this.baseUri = toolboxUri;
 		this.client = ClientBuilder.newClient();
+		this.cacheTtl = cacheTtl;
+		
+		if (cacheTtl > 0) {
+			this.refreshExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "toolbox-cache-refresh");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
 	}
 
+	/**
+	 * @return null if the tool doesn't exist
+	 * @throws IOException
+	 */
 	public ToolboxTool getTool(String toolId) throws IOException {
+		if (cacheTtl <= 0) {
+			return fetchTool(toolId);
+		}
+		
+		CachedTool cached = toolCache.get(toolId);
+		if (cached == null) {
+			long version = cacheVersion.get();
+			ToolboxTool tool = fetchTool(toolId);
+			if (tool != null) {
+				putTool(toolId, tool, version);
+			}
+			return tool;
+		}
+		
+		synchronized (cached) {
+			if (!cached.refreshing && System.currentTimeMillis() - cached.fetched > cacheTtl) {
+				cached.refreshing = true;
+				refreshExecutor.execute(new RefreshTask(toolId, cached));
+			}
+			return cached.tool;
+		}
+	}
+	
+	/**
+	 * Forget all cached tools, e.g. after the tools in the toolbox have been updated. 
+	 */
+	public void invalidate() {
+		cacheVersion.incrementAndGet();
+		toolCache.clear();
+		logger.info("toolbox cache cleared");
+	}
+	
+	private class RefreshTask implements Runnable {
+		private String toolId;
+		private CachedTool cached;
+
+		public RefreshTask(String toolId, CachedTool cached) {
+			this.toolId = toolId;
+			this.cached = cached;
+		}
+
+		@Override
+		public void run() {
+			long version = cacheVersion.get();
+			try {
+				ToolboxTool tool = fetchTool(toolId);
+				if (tool == null) {
+					toolCache.remove(toolId, cached);
+				} else {
+					putTool(toolId, tool, version);
+				}
+			} catch (Exception e) {
+				// keep using the old one and try again next time
+				logger.warn("failed to refresh tool " + toolId + " from toolbox", e);
+				synchronized (cached) {
+					cached.fetched = System.currentTimeMillis();
+					cached.refreshing = false;
+				}
+			}
+		}
+	}
+	
+	private void putTool(String toolId, ToolboxTool tool, long version) {
+		CachedTool cached = new CachedTool();
+		cached.fetched = System.currentTimeMillis();
+		
+		// keep the old instance if nothing has changed to allow reuse of the parsed tool descriptions  
+		CachedTool old = toolCache.get(toolId);
+		if (old != null && isSame(old.tool, tool)) {
+			cached.tool = old.tool;
+		} else {
+			cached.tool = tool;
+		}
+		
+		// the toolbox was updated during the request, the result may be old
+		if (version != cacheVersion.get()) {
+			return;
+		}
+		toolCache.put(toolId, cached);
+	}
+	
+	private static boolean isSame(ToolboxTool tool1, ToolboxTool tool2) {
+		return equals(tool1.getSadlString(), tool2.getSadlString()) &&
+				equals(tool1.getSource(), tool2.getSource()) &&
+				equals(tool1.getCode(), tool2.getCode()) &&
+				equals(tool1.getModule(), tool2.getModule()) &&
+				equals(tool1.getRuntime(), tool2.getRuntime());
+	}
+	
+	private static boolean equals(String s1, String s2) {
+		return s1 == null ? s2 == null : s1.equals(s2);
+	}
+
+	private ToolboxTool fetchTool(String toolId) throws IOException {
 
 		WebTarget serviceTarget = client.target(baseUri).path("tools/" + toolId);
 
@@ -60,6 +206,9 @@ public class ToolboxClientComp {
 	}
 
 	public void close() {
+		if (refreshExecutor != null) {
+			refreshExecutor.shutdownNow();
+		}
 		client.close();
 	}
 
@@ -67,12 +216,54 @@ public class ToolboxClientComp {
 	public void getToolboxModules(File jobToolboxDir) throws IOException {
 		long startTime = System.currentTimeMillis();
 
-		unzip(baseUri + MODULES_ZIP_PATH, jobToolboxDir);
+		URL url = new URL(baseUri + MODULES_ZIP_PATH);
+		unzip(url.openStream(), jobToolboxDir);
 		fixPermissions(jobToolboxDir);
 
 		logger.info("get toolbox took " + (System.currentTimeMillis() - startTime) + " ms");
 	}
 	
+	/**
+	 * Download the modules zip to a local file.
+	 * 
+	 * @param zipFile
+	 * @return SHA-256 checksum of the zip file as a hex string
+	 * @throws IOException
+	 */
+	public String downloadToolboxModules(File zipFile) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-256
+			throw new RuntimeException(e);
+		}
+		
+		URL url = new URL(baseUri + MODULES_ZIP_PATH);
+		try (InputStream in = new DigestInputStream(url.openStream(), digest);
+				OutputStream out = new BufferedOutputStream(new FileOutputStream(zipFile))) {
+			byte[] buffer = new byte[64*1024];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		}
+		
+		StringBuilder checksum = new StringBuilder();
+		for (byte b : digest.digest()) {
+			checksum.append(String.format("%02x", b));
+		}
+		return checksum.toString();
+	}
+	
+	/**
+	 * Extract a modules zip downloaded with {@link #downloadToolboxModules(File)}.
+	 */
+	public void extractToolboxModules(File zipFile, File toolboxDir) throws IOException {
+		unzip(new FileInputStream(zipFile), toolboxDir);
+		fixPermissions(toolboxDir);
+	}
+	
 	
 	private void fixPermissions(File jobToolboxDir) throws IOException {
 		Files.walkFileTree(jobToolboxDir.toPath(), new SimpleFileVisitor<Path>() {
@@ -89,16 +280,14 @@ public class ToolboxClientComp {
 		});
 	}
 
-	private void unzip(String zipFilePath, File destDirectory) throws IOException {
+	private void unzip(InputStream in, File destDirectory) throws IOException {
 
 		File destDir = destDirectory;
 		if (!destDir.exists()) {
 			destDir.mkdir();
 		}
 
-		URL url = new URL(zipFilePath);
-
-		try (ZipInputStream zipIn = new ZipInputStream(new BufferedInputStream(url.openStream(), 1024))) {
+		try (ZipInputStream zipIn = new ZipInputStream(new BufferedInputStream(in, 1024))) {
 			ZipEntry entry = zipIn.getNextEntry();
 
 			// iterates over entries in the zip file
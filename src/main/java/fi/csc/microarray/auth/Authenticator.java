@@ -14,6 +14,7 @@ import fi.csc.microarray.messaging.MessagingEndpoint;
 import fi.csc.microarray.messaging.MessagingListener;
 import fi.csc.microarray.messaging.MessagingTopic;
 import fi.csc.microarray.messaging.NodeBase;
+import fi.csc.microarray.messaging.OrderedDispatchListener;
 import fi.csc.microarray.messaging.Topics;
 import fi.csc.microarray.messaging.MessagingTopic.AccessMode;
 import fi.csc.microarray.messaging.message.AuthenticationMessage;
@@ -32,6 +33,11 @@ import fi.csc.microarray.util.SystemMonitorUtil;
  */
 public class Authenticator extends NodeBase implements ShutdownCallback {
     
+	/**
+	 * Minutes to wait for the login of a pending session.
+	 */
+	private static final int PENDING_SESSION_LIFETIME = 60;
+	
 	/**
 	 * Logger for this class
 	 */
@@ -67,9 +73,8 @@ public class Authenticator extends NodeBase implements ShutdownCallback {
 		securityLogger = Logger.getLogger("security.frontend");
 		messageLogger = Logger.getLogger("messages.frontend");
 		
-		// initialise session pools
-		// FIXME set proper lifetimes for pending sessions
-		pendingSessions = new SecureSessionPool();
+		// initialise session pools, pending sessions only wait for the login
+		pendingSessions = new SecureSessionPool(PENDING_SESSION_LIFETIME, PENDING_SESSION_LIFETIME);
 		validSessions = new SecureSessionPool();
 		
 		// initialise communications
@@ -84,13 +89,13 @@ public class Authenticator extends NodeBase implements ShutdownCallback {
 		// create non-authorised topics
 		RequestListener jobListener = new RequestListener(authorisedTopic);
 		MessagingTopic requestTopic = endpoint.createTopic(Topics.Name.REQUEST_TOPIC, AccessMode.READ);		
-		requestTopic.setListener(jobListener);		
+		requestTopic.setListener(new OrderedDispatchListener(jobListener, "authenticator-request"));		
 		RequestListener filebrokerListener = new RequestListener(authorisedFilebrokerTopic);
 		MessagingTopic filebrokerTopic = endpoint.createTopic(Topics.Name.FILEBROKER_TOPIC, AccessMode.READ);		
-		filebrokerTopic.setListener(filebrokerListener);
+		filebrokerTopic.setListener(new OrderedDispatchListener(filebrokerListener, "authenticator-filebroker"));
 		RequestListener feedbackListener = new RequestListener(authorisedFeedbackTopic);
 		MessagingTopic feedbackTopic = endpoint.createTopic(Topics.Name.FEEDBACK_TOPIC, AccessMode.READ);		
-		feedbackTopic.setListener(feedbackListener);
+		feedbackTopic.setListener(new OrderedDispatchListener(feedbackListener, "authenticator-feedback"));
 
 		
 		// create test-topic
@@ -135,9 +140,8 @@ public class Authenticator extends NodeBase implements ShutdownCallback {
 				// try to load existing session
 				Session session = null;
 				if (msg.getSessionID() != null) {
-					String id = msg.getSessionID();
-					if (validSessions.getSession(id) != null) {
-						session = validSessions.getSession(id);
+					session = validSessions.getSession(msg.getSessionID());
+					if (session != null) {
 						logger.debug("message " + msg.getMessageID() + " had a proper session " + session.getID());
 					}					
 				}
@@ -336,6 +340,10 @@ public class Authenticator extends NodeBase implements ShutdownCallback {
 		} catch (JMSException e) {
 			logger.error("closing messaging endpoint failed", e);
 		}
+		
+		// stop the session expiration timers
+		pendingSessions.close();
+		validSessions.close();
 
 		logger.info("shutting down");
 	}
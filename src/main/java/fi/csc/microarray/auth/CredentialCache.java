@@ -0,0 +1,118 @@
+package fi.csc.microarray.auth;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Short-lived cache of verification results, so that repeated logins don't need to go
+ * through the login modules again. Passwords are not stored, only a salted hash of the
+ * password that was verified. Failed attempts are cached too, but for a shorter time.
+ *
+ * Only the latest result of each username is kept, so a correct password after a failed
+ * attempt is always verified.
+ */
+public class CredentialCache {
+
+	private static final int SALT_LENGTH = 16;
+	private static final int MAX_SIZE = 10000;
+
+	private static class Entry {
+		private byte[] salt;
+		private byte[] hash;
+		private boolean succeeded;
+		private long expires;
+	}
+
+	private long successTimeout;
+	private long failureTimeout;
+	private Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private SecureRandom random = new SecureRandom();
+
+	/**
+	 * @param successTimeout milliseconds to remember a successful verification
+	 * @param failureTimeout milliseconds to remember a failed verification
+	 */
+	public CredentialCache(long successTimeout, long failureTimeout) {
+		this.successTimeout = successTimeout;
+		this.failureTimeout = failureTimeout;
+	}
+
+	/**
+	 * @return the cached result, or null if this username and password haven't been verified recently
+	 */
+	public Boolean get(String username, char[] password) {
+		Entry entry = entries.get(username);
+		if (entry == null) {
+			return null;
+		}
+		if (System.currentTimeMillis() > entry.expires) {
+			entries.remove(username, entry);
+			return null;
+		}
+		if (!MessageDigest.isEqual(entry.hash, hash(entry.salt, password))) {
+			return null;
+		}
+		return entry.succeeded;
+	}
+
+	public void put(String username, char[] password, boolean succeeded) {
+		if (entries.size() >= MAX_SIZE) {
+			removeExpired();
+		}
+		if (entries.size() >= MAX_SIZE) {
+			// too many different usernames, don't let the cache grow
+			return;
+		}
+
+		Entry entry = new Entry();
+		entry.salt = new byte[SALT_LENGTH];
+		random.nextBytes(entry.salt);
+		entry.hash = hash(entry.salt, password);
+		entry.succeeded = succeeded;
+		entry.expires = System.currentTimeMillis() + (succeeded ? successTimeout : failureTimeout);
+		entries.put(username, entry);
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	private void removeExpired() {
+		long now = System.currentTimeMillis();
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			if (now > iterator.next().expires) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Salted SHA-256 of the password.
+	 */
+	static byte[] hash(byte[] salt, char[] password) {
+		ByteBuffer passwordBytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(salt);
+			digest.update(passwordBytes);
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-256
+			throw new RuntimeException(e);
+		} finally {
+			// clean our copy of the password
+			if (passwordBytes.hasArray()) {
+				Arrays.fill(passwordBytes.array(), (byte) 0);
+			}
+		}
+	}
+}
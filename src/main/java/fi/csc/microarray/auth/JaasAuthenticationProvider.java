@@ -24,6 +24,13 @@ public class JaasAuthenticationProvider implements AuthenticationProvider {
 	
 	private static final Logger logger = Logger.getLogger(JaasAuthenticationProvider.class);
 	
+	// milliseconds to remember verification results
+	private static final long SUCCESS_CACHE_TIME = 5*60*1000;
+	private static final long FAILURE_CACHE_TIME = 15*1000;
+	
+	private CredentialCache credentialCache = new CredentialCache(SUCCESS_CACHE_TIME, FAILURE_CACHE_TIME);
+	private long passwdFileReloads = 0;
+	
 	public JaasAuthenticationProvider() throws IOException {
 		initialize(true);
 	}
@@ -33,6 +40,36 @@ public class JaasAuthenticationProvider implements AuthenticationProvider {
 	}
 	
 	public boolean authenticate(String username, char[] password) {
+		
+		// users or passwords may have been changed in the password files
+		long reloads = PasswdFileCache.reloadChanged();
+		synchronized (this) {
+			if (reloads != passwdFileReloads) {
+				passwdFileReloads = reloads;
+				credentialCache.clear();
+			}
+		}
+		
+		// recently verified
+		Boolean cached = credentialCache.get(username, password);
+		if (cached != null) {
+			logger.info("Authentication " + (cached ? "successful" : "failed") + " for " + username + " (cached)");
+			return cached;
+		}
+		
+		Boolean succeeded = authenticateWithLoginContext(username, password);
+		if (succeeded == null) {
+			// errors are not cached
+			return false;
+		}
+		credentialCache.put(username, password, succeeded);
+		return succeeded;
+	}
+	
+	/**
+	 * @return null if the authentication couldn't be performed
+	 */
+	private Boolean authenticateWithLoginContext(String username, char[] password) {
 
 		// get the login context
 		LoginContext lc = null;
@@ -40,10 +77,10 @@ public class JaasAuthenticationProvider implements AuthenticationProvider {
 			lc = new LoginContext(LOGIN_CONTEXT_NAME, new SimpleCallbackHandler(username, password));
 		} catch (LoginException le) {
 			logger.error("Cannot create LoginContext. ", le);
-			return false;
+			return null;
 		} catch (SecurityException se) {
 			logger.error("Cannot create LoginContext. ", se);
-			return false;
+			return null;
 		} 
 
 		// authenticate
@@ -57,7 +94,7 @@ public class JaasAuthenticationProvider implements AuthenticationProvider {
 			return false;
 		} catch (LoginException le) {
 			logger.error("Could not perform authentication for " + username, le);
-			return false;
+			return null;
 		}
 		
 		// authentication ok;
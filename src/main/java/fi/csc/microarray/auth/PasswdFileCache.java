@@ -0,0 +1,207 @@
+package fi.csc.microarray.auth;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import fi.csc.microarray.util.IOUtils;
+
+/**
+ * In-memory index of a password file, by username. The file is read again only
+ * when its modification time or size changes, so logins don't need to scan the whole file.
+ * Instances are shared by all login modules that use the same file and format.
+ *
+ * Only the fields that the login modules need are kept. Plain text passwords are not
+ * stored, only a salted hash of them.
+ */
+public class PasswdFileCache {
+
+	private static final Logger logger = Logger.getLogger(PasswdFileCache.class);
+
+	private static final int SALT_LENGTH = 16;
+	private static final int CRYPT_LENGTH = 13;
+
+	public static enum Format {
+		/**
+		 * username:password:expiration, where expiration is optional
+		 */
+		PLAIN,
+
+		/**
+		 * username:crypt, where crypt is the 13 character result of the Unix crypt()
+		 */
+		CRYPT
+	}
+
+	/**
+	 * Parsed line of the file.
+	 */
+	public static class Entry {
+		private byte[] salt;
+		private byte[] passwordHash;
+		private String crypt;
+		private String expiration;
+
+		/**
+		 * @return true if the password is the plain text password of the line
+		 */
+		public boolean passwordMatches(char[] password) {
+			return passwordHash != null && MessageDigest.isEqual(passwordHash, CredentialCache.hash(salt, password));
+		}
+
+		/**
+		 * @return the crypt() result of the password, or null if the line is too short
+		 */
+		public String getCrypt() {
+			return crypt;
+		}
+
+		/**
+		 * @return expiration date as it's written in the file, or null if there isn't one
+		 */
+		public String getExpiration() {
+			return expiration;
+		}
+	}
+
+	private static final Map<String, PasswdFileCache> instances = new ConcurrentHashMap<String, PasswdFileCache>();
+	private static final AtomicLong reloads = new AtomicLong();
+
+	private File file;
+	private Format format;
+	private long lastModified = -1;
+	private long length = -1;
+	private Map<String, List<Entry>> entriesByUsername = Collections.emptyMap();
+	private SecureRandom random = new SecureRandom();
+
+	private PasswdFileCache(File file, Format format) {
+		this.file = file;
+		this.format = format;
+	}
+
+	public static PasswdFileCache getInstance(File file, Format format) {
+		File absoluteFile = file.getAbsoluteFile();
+		String key = format + ":" + absoluteFile.getPath();
+		PasswdFileCache cache = instances.get(key);
+		if (cache == null) {
+			instances.putIfAbsent(key, new PasswdFileCache(absoluteFile, format));
+			cache = instances.get(key);
+		}
+		return cache;
+	}
+
+	/**
+	 * Read again the files that have changed since they were last read.
+	 *
+	 * @return count of the changed files read so far, so the callers can notice when it changes
+	 */
+	public static long reloadChanged() {
+		for (PasswdFileCache cache : instances.values()) {
+			try {
+				cache.getIndex();
+			} catch (IOException e) {
+				logger.warn("could not read " + cache.file, e);
+			}
+		}
+		return reloads.get();
+	}
+
+	/**
+	 * Returns the entries of the user, without comments and empty lines. There can be several
+	 * lines for the same username.
+	 *
+	 * @return empty list if there are no lines for the username
+	 */
+	public List<Entry> getEntries(String username) throws IOException {
+		List<Entry> entries = getIndex().get(username);
+		if (entries == null) {
+			return Collections.emptyList();
+		}
+		return entries;
+	}
+
+	private synchronized Map<String, List<Entry>> getIndex() throws IOException {
+		long currentLastModified = file.lastModified();
+		long currentLength = file.length();
+		if (currentLastModified != lastModified || currentLength != length) {
+			entriesByUsername = read();
+			if (lastModified != -1) {
+				reloads.incrementAndGet();
+			}
+			lastModified = currentLastModified;
+			length = currentLength;
+		}
+		return entriesByUsername;
+	}
+
+	private Map<String, List<Entry>> read() throws IOException {
+		Map<String, List<Entry>> index = new HashMap<String, List<Entry>>();
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(file));
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				if (line.trim().length() == 0 || line.startsWith(SimpleFileLoginModule.COMMENT_CHARACTER)) {
+					continue;
+				}
+
+				int delimiter = line.indexOf(SimpleFileLoginModule.DELIMETER_CHARACTER);
+				String username = delimiter == -1 ? line : line.substring(0, delimiter);
+				List<Entry> entries = index.get(username);
+				if (entries == null) {
+					entries = new LinkedList<Entry>();
+					index.put(username, entries);
+				}
+				entries.add(parse(line, delimiter == -1 ? line.length() : delimiter + 1));
+			}
+		} finally {
+			IOUtils.closeIfPossible(reader);
+		}
+
+		logger.info("read " + index.size() + " users from " + file);
+		return index;
+	}
+
+	/**
+	 * @param passwordStart index of the first character after the username and the delimiter
+	 */
+	private Entry parse(String line, int passwordStart) {
+		Entry entry = new Entry();
+		if (format == Format.CRYPT) {
+			// the crypt must be followed by a delimiter, white space or the end of the line
+			int passwordEnd = passwordStart + CRYPT_LENGTH;
+			if (line.length() == passwordEnd
+					|| (line.length() > passwordEnd && (line.charAt(passwordEnd) == ':' || Character.isWhitespace(line.charAt(passwordEnd))))) {
+				entry.crypt = line.substring(passwordStart, passwordEnd);
+			}
+			return entry;
+		}
+
+		int passwordEnd = line.indexOf(SimpleFileLoginModule.DELIMETER_CHARACTER, passwordStart);
+		if (passwordEnd == -1) {
+			passwordEnd = line.length();
+		} else {
+			int expirationEnd = line.indexOf(SimpleFileLoginModule.DELIMETER_CHARACTER, passwordEnd + 1);
+			entry.expiration = line.substring(passwordEnd + 1, expirationEnd == -1 ? line.length() : expirationEnd);
+		}
+
+		char[] password = line.substring(passwordStart, passwordEnd).toCharArray();
+		entry.salt = new byte[SALT_LENGTH];
+		random.nextBytes(entry.salt);
+		entry.passwordHash = CredentialCache.hash(entry.salt, password);
+		Arrays.fill(password, (char) 0);
+		return entry;
+	}
+}
@@ -1,8 +1,6 @@
 package fi.csc.microarray.auth;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.text.ParseException;
@@ -15,9 +13,6 @@ import javax.security.auth.callback.CallbackHandler;
 
 import org.apache.log4j.Logger;
 
-import fi.csc.microarray.util.IOUtils;
-import fi.csc.microarray.util.LookaheadStringReader;
-
 /**
  * Login module for Chipster type user lists. They have format
  * username:password:expiration, where expiration is optional and there can by
@@ -55,72 +50,27 @@ public class SimpleFileLoginModule extends LoginModuleBase {
 
 		logger.debug(this.getClass().getName() + " authenticating " + username);
 
-		// passwd file
-		BufferedReader reader = null;
-
 		try {
-			reader = new BufferedReader(new FileReader(this.passwdFile));
-			// loop the lines of the password file
-			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
-
-				// FIXME line should be cleaned (contains password)
-				
-				// check for empty line
-				if (line.trim().length() == 0) {
-					continue;
-				}
-
-				LookaheadStringReader tokens = new LookaheadStringReader(line);
-
-				// check for comment line
-				if (tokens.lookahead().equals(COMMENT_CHARACTER)) {
-					continue;
-				}
-
-				// username
-				String readUsername = tokens.readTo(DELIMETER_CHARACTER);
-				if (!readUsername.equals(username)) {
-					// did not match
-					continue;
-				}
+			// loop the lines of the user, comments and empty lines are already skipped
+			for (PasswdFileCache.Entry entry : PasswdFileCache.getInstance(this.passwdFile, PasswdFileCache.Format.PLAIN).getEntries(username)) {
 
-				// delimiter (:)
-				tokens.read();
-
-				// password
-				StringBuffer readPassword = tokens.readToSB(DELIMETER_CHARACTER);
-				boolean match = true; 
-				for (int i = 0; i < readPassword.length(); i++) {
-					// check that we match (length checking is a bit redundant, but who cares...)
-					if (readPassword.length() != password.length || readPassword.charAt(i) != password[i]) {
-						match = false;
-					}
-					// clean password as we go
-					readPassword.setCharAt(i, (char)0); 
-				}
-
-				if (!match) {
+				if (!entry.passwordMatches(password)) {
 					// did not match
 					continue;
 				}
 
-				// delimiter (:), if any
-				if (!tokens.isAtEnd() && tokens.lookahead().equals(DELIMETER_CHARACTER)) {
-					tokens.read();
-
-					String expiration = tokens.readTo(DELIMETER_CHARACTER);
-					
-					if (expiration.trim().length() > 0) {
-						// check only if data is not empty
-						try {
-							Date expirationDate = EXPIRATION_DATE_FORMAT.parse(expiration);
-							if (new Date().after(expirationDate)) {
-								match = false; // authentication successful, but account has expired
-							}
-						} catch (ParseException e) {
-							logger.error("when authenticating " + username +" failed to parse exp. date: " + expiration);
-							match = false;
+				boolean match = true;
+				String expiration = entry.getExpiration();
+				if (expiration != null && expiration.trim().length() > 0) {
+					// check only if data is not empty
+					try {
+						Date expirationDate = EXPIRATION_DATE_FORMAT.parse(expiration);
+						if (new Date().after(expirationDate)) {
+							match = false; // authentication successful, but account has expired
 						}
+					} catch (ParseException e) {
+						logger.error("when authenticating " + username +" failed to parse exp. date: " + expiration);
+						match = false;
 					}
 				}
 
@@ -131,9 +81,6 @@ public class SimpleFileLoginModule extends LoginModuleBase {
 
 		} catch (Exception e) {
 			e.printStackTrace();
-			
-		} finally {
-			IOUtils.closeIfPossible(reader);
 		}
 
 		// matching line was not found
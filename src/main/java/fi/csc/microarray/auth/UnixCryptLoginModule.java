@@ -1,9 +1,8 @@
 package fi.csc.microarray.auth;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Map;
 
 import javax.security.auth.Subject;
@@ -29,107 +28,46 @@ public class UnixCryptLoginModule extends LoginModuleBase {
 		
 		logger.debug(this.getClass().getName() + " authenticating " + username);
 		
-		// passwd file
-		BufferedReader reader = new BufferedReader(new FileReader(this.passwdFile));
+		// 13 for salt + password
+		final int encryptedLength = 13;
+		char[] salt = new char[2];
+		char[] encryptedPassword = null;
 		
-		// 13 for salt + password +1 for delimeter 
-		char[] lineBegin = new char[username.length() + 1 + 13];
-		char[] salt = null; 
-		
-		// loop the lines of the password file
-		// readCount == -1 --> end of file reached
+		// loop the lines of the user, comments and empty lines are already skipped
 		try {
-			
-			for (int readCount = readToken(lineBegin, reader); readCount != -1; readCount = readToken(lineBegin, reader)) {
-				boolean skipToNextLine = false;
+			for (PasswdFileCache.Entry entry : PasswdFileCache.getInstance(this.passwdFile, PasswdFileCache.Format.CRYPT).getEntries(username)) {
 				
 				// got enough characters?
-				if (readCount < lineBegin.length) {
+				String crypt = entry.getCrypt();
+				if (crypt == null) {
 					continue;
 				}
-
-				// comment line
-				else if (lineBegin[0] == '#') {
-					skipToNextLine = true;
-				}
-
-				// username
-				logger.debug("Checking username " + username);
-				if (!skipToNextLine) {
-					for (int i = 0; i < username.length(); i++) {
-						logger.debug(username.charAt(i) + "|" + lineBegin[i] );
-						if (username.charAt(i) != lineBegin[i]) {
-							skipToNextLine = true;
-						}
-					}
-				}
-					
-				// delimiter (:)
-				if (!skipToNextLine) {
-					if (lineBegin[username.length()] != ':') {
-						skipToNextLine = true;
-					}
-				}
-
-				char[] encryptedPassword = new char[13];
-				if (!skipToNextLine) {
-					// get salt encrypt provided password
-					salt = new char[2];
-					System.arraycopy(lineBegin, username.length() + 1, salt, 0, 2);
-					encryptedPassword = UnixCrypt.crypt(password,salt);
-					
-					// check that salt matches
-					for (int i = 0; i < 2; i++) {
-						if (salt[i] != encryptedPassword[i]) {
-							skipToNextLine = true;
-						}
-					}
-				}
 				
-				// check rest of the password
-				if (!skipToNextLine) {
-					for (int i = 0; i < 11; i++) {
-						if (encryptedPassword[i + 2] != lineBegin[username.length() + 1 + 2 + i]) {
-							skipToNextLine = true;
-						}
+				// get salt encrypt provided password
+				crypt.getChars(0, 2, salt, 0);
+				encryptedPassword = UnixCrypt.crypt(password, salt);
+				
+				// check salt and rest of the password, the cache has checked what comes after it
+				boolean match = true;
+				for (int i = 0; i < encryptedLength; i++) {
+					if (encryptedPassword[i] != crypt.charAt(i)) {
+						match = false;
 					}
 				}
-
-				// after the password (expecting: :, \n, ' ', EOF)
-				if (!skipToNextLine) {
-					int next = reader.read();
-					if (next == -1) {
-						return true;
-					} else {
-						char c = (char) next;
-						if (c == ':' || isNewLineChar(c) || Character.isWhitespace(c)) {
-							return true;
-						}
-					}
+				
+				if (match) {
+					return true;
 				}
-					
-				// given password matched the beginning of the password, not good enough
-				// goto next line
-				skipToLineEnd(reader);
-
-				// now at the beginning of a new line or end of file
 			}
 
 			// end of file reached
 			return false;
+			
 		} finally {
 			// clean everything related to password we created
-			if (lineBegin != null) {
-				for (int i = 0; i < lineBegin.length; i++) {
-					lineBegin[i] = ' ';
-				}
-				lineBegin = null;
-			}
-			if (salt != null) {
-				for (int i = 0; i < salt.length; i++) {
-					salt[i] = ' ';
-				}
-				salt = null;
+			Arrays.fill(salt, ' ');
+			if (encryptedPassword != null) {
+				Arrays.fill(encryptedPassword, ' ');
 			}
 		}
 	}
@@ -56,7 +56,7 @@ import fi.csc.microarray.constants.VisualConstants;
 import fi.csc.microarray.databeans.ContentChangedEvent;
 import fi.csc.microarray.databeans.DataBean;
 import fi.csc.microarray.databeans.DataChangeEvent;
-import fi.csc.microarray.databeans.DataChangeListener;
+import fi.csc.microarray.databeans.DataChangeBatchListener;
 import fi.csc.microarray.databeans.DataItem;
 import fi.csc.microarray.databeans.DataItemCreatedEvent;
 import fi.csc.microarray.databeans.LinksChangedEvent;
@@ -69,7 +69,7 @@ import fi.csc.microarray.util.SwingTools;
  * @author Janne Käki, Aleksi Kallio, Petri Klemelä
  * 
  */
-public class GraphPanel extends JPanel implements ActionListener, PropertyChangeListener, DataChangeListener, AnimatorScrollable {
+public class GraphPanel extends JPanel implements ActionListener, PropertyChangeListener, DataChangeBatchListener, AnimatorScrollable {
 
 	public final float ZOOM_FACTOR = 1.2f;
 	public final float ZOOM_IN_LIMIT = 1.0f;
@@ -560,6 +560,16 @@ public class GraphPanel extends JPanel implements ActionListener, PropertyChange
 		}
 	}
 
+	public void dataChangedInBatch(List<DataChangeEvent> events) {
+		for (DataChangeEvent event : events) {
+			if (event instanceof DataItemCreatedEvent) {
+				// zoom only once
+				dataChanged(event);
+				return;
+			}
+		}
+	}
+
 	public class WorkflowSelectionListener implements GraphSelectionListener {
 
 		public void valueChanged(GraphSelectionEvent e) {
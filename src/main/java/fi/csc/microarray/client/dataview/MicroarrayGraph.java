@@ -10,6 +10,7 @@ import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -39,7 +40,7 @@ import fi.csc.microarray.databeans.ContentChangedEvent;
 import fi.csc.microarray.databeans.DataBean;
 import fi.csc.microarray.databeans.DataBean.Link;
 import fi.csc.microarray.databeans.DataChangeEvent;
-import fi.csc.microarray.databeans.DataChangeListener;
+import fi.csc.microarray.databeans.DataChangeBatchListener;
 import fi.csc.microarray.databeans.DataItem;
 import fi.csc.microarray.databeans.DataItemCreatedEvent;
 import fi.csc.microarray.databeans.DataItemRemovedEvent;
@@ -52,7 +53,7 @@ import fi.csc.microarray.util.SwingTools;
  * @author Mikko Koski, Aleksi Kallio
  * 
  */
-public class MicroarrayGraph extends JGraph implements DataChangeListener, PropertyChangeListener, GraphModelListener {
+public class MicroarrayGraph extends JGraph implements DataChangeBatchListener, PropertyChangeListener, GraphModelListener {
 
 	private static final Logger logger = Logger.getLogger(MicroarrayGraph.class);
 
@@ -64,6 +65,9 @@ public class MicroarrayGraph extends JGraph implements DataChangeListener, Prope
 	private Map<DataBean, GraphVertex> vertexMap = new HashMap<DataBean, GraphVertex>();
 	private List<GroupVertex> groups = new ArrayList<GroupVertex>();
 	private LayoutManager layoutManager = new LayoutManager(this);
+	
+	// true while a batch of events is handled, the view is updated only at the end of it
+	private boolean batchUpdate = false;
 	private GraphPanel graphPanel;
 	private GraphModel model;
 
@@ -103,6 +107,13 @@ public class MicroarrayGraph extends JGraph implements DataChangeListener, Prope
 	 *            New DataBean to be inserted to this view.
 	 */
 	public void insertData(DataBean data) {
+		insertData(data, true);
+	}
+
+	/**
+	 * @param createLinks if false, the links are created separately by the caller
+	 */
+	private GraphVertex insertData(DataBean data, boolean createLinks) {
 
 		// check parameters
 		if (vertexMap.containsKey(data)) {
@@ -141,12 +152,14 @@ public class MicroarrayGraph extends JGraph implements DataChangeListener, Prope
 		vertex.setAllowsAutoLayout(!savedPosition);
 
 		// create derivational (DERIVATION/MODIFICATION) links
-		for (Link type : Link.derivationalTypes()) {
-			for (DataBean targetBean : data.getLinkTargets(type)) {
-				GraphVertex parent = vertexMap.get(targetBean);
-				// Note that PARENT is the TARGET of derivational link and the
-				// child is the SOURCE
-				insertLink(vertex, parent, type, data);
+		if (createLinks) {
+			for (Link type : Link.derivationalTypes()) {
+				for (DataBean targetBean : data.getLinkTargets(type)) {
+					GraphVertex parent = vertexMap.get(targetBean);
+					// Note that PARENT is the TARGET of derivational link and the
+					// child is the SOURCE
+					insertLink(vertex, parent, type, data);
+				}
 			}
 		}
 
@@ -157,10 +170,26 @@ public class MicroarrayGraph extends JGraph implements DataChangeListener, Prope
 		// The placement is unknown before the links are created. These stay valid only
 		// if no derivation/modification links are added.
 		
+		if (!createLinks) {
+			// caller updates the layout when links are ready
+			return vertex;
+		}
+		
 		layoutManager.updateLayout(vertex, data);
 		
+		updateView(vertex);
+		return vertex;
+	}
+
+	/**
+	 * Zooms, scrolls and repaints, unless a batch of events is being handled. 
+	 */
+	private void updateView(GraphVertex vertexToShow) {
+		if (batchUpdate) {
+			return;
+		}
 		graphPanel.autoZoom();
-		scrollCellToVisibleAnimated(vertex);
+		scrollCellToVisibleAnimated(vertexToShow);
 		repaint();
 	}
 
@@ -246,8 +275,10 @@ public class MicroarrayGraph extends JGraph implements DataChangeListener, Prope
 			}
 		}
 
-		graphPanel.autoZoom();
-		this.repaint();
+		if (!batchUpdate) {
+			graphPanel.autoZoom();
+			this.repaint();
+		}
 	}
 
 	public void createGroup(DataBean data) {
@@ -471,6 +502,106 @@ public class MicroarrayGraph extends JGraph implements DataChangeListener, Prope
 		}
 	}
 
+	/**
+	 * Handles the events of a bulk operation with one layout and repaint. Because the events
+	 * are delivered after the operation, the links are created from the current state of the
+	 * new beans and the link events of the new beans are ignored.
+	 */
+	public void dataChangedInBatch(final List<DataChangeEvent> events) {
+
+		SwingTools.runInEventDispatchThread(new Runnable() {
+			public void run() {
+
+				batchUpdate = true;
+				try {
+					boolean contentChanged = false;
+					Set<DataBean> created = new LinkedHashSet<DataBean>();
+					List<LinksChangedEvent> linkEvents = new ArrayList<LinksChangedEvent>();
+
+					for (DataChangeEvent event : events) {
+						if (event instanceof ContentChangedEvent) {
+							contentChanged = true;
+
+						} else if (event instanceof LinksChangedEvent) {
+							linkEvents.add((LinksChangedEvent) event);
+
+						} else if (event.getDataItem() instanceof DataBean) {
+							DataBean data = (DataBean) event.getDataItem();
+							if (event instanceof DataItemCreatedEvent) {
+								created.add(data);
+
+							} else if (event instanceof DataItemRemovedEvent) {
+								if (!created.remove(data) && vertexMap.containsKey(data)) {
+									removeData(data);
+								}
+							}
+						}
+					}
+
+					// vertices first, so that the links can be created in any order
+					GraphVertex lastVertex = null;
+					for (DataBean data : created) {
+						lastVertex = insertData(data, false);
+					}
+
+					for (DataBean data : created) {
+						GraphVertex vertex = vertexMap.get(data);
+						for (Link type : Link.values()) {
+							for (DataBean target : data.getLinkTargets(type)) {
+								GraphVertex targetVertex = vertexMap.get(target);
+								if (targetVertex != null) {
+									insertLink(vertex, targetVertex, type, data);
+								}
+							}
+							// incoming links from the old beans, links between new beans were created above
+							for (DataBean source : data.getLinkSources(type)) {
+								GraphVertex sourceVertex = vertexMap.get(source);
+								if (sourceVertex != null && !created.contains(source)) {
+									insertLink(sourceVertex, vertex, type, source);
+								}
+							}
+						}
+					}
+
+					for (LinksChangedEvent event : linkEvents) {
+						DataBean source = event.getSource();
+						DataBean target = event.getTarget();
+						if (created.contains(source) || created.contains(target) || !vertexMap.containsKey(source) || !vertexMap.containsKey(target)) {
+							continue;
+						}
+						if (event.isCreation()) {
+							insertLink(source, target, event.getType());
+						} else {
+							removeLink(source, target, event.getType());
+						}
+					}
+
+					for (DataBean data : created) {
+						layoutManager.updateLayout(vertexMap.get(data), data);
+					}
+
+					batchUpdate = false;
+					if (lastVertex != null) {
+						updateView(lastVertex);
+					} else {
+						graphPanel.autoZoom();
+						repaint();
+					}
+
+					if (contentChanged) {
+						// see dataChanged()
+						setVisible(false);
+						setVisible(true);
+						addOffscreenDirty(getBounds());
+					}
+
+				} finally {
+					batchUpdate = false;
+				}
+			}
+		});
+	}
+
 	/**
 	 * Iterates through every vertex and tells them to update their look to show the selected and non selected items
 	 */
@@ -616,9 +747,7 @@ public class MicroarrayGraph extends JGraph implements DataChangeListener, Prope
 
 			if (type.equals(DataBean.Link.DERIVATION) || type.equals(DataBean.Link.MODIFICATION)) {
 				layoutManager.updateLayout(sourceVertex, sourceDataBean); // update position if this was made child of other bean
-				graphPanel.autoZoom();
-				scrollCellToVisibleAnimated(sourceVertex);
-				repaint();
+				updateView(sourceVertex);
 
 			} else if (type.equals(DataBean.Link.ANNOTATION)) {
 				moveCloseToAnnotated(sourceVertex.getData());
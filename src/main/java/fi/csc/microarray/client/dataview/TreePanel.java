@@ -40,7 +40,7 @@ import fi.csc.microarray.client.visualisation.VisualisationFrameManager.FrameTyp
 import fi.csc.microarray.constants.VisualConstants;
 import fi.csc.microarray.databeans.DataBean;
 import fi.csc.microarray.databeans.DataChangeEvent;
-import fi.csc.microarray.databeans.DataChangeListener;
+import fi.csc.microarray.databeans.DataChangeBatchListener;
 import fi.csc.microarray.databeans.DataFolder;
 import fi.csc.microarray.databeans.DataItem;
 import fi.csc.microarray.databeans.DataItemCreatedEvent;
@@ -55,7 +55,7 @@ import fi.csc.microarray.util.SwingTools;
  * @author Janne Käki, Aleksi Kallio
  * 
  */
-public class TreePanel extends JPanel implements DataChangeListener, TreeSelectionListener, PropertyChangeListener {
+public class TreePanel extends JPanel implements DataChangeBatchListener, TreeSelectionListener, PropertyChangeListener {
 	
 	/**
 	 * Logger for this class
@@ -376,12 +376,18 @@ public class TreePanel extends JPanel implements DataChangeListener, TreeSelecti
 	}
 	
 	public void dataChanged(final DataChangeEvent dataEvent) {
+		List<DataChangeEvent> events = new ArrayList<DataChangeEvent>();
+		events.add(dataEvent);
+		dataChangedInBatch(events);
+	}
+
+	public void dataChangedInBatch(final List<DataChangeEvent> dataEvents) {
 		SwingTools.runInEventDispatchThread(new Runnable() {
 			public void run() {
 
-				if (dataEvent instanceof DataChangeEvent) {
+				for (DataChangeEvent dataEvent : dataEvents) {
 
-					DataItem data = ((DataChangeEvent)dataEvent).getDataItem();
+					DataItem data = dataEvent.getDataItem();
 
 					if (dataEvent instanceof DataItemCreatedEvent) {
 						insertData(data);
@@ -389,15 +395,13 @@ public class TreePanel extends JPanel implements DataChangeListener, TreeSelecti
 					} else if (dataEvent instanceof DataItemRemovedEvent) {
 						removeData(data);
 					}
+				}
 
-
-
-					if(treeModel.getChildCount(treeModel.getRoot()) >= 1){
-						cardLayout.last(cardParent);
-						tree.repaint();
-					} else {
-						cardLayout.first(cardParent);
-					}
+				if(treeModel.getChildCount(treeModel.getRoot()) >= 1){
+					cardLayout.last(cardParent);
+					tree.repaint();
+				} else {
+					cardLayout.first(cardParent);
 				}
 			}
 		});
@@ -9,6 +9,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 import javax.jms.JMSException;
 import javax.swing.JButton;
@@ -192,6 +195,8 @@ public class FeedbackDialog extends JDialog implements ActionListener {
     	// attach log files if client allows
     	if (attachLogsBox.isSelected()) {
     		File logDir = DirectoryLayout.getInstance().getLogsDir();
+    		List<String> logNames = new LinkedList<String>();
+    		List<String> dataIds = new LinkedList<String>();
     		for (File logFile : logDir.listFiles()) {
     			//create a copy of log, because otherwise it may grow during the upload and server side size check fails
     			File copyOfLog = File.createTempFile("chipster-temp-file", "");
@@ -202,10 +207,16 @@ public class FeedbackDialog extends JDialog implements ActionListener {
     			String dataId = CryptoKey.generateRandom();
     			fileBrokerClient.addFile(dataId, FileBrokerArea.CACHE, new FileInputStream(copyOfLog), copyOfLog.length(), null);
 
-    			String url = fileBrokerClient.getExternalURL(dataId);
-    			message.addLog(logFile.getName(), url);
+    			logNames.add(logFile.getName());
+    			dataIds.add(dataId);
     			copyOfLog.delete();
     		}
+    		
+    		// get the urls of all logs at once
+    		Map<String, String> urls = fileBrokerClient.getExternalURLs(dataIds);
+    		for (int i = 0; i < dataIds.size(); i++) {
+    			message.addLog(logNames.get(i), urls.get(dataIds.get(i)));
+    		}
     	}
 
     	// send feedback message to manager
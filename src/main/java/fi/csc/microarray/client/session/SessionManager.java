@@ -217,7 +217,14 @@ public class SessionManager {
 	private void loadSession(SessionLoader sessionLoader, Integer xOffset)
 			throws Exception {
 		sessionLoader.setXOffset(xOffset);
-		sessionLoader.loadSession();
+		
+		// deliver the events of all the loaded items at once
+		dataManager.beginEventBatch();
+		try {
+			sessionLoader.loadSession();
+		} finally {
+			dataManager.endEventBatch();
+		}
 		// set session notes directly to field because this doesn't trigger
 		// unsaved changes
 		sessionNotes = sessionLoader.getSessionNotes();
@@ -158,23 +158,22 @@ public class SessionSaver {
 		// move data bean contents to filebroker
 		LinkedList<String> dataIds = new LinkedList<String>();
 		
-		for (DataBean dataBean : dataManager.databeans()) {
-			
-			boolean success;
-			switch(area) {
-			case STORAGE:
-				success = dataManager.uploadToStorageIfNeeded(dataBean);
-				break;
-			case CACHE:
-				success = dataManager.uploadToCacheIfNeeded(dataBean, null);
-				break;
-			default:
-				throw new IllegalArgumentException("unknown filebroker area");
+		switch(area) {
+		case STORAGE:
+			// few bulk requests instead of several requests per bean 
+			for (DataBean dataBean : dataManager.uploadToStorageIfNeeded(dataManager.databeans())) {
+				dataIds.add(dataBean.getId());
 			}
-				
-			if (success) {
-				dataIds.add(dataBean.getId());				
+			break;
+		case CACHE:
+			for (DataBean dataBean : dataManager.databeans()) {
+				if (dataManager.uploadToCacheIfNeeded(dataBean, null)) {
+					dataIds.add(dataBean.getId());				
+				}
 			}
+			break;
+		default:
+			throw new IllegalArgumentException("unknown filebroker area");
 		}
 		
 		// save metadata
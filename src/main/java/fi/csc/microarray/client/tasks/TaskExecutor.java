@@ -35,6 +35,7 @@ import fi.csc.microarray.messaging.JobState;
 import fi.csc.microarray.messaging.MessagingEndpoint;
 import fi.csc.microarray.messaging.MessagingTopic;
 import fi.csc.microarray.messaging.MessagingTopic.AccessMode;
+import fi.csc.microarray.messaging.MessagingTopic.ReplyTopicType;
 import fi.csc.microarray.messaging.TempTopicMessagingListener;
 import fi.csc.microarray.messaging.TempTopicMessagingListenerBase;
 import fi.csc.microarray.messaging.Topics;
@@ -388,10 +389,14 @@ public class TaskExecutor {
 					// handle inputs
 					logger.debug("adding inputs to job message");
 					updateTaskState(task, State.TRANSFERRING_INPUTS, null, -1);
+					
+					// inputs are uploaded in parallel, so track the progress of each separately
+					final float[] inputProgress = new float[task.getInputCount()];
+					List<DataBean> beans = new LinkedList<DataBean>();
+					List<CopyProgressListener> progressListeners = new LinkedList<CopyProgressListener>();
 					int i = 0;
 					
 					for (InputRecord input : task.getInputRecords()) {
-						String operationsInputName = input.getNameID().getID();
 						final DataBean bean = input.getValue();
 						final int fi = i;
 						CopyProgressListener progressListener = new CopyProgressListener() {
@@ -399,29 +404,43 @@ public class TaskExecutor {
 							long length = Session.getSession().getApplication().getDataManager().getContentLength(bean);
 
 							public void progress(long bytes) {
-								float overall = ((float)fi) / ((float)task.getInputCount());
-								float current = ((float)bytes) / ((float)length);
-								float total = overall + (current / ((float)task.getInputCount()));
+								float total;
+								synchronized (inputProgress) {
+									inputProgress[fi] = ((float)bytes) / ((float)length);
+									total = 0;
+									for (float current : inputProgress) {
+										total += current;
+									}
+								}
+								total = total / ((float)task.getInputCount());
 								updateTaskState(task, State.TRANSFERRING_INPUTS, null, Math.round(total * 100f));
 							}
 						};
 						
-						
-						// transfer input contents to file broker if needed
-						manager.uploadToCacheIfNeeded(bean, progressListener);
+						beans.add(bean);
+						progressListeners.add(progressListener);
+						i++;
+					}
+					
+					// transfer input contents to file broker if needed
+					manager.uploadToCacheIfNeeded(beans, progressListeners);
+					
+					for (InputRecord input : task.getInputRecords()) {
+						String operationsInputName = input.getNameID().getID();
+						DataBean bean = input.getValue();
 						
 						// add the data id to the message
 						jobMessage.addPayload(operationsInputName, bean.getId(), bean.getName());
 						
 						logger.debug("added input " + bean.getName() + " to job message.");
-						i++;
 					}				
 
 					updateTaskState(task, State.WAITING, null, -1);
 					TempTopicMessagingListener replyListener = new ResultMessageListener(task);
 					logger.debug("sending job message, jobId: " + jobMessage.getJobId());
 
-					requestTopic.sendReplyableMessage(jobMessage, replyListener);
+					// job manager stores the reply topic of the job, so it must be a topic of its own
+					requestTopic.sendReplyableMessage(jobMessage, replyListener, ReplyTopicType.DEDICATED);
 					
 				} catch (NotEnoughDiskSpaceException nedse) {
 					logger.warn("received not enough disk space when uploading input", nedse);
@@ -481,7 +500,7 @@ public class TaskExecutor {
 					TempTopicMessagingListener replyListener = new ResultMessageListener(task);
 					logger.debug("sending get-job message, jobId: " + task.getId());
 
-					requestTopic.sendReplyableMessage(commandMsg, replyListener);				
+					requestTopic.sendReplyableMessage(commandMsg, replyListener, ReplyTopicType.DEDICATED);				
 					
 				} catch (Exception e) {
 					// could not send job message --> task fails
@@ -28,6 +28,7 @@ import fi.csc.microarray.client.ClientApplication;
 import fi.csc.microarray.client.Session;
 import fi.csc.microarray.client.dialog.DialogInfo.Severity;
 import fi.csc.microarray.client.selection.SelectionEvent;
+import fi.csc.microarray.client.visualisation.methods.PagedTableModel;
 import fi.csc.microarray.databeans.DataBean;
 
 /**
@@ -70,7 +71,7 @@ public class ExtendedJXTable extends JXTable implements ActionListener, Property
 					int[] converted = new int[selected.length];
 
 					for (int i = 0; i < selected.length; i++) {
-						converted[i] = ExtendedJXTable.this.convertRowIndexToModel(selected[i]);
+						converted[i] = ExtendedJXTable.this.convertRowIndexToData(selected[i]);
 					}
 
 					boolean tmp = doNotDispatchEvents;
@@ -127,6 +128,35 @@ public class ExtendedJXTable extends JXTable implements ActionListener, Property
 	 *           ); } }
 	 */
 
+	/**
+	 * Converts view row to the row number of the data. Same as convertRowIndexToModel(),
+	 * unless the model has its own row order.
+	 */
+	public int convertRowIndexToData(int viewRowIndex) {
+		int modelRow = this.convertRowIndexToModel(viewRowIndex);
+		if (getModel() instanceof PagedTableModel) {
+			return ((PagedTableModel)getModel()).convertRowIndexToData(modelRow);
+		}
+		return modelRow;
+	}
+
+	/**
+	 * @return -1 if the data row is not visible
+	 */
+	public int convertDataRowIndexToView(int dataRowIndex) {
+		int modelRow = dataRowIndex;
+		if (getModel() instanceof PagedTableModel) {
+			modelRow = ((PagedTableModel)getModel()).convertDataRowIndexToModel(dataRowIndex);
+			if (modelRow == -1) {
+				return -1;
+			}
+		}
+		if (modelRow >= getModel().getRowCount()) {
+			return -1;
+		}
+		return this.convertRowIndexToView(modelRow);
+	}
+
 	public void sendEvents(boolean value) {
 		doNotDispatchEvents = !value;
 	}
@@ -369,7 +399,10 @@ public class ExtendedJXTable extends JXTable implements ActionListener, Property
 		this.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
 		for (int row : application.getSelectionManager().getSelectionManager(data)
 				.getSelectionAsRows()) {
-			this.changeSelection(this.convertRowIndexToView(row), 0, true, false);
+			int viewRow = this.convertDataRowIndexToView(row);
+			if (viewRow != -1) {
+				this.changeSelection(viewRow, 0, true, false);
+			}
 		}
 		doNotDispatchEvents = tmp;
 	}
@@ -4,58 +4,52 @@ import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
-import java.awt.geom.Rectangle2D;
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
-import java.util.Arrays;
-import java.util.HashSet;
+import java.util.BitSet;
 import java.util.LinkedList;
-import java.util.Set;
 
+import javax.swing.JComboBox;
 import javax.swing.JComponent;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 
 import org.apache.log4j.Logger;
-import org.jfree.chart.BioChartFactory;
-import org.jfree.chart.ChartRenderingInfo;
-import org.jfree.chart.JFreeChart;
-import org.jfree.chart.entity.EntityCollection;
-import org.jfree.chart.entity.HCTreeNodeEntity;
-import org.jfree.chart.entity.HeatMapBlockEntity;
-import org.jfree.chart.event.ClusteringTreeChangeEvent;
-import org.jfree.chart.event.PlotChangeEvent;
-import org.jfree.chart.event.PlotChangeListener;
-import org.jfree.chart.plot.GradientColorPalette;
-import org.jfree.chart.plot.HCPlot;
-import org.jfree.chart.plot.HCPlot.Selection;
-import org.jfree.chart.title.TextTitle;
-import org.jfree.data.hc.HCDataset;
 import org.jfree.data.hc.HeatMap;
 
-import fi.csc.microarray.client.selection.SelectionEvent;
 import fi.csc.microarray.client.selection.IntegratedSelectionManager;
+import fi.csc.microarray.client.selection.SelectionEvent;
 import fi.csc.microarray.client.visualisation.TableAnnotationProvider;
+import fi.csc.microarray.client.visualisation.Visualisation;
 import fi.csc.microarray.client.visualisation.VisualisationFrame;
-import fi.csc.microarray.client.visualisation.methods.SelectableChartPanel.SelectionChangeListener;
+import fi.csc.microarray.client.visualisation.methods.hc.RasterHeatmap;
+import fi.csc.microarray.client.visualisation.methods.hc.RasterHeatmap.Downsampling;
+import fi.csc.microarray.client.visualisation.methods.hc.RasterHeatmapPanel;
+import fi.csc.microarray.client.visualisation.methods.hc.RasterHeatmapPanel.RowSelectionListener;
 import fi.csc.microarray.databeans.DataBean;
 import fi.csc.microarray.databeans.features.QueryResult;
 import fi.csc.microarray.databeans.features.Table;
 import fi.csc.microarray.exception.ErrorReportAsException;
 
 /**
- * Classic 2D heatmap of continuous values.
+ * Classic 2D heatmap of continuous values. The heatmap is rendered as a raster image, so that
+ * also large datasets stay interactive.
  * 
  * @author Aleksi Kallio
  * 
  */
-public class Heatmap extends ChipVisualisation implements PropertyChangeListener, SelectionChangeListener {
+public class Heatmap extends ChipVisualisation implements PropertyChangeListener, RowSelectionListener {
 
-	private HCPlot hcPlot;
+	protected RasterHeatmapPanel heatmapPanel;
 
-	protected SelectableChartPanel selectableChartPanel;
+	private Downsampling downsampling = Downsampling.MEAN;
 
-	protected Set<Integer> selected = new HashSet<Integer>();
+	protected BitSet selected = new BitSet();
 
 	protected DataBean selectionBean;
 
@@ -82,6 +76,7 @@ public class Heatmap extends ChipVisualisation implements PropertyChangeListener
 		try {
 
 			// Connect selections to correct dataset
+			selectionBean = data;
 			TableAnnotationProvider annotationProvider = new TableAnnotationProvider(data);
 
 			// Create heatmap
@@ -102,7 +97,7 @@ public class Heatmap extends ChipVisualisation implements PropertyChangeListener
 			}
 			int columnCount = columns.size();
 
-			HeatMap heatMap = new HeatMap("Heatmap", rowCount, columnCount);
+			RasterHeatmap heatMap = new RasterHeatmap(rowCount, columnCount);
 
 			try (Table heatMapData = data.queryFeatures("/column/*").asTable()) { // fetch all columns to get row names
 
@@ -122,7 +117,7 @@ public class Heatmap extends ChipVisualisation implements PropertyChangeListener
 
 						i++;
 
-						heatMap.update(row, i, heatMapData.getFloatValue(columnName));
+						heatMap.set(row, i, heatMapData.getFloatValue(columnName));
 					}
 				}
 			}
@@ -139,62 +134,14 @@ public class Heatmap extends ChipVisualisation implements PropertyChangeListener
 				heatMap.setColumnName(i, realName);
 			}
 
-			// Create the chart
-			boolean tooltips = true;
-			HCDataset dataset = new HCDataset(heatMap, null, null);
-			JFreeChart chart = BioChartFactory.createHCChart("Hierarchical Clustering", // chart
-			// title
-			dataset, // data
-			tooltips, // tooltips?
-			false // URLs?
-			);
-
-			// set special tooltips to hcChart
-			if (chart.getPlot() instanceof HCPlot) {
-				HCPlot hcPlot = (HCPlot) chart.getPlot();
-
-				this.hcPlot = hcPlot;
-
-				this.hcPlot.addChangeListener(new PlotChangeListener() {
-					public void plotChanged(PlotChangeEvent event) {
-						if (event instanceof ClusteringTreeChangeEvent) {
-							// HierarchicalClustering.this.orders.updateVisibleIndexes();
-							// HierarchicalClustering.this.updateSelectionsFromApplication(false);
-						}
-					}
-				});
-
-				// Set tooltips
-				// if (tooltips) {
-				// hcPlot.setToolTipGenerator(new MicroarrayHCToolTipGenerator());
-				// }
-
-				// Colors
-				double min = getMinValue(dataset.getHeatMap());
-				double max = getMaxValue(dataset.getHeatMap());
-
-				GradientColorPalette colors = new GradientColorPalette(new double[] { min, max }, new Color[] { Color.BLUE, Color.BLACK, Color.RED });
-
-				hcPlot.setColoring(colors);
-
-			}
-
-			chart.setTitle((TextTitle) null);
-
-			this.selectableChartPanel = new SelectableChartPanel(chart, this, false);
-			this.selectableChartPanel.getChartPanel().addChartMouseListener((HCPlot) chart.getPlot());
+			this.heatmapPanel = new RasterHeatmapPanel(heatMap, this);
+			heatmapPanel.setDownsampling(downsampling);
 
 			updateSelectionsFromApplication(false);
 			application.addClientEventListener(this);
 
 			int blockSize = 10;
-
-			int width = (int) (heatMap.getColumnsCount() * blockSize + hcPlot.getRowTreeSize() + hcPlot.getRowNamesSize() + hcPlot.getLeftMarginSize() + hcPlot.getRightMarginSize());
-
-			// Column tree not visible
-			int height = (int) (heatMap.getRowCount() * blockSize + hcPlot.getColumnNamesSize() + hcPlot.getTopMarginSize() + hcPlot.getBottomMarginSize());
-
-			this.preferredSize = new Dimension(width, height);
+			this.preferredSize = heatmapPanel.getPreferredSize(blockSize);
 
 			this.zoomChangerPanel = new JPanel(new BorderLayout());
 			this.spaceFiller = new JPanel();
@@ -209,7 +156,7 @@ public class Heatmap extends ChipVisualisation implements PropertyChangeListener
 		} catch (Exception e) {
 			// these are very tricky, mostly caused by bad data
 			logger.error(e); // log actual cause
-			throw new ErrorReportAsException("Hierarchical clustering cannot be shown.", "The problem is probably caused by unsupported data, such as gene names that have illegal characters in them.", e);
+			throw new ErrorReportAsException("Heatmap cannot be shown.", "The problem is probably caused by unsupported data, such as gene names that have illegal characters in them.", e);
 		}
 	}
 
@@ -218,7 +165,7 @@ public class Heatmap extends ChipVisualisation implements PropertyChangeListener
 
 		selected.clear();
 		for (int i : manager.getSelectionAsRows()) {
-			selected.add(i);
+			selected.set(i);
 		}
 
 		showSelection(dispatchEvent);
@@ -228,7 +175,7 @@ public class Heatmap extends ChipVisualisation implements PropertyChangeListener
 		Double min = null;
 		for (int row = 0; row < heatmap.getRowCount(); row++) {
 			for (int column = 0; column < heatmap.getColumnsCount(); column++) {
-				Double value = heatmap.get(row, column);
+				double value = heatmap.get(row, column);
 				if (min == null || value < min) {
 					min = value;
 				}
@@ -241,7 +188,7 @@ public class Heatmap extends ChipVisualisation implements PropertyChangeListener
 		Double max = null;
 		for (int row = 0; row < heatmap.getRowCount(); row++) {
 			for (int column = 0; column < heatmap.getColumnsCount(); column++) {
-				Double value = heatmap.get(row, column);
+				double value = heatmap.get(row, column);
 				if (max == null || value > max) {
 					max = value;
 				}
@@ -252,82 +199,83 @@ public class Heatmap extends ChipVisualisation implements PropertyChangeListener
 
 	protected void showSelection(boolean dispatchEvent) {
 
-		Selection[] detailedSelection = new Selection[rowCount];
-		Arrays.fill(detailedSelection, Selection.NO);
+		heatmapPanel.setSelectedRows(selected);
 
-//		detailedSelection = calculateRowSelectionDetails();
-
-		hcPlot.showSelection(detailedSelection, true);
+		if (dispatchEvent) {
+			int[] rows = new int[selected.cardinality()];
+			int j = 0;
+			for (int row = selected.nextSetBit(0); row != -1; row = selected.nextSetBit(row + 1)) {
+				rows[j++] = row;
+			}
+			application.getSelectionManager().getSelectionManager(selectionBean).setSelection(rows, this);
+		}
+	}
 
-//		list.setSelectedRows(selected, this, dispatchEvent, selectionBean);
+	@Override
+	public JPanel getParameterPanel() {
+		JPanel settingsPanel = new JPanel();
+		settingsPanel.setLayout(new GridBagLayout());
+		settingsPanel.setPreferredSize(Visualisation.PARAMETER_SIZE);
+
+		// zoomed out pixels show either the mean or the minimum of their rows
+		final JComboBox<String> downsamplingBox = new JComboBox<String>(new String[] { "Mean", "Minimum" });
+		downsamplingBox.setSelectedIndex(downsampling == Downsampling.MIN ? 1 : 0);
+		downsamplingBox.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				downsampling = downsamplingBox.getSelectedIndex() == 1 ? Downsampling.MIN : Downsampling.MEAN;
+				if (heatmapPanel != null) {
+					heatmapPanel.setDownsampling(downsampling);
+				}
+			}
+		});
+
+		GridBagConstraints c = new GridBagConstraints();
+		c.gridy = 0;
+		c.insets.set(10, 10, 0, 10);
+		c.anchor = GridBagConstraints.NORTHWEST;
+		c.fill = GridBagConstraints.HORIZONTAL;
+		c.weighty = 0;
+		c.weightx = 1.0;
+		settingsPanel.add(new JLabel("Zoomed out rows"), c);
+		c.gridy++;
+		settingsPanel.add(downsamplingBox, c);
+		c.gridy++;
+		c.fill = GridBagConstraints.BOTH;
+		c.weighty = 1.0;
+		settingsPanel.add(new JPanel(), c);
+
+		return settingsPanel;
 	}
 
 	public void setScaledMode(boolean scaled) {
 
-		/*
-		 * Ugly way to change zoom level by changing containing panel layout and scroller existence, but JFreeChart scaling is little bit
-		 * problematic in this kind of usage.
-		 */
 		if (scaled) {
-			spaceFiller.remove(selectableChartPanel);
+			spaceFiller.remove(heatmapPanel);
 			zoomChangerPanel.remove(scroller);
-			zoomChangerPanel.add(selectableChartPanel, BorderLayout.CENTER);
-			selectableChartPanel.setPreferredSize(null);
+			zoomChangerPanel.add(heatmapPanel, BorderLayout.CENTER);
+			heatmapPanel.setPreferredSize(null);
 		} else {
-			spaceFiller.add(selectableChartPanel);
-			zoomChangerPanel.remove(selectableChartPanel);
+			spaceFiller.add(heatmapPanel);
+			zoomChangerPanel.remove(heatmapPanel);
 			zoomChangerPanel.add(scroller, BorderLayout.CENTER);
-			selectableChartPanel.setPreferredSize(preferredSize);
+			heatmapPanel.setPreferredSize(preferredSize);
 		}
 
 		zoomChangerPanel.validate();
 		zoomChangerPanel.repaint();
 	}
 
-	public void selectionChanged(Rectangle2D.Double selectionRect) {
+	public void rowsSelected(int firstRow, int lastRow) {
 
-		if (selectionRect == null) {
+		if (firstRow == -1) {
 			selected.clear();
 		} else {
-
-			ChartRenderingInfo info = selectableChartPanel.getChartPanel().getChartRenderingInfo();
-
-			EntityCollection entities = info.getEntityCollection();
-
-			Set<Integer> newSelection = new HashSet<Integer>();
-
-			for (Object obj : entities.getEntities()) {
-
-				// Don't clear the selection if tree was clicked
-				if (obj instanceof HCTreeNodeEntity) {
-					HCTreeNodeEntity entity = (HCTreeNodeEntity) obj;
-					if (entity.getArea().intersects(selectionRect)) {
-						return;
-					}
-				}
-
-				if (obj instanceof HeatMapBlockEntity) {
-					HeatMapBlockEntity entity = (HeatMapBlockEntity) obj;
-
-					if (entity.getArea().intersects(selectionRect)) {
-//						newSelection.addAll(orders.visibleToBean(entity.getRow()));
-					}
-				}
-			}
-
-			// New selections can't be put directly to selectedIndexes, because every other occurrence
-			// of block (several in one line) inside selection rectangle would undo selection
-
-			for (Integer row : newSelection) {
-				if (selected.contains(row)) {
-					selected.remove(row);
-				} else {
-					selected.add(row);
-				}
-			}
-
-			showSelection(true);
+			// rows inside the rectangle toggle their selection
+			selected.flip(firstRow, lastRow + 1);
 		}
+
+		showSelection(true);
 	}
 	
 	
@@ -338,6 +286,3 @@ public class Heatmap extends ChipVisualisation implements PropertyChangeListener
 	}
 
 }
-
-
-
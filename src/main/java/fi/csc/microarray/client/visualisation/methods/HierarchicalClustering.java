@@ -12,6 +12,7 @@ import java.awt.geom.Rectangle2D;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -107,9 +108,99 @@ public class HierarchicalClustering extends Visualisation implements PropertyCha
 
 	private JCheckBox zoomCheckBox;
 	private JCheckBox scaleValuesBox;
+	private MicroarrayHCToolTipGenerator toolTipGenerator;
 
 	private class MicroarrayHCToolTipGenerator extends StandardHCToolTipGenerator {
 
+		// means of the closed blocks of the current tree, one value for each block and column
+		private HeatMap blockHeatmap;
+		private int[] blockFirstRows = new int[0];
+		private int[] blockLastRows = new int[0];
+		private double[] blockMeans = new double[0];
+
+		/**
+		 * Calculate the means of the closed blocks when the tree is opened or closed, so that
+		 * hovering a block doesn't iterate its rows.
+		 * 
+		 * @param rowsPerBlock number of rows in each visible row, in the tree order
+		 */
+		public void updateBlockMeans(HeatMap heatmap, int[] rowsPerBlock) {
+			int columnCount = heatmap.getColumnsCount();
+			int closedCount = 0;
+			for (int rows : rowsPerBlock) {
+				if (rows > 1) {
+					closedCount++;
+				}
+			}
+
+			int[] firstRows = new int[closedCount];
+			int[] lastRows = new int[closedCount];
+			double[] means = new double[closedCount * columnCount];
+			int row = 0;
+			int block = 0;
+			for (int rows : rowsPerBlock) {
+				if (rows > 1) {
+					firstRows[block] = row;
+					lastRows[block] = row + rows - 1;
+					calculateColumnMeans(heatmap, row, row + rows - 1, means, block * columnCount);
+					block++;
+				}
+				row += rows;
+			}
+
+			this.blockFirstRows = firstRows;
+			this.blockLastRows = lastRows;
+			this.blockMeans = means;
+			this.blockHeatmap = heatmap;
+		}
+
+		/**
+		 * Means of each column of the rows, without the missing values.
+		 */
+		private void calculateColumnMeans(HeatMap heatmap, int minRow, int maxRow, double[] means, int offset) {
+			int columnCount = heatmap.getColumnsCount();
+			double[] sums = new double[columnCount];
+			int[] counts = new int[columnCount];
+			for (int row = minRow; row <= maxRow; row++) {
+				for (int column = 0; column < columnCount; column++) {
+					double value = heatmap.get(row, column);
+					if (!Double.isNaN(value)) {
+						sums[column] += value;
+						counts[column]++;
+					}
+				}
+			}
+			for (int column = 0; column < columnCount; column++) {
+				means[offset + column] = counts[column] > 0 ? sums[column] / counts[column] : Double.NaN;
+			}
+		}
+
+		/**
+		 * Mean of the block without the missing values.
+		 */
+		private double getBlockMean(HeatMap heatmap, int minRow, int maxRow, int minColumn, int maxColumn) {
+			if (heatmap == blockHeatmap && minColumn == maxColumn) {
+				int block = Arrays.binarySearch(blockFirstRows, minRow);
+				if (block >= 0 && blockLastRows[block] == maxRow) {
+					return blockMeans[block * heatmap.getColumnsCount() + minColumn];
+				}
+			}
+
+			// not a closed block of one column
+			double sum = 0;
+			long count = 0;
+			for (int row = minRow; row <= maxRow; row++) {
+				for (int column = minColumn; column <= maxColumn; column++) {
+					double value = heatmap.get(row, column);
+					if (!Double.isNaN(value)) {
+						sum += value;
+						count++;
+					}
+				}
+			}
+			return count > 0 ? sum / count : Double.NaN;
+		}
+
 		/**
 		 * Creates tooltip for Hierarchical clustering visualisation. The tooltip includes chip and gene names and value.
 		 * 
@@ -124,8 +215,6 @@ public class HierarchicalClustering extends Visualisation implements PropertyCha
 			int maxRow;
 			int minColumn;
 			int maxColumn;
-			int rowCounter;
-			int columnCounter;
 			int blockCount;
 			double averageValue;
 
@@ -142,12 +231,8 @@ public class HierarchicalClustering extends Visualisation implements PropertyCha
 				return "(" + heatmap.getRowName(minRow) + "," + heatmap.getColumnName(minColumn) + ") = " + heatmap.get(minRow, minColumn);
 			}
 
-			for (averageValue = 0, blockCount = 0, rowCounter = minRow; rowCounter <= maxRow; rowCounter++) {
-				for (columnCounter = minColumn; columnCounter <= maxColumn; columnCounter++, blockCount++) {
-					averageValue += heatmap.get(rowCounter, columnCounter);
-				}
-			}
-			averageValue = averageValue / blockCount;
+			averageValue = getBlockMean(heatmap, minRow, maxRow, minColumn, maxColumn);
+			blockCount = (maxRow - minRow + 1) * (maxColumn - minColumn + 1);
 
 			return "(" + heatmap.getRowName(minRow) + "," + heatmap.getColumnName(minColumn) + ") .. " + "(" + heatmap.getRowName(maxRow) + "," + heatmap.getColumnName(maxColumn) + ") = " + averageValue + " (contains " + (blockCount + 1) + " blocks)";
 
@@ -474,7 +559,8 @@ public class HierarchicalClustering extends Visualisation implements PropertyCha
 
 		// Set tooltips
 		if (tooltips) {
-			hcPlot.setToolTipGenerator(new MicroarrayHCToolTipGenerator());
+			toolTipGenerator = new MicroarrayHCToolTipGenerator();
+			hcPlot.setToolTipGenerator(toolTipGenerator);
 		}
 
 		// Colors
@@ -506,6 +592,9 @@ public class HierarchicalClustering extends Visualisation implements PropertyCha
 			public void plotChanged(PlotChangeEvent event) {
 				if (event instanceof ClusteringTreeChangeEvent) {
 					HierarchicalClustering.this.orders.updateVisibleIndexes();
+					if (toolTipGenerator != null) {
+						toolTipGenerator.updateBlockMeans(HierarchicalClustering.this.hcPlot.getDataset().getHeatMap(), HierarchicalClustering.this.orders.getCountOfVisibleReferences());
+					}
 					HierarchicalClustering.this.updateSelectionsFromApplication(false);
 				}
 			}
@@ -0,0 +1,753 @@
+package fi.csc.microarray.client.visualisation.methods;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.swing.SwingUtilities;
+import javax.swing.table.AbstractTableModel;
+
+import org.apache.log4j.Logger;
+
+import fi.csc.microarray.client.Session;
+import fi.csc.microarray.client.selection.IntegratedEntity;
+import fi.csc.microarray.client.visualisation.methods.Spreadsheet.ExtendedCellValue;
+import fi.csc.microarray.databeans.DataBean;
+import fi.csc.microarray.databeans.features.Table;
+import fi.csc.microarray.databeans.features.table.TableColumnProvider;
+import fi.csc.microarray.databeans.features.table.TableColumnProvider.MatrixParseSettings;
+import fi.csc.microarray.filebroker.ChecksumException;
+import fi.csc.microarray.filebroker.ChecksumInputStream;
+import fi.csc.microarray.module.Module;
+import fi.csc.microarray.util.IOUtils;
+
+/**
+ * <p>Read-only table model that keeps only a small window of rows in memory. The file is
+ * indexed once in a background thread by storing the byte offset of each row, and rows are
+ * parsed on demand a page at a time when the table asks for them. The first rows can be
+ * shown while the rest of the file is still being indexed. Remote content is written to a
+ * local file while it's indexed, so the table doesn't have to wait for the download. The
+ * listener is told when the copy is complete, so that it can be reused.</p>
+ *
+ * <p>Sorting and filtering are done by building an external row order, so the table itself
+ * must not sort. Row numbers of the model are therefore not the same as row numbers of the
+ * data, use {@link #convertRowIndexToData(int)} and {@link #convertDataRowIndexToModel(int)}
+ * to convert between them.</p>
+ */
+public class PagedTableModel extends AbstractTableModel {
+
+	private static final Logger logger = Logger.getLogger(PagedTableModel.class);
+
+	private static final int PAGE_SIZE = 500;
+	private static final int MAX_PAGES = 8;
+	private static final int READ_BUFFER_SIZE = 1024*1024;
+	private static final int NOTIFY_INTERVAL_ROWS = 50000;
+
+	/**
+	 * Listener for the background indexing.
+	 */
+	public static interface IndexListener {
+		public void indexingProgress(int rowCount, boolean finished);
+		
+		/**
+		 * Called in EDT when the whole content has been copied to the file and verified.
+		 * 
+		 * @return true if the file was taken into use, otherwise it's deleted when the model is closed 
+		 */
+		public boolean contentCopied(File file);
+	}
+
+	private DataBean data;
+	private File file;
+	private InputStream content;
+	// local copy of the content, only accessed in the background thread
+	private OutputStream contentCopy;
+	private MatrixParseSettings settings;
+	private String[] columnNames;
+	private List<Boolean> linkableFlags;
+	private Module primaryModule;
+	private IndexListener indexListener;
+	// only accessed in EDT
+	private boolean copyReused = false;
+
+	// row i is between offsets i and i + 1, only accessed in EDT after the indexing has published it
+	private long[] rowOffsets = new long[] { 0 };
+	private int indexedRowCount = 0;
+	private boolean indexFinished = false;
+
+	// complete index for the background tasks, only accessed in the background thread
+	private long[] backgroundRowOffsets = new long[] { 0 };
+
+	// external row order for sorting and filtering, null when rows are in the original order
+	private int[] rowOrder = null;
+	private int[] inverseRowOrder = null;
+	private int sortColumn = -1;
+	private boolean sortAscending = true;
+	private String filter = null;
+
+	private RandomAccessFile raf;
+
+	// access ordered, so that the least recently used page is dropped first
+	private LinkedHashMap<Integer, ExtendedCellValue[][]> pages = new LinkedHashMap<Integer, ExtendedCellValue[][]>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, ExtendedCellValue[][]> eldest) {
+			return size() > MAX_PAGES;
+		}
+	};
+
+	private ExecutorService backgroundExecutor = Executors.newSingleThreadExecutor();
+
+	/**
+	 * @param file local file of the data, or an empty file for the copy of the content
+	 * @param content null if the file is complete, otherwise the content is copied to 
+	 * the file while it's indexed 
+	 */
+	public PagedTableModel(DataBean data, File file, InputStream content, MatrixParseSettings settings, List<Boolean> linkableFlags, IndexListener indexListener) throws IOException {
+		this.data = data;
+		this.file = file;
+		this.content = content;
+		this.settings = settings;
+		this.columnNames = settings.getColumnNames();
+		this.linkableFlags = linkableFlags;
+		this.primaryModule = Session.getSession().getPrimaryModule();
+		this.indexListener = indexListener;
+		this.raf = new RandomAccessFile(file, "r");
+
+		backgroundExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				boolean copied = false;
+				try {
+					buildIndex();
+					copied = PagedTableModel.this.content != null;
+				} catch (IOException | ChecksumException e) {
+					logger.error("indexing failed: " + PagedTableModel.this.file, e);
+				} finally {
+					IOUtils.closeIfPossible(PagedTableModel.this.content);
+					IOUtils.closeIfPossible(contentCopy);
+				}
+				if (copied && PagedTableModel.this.indexListener != null) {
+					SwingUtilities.invokeLater(new Runnable() {
+						@Override
+						public void run() {
+							copyReused = PagedTableModel.this.indexListener.contentCopied(PagedTableModel.this.file);
+						}
+					});
+				}
+			}
+		});
+	}
+
+	@Override
+	public int getRowCount() {
+		return rowOrder != null ? rowOrder.length : indexedRowCount;
+	}
+
+	@Override
+	public int getColumnCount() {
+		return columnNames.length;
+	}
+
+	@Override
+	public String getColumnName(int column) {
+		return columnNames[column];
+	}
+
+	@Override
+	public Class<?> getColumnClass(int columnIndex) {
+		return ExtendedCellValue.class;
+	}
+
+	@Override
+	public boolean isCellEditable(int rowIndex, int columnIndex) {
+		return false;
+	}
+
+	@Override
+	public Object getValueAt(int rowIndex, int columnIndex) {
+		int dataRow = convertRowIndexToData(rowIndex);
+		int page = dataRow / PAGE_SIZE;
+
+		ExtendedCellValue[][] rows = pages.get(page);
+		if (rows == null) {
+			try {
+				rows = loadPage(page);
+				pages.put(page, rows);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return rows[dataRow - page * PAGE_SIZE][columnIndex];
+	}
+
+	public int convertRowIndexToData(int rowIndex) {
+		return rowOrder != null ? rowOrder[rowIndex] : rowIndex;
+	}
+
+	/**
+	 * @return -1 if the row is filtered out
+	 */
+	public int convertDataRowIndexToModel(int dataRowIndex) {
+		if (inverseRowOrder != null) {
+			return dataRowIndex < inverseRowOrder.length ? inverseRowOrder[dataRowIndex] : -1;
+		}
+		return dataRowIndex < indexedRowCount ? dataRowIndex : -1;
+	}
+
+	/**
+	 * @return number of rows in the data, including the filtered rows
+	 */
+	public int getIndexedRowCount() {
+		return indexedRowCount;
+	}
+
+	public boolean isIndexFinished() {
+		return indexFinished;
+	}
+
+	public int getSortColumn() {
+		return sortColumn;
+	}
+
+	public boolean isSortAscending() {
+		return sortAscending;
+	}
+
+	/**
+	 * Sorts the rows in a background thread. Sorting is possible only after the indexing
+	 * has finished.
+	 *
+	 * @param column column to sort by, -1 for the original order
+	 */
+	public void sort(int column, boolean ascending) {
+		this.sortColumn = column;
+		this.sortAscending = ascending;
+		updateRowOrder();
+	}
+
+	/**
+	 * Shows only the rows that contain the given text in any column.
+	 *
+	 * @param filter null or empty to show all rows
+	 */
+	public void setFilter(String filter) {
+		this.filter = filter == null || filter.isEmpty() ? null : filter.toLowerCase();
+		updateRowOrder();
+	}
+
+	public void close() {
+		backgroundExecutor.shutdownNow();
+		IOUtils.closeIfPossible(raf);
+		if (content != null) {
+			// stops the indexing, if the content is still being copied
+			IOUtils.closeIfPossible(content);
+			// the copy is only for this table, unless it was complete and reused
+			if (!copyReused && !file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+	}
+
+	private void updateRowOrder() {
+		final int column = sortColumn;
+		final boolean ascending = sortAscending;
+		final String filter = this.filter;
+
+		// runs after the indexing, because there is only one thread
+		backgroundExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					final int[] order = createRowOrder(column, ascending, filter);
+					SwingUtilities.invokeLater(new Runnable() {
+						@Override
+						public void run() {
+							setRowOrder(order);
+						}
+					});
+				} catch (IOException e) {
+					logger.error("sorting failed", e);
+				}
+			}
+		});
+	}
+
+	private void setRowOrder(int[] order) {
+		this.rowOrder = order;
+		if (order != null) {
+			inverseRowOrder = new int[indexedRowCount];
+			Arrays.fill(inverseRowOrder, -1);
+			for (int i = 0; i < order.length; i++) {
+				inverseRowOrder[order[i]] = i;
+			}
+		} else {
+			inverseRowOrder = null;
+		}
+		fireTableDataChanged();
+	}
+
+	/**
+	 * Runs in the background thread after the indexing.
+	 */
+	private int[] createRowOrder(int column, final boolean ascending, String filter) throws IOException {
+
+		if (column < 0 && filter == null) {
+			return null;
+		}
+
+		// filter, and keep the cells that are not numbers as strings
+		int rowCount = backgroundRowOffsets.length - 1;
+		int[] rows = new int[rowCount];
+		int matchCount = 0;
+		final float[] numericKeys = column >= 0 ? new float[rowCount] : null;
+		final String[] stringKeys = column >= 0 ? new String[rowCount] : null;
+
+		RowReader reader = new RowReader(0);
+		try {
+			for (int row = 0; row < rowCount; row++) {
+				String line = reader.readRow(row);
+				if (filter == null || line.toLowerCase().contains(filter)) {
+					rows[matchCount] = row;
+					if (numericKeys != null) {
+						String[] cells = tokenise(line);
+						String value = column < cells.length ? cells[column] : "";
+						try {
+							numericKeys[matchCount] = Float.parseFloat(value);
+						} catch (NumberFormatException e) {
+							stringKeys[matchCount] = value;
+						}
+					}
+					matchCount++;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		if (numericKeys == null) {
+			return Arrays.copyOf(rows, matchCount);
+		}
+
+		// sort by the column, numbers before strings, so that the order is transitive
+		int[] positions = new int[matchCount];
+		for (int i = 0; i < matchCount; i++) {
+			positions[i] = i;
+		}
+		sort(positions, new IntComparator() {
+			@Override
+			public int compare(int p1, int p2) {
+				int result;
+				if (stringKeys[p1] == null && stringKeys[p2] == null) {
+					result = Float.compare(numericKeys[p1], numericKeys[p2]);
+				} else if (stringKeys[p1] == null || stringKeys[p2] == null) {
+					result = stringKeys[p1] == null ? -1 : 1;
+				} else {
+					result = stringKeys[p1].compareTo(stringKeys[p2]);
+				}
+				return ascending ? result : -result;
+			}
+		});
+
+		int[] order = new int[matchCount];
+		for (int i = 0; i < matchCount; i++) {
+			order[i] = rows[positions[i]];
+		}
+		return order;
+	}
+
+	private static interface IntComparator {
+		public int compare(int i1, int i2);
+	}
+
+	/**
+	 * Stable merge sort of ints, so that the rows don't have to be boxed.
+	 */
+	private static void sort(int[] values, IntComparator comparator) {
+		int[] buffer = new int[values.length];
+		for (int width = 1; width < values.length; width *= 2) {
+			for (int start = 0; start < values.length - width; start += 2 * width) {
+				int middle = start + width;
+				int end = Math.min(start + 2 * width, values.length);
+				int i = start;
+				int j = middle;
+				int k = start;
+				while (i < middle && j < end) {
+					// take from the left on ties to keep the sort stable
+					if (comparator.compare(values[j], values[i]) < 0) {
+						buffer[k++] = values[j++];
+					} else {
+						buffer[k++] = values[i++];
+					}
+				}
+				while (i < middle) {
+					buffer[k++] = values[i++];
+				}
+				while (j < end) {
+					buffer[k++] = values[j++];
+				}
+				System.arraycopy(buffer, start, values, start, end - start);
+			}
+		}
+	}
+
+	/**
+	 * Runs in the background thread. Scans through the file and stores the offsets of the
+	 * rows. Stops at the same places as the DynamicallyParsedTable: at the end of the file,
+	 * at the first empty row or at the footer.
+	 */
+	private void buildIndex() throws IOException, ChecksumException {
+
+		long[] offsets = new long[1024];
+		int count = 0;
+		long lastNotified = 0;
+
+		InputStream in;
+		if (content != null) {
+			contentCopy = new BufferedOutputStream(new FileOutputStream(file), READ_BUFFER_SIZE);
+			in = new BufferedInputStream(new CopyingInputStream(content, contentCopy), READ_BUFFER_SIZE);
+		} else {
+			in = new BufferedInputStream(new FileInputStream(file), READ_BUFFER_SIZE);
+		}
+		try {
+			long position = 0;
+
+			// skip header and column names
+			long skipped = 0;
+			while (skipped < settings.getHeaderBytes()) {
+				long n = in.skip(settings.getHeaderBytes() - skipped);
+				if (n <= 0) {
+					break;
+				}
+				skipped += n;
+			}
+			position = skipped;
+			if (settings.hasColumnNames()) {
+				position += skipLine(in);
+			}
+
+			StringBuilder line = new StringBuilder();
+			boolean onlyWhitespace = true;
+			offsets[0] = position;
+
+			int b;
+			while ((b = in.read()) != -1) {
+				position++;
+
+				if (b != '\n') {
+					if (onlyWhitespace && !Character.isWhitespace(b)) {
+						onlyWhitespace = false;
+					}
+					if (settings.getFooterStarter() != null) {
+						line.append((char) b);
+					}
+					continue;
+				}
+
+				// end of row
+				if (onlyWhitespace || (settings.getFooterStarter() != null && line.toString().contains(settings.getFooterStarter()))) {
+					break;
+				}
+
+				count++;
+				if (count + 1 > offsets.length) {
+					offsets = Arrays.copyOf(offsets, offsets.length * 2);
+				}
+				offsets[count] = position;
+				line.setLength(0);
+				onlyWhitespace = true;
+
+				if (count - lastNotified >= NOTIFY_INTERVAL_ROWS) {
+					publishIndex(Arrays.copyOf(offsets, count + 1), false);
+					lastNotified = count;
+				}
+			}
+
+			// last row without new line
+			if (!onlyWhitespace && b == -1 && !(settings.getFooterStarter() != null && line.toString().contains(settings.getFooterStarter()))) {
+				count++;
+				if (count + 1 > offsets.length) {
+					offsets = Arrays.copyOf(offsets, offsets.length + 1);
+				}
+				offsets[count] = position + 1; // as if there was a new line
+			}
+			
+			// copy the rest after the footer too, so that the copy is complete
+			if (content != null) {
+				byte[] buffer = new byte[64*1024];
+				while (in.read(buffer) != -1) {
+					// only copy
+				}
+				if (content instanceof ChecksumInputStream) {
+					((ChecksumInputStream) content).verifyChecksums();
+				}
+			}
+
+		} finally {
+			IOUtils.closeIfPossible(in);
+		}
+
+		logger.debug("indexed " + count + " rows of " + data.getName());
+		backgroundRowOffsets = Arrays.copyOf(offsets, count + 1);
+		publishIndex(backgroundRowOffsets, true);
+	}
+
+	private long skipLine(InputStream in) throws IOException {
+		long n = 0;
+		int b;
+		while ((b = in.read()) != -1) {
+			n++;
+			if (b == '\n') {
+				break;
+			}
+		}
+		return n;
+	}
+
+	private void publishIndex(final long[] offsets, final boolean finished) throws IOException {
+		// the table reads the published rows from the copy
+		if (contentCopy != null) {
+			contentCopy.flush();
+		}
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				int firstNewRow = indexedRowCount;
+				rowOffsets = offsets;
+				// the last page may have been loaded only partially
+				pages.clear();
+				indexedRowCount = offsets.length - 1;
+				indexFinished = finished;
+
+				if (rowOrder == null && indexedRowCount > firstNewRow) {
+					fireTableRowsInserted(firstNewRow, indexedRowCount - 1);
+				}
+
+				if (indexListener != null) {
+					indexListener.indexingProgress(indexedRowCount, finished);
+				}
+			}
+		});
+	}
+
+	private ExtendedCellValue[][] loadPage(int page) throws IOException {
+		int firstRow = page * PAGE_SIZE;
+		int lastRow = Math.min(firstRow + PAGE_SIZE, indexedRowCount) - 1;
+
+		ExtendedCellValue[][] rows = new ExtendedCellValue[lastRow - firstRow + 1][];
+
+		long start = rowOffsets[firstRow];
+		byte[] bytes = new byte[(int) (rowOffsets[lastRow + 1] - start)];
+		raf.seek(start);
+		// the offset of the last row without new line is after the end of the file
+		int length = (int) Math.min(bytes.length, raf.length() - start);
+		raf.readFully(bytes, 0, length);
+
+		for (int row = firstRow; row <= lastRow; row++) {
+			int from = (int) (rowOffsets[row] - start);
+			int to = Math.min((int) (rowOffsets[row + 1] - start) - 1, length); // without new line
+			rows[row - firstRow] = parseRow(new String(bytes, from, Math.max(to - from, 0)));
+		}
+
+		return rows;
+	}
+
+	private ExtendedCellValue[] parseRow(String line) {
+		String[] cells = tokenise(line);
+		ExtendedCellValue[] row = new ExtendedCellValue[columnNames.length];
+
+		for (int column = 0; column < columnNames.length; column++) {
+			// stuff too short rows with empty cells like DynamicallyParsedTable does
+			String value = column < cells.length ? cells[column] : "";
+			Float numericValue;
+			try {
+				numericValue = Float.valueOf(value);
+			} catch (NumberFormatException e) {
+				numericValue = null;
+			}
+
+			IntegratedEntity linkedEntity = null;
+			if (linkableFlags.get(column)) {
+				linkedEntity = primaryModule.createLinkableEntity(new RowTable(columnNames, cells), data);
+			}
+
+			row[column] = new ExtendedCellValue(value, numericValue, linkedEntity);
+		}
+		return row;
+	}
+
+	private static String[] tokenise(String line) {
+		if (line.endsWith("\r")) {
+			line = line.substring(0, line.length() - 1);
+		}
+		return TableColumnProvider.tokeniseRow(line.replace("EMPTY", "NaN"));
+	}
+
+	/**
+	 * Writes everything that is read from the stream to the copy.
+	 */
+	private static class CopyingInputStream extends FilterInputStream {
+
+		private OutputStream copy;
+
+		public CopyingInputStream(InputStream in, OutputStream copy) {
+			super(in);
+			this.copy = copy;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				copy.write(b);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				copy.write(b, off, n);
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// the skipped bytes must be copied too
+			byte[] buffer = new byte[(int) Math.min(n, READ_BUFFER_SIZE)];
+			int read = read(buffer, 0, buffer.length);
+			return Math.max(read, 0);
+		}
+	}
+
+	/**
+	 * Sequential reader for the background tasks, so that they don't disturb the
+	 * random access of the table.
+	 */
+	private class RowReader {
+
+		private InputStream in;
+		private long position;
+
+		public RowReader(int firstRow) throws IOException {
+			this.in = new BufferedInputStream(new FileInputStream(file), READ_BUFFER_SIZE);
+			this.position = 0;
+			skipTo(backgroundRowOffsets[firstRow]);
+		}
+
+		public String readRow(int row) throws IOException {
+			skipTo(backgroundRowOffsets[row]);
+			int length = (int) (backgroundRowOffsets[row + 1] - backgroundRowOffsets[row]);
+			byte[] bytes = new byte[length];
+			int read = 0;
+			while (read < length) {
+				int n = in.read(bytes, read, length - read);
+				if (n == -1) {
+					break;
+				}
+				read += n;
+			}
+			position += read;
+
+			// without new line
+			int end = read > 0 && read == length && bytes[read - 1] == '\n' ? read - 1 : read;
+			return new String(bytes, 0, end);
+		}
+
+		private void skipTo(long offset) throws IOException {
+			while (position < offset) {
+				long n = in.skip(offset - position);
+				if (n <= 0) {
+					break;
+				}
+				position += n;
+			}
+		}
+
+		public void close() {
+			IOUtils.closeIfPossible(in);
+		}
+	}
+
+	/**
+	 * One row as a Table for Module.createLinkableEntity().
+	 */
+	private static class RowTable implements Table {
+
+		private String[] columnNames;
+		private String[] cells;
+
+		public RowTable(String[] columnNames, String[] cells) {
+			this.columnNames = columnNames;
+			this.cells = cells;
+		}
+
+		private int indexOf(String columnName) {
+			for (int i = 0; i < columnNames.length; i++) {
+				if (columnNames[i].equals(columnName)) {
+					return i;
+				}
+			}
+			throw new IllegalArgumentException("column name " + columnName + " was not found");
+		}
+
+		public boolean nextRow() {
+			return false;
+		}
+
+		public float getFloatValue(String columnName) {
+			try {
+				return Float.parseFloat(getStringValue(columnName));
+			} catch (NumberFormatException e) {
+				return Float.NaN;
+			}
+		}
+
+		public String getStringValue(String columnName) {
+			int index = indexOf(columnName);
+			return index < cells.length ? cells[index] : "";
+		}
+
+		public int getIntValue(String columnName) {
+			return (int) getFloatValue(columnName);
+		}
+
+		public Object getValue(String columnName) {
+			try {
+				return Float.valueOf(getStringValue(columnName));
+			} catch (NumberFormatException e) {
+				return getStringValue(columnName);
+			}
+		}
+
+		public String[] getColumnNames() {
+			return columnNames;
+		}
+
+		public boolean hasColumn(String columnName) {
+			return Arrays.asList(columnNames).contains(columnName);
+		}
+
+		public int getColumnCount() {
+			return columnNames.length;
+		}
+
+		public void close() {
+			// nothing to close
+		}
+	}
+}
@@ -2,8 +2,12 @@ package fi.csc.microarray.client.visualisation.methods;
 
 import java.awt.BorderLayout;
 import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -14,8 +18,12 @@ import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
 import javax.swing.JScrollPane;
 import javax.swing.JSeparator;
+import javax.swing.JTextField;
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
 import javax.swing.table.DefaultTableModel;
 
+import org.apache.log4j.Logger;
 import org.jdesktop.swingx.hyperlink.LinkModel;
 import org.jdesktop.swingx.hyperlink.LinkModelAction;
 import org.jdesktop.swingx.renderer.DefaultTableRenderer;
@@ -29,17 +37,23 @@ import fi.csc.microarray.client.visualisation.Visualisation;
 import fi.csc.microarray.client.visualisation.VisualisationFrame;
 import fi.csc.microarray.client.visualisation.VisualisationUtilities;
 import fi.csc.microarray.databeans.DataBean;
+import fi.csc.microarray.databeans.DataBean.DataNotAvailableHandling;
 import fi.csc.microarray.databeans.DataManager;
+import fi.csc.microarray.databeans.DataManager.ContentLocation;
+import fi.csc.microarray.databeans.DataManager.StorageMethod;
 import fi.csc.microarray.databeans.features.QueryResult;
-import fi.csc.microarray.databeans.features.RestrictModifier.RestrictedTable;
 import fi.csc.microarray.databeans.features.Table;
+import fi.csc.microarray.databeans.features.table.TableColumnProvider;
+import fi.csc.microarray.databeans.features.table.TableColumnProvider.MatrixParseSettings;
 import fi.csc.microarray.exception.MicroarrayException;
+import fi.csc.microarray.filebroker.ContentLengthException;
 import fi.csc.microarray.module.Module;
 import fi.csc.microarray.module.basic.BasicModule;
 
 /**
  * A GUI component for showing tabular data. Supports sorting and
- * other extended functions with underlying JXTable.
+ * other extended functions with underlying JXTable. Rows are read
+ * on demand by the {@link PagedTableModel}, so that large tables can be shown.
  * 
  * @author Janne Käki, Mikko Koski, Aleksi Kallio
  *
@@ -48,6 +62,8 @@ import fi.csc.microarray.module.basic.BasicModule;
 
 public class Spreadsheet extends Visualisation {
 
+	private static final Logger logger = Logger.getLogger(Spreadsheet.class);
+
 	public void initialise(VisualisationFrame frame) throws Exception {
 		super.initialise(frame);
 	}	
@@ -96,6 +112,7 @@ public class Spreadsheet extends Visualisation {
 	private final int COLUMNS_REQUIRES_SCROLLING = 8;
 
 	private ExtendedJXTable table;
+	private PagedTableModel model;
 
 	/**
 	 * Creates a new TablePanel, which is dataset specific.
@@ -110,90 +127,113 @@ public class Spreadsheet extends Visualisation {
 		Module primaryModule = Session.getSession().getPrimaryModule();
 
 		// Figure out column names
-		String[] columnTitles;
-		Object[][] rowData;
+		final ExtendedJXTable table = new ExtendedJXTable(data);
+		this.table = table;
 		List<Boolean> linkableFlags;
-		int rowCount;
 		int columnCount;
+		final JLabel rowCountLabel = new JLabel();
+		JTextField filterField = null;
 		QueryResult columnsFeature = data.queryFeatures("restrict(/column/*)");
 		try (Table columns = columnsFeature.asTable()) {
 
 			if (columns == null) {
-				columnTitles = new String[] { "Info" };
-				rowData = new String[][] { new String[] { DataManager.DATA_NA_INFOTEXT }};
+				String[] columnTitles = new String[] { "Info" };
+				Object[][] rowData = new String[][] { new String[] { DataManager.DATA_NA_INFOTEXT }};
 				linkableFlags = new LinkedList<Boolean>();
 				linkableFlags.add(false);
-				rowCount = 1;
 				columnCount = 1;
 
+				DefaultTableModel tableModel = new DefaultTableModel(rowData, columnTitles) {			
+					@Override
+					public boolean isCellEditable(int row, int column){
+						return false;
+					}			
+				};
+				table.setModel(tableModel);
+				rowCountLabel.setText("Showing 1 row");
+
 			} else {
 
-				columnTitles = new String[columns.getColumnCount()];
-				int counter = 0;
-				for (String column : columns.getColumnNames()) {
-					columnTitles[counter] = column;
-					counter++;
-				}
 				columnCount = columns.getColumnCount();
 
 				// Check which columns need hyperlinking
 				linkableFlags = primaryModule.flagLinkableColumns(columns, data);
 
-				Integer restrictdRows = ((RestrictedTable)columns).getRestrictedRows();
-				
-				// Count data rows
-				try (Table rowCounter = data.queryFeatures("/column/*").asTable()) {
-					rowCount = 0;
-					while (rowCounter.nextRow()) {
-						rowCount++;
-						if (rowCount > restrictdRows * 10) {
-							// don't read through huge files
-							rowCount = Integer.MAX_VALUE;
-							break;
-						}
-					}
+				// Rows are read from the file only when they are shown. Remote data is 
+				// copied by the model, so that the first rows can be shown right away.
+				// The complete copy is kept as a local location of the data for the next time.
+				MatrixParseSettings settings = TableColumnProvider.inferSettings(data);
+				final DataManager dataManager = Session.getSession().getDataManager();
+				ContentLocation location = dataManager.getClosestRandomAccessContentLocation(data);
+				File file;
+				InputStream content = null;
+				if (location != null && location.getMethod().isLocal()) {
+					file = dataManager.getLocalRandomAccessFile(data);
+				} else {
+					file = dataManager.createNewRepositoryFile(data.getName());
+					content = dataManager.getContentStream(data, DataNotAvailableHandling.EXCEPTION_ON_NA);
 				}
-				
-				// Create actual tabular data
-				rowData = new Object[Math.min(restrictdRows, rowCount)][columnCount];
-				int row = 0;
-				while (columns.nextRow()) {
-					int column = 0;
-					for (String columnName : columns.getColumnNames()) {
-
-						Object value = columns.getValue(columnName);
-						ExtendedCellValue cell;
-
-						IntegratedEntity linkedEntity = null;
-						if (linkableFlags.get(column)) {
-							// This cell value is linkable
-							linkedEntity = primaryModule.createLinkableEntity(columns, data);
+				model = new PagedTableModel(data, file, content, settings, linkableFlags, new PagedTableModel.IndexListener() {
+					@Override
+					public void indexingProgress(int rowCount, boolean finished) {
+						if (finished) {
+							rowCountLabel.setText("Showing " + table.getRowCount() + " rows of " + rowCount);
+						} else {
+							rowCountLabel.setText("Showing " + table.getRowCount() + " rows, reading more...");
 						}
+					}
 
-						if (value instanceof Float) {
-							cell = new ExtendedCellValue(columns.getStringValue(columnName), (Float)value, linkedEntity);
-
+					@Override
+					public boolean contentCopied(File file) {
+						try {
+							dataManager.addContentLocationForDataBean(data, StorageMethod.LOCAL_TEMP, file.toURI().toURL());
+							return true;
+						} catch (IOException | ContentLengthException e) {
+							logger.warn("could not keep the local copy of " + data.getName(), e);
+							return false;
+						}
+					}
+				});
+				table.setModel(model);
+				model.addTableModelListener(new TableModelListener() {
+					@Override
+					public void tableChanged(TableModelEvent e) {
+						if (model.isIndexFinished()) {
+							rowCountLabel.setText("Showing " + table.getRowCount() + " rows of " + model.getIndexedRowCount());
+						}
+					}
+				});
+
+				// Sorting is done by the model, because the table would need all the rows
+				table.setSortable(false);
+				table.getTableHeader().addMouseListener(new MouseAdapter() {
+					@Override
+					public void mouseClicked(MouseEvent e) {
+						int column = table.convertColumnIndexToModel(table.columnAtPoint(e.getPoint()));
+						if (column == -1) {
+							return;
+						}
+						if (column != model.getSortColumn()) {
+							model.sort(column, true);
+						} else if (model.isSortAscending()) {
+							model.sort(column, false);
 						} else {
-							cell = new ExtendedCellValue(columns.getStringValue(columnName), null, linkedEntity);
+							model.sort(-1, true);
 						}
-						rowData[row][column] = cell;
-						column++;
 					}
-					row++;
-				}
+				});
+
+				filterField = new JTextField(20);
+				final JTextField field = filterField;
+				filterField.addActionListener(new ActionListener() {
+					@Override
+					public void actionPerformed(ActionEvent e) {
+						model.setFilter(field.getText());
+					}
+				});
 			}
 		}
 
-		// Create the table component
-		table = new ExtendedJXTable(data);
-		DefaultTableModel tableModel = new DefaultTableModel(rowData, columnTitles) {			
-			@Override
-			public boolean isCellEditable(int row, int column){
-				return false;
-			}			
-		};
-		table.setModel(tableModel);
-
 		// Initialise support for hyperlinks, if needed
 		for (int i = 0; i < linkableFlags.size(); i++) {
 
@@ -234,11 +274,15 @@ public class Spreadsheet extends Visualisation {
 		});
 
 		// Make visible and activate
-		if (rowCount == Integer.MAX_VALUE) {
-			panel.add(new JLabel("Showing only the first " + rowData.length + " rows of table"), BorderLayout.NORTH);
-		} else {
-			panel.add(new JLabel("Showing " + rowData.length + " rows of " + rowCount), BorderLayout.NORTH);
+		JPanel topPanel = new JPanel(new BorderLayout());
+		topPanel.add(rowCountLabel, BorderLayout.CENTER);
+		if (filterField != null) {
+			JPanel filterPanel = new JPanel();
+			filterPanel.add(new JLabel("Filter rows"));
+			filterPanel.add(filterField);
+			topPanel.add(filterPanel, BorderLayout.EAST);
 		}
+		panel.add(topPanel, BorderLayout.NORTH);
 		panel.add(tableScroller, BorderLayout.CENTER);
 		table.updateSelectionsFromApplication();
 		table.sendEvents(true);
@@ -319,5 +363,8 @@ public class Spreadsheet extends Visualisation {
 	@Override
 	public void removeVisualisation(){
 		application.removeClientEventListener(table);
+		if (model != null) {
+			model.close();
+		}
 	}
 }
@@ -6,14 +6,20 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 
 import fi.csc.microarray.client.visualisation.methods.gbrowser.gui.DataUrl;
+import fi.csc.microarray.client.visualisation.methods.gbrowser.message.Chromosome;
 import fi.csc.microarray.client.visualisation.methods.gbrowser.message.DataType;
 import fi.csc.microarray.client.visualisation.methods.gbrowser.message.Region;
 import fi.csc.microarray.client.visualisation.methods.gbrowser.message.Feature;
@@ -30,6 +36,21 @@ import fi.csc.microarray.util.Strings;
 public class RegionOperations {
 
 	private static final String EMPTY_EXTRA_FIELDS = "";
+	
+	private static final DataType[] LEGACY_BED_COLUMNS = new DataType[] {
+			DataType.CHROMOSOME,
+			DataType.START,
+			DataType.END,
+			DataType.ID,
+			DataType.VALUE,
+			DataType.STRAND,
+			DataType.THICK_START,
+			DataType.THICK_END,
+			DataType.ITEM_RGB,
+			DataType.BLOCK_COUNT,
+			DataType.BLOCK_SIZES,
+			DataType.BLOCK_STARTS
+	};
 
 	public static void main(String[] args) throws FileNotFoundException, IOException, GBrowserException {
 		RegionOperations tool = new RegionOperations();
@@ -76,6 +97,10 @@ public class RegionOperations {
 	 * parameter settings. The algorithm is based on Cartesian product, with configurable pairing rule and additional handling for 
 	 * orphan (non-paired) regions.
 	 * 
+	 * For {@link IntersectingPairRule} the pairs are found with a sweep over the regions sorted by start position, one chromosome
+	 * at a time, so that only the regions near each other are compared. Other rules go through the full Cartesian product. 
+	 * In both cases the pairs are processed in the same order as in the Cartesian product.
+	 * 
 	 * 
 	 * @param leftRegions first set (primary set in some cases)
 	 * @param rightRegions second set
@@ -91,33 +116,40 @@ public class RegionOperations {
 		
 		// Initialise collectors
 		LinkedList<Feature> result = new LinkedList<Feature>();
-		HashSet<Feature> leftPaired = new HashSet<Feature>();
-		HashSet<Feature> rightPaired = new HashSet<Feature>();
+		Feature[] left = leftRegions.toArray(new Feature[leftRegions.size()]);
+		Feature[] right = rightRegions.toArray(new Feature[rightRegions.size()]);
+		boolean[] leftPaired = new boolean[left.length];
+		boolean[] rightPaired = new boolean[right.length];
 		
-		// Find pairs from a Cartesian product
-		for (Feature leftRegion : leftRegions) {
-			for (Feature rightRegion : rightRegions) {
-				if (pairRule.isPair(leftRegion.region, rightRegion.region)) {
-					leftPaired.add(leftRegion);
-					rightPaired.add(rightRegion);
-					
-					// Output what pair policy dictates
-					pairPolicy.process(leftRegion, rightRegion, result);
-				}
-			}
+		// Find pairs
+		PairCollector pairs = new PairCollector();
+		if (pairRule instanceof IntersectingPairRule && isSingleChromosome(left) && isSingleChromosome(right)) {
+			findIntersectingPairs(left, right, ((IntersectingPairRule)pairRule).minLength, pairs);
+		} else {
+			findPairs(left, right, pairRule, pairs);
+		}
+		
+		for (long pair : pairs.toSortedArray()) {
+			int leftIndex = (int) (pair >>> 32);
+			int rightIndex = (int) pair;
+			leftPaired[leftIndex] = true;
+			rightPaired[rightIndex] = true;
+			
+			// Output what pair policy dictates
+			pairPolicy.process(left[leftIndex], right[rightIndex], result);
 		}
 		
 		// Process left orphans
-		for (Feature leftRegion : leftRegions) {
-			if (!leftPaired.contains(leftRegion)) {
-				leftOrphanPolicy.process(leftRegion, result);
+		for (int i = 0; i < left.length; i++) {
+			if (!leftPaired[i]) {
+				leftOrphanPolicy.process(left[i], result);
 			}
 		}
 		
 		// Process right orphans
-		for (Feature rightRegion : rightRegions) {
-			if (!rightPaired.contains(rightRegion)) {
-				rightOrphanPolicy.process(rightRegion, result);
+		for (int i = 0; i < right.length; i++) {
+			if (!rightPaired[i]) {
+				rightOrphanPolicy.process(right[i], result);
 			}
 		}
 		
@@ -130,6 +162,153 @@ public class RegionOperations {
 	}
 
 
+	/**
+	 * Pairs as indexes to the left and right regions, packed to longs so that
+	 * sorting them gives the order of the Cartesian product.
+	 */
+	private static class PairCollector {
+		private long[] pairs = new long[16];
+		private int size = 0;
+		
+		public void add(int leftIndex, int rightIndex) {
+			if (size == pairs.length) {
+				pairs = Arrays.copyOf(pairs, size * 2);
+			}
+			pairs[size++] = ((long) leftIndex << 32) | (rightIndex & 0xffffffffL);
+		}
+		
+		public long[] toSortedArray() {
+			long[] sorted = Arrays.copyOf(pairs, size);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+	
+	/**
+	 * Start and end positions of the regions of one chromosome, sorted by the start position.
+	 */
+	private static class SortedRegions {
+		private long[] starts;
+		private long[] ends;
+		private int[] indexes;
+		
+		public SortedRegions(final Feature[] features, List<Integer> featureIndexes) {
+			Integer[] order = featureIndexes.toArray(new Integer[featureIndexes.size()]);
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer i1, Integer i2) {
+					return Long.compare(features[i1].region.start.bp, features[i2].region.start.bp);
+				}
+			});
+			
+			starts = new long[order.length];
+			ends = new long[order.length];
+			indexes = new int[order.length];
+			for (int i = 0; i < order.length; i++) {
+				Region region = features[order[i]].region;
+				starts[i] = region.start.bp;
+				ends[i] = region.end.bp;
+				indexes[i] = order[i];
+			}
+		}
+	}
+	
+	private void findPairs(Feature[] left, Feature[] right, PairRule pairRule, PairCollector pairs) {
+		for (int i = 0; i < left.length; i++) {
+			for (int j = 0; j < right.length; j++) {
+				if (pairRule.isPair(left[i].region, right[j].region)) {
+					pairs.add(i, j);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the same pairs as {@link IntersectingPairRule}, but compares only the regions on the same chromosome 
+	 * whose positions are close enough.
+	 */
+	private void findIntersectingPairs(Feature[] left, Feature[] right, long minLength, PairCollector pairs) {
+		
+		// intersection of zero length is accepted, but not negative
+		long minOverlap = Math.max(minLength, 0);
+		
+		Map<Chromosome, List<Integer>> leftChromosomes = groupByChromosome(left);
+		Map<Chromosome, List<Integer>> rightChromosomes = groupByChromosome(right);
+
+		for (Entry<Chromosome, List<Integer>> entry : leftChromosomes.entrySet()) {
+			List<Integer> rightIndexes = rightChromosomes.get(entry.getKey());
+			if (rightIndexes == null) {
+				continue;
+			}
+			sweep(new SortedRegions(left, entry.getValue()), new SortedRegions(right, rightIndexes), minOverlap, pairs);
+		}
+	}
+	
+	/**
+	 * Go through the left regions in the order of start position and keep a list of right regions that can 
+	 * overlap with the current and following left regions.
+	 */
+	private void sweep(SortedRegions left, SortedRegions right, long minOverlap, PairCollector pairs) {
+		int[] active = new int[16];
+		int activeCount = 0;
+		int nextRight = 0;
+		
+		for (int i = 0; i < left.starts.length; i++) {
+			long leftStart = left.starts[i];
+			long leftEnd = left.ends[i];
+			
+			// right regions that start early enough to overlap with this left region
+			while (nextRight < right.starts.length && right.starts[nextRight] <= leftEnd - minOverlap) {
+				if (activeCount == active.length) {
+					active = Arrays.copyOf(active, activeCount * 2);
+				}
+				active[activeCount++] = nextRight++;
+			}
+			
+			int kept = 0;
+			for (int k = 0; k < activeCount; k++) {
+				int j = active[k];
+				
+				// ends too early for this and all the following left regions
+				if (right.ends[j] - leftStart < minOverlap) {
+					continue;
+				}
+				active[kept++] = j;
+				
+				if (Math.min(leftEnd, right.ends[j]) - Math.max(leftStart, right.starts[j]) >= minOverlap) {
+					pairs.add(left.indexes[i], right.indexes[j]);
+				}
+			}
+			activeCount = kept;
+		}
+	}
+	
+	private Map<Chromosome, List<Integer>> groupByChromosome(Feature[] features) {
+		Map<Chromosome, List<Integer>> chromosomes = new HashMap<Chromosome, List<Integer>>();
+		for (int i = 0; i < features.length; i++) {
+			Chromosome chr = features[i].region.start.chr;
+			List<Integer> indexes = chromosomes.get(chr);
+			if (indexes == null) {
+				indexes = new ArrayList<Integer>();
+				chromosomes.put(chr, indexes);
+			}
+			indexes.add(i);
+		}
+		return chromosomes;
+	}
+	
+	/**
+	 * @return false if some region spans several chromosomes or doesn't have a chromosome
+	 */
+	private boolean isSingleChromosome(Feature[] features) {
+		for (Feature feature : features) {
+			Region region = feature.region;
+			if (region.start.chr == null || !region.start.chr.equals(region.end.chr)) {
+				return false;
+			}
+		}
+		return true;
+	}
 
 	/**
 	 * Decides if two regions are a pair.
@@ -298,26 +477,11 @@ public class RegionOperations {
 			throw new IllegalArgumentException("BED must have at least chromosome, start and end fields");
 		}
 		
-		DataType[] legacyBedColumns = new DataType[] {
-				DataType.CHROMOSOME,
-				DataType.START,
-				DataType.END,
-				DataType.ID,
-				DataType.VALUE,
-				DataType.STRAND,
-				DataType.THICK_START,
-				DataType.THICK_END,
-				DataType.ITEM_RGB,
-				DataType.BLOCK_COUNT,
-				DataType.BLOCK_SIZES,
-				DataType.BLOCK_STARTS
-		};
-		
 		LinkedHashMap<DataType, Object> values = new LinkedHashMap<DataType, Object>();
 		
 		for (int i = 3; i < fieldCount; i++) {
 						
-			DataType key = legacyBedColumns[i];
+			DataType key = LEGACY_BED_COLUMNS[i];
 			String value = parser.getString(i);
 			values.put(key, value);
 		}
@@ -326,9 +490,10 @@ public class RegionOperations {
 	}
 
 
-	private LinkedList<Feature> mergeContinuous(LinkedList<Feature> regions) {
+	private LinkedList<Feature> mergeContinuous(LinkedList<Feature> result) {
 		
-		// Sort to bring continuous pieces together
+		// Sort to bring continuous pieces together, use array list for fast indexing
+		ArrayList<Feature> regions = new ArrayList<Feature>(result);
 		sort(regions);
 		
 		// Write out continuous regions
@@ -1,295 +1,497 @@
 package fi.csc.microarray.client.visualisation.methods.gbrowser.util;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
-import org.springframework.util.StringUtils;
-
-import fi.csc.microarray.client.visualisation.methods.gbrowser.message.BpCoord;
 import fi.csc.microarray.client.visualisation.methods.gbrowser.message.Chromosome;
 import fi.csc.microarray.client.visualisation.methods.gbrowser.runtimeIndex.AbstractTsvLineParser;
 import fi.csc.microarray.util.IOUtils;
-import fi.csc.microarray.util.Strings;
 
+/**
+ * External sort for tab separated files by chromosome and start position. The file is read in
+ * chunks that are sorted in parallel and written to temporary files next to the input file.
+ * The sorted chunks are then merged with a k-way merge.
+ *
+ * Lines are handled as bytes, only the chromosome and start position columns are parsed. The
+ * postfix of the chromosome name (anything after a dot) is removed, the rest of the line is
+ * written as it is. Lines with equal keys stay in the original order.
+ */
 public class TsvSorter {
 
+	private static final long MAX_CHUNK_SIZE = 100000000;
+	private static final int MAX_IO_BUFFER_SIZE = 1024 * 1024;
+	private static final int MIN_IO_BUFFER_SIZE = 64 * 1024;
+
+	// estimate of the memory used by each line in addition to its bytes
+	private static final int ROW_OVERHEAD = 64;
+
+	// keep the number of open files reasonable
+	private static final int MAX_MERGE_FILES = 200;
+
 	private int chrCol;
 	private int bpCol;
-	private ChromosomeNormaliser chromosomeNormaliser = new ChromosomeNormaliser() {
 
-		public String normaliseChromosome(String chromosomeName) {
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private long chunkSize = -1;
+	private boolean compressTempFiles = false;
 
-			// Leave prefix as it is
-			
-			// Remove postfix, if present
-			String SEPARATOR = ".";
-			if (chromosomeName.contains(SEPARATOR)) {
-				chromosomeName = chromosomeName.substring(0, chromosomeName.indexOf(SEPARATOR));
-			}
-			
-			return chromosomeName;
-		}
-	};
-	
 	private AbstractTsvLineParser parser;
-	
+
 	public void sort(File in, File out, int chrColumn, int startColumn) throws Exception {
 		this.chrCol = chrColumn;
 		this.bpCol = startColumn;
 		externalSort(in, out);
 	}
-	
+
 	public void sort(File in, File out, int chrColumn, int startColumn, AbstractTsvLineParser parser) throws Exception {
 		this.parser = parser;
 		sort(in, out, chrColumn, startColumn);
-	}	
+	}
+
+	/**
+	 * @param threads number of chunks sorted in parallel, by default the number of processors
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(threads, 1);
+	}
+
+	/**
+	 * @param chunkSize bytes of input sorted in memory at a time, by default based on the max heap size
+	 */
+	public void setChunkSize(long chunkSize) {
+		this.chunkSize = chunkSize;
+	}
 
-	private class Row extends BpCoord {
+	/**
+	 * Compress the temporary files, when the disk is slower than the compression.
+	 */
+	public void setCompressTempFiles(boolean compressTempFiles) {
+		this.compressTempFiles = compressTempFiles;
+	}
 
-		public String line;
+	private static class Row implements Comparable<Row> {
 
-		public Row(String line) {
-			super(null, null);
+		private byte[] line;
+		private Chromosome chr;
+		private long bp;
 
+		public Row(byte[] line, Chromosome chr, long bp) {
 			this.line = line;
-			String[] splitted = line.split("\t");
-			String chrStr = splitted.length > chrCol ? splitted[chrCol] : "";
-			
-			// If chromosome name exists, normalise it
-			if (!chrStr.isEmpty()) {
-				chrStr = chromosomeNormaliser.normaliseChromosome(chrStr);
-				splitted[chrCol] = chrStr;
-				this.line = Strings.delimit(Arrays.asList(splitted), "\t"); // replace back to raw line
-			}
-			String bpStr = splitted.length > bpCol ? splitted[bpCol] : "";
-
-			chr = new Chromosome(chrStr);
+			this.chr = chr;
+			this.bp = bp;
+		}
 
-			if (bpStr.isEmpty()) {
-				bp = -1l;
-			} else {
-				bp = Long.parseLong(bpStr);
+		@Override
+		public int compareTo(Row other) {
+			int chrComparison = chr.compareTo(other.chr);
+			if (chrComparison != 0) {
+				return chrComparison;
 			}
+			return Long.compare(bp, other.bp);
 		}
 	}
 
 	/**
-	 * Based on http://www.codeodor.com/index.cfm/2007/5/14/Re-Sorting-really-BIG-files---the-Java-source-code/1208
-	 * 
-	 * @param infile
-	 * @param outfile
-	 * @throws IOException
-	 * @throws GBrowserException
+	 * Parses the sort key from a line. The previous chromosome is reused, because the lines of
+	 * the same chromosome are usually together. Not thread safe, each thread needs its own.
 	 */
-	private void externalSort(File infile, File outfile) throws IOException, GBrowserException {
-		
-		// Start reading
-		BufferedReader initReader = new BufferedReader(new FileReader(infile));
-		
-		// Read header, if exists
-		String header = "";
-
-		if (parser != null) {
-			
-			String line;
-			while ((line = initReader.readLine()) != null) {
-				
-				parser.setLine(line);
-				if (parser.isContentLine()) {
+	private class RowParser {
+
+		private byte[] previousChrBytes = new byte[0];
+		private Chromosome previousChr = new Chromosome("");
+
+		public Row parse(byte[] line) {
+
+			// find the columns, missing columns are empty
+			int chrStart = 0;
+			int chrEnd = 0;
+			int bpStart = 0;
+			int bpEnd = 0;
+			int column = 0;
+			int fieldStart = 0;
+			for (int i = 0; i <= line.length; i++) {
+				if (i == line.length || line[i] == '\t') {
+					if (column == chrCol) {
+						chrStart = fieldStart;
+						chrEnd = i;
+					}
+					if (column == bpCol) {
+						bpStart = fieldStart;
+						bpEnd = i;
+					}
+					column++;
+					fieldStart = i + 1;
+					if (column > chrCol && column > bpCol) {
+						break;
+					}
+				}
+			}
+
+			long bp = bpStart == bpEnd ? -1l : parseLong(line, bpStart, bpEnd);
+
+			// remove the postfix of the chromosome name, if present
+			for (int i = chrStart; i < chrEnd; i++) {
+				if (line[i] == '.') {
+					byte[] normalised = new byte[line.length - (chrEnd - i)];
+					System.arraycopy(line, 0, normalised, 0, i);
+					System.arraycopy(line, chrEnd, normalised, i, line.length - chrEnd);
+					line = normalised;
+					chrEnd = i;
 					break;
+				}
+			}
+
+			return new Row(line, getChromosome(line, chrStart, chrEnd), bp);
+		}
 
-				} else {
-					header += line + "\n";
-				}			
+		private Chromosome getChromosome(byte[] line, int start, int end) {
+			int length = end - start;
+			boolean same = length == previousChrBytes.length;
+			for (int i = 0; same && i < length; i++) {
+				same = line[start + i] == previousChrBytes[i];
 			}
-			
-			//First content line is already consumed. Open file again, but do not read content yet.
-			initReader.close();
-			initReader = new BufferedReader(new FileReader(infile));
-			
-			for (int i = 0; i < StringUtils.countOccurrencesOf(header, "\n"); i++) {
-				initReader.readLine();
-			}					
+			if (!same) {
+				previousChrBytes = Arrays.copyOfRange(line, start, end);
+				previousChr = new Chromosome(new String(previousChrBytes, StandardCharsets.UTF_8));
+			}
+			return previousChr;
 		}
+	}
 
-		// Create and sort chunks
-		ArrayList<Row> rowBatch = new ArrayList<Row>(500000);
-		boolean quit = false;
-		int numFiles = 0;
+	/**
+	 * Same as Long.parseLong(), but without creating a String.
+	 */
+	private static long parseLong(byte[] bytes, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (bytes[i] == '-' || bytes[i] == '+') {
+			negative = bytes[i] == '-';
+			i++;
+		}
+		// long enough to overflow or only the sign
+		if (end - i > 18 || i == end) {
+			return Long.parseLong(new String(bytes, start, end - start, StandardCharsets.UTF_8));
+		}
+		long value = 0;
+		for (; i < end; i++) {
+			int digit = bytes[i] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException("For input string: \"" + new String(bytes, start, end - start, StandardCharsets.UTF_8) + "\"");
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
 
-		while (!quit) {
+	/**
+	 * Reads lines as bytes, without the line end.
+	 */
+	private static class LineReader {
 
-			// showProgress("Reading...");
+		private InputStream in;
+		private byte[] buffer;
+		private int position = 0;
+		private int limit = 0;
 
-			// limit chunks to 100MB
-			int size = 0;
-			while (size < 100000000) {
-				// while (size < 10000000) {
-				String line = initReader.readLine();
+		public LineReader(InputStream in, int bufferSize) {
+			this.in = in;
+			this.buffer = new byte[bufferSize];
+		}
 
-				if (line == null) {
-					quit = true;
-					break;
+		/**
+		 * @return null at the end of the stream
+		 */
+		public byte[] readLine() throws IOException {
+			byte[] partial = null;
+			int partialLength = 0;
+
+			while (true) {
+				if (position == limit) {
+					limit = Math.max(in.read(buffer), 0);
+					position = 0;
+					if (limit == 0) {
+						return partial == null ? null : copyLine(partial, 0, partialLength);
+					}
 				}
 
-				rowBatch.add(new Row(line));
-				size += line.length();
-			}
+				int start = position;
+				while (position < limit && buffer[position] != '\n') {
+					position++;
+				}
+				int length = position - start;
+				boolean lineEnd = position < limit;
+				if (lineEnd) {
+					position++;
+				}
 
-			// showProgress("Sorting...");
+				if (lineEnd && partial == null) {
+					return copyLine(buffer, start, length);
+				}
 
-			// Use Java's sort.
-			Collections.sort(rowBatch);
+				// line continues in the next buffer
+				if (partial == null) {
+					partial = new byte[Math.max(length * 2, 128)];
+				} else if (partialLength + length > partial.length) {
+					partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLength + length));
+				}
+				System.arraycopy(buffer, start, partial, partialLength, length);
+				partialLength += length;
 
-			// showProgress("Writing...");
+				if (lineEnd) {
+					return copyLine(partial, 0, partialLength);
+				}
+			}
+		}
 
-			// write to disk
-			FileWriter fw = new FileWriter(infile + "_chunk" + numFiles);
-			BufferedWriter bw = new BufferedWriter(fw);
-			for (int i = 0; i < rowBatch.size(); i++) {
-				bw.append(rowBatch.get(i).line + "\n");
+		private byte[] copyLine(byte[] bytes, int start, int length) {
+			// windows line end
+			if (length > 0 && bytes[start + length - 1] == '\r') {
+				length--;
 			}
-			bw.close();
-			numFiles++;
-			rowBatch.clear();
+			return Arrays.copyOfRange(bytes, start, start + length);
 		}
+	}
+
+	/**
+	 * Position in one sorted temporary file during the merge.
+	 */
+	private static class RunCursor implements Comparable<RunCursor> {
 
-		// showProgress("Merging...");
+		private int index;
+		private LineReader reader;
+		private RowParser parser;
+		private Row row;
 
-		mergeFiles(infile.getAbsolutePath(), outfile, numFiles, header);
+		public RunCursor(int index, LineReader reader, RowParser parser) {
+			this.index = index;
+			this.reader = reader;
+			this.parser = parser;
+		}
 
-		// showProgress("DONE");
+		/**
+		 * @return false if there are no more rows
+		 */
+		public boolean next() throws IOException {
+			byte[] line = reader.readLine();
+			row = line == null ? null : parser.parse(line);
+			return row != null;
+		}
 
-		initReader.close();
+		@Override
+		public int compareTo(RunCursor other) {
+			int rowComparison = row.compareTo(other.row);
+			if (rowComparison != 0) {
+				return rowComparison;
+			}
+			// keep the original order of equal rows
+			return Integer.compare(index, other.index);
+		}
 	}
 
-	private void mergeFiles(String inputFilePath, File outputFilePath, int numChunkFiles, String header) throws IOException, GBrowserException {
+	private void externalSort(File infile, File outfile) throws IOException, GBrowserException {
+
+		long maxMemory = Runtime.getRuntime().maxMemory();
 
-		
-		// Initialise
-		ArrayList<BufferedReader> mergefbr = new ArrayList<BufferedReader>();
-		ArrayList<Row> filerows = new ArrayList<Row>();
-		FileWriter fw = new FileWriter(outputFilePath);
-		BufferedWriter bw = new BufferedWriter(fw);
+		// one chunk for each thread and one being read
+		long chunkBytes = chunkSize > 0 ? chunkSize : Math.max(1024 * 1024, Math.min(MAX_CHUNK_SIZE, maxMemory / 3 / (threads + 1)));
+
+		List<File> runs = new ArrayList<File>();
+		List<File> tempFiles = new ArrayList<File>();
+		LinkedList<Future<?>> pending = new LinkedList<Future<?>>();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		InputStream in = new FileInputStream(infile);
+		LineReader reader = new LineReader(in, MAX_IO_BUFFER_SIZE);
 
 		try {
-			// Write header, if needed
-			if (!header.isEmpty()) {
-				bw.append(header);	
-			}		
-
-			// Merge chunks
-			boolean someFileStillHasRows = false;
-			for (int i = 0; i < numChunkFiles; i++) {
-				mergefbr.add(new BufferedReader(new FileReader(inputFilePath + "_chunk" + i)));
-
-				// get the first row
-				String line = mergefbr.get(i).readLine();
-				if (line != null) {
-					filerows.add(new Row(line));
-					someFileStillHasRows = true;
-				} else {
-					filerows.add(null);
+			// Read header, if exists
+			ByteArrayOutputStream header = new ByteArrayOutputStream();
+			byte[] line = reader.readLine();
+			if (parser != null) {
+				while (line != null) {
+					parser.setLine(new String(line, StandardCharsets.UTF_8));
+					if (parser.isContentLine()) {
+						break;
+					}
+					header.write(line);
+					header.write('\n');
+					line = reader.readLine();
 				}
 			}
 
-			Row row;
-			while (someFileStillHasRows) {
-				Row min;
-				int minIndex = 0;
-
-				row = filerows.get(0);
-				if (row != null) {
-					min = row;
-					minIndex = 0;
-				} else {
-					min = null;
-					minIndex = -1;
+			// Create and sort chunks
+			while (line != null) {
+				final List<byte[]> chunk = new ArrayList<byte[]>();
+				long size = 0;
+				while (line != null && size < chunkBytes) {
+					chunk.add(line);
+					size += line.length + ROW_OVERHEAD;
+					line = reader.readLine();
 				}
 
-				// check which one is min
-				for (int i = 1; i < filerows.size(); i++) {
-					row = filerows.get(i);
-					if (min != null) {
-
-						if (row != null && (row.compareTo(min) < 0)) {
-							minIndex = i;
-							min = filerows.get(i);
-						}
-					} else {
-						if (row != null) {
-							min = row;
-							minIndex = i;
-						}
-					}
-				}
+				final File run = new File(infile + "_chunk" + runs.size());
+				runs.add(run);
+				tempFiles.add(run);
 
-				if (minIndex < 0) {
-					someFileStillHasRows = false;
-				} else {
-					// write to the sorted file
-					bw.append(filerows.get(minIndex).line + "\n");
-
-					// get another row from the file that had the min
-					String line = mergefbr.get(minIndex).readLine();
-					if (line != null) {
-						filerows.set(minIndex, new Row(line));
-					} else {
-						filerows.set(minIndex, null);
-					}
+				// limit memory usage, wait for the oldest chunk if all threads are busy
+				if (pending.size() >= threads) {
+					waitFor(pending.removeFirst());
 				}
-				// check if one still has rows
-				for (int i = 0; i < filerows.size(); i++) {
-
-					someFileStillHasRows = false;
-					if (filerows.get(i) != null) {
-						if (minIndex < 0) {
-							
-							bw.close();
-							
-							throw new GBrowserException("Error in sorting: " + "mindex lt 0 and found row not null" + filerows.get(i));
-						}
-						someFileStillHasRows = true;
-						break;
+				pending.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						sortChunk(chunk, run);
+						return null;
 					}
+				}));
+			}
+			while (!pending.isEmpty()) {
+				waitFor(pending.removeFirst());
+			}
+
+			// merge in several rounds if there are too many files
+			while (runs.size() > MAX_MERGE_FILES) {
+				List<File> mergedRuns = new ArrayList<File>();
+				for (int i = 0; i < runs.size(); i += MAX_MERGE_FILES) {
+					File mergedRun = new File(infile + "_merged" + i + "_" + runs.size());
+					tempFiles.add(mergedRun);
+					List<File> group = runs.subList(i, Math.min(i + MAX_MERGE_FILES, runs.size()));
+					merge(group, mergedRun, new byte[0], compressTempFiles);
+					deleteAll(group);
+					mergedRuns.add(mergedRun);
 				}
+				runs = mergedRuns;
+			}
 
-				// check the actual files one more time
-				if (!someFileStillHasRows) {
-					// write the last one not covered above
-					for (int i = 0; i < filerows.size(); i++) {
-						if (filerows.get(i) == null) {
-							String line = mergefbr.get(i).readLine();
-							if (line != null) {
-
-								someFileStillHasRows = true;
-								filerows.set(i, new Row(line));
-							}
-						}
-					}
+			merge(runs, outfile, header.toByteArray(), false);
+
+		} finally {
+			executor.shutdownNow();
+			IOUtils.closeIfPossible(in);
+
+			// Delete all of the chunk files
+			deleteAll(tempFiles);
+		}
+	}
+
+	private void sortChunk(List<byte[]> chunk, File run) throws IOException {
+		RowParser rowParser = new RowParser();
+		Row[] rows = new Row[chunk.size()];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = rowParser.parse(chunk.get(i));
+		}
+		chunk.clear();
+
+		// stable sort
+		Arrays.sort(rows);
+
+		OutputStream out = openOutput(run, compressTempFiles);
+		try {
+			for (Row row : rows) {
+				out.write(row.line);
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private void merge(List<File> runs, File outfile, byte[] header, boolean compress) throws IOException {
+
+		// share the buffer memory between the files
+		int bufferSize = (int) Math.max(MIN_IO_BUFFER_SIZE, Math.min(MAX_IO_BUFFER_SIZE, Runtime.getRuntime().maxMemory() / 4 / Math.max(runs.size(), 1)));
+
+		RowParser rowParser = new RowParser();
+		PriorityQueue<RunCursor> queue = new PriorityQueue<RunCursor>(Math.max(runs.size(), 1));
+		List<InputStream> inputs = new ArrayList<InputStream>();
+		OutputStream out = openOutput(outfile, compress);
+
+		try {
+			out.write(header);
+
+			for (int i = 0; i < runs.size(); i++) {
+				InputStream in = openInput(runs.get(i));
+				inputs.add(in);
+				RunCursor cursor = new RunCursor(i, new LineReader(in, bufferSize), rowParser);
+				if (cursor.next()) {
+					queue.add(cursor);
+				}
+			}
+
+			while (!queue.isEmpty()) {
+				RunCursor cursor = queue.poll();
+				out.write(cursor.row.line);
+				out.write('\n');
+				if (cursor.next()) {
+					queue.add(cursor);
 				}
 			}
 		} finally {
+			for (InputStream in : inputs) {
+				IOUtils.closeIfPossible(in);
+			}
+			out.close();
+		}
+	}
+
+	private OutputStream openOutput(File file, boolean compress) throws IOException {
+		if (compress) {
+			return new GZIPOutputStream(new FileOutputStream(file), MAX_IO_BUFFER_SIZE) {
+				{
+					def.setLevel(Deflater.BEST_SPEED);
+				}
+			};
+		} else {
+			return new BufferedOutputStream(new FileOutputStream(file), MAX_IO_BUFFER_SIZE);
+		}
+	}
 
-			// close all the files			
-			IOUtils.closeIfPossible(bw);
-			IOUtils.closeIfPossible(fw);
+	private InputStream openInput(File run) throws IOException {
+		if (compressTempFiles) {
+			return new GZIPInputStream(new FileInputStream(run), MIN_IO_BUFFER_SIZE);
+		} else {
+			return new FileInputStream(run);
 		}
+	}
 
-		for (int i = 0; i < mergefbr.size(); i++)
-			mergefbr.get(i).close();
+	private void waitFor(Future<?> future) throws IOException {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			throw new IOException("sorting interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
 
-		// Delete all of the chunk files.
-		for (int i = 0; i < numChunkFiles; i++) {
-			File f = new File(inputFilePath + "_chunk" + i);
-			f.delete();
+	private void deleteAll(List<File> files) {
+		for (File file : files) {
+			file.delete();
 		}
 	}
 
@@ -1,8 +1,11 @@
 package fi.csc.microarray.client.visualisation.methods.hc;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.jfree.chart.plot.HCPlot;
 import org.jfree.chart.plot.HCTreeNodeInfo;
@@ -25,24 +28,49 @@ public class OrderSuperviser {
 	// List indexes referring to full tree order, Integer objects referring to visible indexes
 	private List<Integer> treeToVisible = new ArrayList<Integer>();
 
+	// Inverse maps of the lists above
+	private Map<String, Integer> idToTree = new HashMap<String, Integer>();
+	private Map<Integer, Integer> beanToTree = new HashMap<Integer, Integer>();
+	private int[] visibleToFirstTree = new int[] { 0 };
+
 	// S E T T E R S //////////////////////////////////////////////////////////
 
 	public void setTreeToId(List<String> treeToId) {
 		this.treeToId = treeToId;
+		this.idToTree = new HashMap<String, Integer>();
+		for (int tree = treeToId.size() - 1; tree >= 0; tree--) {
+			idToTree.put(treeToId.get(tree), tree); // first occurrence wins like in indexOf()
+		}
 	}
 
 	public void setTreeToBean(List<Integer> treeToBean) {
 		this.treeToBean = treeToBean;
+		this.beanToTree = new HashMap<Integer, Integer>();
+		for (int tree = treeToBean.size() - 1; tree >= 0; tree--) {
+			beanToTree.put(treeToBean.get(tree), tree);
+		}
 	}
 
 	public void setTreeToVisible(List<Integer> treeToVisible) {
 		this.treeToVisible = treeToVisible;
+
+		// visible indexes grow with the tree order, so each visible row is a range of tree rows
+		int maxVisible = treeToVisible.isEmpty() ? -1 : treeToVisible.get(treeToVisible.size() - 1);
+		this.visibleToFirstTree = new int[maxVisible + 2];
+		Arrays.fill(visibleToFirstTree, treeToVisible.size());
+		for (int tree = treeToVisible.size() - 1; tree >= 0; tree--) {
+			visibleToFirstTree[treeToVisible.get(tree)] = tree;
+		}
+		for (int visible = maxVisible; visible >= 0; visible--) {
+			visibleToFirstTree[visible] = Math.min(visibleToFirstTree[visible], visibleToFirstTree[visible + 1]);
+		}
 	}
 
 	// C O N V E R T E R S ////////////////////////////////////////////////////
 
 	public int idToTree(String id) {
-		return treeToId.indexOf(id);
+		Integer tree = idToTree.get(id);
+		return tree != null ? tree : -1;
 	}
 
 	public int treeToVisible(int tree) {
@@ -58,14 +86,12 @@ public class OrderSuperviser {
 	public List<Integer> visibleToTree(int visibleToFind) {
 		List<Integer> treeIndexes = new ArrayList<Integer>();
 
-		int tree = 0;
-		for (int visible : treeToVisible) {
-
-			if (visible == visibleToFind) {
-				treeIndexes.add(tree);
-			}
+		if (visibleToFind < 0 || visibleToFind + 1 >= visibleToFirstTree.length) {
+			return treeIndexes;
+		}
 
-			tree++;
+		for (int tree = visibleToFirstTree[visibleToFind]; tree < visibleToFirstTree[visibleToFind + 1]; tree++) {
+			treeIndexes.add(tree);
 		}
 		return treeIndexes;
 	}
@@ -75,7 +101,8 @@ public class OrderSuperviser {
 	}
 
 	public int beanToTree(int bean) {
-		return treeToBean.indexOf(bean);
+		Integer tree = beanToTree.get(bean);
+		return tree != null ? tree : -1;
 	}
 
 	public List<Integer> visibleToBean(Integer index) {
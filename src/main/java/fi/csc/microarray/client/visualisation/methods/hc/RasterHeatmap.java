@@ -0,0 +1,309 @@
+package fi.csc.microarray.client.visualisation.methods.hc;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Heatmap values in a primitive matrix, rendered directly into a {@link BufferedImage}.</p>
+ *
+ * <p>For zoomed out views there are downsampling levels, where each level has half of the
+ * rows of the previous one. Every value of a level is either the mean or the minimum of the
+ * two corresponding values of the previous level. When the image has less pixels than there are
+ * rows, the rendering uses the level that has closest to one row per pixel, so the cost of the
+ * rendering depends on the size of the image and not on the size of the data.</p>
+ */
+public class RasterHeatmap {
+
+	public static enum Downsampling {
+		MEAN, MIN
+	}
+
+	private static final int PALETTE_SIZE = 256;
+	private static final int NAN_COLOR = Color.GRAY.getRGB();
+
+	private int rowCount;
+	private int columnCount;
+	private float[] values;
+	private String[] rowNames;
+	private String[] columnNames;
+
+	private float min = Float.NaN;
+	private float max = Float.NaN;
+	private int[] palette;
+
+	// levels 1..n, level 0 is the values array itself
+	private List<float[]> meanLevels = null;
+	private List<float[]> minLevels = null;
+
+	public RasterHeatmap(int rowCount, int columnCount) {
+		this.rowCount = rowCount;
+		this.columnCount = columnCount;
+		this.values = new float[rowCount * columnCount];
+		this.rowNames = new String[rowCount];
+		this.columnNames = new String[columnCount];
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public int getColumnCount() {
+		return columnCount;
+	}
+
+	public float get(int row, int column) {
+		return values[row * columnCount + column];
+	}
+
+	/**
+	 * Levels and colors are calculated when the heatmap is rendered for the first time, so
+	 * the values must not be changed after that.
+	 */
+	public void set(int row, int column, float value) {
+		values[row * columnCount + column] = value;
+	}
+
+	public String getRowName(int row) {
+		return rowNames[row];
+	}
+
+	public void setRowName(int row, String name) {
+		rowNames[row] = name;
+	}
+
+	public String getColumnName(int column) {
+		return columnNames[column];
+	}
+
+	public void setColumnName(int column, String name) {
+		columnNames[column] = name;
+	}
+
+	public synchronized float getMin() {
+		calculateRange();
+		return min;
+	}
+
+	public synchronized float getMax() {
+		calculateRange();
+		return max;
+	}
+
+	/**
+	 * Mean of the values in the given range, without the missing values.
+	 *
+	 * @param firstRow inclusive
+	 * @param lastRow inclusive
+	 * @param firstColumn inclusive
+	 * @param lastColumn inclusive
+	 */
+	public double getMean(int firstRow, int lastRow, int firstColumn, int lastColumn) {
+		double sum = 0;
+		long count = 0;
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int column = firstColumn; column <= lastColumn; column++) {
+				float value = values[row * columnCount + column];
+				if (!Float.isNaN(value)) {
+					sum += value;
+					count++;
+				}
+			}
+		}
+		return count > 0 ? sum / count : Double.NaN;
+	}
+
+	/**
+	 * Renders the given part of the heatmap. The whole heatmap is width x height pixels and
+	 * the image covers the area starting from x, y.
+	 *
+	 * @param image target, which has the size of the area to render
+	 * @param x first pixel column of the area
+	 * @param y first pixel row of the area
+	 * @param width width of the whole heatmap in pixels
+	 * @param height height of the whole heatmap in pixels
+	 */
+	public void render(BufferedImage image, int x, int y, double width, double height, Downsampling downsampling) {
+
+		int imageWidth = image.getWidth();
+		int imageHeight = image.getHeight();
+
+		float[] level;
+		int levelRowCount;
+		int levelIndex = 0;
+		synchronized (this) {
+			calculateRange();
+
+			// choose the level that has at least one row for every pixel
+			double rowsPerPixel = rowCount / height;
+			while ((1 << (levelIndex + 1)) <= rowsPerPixel && (rowCount >> (levelIndex + 1)) > 0) {
+				levelIndex++;
+			}
+			level = getLevel(levelIndex, downsampling);
+			levelRowCount = level.length / columnCount;
+		}
+
+		double pixelsPerRow = height / rowCount;
+		double pixelsPerColumn = width / columnCount;
+		int[] pixels = new int[imageWidth];
+
+		for (int py = 0; py < imageHeight; py++) {
+			// row of the original data, which is then found from the level
+			int row = ((int) ((y + py) / pixelsPerRow)) >> levelIndex;
+			if (row >= levelRowCount) {
+				row = levelRowCount - 1;
+			}
+			int offset = row * columnCount;
+
+			for (int px = 0; px < imageWidth; px++) {
+				// aggregate the columns when there are more columns than pixels
+				int firstColumn = (int) ((x + px) / pixelsPerColumn);
+				int lastColumn = (int) ((x + px + 1) / pixelsPerColumn) - 1;
+				if (firstColumn >= columnCount) {
+					firstColumn = columnCount - 1;
+				}
+				if (lastColumn < firstColumn) {
+					lastColumn = firstColumn;
+				} else if (lastColumn >= columnCount) {
+					lastColumn = columnCount - 1;
+				}
+
+				float value;
+				if (firstColumn == lastColumn) {
+					value = level[offset + firstColumn];
+				} else {
+					value = aggregate(level, offset + firstColumn, offset + lastColumn, downsampling);
+				}
+				pixels[px] = getColor(value);
+			}
+			image.setRGB(0, py, imageWidth, 1, pixels, 0, imageWidth);
+		}
+	}
+
+	private int getColor(float value) {
+		if (Float.isNaN(value)) {
+			return NAN_COLOR;
+		}
+		int index = max > min ? (int) ((value - min) / (max - min) * (PALETTE_SIZE - 1)) : PALETTE_SIZE / 2;
+		if (index < 0) {
+			index = 0;
+		} else if (index >= PALETTE_SIZE) {
+			index = PALETTE_SIZE - 1;
+		}
+		return palette[index];
+	}
+
+	private static float aggregate(float[] level, int first, int last, Downsampling downsampling) {
+		if (downsampling == Downsampling.MIN) {
+			float result = Float.NaN;
+			for (int i = first; i <= last; i++) {
+				if (Float.isNaN(result) || level[i] < result) {
+					result = level[i];
+				}
+			}
+			return result;
+		} else {
+			double sum = 0;
+			int count = 0;
+			for (int i = first; i <= last; i++) {
+				if (!Float.isNaN(level[i])) {
+					sum += level[i];
+					count++;
+				}
+			}
+			return count > 0 ? (float) (sum / count) : Float.NaN;
+		}
+	}
+
+	private float[] getLevel(int index, Downsampling downsampling) {
+		if (index == 0) {
+			return values;
+		}
+
+		List<float[]> levels;
+		if (downsampling == Downsampling.MIN) {
+			if (minLevels == null) {
+				minLevels = new ArrayList<float[]>();
+			}
+			levels = minLevels;
+		} else {
+			if (meanLevels == null) {
+				meanLevels = new ArrayList<float[]>();
+			}
+			levels = meanLevels;
+		}
+
+		// levels are created only when they are needed
+		while (levels.size() < index) {
+			float[] previous = levels.isEmpty() ? values : levels.get(levels.size() - 1);
+			levels.add(downsample(previous, downsampling));
+		}
+		return levels.get(index - 1);
+	}
+
+	private float[] downsample(float[] previous, Downsampling downsampling) {
+		int previousRowCount = previous.length / columnCount;
+		int newRowCount = (previousRowCount + 1) / 2;
+		float[] level = new float[newRowCount * columnCount];
+
+		for (int row = 0; row < newRowCount; row++) {
+			int first = 2 * row * columnCount;
+			boolean hasSecond = 2 * row + 1 < previousRowCount;
+
+			for (int column = 0; column < columnCount; column++) {
+				float value = previous[first + column];
+				if (hasSecond) {
+					value = aggregate2(value, previous[first + columnCount + column], downsampling);
+				}
+				level[row * columnCount + column] = value;
+			}
+		}
+		return level;
+	}
+
+	private static float aggregate2(float a, float b, Downsampling downsampling) {
+		if (Float.isNaN(a)) {
+			return b;
+		}
+		if (Float.isNaN(b)) {
+			return a;
+		}
+		if (downsampling == Downsampling.MIN) {
+			return Math.min(a, b);
+		}
+		return (a + b) / 2;
+	}
+
+	private void calculateRange() {
+		if (palette != null) {
+			return;
+		}
+
+		for (float value : values) {
+			if (Float.isNaN(value)) {
+				continue;
+			}
+			if (Float.isNaN(min) || value < min) {
+				min = value;
+			}
+			if (Float.isNaN(max) || value > max) {
+				max = value;
+			}
+		}
+
+		// same colors as in the HCPlot: blue, black and red
+		palette = new int[PALETTE_SIZE];
+		int half = PALETTE_SIZE / 2;
+		for (int i = 0; i < PALETTE_SIZE; i++) {
+			int red = 0;
+			int blue = 0;
+			if (i < half) {
+				blue = 255 - i * 255 / half;
+			} else {
+				red = (i - half) * 255 / (PALETTE_SIZE - 1 - half);
+			}
+			palette[i] = new Color(red, 0, blue).getRGB();
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package fi.csc.microarray.client.visualisation.methods.hc;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.util.BitSet;
+
+import javax.swing.JComponent;
+import javax.swing.ToolTipManager;
+
+import fi.csc.microarray.client.visualisation.methods.hc.RasterHeatmap.Downsampling;
+
+/**
+ * Swing component for the {@link RasterHeatmap}. Only the visible part of the heatmap is
+ * rendered and the row and column under the mouse are calculated from the coordinates, so
+ * the size of the heatmap doesn't affect the speed of the tooltips and selections.
+ */
+public class RasterHeatmapPanel extends JComponent {
+
+	public interface RowSelectionListener {
+		/**
+		 * @param firstRow first row inside the selection rectangle, or -1 if the selection was cleared
+		 * @param lastRow last row inside the selection rectangle, or -1 if the selection was cleared
+		 */
+		public void rowsSelected(int firstRow, int lastRow);
+	}
+
+	private static final int MARGIN = 5;
+	private static final int MAX_NAME_WIDTH = 150;
+	private static final int MIN_ROW_HEIGHT_FOR_NAMES = 8;
+	private static final int SELECTION_MARKER_WIDTH = 5;
+	private static final Color SELECTION_COLOR = Color.YELLOW;
+
+	private RasterHeatmap heatmap;
+	private RowSelectionListener selectionListener;
+	private Downsampling downsampling = Downsampling.MEAN;
+	private BitSet selectedRows = new BitSet();
+
+	private Rectangle dragRectangle = null;
+	private int dragStartX;
+	private int dragStartY;
+
+	// last rendered image and the area it covers
+	private BufferedImage cachedImage;
+	private Rectangle cachedArea;
+	private Rectangle cachedHeatmapArea;
+
+	public RasterHeatmapPanel(RasterHeatmap heatmap, RowSelectionListener selectionListener) {
+		this.heatmap = heatmap;
+		this.selectionListener = selectionListener;
+		setBackground(Color.white);
+		setOpaque(true);
+
+		MouseAdapter mouseHandler = new MouseAdapter() {
+			@Override
+			public void mousePressed(MouseEvent e) {
+				dragStartX = e.getX();
+				dragStartY = e.getY();
+				dragRectangle = new Rectangle(dragStartX, dragStartY, 0, 0);
+			}
+
+			@Override
+			public void mouseDragged(MouseEvent e) {
+				if (dragRectangle != null) {
+					dragRectangle = new Rectangle(Math.min(dragStartX, e.getX()), Math.min(dragStartY, e.getY()), Math.abs(e.getX() - dragStartX), Math.abs(e.getY() - dragStartY));
+					repaint();
+				}
+			}
+
+			@Override
+			public void mouseReleased(MouseEvent e) {
+				if (dragRectangle == null) {
+					return;
+				}
+				Rectangle area = getHeatmapArea();
+				Rectangle selection = dragRectangle.intersection(area);
+				dragRectangle = null;
+				repaint();
+
+				if (selection.isEmpty() && !area.contains(e.getPoint())) {
+					RasterHeatmapPanel.this.selectionListener.rowsSelected(-1, -1);
+				} else {
+					int firstRow = rowAtPoint(area, selection.y);
+					int lastRow = lastRowAtPoint(area, selection.y + Math.max(selection.height - 1, 0));
+					if (firstRow != -1 && lastRow != -1) {
+						RasterHeatmapPanel.this.selectionListener.rowsSelected(firstRow, lastRow);
+					}
+				}
+			}
+		};
+		addMouseListener(mouseHandler);
+		addMouseMotionListener(mouseHandler);
+
+		ToolTipManager.sharedInstance().registerComponent(this);
+	}
+
+	/**
+	 * Preferred size where every value is a block of the given size.
+	 */
+	public Dimension getPreferredSize(int blockSize) {
+		return new Dimension(MARGIN + heatmap.getColumnCount() * blockSize + getRowNamesWidth() + MARGIN, getColumnNamesHeight() + heatmap.getRowCount() * blockSize + MARGIN);
+	}
+
+	public void setDownsampling(Downsampling downsampling) {
+		this.downsampling = downsampling;
+		cachedImage = null;
+		repaint();
+	}
+
+	public void setSelectedRows(BitSet selectedRows) {
+		this.selectedRows = (BitSet) selectedRows.clone();
+		repaint();
+	}
+
+	@Override
+	public String getToolTipText(MouseEvent e) {
+		Rectangle area = getHeatmapArea();
+		if (!area.contains(e.getPoint())) {
+			return null;
+		}
+
+		// when zoomed out, one pixel represents several rows
+		int firstRow = rowAtPoint(area, e.getY());
+		int lastRow = lastRowAtPoint(area, e.getY());
+		int column = columnAtPoint(area, e.getX());
+		if (firstRow == -1 || column == -1) {
+			return null;
+		}
+
+		if (firstRow == lastRow) {
+			return "(" + heatmap.getRowName(firstRow) + "," + heatmap.getColumnName(column) + ") = " + heatmap.get(firstRow, column);
+		}
+
+		double mean = heatmap.getMean(firstRow, lastRow, column, column);
+		return "(" + heatmap.getRowName(firstRow) + "," + heatmap.getColumnName(column) + ") .. " + "(" + heatmap.getRowName(lastRow) + "," + heatmap.getColumnName(column) + ") = " + mean + " (contains " + (lastRow - firstRow + 1) + " blocks)";
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		Graphics2D g2 = (Graphics2D) g;
+		Rectangle clip = g.getClipBounds();
+		if (clip == null) {
+			clip = new Rectangle(0, 0, getWidth(), getHeight());
+		}
+
+		g2.setColor(getBackground());
+		g2.fill(clip);
+
+		Rectangle area = getHeatmapArea();
+		if (area.width <= 0 || area.height <= 0) {
+			return;
+		}
+
+		// render only the visible part of the heatmap
+		Rectangle visible = clip.intersection(area);
+		if (!visible.isEmpty()) {
+			if (cachedImage == null || !area.equals(cachedHeatmapArea) || !cachedArea.contains(visible)) {
+				cachedImage = new BufferedImage(visible.width, visible.height, BufferedImage.TYPE_INT_RGB);
+				heatmap.render(cachedImage, visible.x - area.x, visible.y - area.y, area.width, area.height, downsampling);
+				cachedArea = visible;
+				cachedHeatmapArea = area;
+			}
+			g2.drawImage(cachedImage, cachedArea.x, cachedArea.y, null);
+		}
+
+		paintNames(g2, area, clip);
+		paintSelection(g2, area, clip);
+
+		if (dragRectangle != null) {
+			g2.setColor(Color.GRAY);
+			g2.draw(dragRectangle);
+		}
+	}
+
+	private void paintNames(Graphics2D g2, Rectangle area, Rectangle clip) {
+		double rowHeight = (double) area.height / heatmap.getRowCount();
+		double columnWidth = (double) area.width / heatmap.getColumnCount();
+		FontMetrics metrics = g2.getFontMetrics();
+		g2.setColor(Color.BLACK);
+
+		if (rowHeight >= MIN_ROW_HEIGHT_FOR_NAMES) {
+			int firstRow = Math.max(rowAtPoint(area, Math.max(clip.y, area.y)), 0);
+			int lastRow = rowAtPoint(area, Math.min(clip.y + clip.height, area.y + area.height) - 1);
+			int x = area.x + area.width + SELECTION_MARKER_WIDTH + MARGIN;
+			for (int row = firstRow; row <= lastRow && row != -1; row++) {
+				String name = heatmap.getRowName(row);
+				if (name != null) {
+					int y = (int) (area.y + (row + 0.5) * rowHeight) + metrics.getAscent() / 2;
+					g2.drawString(name, x, y);
+				}
+			}
+		}
+
+		if (columnWidth >= MIN_ROW_HEIGHT_FOR_NAMES && clip.y < area.y) {
+			Graphics2D rotated = (Graphics2D) g2.create();
+			rotated.rotate(-Math.PI / 2);
+			for (int column = 0; column < heatmap.getColumnCount(); column++) {
+				String name = heatmap.getColumnName(column);
+				if (name != null) {
+					int x = (int) (area.x + (column + 0.5) * columnWidth) + metrics.getAscent() / 2;
+					// in the rotated coordinates x is -y and y is x
+					rotated.drawString(name, -(area.y - MARGIN), x);
+				}
+			}
+			rotated.dispose();
+		}
+	}
+
+	private void paintSelection(Graphics2D g2, Rectangle area, Rectangle clip) {
+		if (selectedRows.isEmpty()) {
+			return;
+		}
+
+		// draw a marker next to the visible selected rows
+		double rowHeight = (double) area.height / heatmap.getRowCount();
+		int firstRow = Math.max(rowAtPoint(area, Math.max(clip.y, area.y)), 0);
+		int lastRow = rowAtPoint(area, Math.min(clip.y + clip.height, area.y + area.height) - 1);
+		if (lastRow == -1) {
+			return;
+		}
+
+		g2.setColor(SELECTION_COLOR);
+		int x = area.x + area.width + 1;
+		for (int row = selectedRows.nextSetBit(firstRow); row != -1 && row <= lastRow; row = selectedRows.nextSetBit(row + 1)) {
+			int y = (int) (area.y + row * rowHeight);
+			int height = Math.max((int) (area.y + (row + 1) * rowHeight) - y, 1);
+			g2.fillRect(x, y, SELECTION_MARKER_WIDTH, height);
+		}
+	}
+
+	/**
+	 * @return -1 if outside the heatmap
+	 */
+	private int rowAtPoint(Rectangle area, int y) {
+		if (y < area.y || y >= area.y + area.height) {
+			return -1;
+		}
+		return Math.min((int) ((long) (y - area.y) * heatmap.getRowCount() / area.height), heatmap.getRowCount() - 1);
+	}
+
+	/**
+	 * @return last row that is at least partly under the pixel, or -1 if outside the heatmap
+	 */
+	private int lastRowAtPoint(Rectangle area, int y) {
+		int firstRow = rowAtPoint(area, y);
+		if (firstRow == -1) {
+			return -1;
+		}
+		int lastRow = (int) Math.ceil((double) (y - area.y + 1) * heatmap.getRowCount() / area.height) - 1;
+		return Math.max(Math.min(lastRow, heatmap.getRowCount() - 1), firstRow);
+	}
+
+	/**
+	 * @return -1 if outside the heatmap
+	 */
+	private int columnAtPoint(Rectangle area, int x) {
+		if (x < area.x || x >= area.x + area.width) {
+			return -1;
+		}
+		return Math.min((int) ((long) (x - area.x) * heatmap.getColumnCount() / area.width), heatmap.getColumnCount() - 1);
+	}
+
+	private Rectangle getHeatmapArea() {
+		int top = getColumnNamesHeight();
+		return new Rectangle(MARGIN, top, getWidth() - 2 * MARGIN - getRowNamesWidth(), getHeight() - top - MARGIN);
+	}
+
+	private int getRowNamesWidth() {
+		return SELECTION_MARKER_WIDTH + MARGIN + MAX_NAME_WIDTH;
+	}
+
+	private int getColumnNamesHeight() {
+		return MARGIN + MAX_NAME_WIDTH;
+	}
+}
@@ -0,0 +1,60 @@
+package fi.csc.microarray.comp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import fi.csc.microarray.comp.JobResultCache.CachedResult;
+import fi.csc.microarray.messaging.JobState;
+import fi.csc.microarray.security.CryptoKey;
+import fi.csc.microarray.util.Exceptions;
+
+/**
+ * Job that completes with copies of the results of an earlier identical job. It goes 
+ * through the same scheduling as other jobs, but doesn't run anything.
+ */
+public class CachedResultJob extends CompJob {
+
+	private static final Logger logger = Logger.getLogger(CachedResultJob.class);
+
+	private CachedResult cachedResult;
+
+	public CachedResultJob(CachedResult cachedResult) {
+		this.cachedResult = cachedResult;
+	}
+
+	@Override
+	protected void execute() throws JobCancelledException {
+		cancelCheck();
+		updateStateDetailToClient("copying results of an identical job");
+
+		List<String> newDataIds = new ArrayList<String>();
+		for (int i = 0; i < cachedResult.getDataIds().size(); i++) {
+			newDataIds.add(CryptoKey.generateRandom());
+		}
+
+		try {
+			List<String> copied = resultHandler.getFileBrokerClient().copyFromStorageToCache(cachedResult.getDataIds(), newDataIds);
+			if (!copied.containsAll(newDataIds)) {
+				logger.warn("copied only " + copied.size() + " of " + newDataIds.size() + " cached results of job " + getId());
+				outputMessage.setErrorMessage("Reusing the results of an identical job failed. Please run the tool again.");
+				updateState(JobState.ERROR, "");
+				return;
+			}
+		} catch (Exception e) {
+			outputMessage.setErrorMessage("Reusing the results of an identical job failed. Please run the tool again.");
+			outputMessage.setOutputText(Exceptions.getStackTrace(e));
+			updateState(JobState.ERROR, "");
+			return;
+		}
+
+		cancelCheck();
+		cachedResult.copyTo(outputMessage, newDataIds);
+	}
+
+	@Override
+	protected void cancelRequested() {
+		// nothing to stop
+	}
+}
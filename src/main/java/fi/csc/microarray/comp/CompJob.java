@@ -74,8 +74,10 @@ public abstract class CompJob implements Runnable {
 
 	private JobState state;
 	private String stateDetail;
-	private boolean toBeCanceled = false;
+	private volatile boolean toBeCanceled = false;
 	protected GenericResultMessage outputMessage;
+	private String resultCacheKey;
+	private Long inputSize;
 	
 	public CompJob() {
 		this.state = JobState.NEW;
@@ -262,6 +264,13 @@ public abstract class CompJob implements Runnable {
 			throw new JobCancelledException();
 		}
 	}
+	
+	/**
+	 * @return true if cancel() has been called
+	 */
+	protected boolean isToBeCanceled() {
+		return toBeCanceled;
+	}
 
 	/**
 	 * Will be called when the job is canceled using the cancel() method.
@@ -349,6 +358,28 @@ public abstract class CompJob implements Runnable {
 		return toolDescription;
 	}
 	
+	/**
+	 * @return key of the job in the result cache or null if the results must not be reused
+	 */
+	public String getResultCacheKey() {
+		return resultCacheKey;
+	}
+
+	public void setResultCacheKey(String resultCacheKey) {
+		this.resultCacheKey = resultCacheKey;
+	}
+
+	/**
+	 * @return total size of the input files, bytes, or null if not known
+	 */
+	public Long getInputSize() {
+		return inputSize;
+	}
+
+	protected void setInputSize(Long inputSize) {
+		this.inputSize = inputSize;
+	}
+
 	/**
 	 * @return Process object of the external process or null, if this Job doesn't have any
 	 */
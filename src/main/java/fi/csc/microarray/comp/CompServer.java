@@ -2,17 +2,23 @@ package fi.csc.microarray.comp;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jms.JMSException;
 
@@ -25,6 +31,7 @@ import fi.csc.microarray.config.Configuration;
 import fi.csc.microarray.config.DirectoryLayout;
 import fi.csc.microarray.constants.ApplicationConstants;
 import fi.csc.microarray.filebroker.FileBrokerClient;
+import fi.csc.microarray.filebroker.FileBrokerClient.FileBrokerArea;
 import fi.csc.microarray.filebroker.JMSFileBrokerClient;
 import fi.csc.microarray.messaging.JMSMessagingEndpoint;
 import fi.csc.microarray.messaging.JobState;
@@ -71,7 +78,6 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 	 */
 	private int scheduleTimeout;
 	private int offerDelay;
-	private int timeoutCheckInterval;
 	@SuppressWarnings("unused")
 	private int heartbeatInterval;
 	private int compAvailableInterval;
@@ -83,11 +89,20 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 	 */
 	private String id = UUID.randomUUID().toString();
 	
+	private static final String RESOURCE_PROFILES_FILENAME = "tool-resource-profiles.tsv";
+	
+	// smallest share of the slots that a tool can use, based on its CPU usage
+	private static final double MIN_SLOTS = 0.25;
+	
 	private File workDir;
 	
 	
 	private RuntimeRepository runtimeRepository;
 	private ToolboxClientComp toolboxClient;
+	private ToolboxSnapshotCache toolboxSnapshotCache;
+	private JobResultCache resultCache;
+	private ToolResourceProfiles resourceProfiles;
+	private long maxMemory;
 	
 	
 	/**
@@ -100,19 +115,26 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 	private FileBrokerClient fileBroker;
 	
 	/**
-	 * Java utility for multithreading.
+	 * Runs the jobs. The number of threads is limited by the slots, because a job can't
+	 * take less than MIN_SLOTS.
+	 */
+	private ExecutorService jobExecutor;
+	
+	/**
+	 * Runs all timed tasks: heartbeats, offer delays, schedule timeouts and the delayed
+	 * job status updates.
 	 */
-	private ExecutorService executorService;
+	private ScheduledExecutorService scheduler;
+	
+	/**
+	 * Sends the replies that shouldn't block the caller.
+	 */
+	private ExecutorService replyExecutor = Executors.newCachedThreadPool();
+	
+	private JobStatusCoalescer statusCoalescer;
 	
 
-	// synchronize with this object when accessing the job maps below
-	private Object jobsLock = new Object(); 
-	private LinkedHashMap<String, CompJob> scheduledJobs = new LinkedHashMap<String, CompJob>();
-	private LinkedHashMap<String, CompJob> runningJobs = new LinkedHashMap<String, CompJob>();
-	private Timer timeoutTimer;
-	@SuppressWarnings("unused")
-	private Timer heartbeatTimer;
-	private Timer compAvailableTimer;
+	private JobRegistry jobs;
 	private String localFilebrokerPath;
 	private String overridingFilebrokerIp;
 	
@@ -137,7 +159,6 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 		// Initialise instance variables
 		this.scheduleTimeout = configuration.getInt("comp", "schedule-timeout");
 		this.offerDelay = configuration.getInt("comp", "offer-delay");
-		this.timeoutCheckInterval = configuration.getInt("comp", "timeout-check-interval");
 		this.heartbeatInterval = configuration.getInt("comp", "job-heartbeat-interval");
 		this.compAvailableInterval = configuration.getInt("comp", "comp-available-interval");
 		this.sweepWorkDir= configuration.getBoolean("comp", "sweep-work-dir");
@@ -147,6 +168,12 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 		this.moduleFilterName = configuration.getString("comp", "module-filter-name");
 		this.moduleFilterMode = configuration.getString("comp", "module-filter-mode");
 		this.monitoringInterval = configuration.getInt("comp", "resource-monitoring-interval");
+		int statusUpdatesPerSecond = configuration.getInt("comp", "job-status-updates-per-second");
+		int toolboxCacheTtl = configuration.getInt("comp", "toolbox-cache-ttl");
+		boolean toolboxSnapshots = configuration.getBoolean("comp", "toolbox-snapshots");
+		int resultCacheSize = configuration.getInt("comp", "result-cache-size");
+		boolean useResourceProfiles = configuration.getBoolean("comp", "resource-profiles");
+		int maxMemoryMb = configuration.getInt("comp", "max-memory");
 		
 		logger = Logger.getLogger(CompServer.class);
 		loggerJobs = Logger.getLogger("jobs");
@@ -157,8 +184,34 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 		logger.info("starting compute service...");
 		this.workDir = DirectoryLayout.getInstance().getJobsDataDirBase(id);
 		
-		// initialize executor service
-		this.executorService = Executors.newCachedThreadPool();
+		// initialize executors
+		int jobThreads = (int) Math.ceil(maxJobs / MIN_SLOTS);
+		ThreadPoolExecutor jobThreadPool = new ThreadPoolExecutor(jobThreads, jobThreads, 60, TimeUnit.SECONDS, 
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable runnable) {
+				return new Thread(runnable, "comp-job-" + count.incrementAndGet());
+			}
+		});
+		jobThreadPool.allowCoreThreadTimeOut(true);
+		this.jobExecutor = jobThreadPool;
+		
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "comp-scheduler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		this.statusCoalescer = new JobStatusCoalescer(statusUpdatesPerSecond, new JobStatusCoalescer.StatusSender() {
+			@Override
+			public void send(GenericJobMessage original, ResultMessage reply) {
+				sendCoalescedResultMessage(original, reply);
+			}
+		}, scheduler);
 
 		// initialize runtime and tools
 		FileInputStream runtimesStream = new FileInputStream(new File(DirectoryLayout.getInstance().getConfDir(), "runtimes.xml"));
@@ -166,20 +219,27 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 		
 		// initialize toolbox client
 		String toolboxUrl = configuration.getString("messaging", "toolbox-url");
-		this.toolboxClient = new ToolboxClientComp(toolboxUrl);
+		this.toolboxClient = new ToolboxClientComp(toolboxUrl, toolboxCacheTtl * 1000l);
 		logger.info("toolbox client connecting to: " + toolboxUrl);
+		if (toolboxSnapshots) {
+			this.toolboxSnapshotCache = new ToolboxSnapshotCache(toolboxClient, workDir, toolboxCacheTtl * 1000l);
+		}
+		if (resultCacheSize > 0) {
+			this.resultCache = new JobResultCache(resultCacheSize);
+		}
 		
-		// initialize timeout checker
-		timeoutTimer = new Timer(true);
-		timeoutTimer.schedule(new TimeoutTimerTask(), timeoutCheckInterval, timeoutCheckInterval);
+		// profiles need resource monitoring and are shared by the comps of the same work dir
+		if (useResourceProfiles && monitoringInterval >= 0) {
+			this.resourceProfiles = new ToolResourceProfiles(new File(workDir.getParentFile(), RESOURCE_PROFILES_FILENAME));
+			this.maxMemory = maxMemoryMb > 0 ? maxMemoryMb * 1024l * 1024 : SystemMonitorUtil.getTotalPhysicalMemory();
+			logger.info("admitting jobs based on tool resource profiles, memory available " + ProcessUtils.humanFriendly(maxMemory));
+		}
+		this.jobs = new JobRegistry(maxJobs, resourceProfiles != null ? maxMemory : Long.MAX_VALUE);
 		
-		heartbeatTimer = new Timer(true);
-
 		// disable heartbeat for jobs for now
-		//heartbeatTimer.schedule(new JobHeartbeatTask(), heartbeatInterval, heartbeatInterval);
+		//scheduler.scheduleWithFixedDelay(new JobHeartbeatTask(), heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
 		
-		compAvailableTimer = new Timer(true);
-		compAvailableTimer.schedule(new CompAvailableTask(), compAvailableInterval, compAvailableInterval);
+		scheduler.scheduleWithFixedDelay(new CompHeartbeatTask(), compAvailableInterval, compAvailableInterval, TimeUnit.MILLISECONDS);
 		
 		resourceMonitor = new ResourceMonitor(this, monitoringInterval);
 		
@@ -202,7 +262,7 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 		// create keep-alive thread and register shutdown hook
 		KeepAliveShutdownHandler.init(this);
 		
-		sendCompAvailable();
+		sendCompHeartbeat();
 		
 		logger.info("comp is up and running [" + ApplicationConstants.VERSION + "]");
 		logger.info("[mem: " + SystemMonitorUtil.getMemInfo() + "]");
@@ -262,32 +322,22 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 				
 				// client chose this AS to run this job
 				if (this.id.equals(acceptedId)) {
-					CompJob job; 
-					synchronized(jobsLock) {
-						// check that we have the job as scheduled
-						job = scheduledJobs.get(commandMessage.getNamedParameter(ParameterMessage.PARAMETER_JOB_ID));
-						if (job != null) {
-							scheduledJobs.remove(jobId);
-							runningJobs.put(job.getId(), job);
-	
-							// run the job
-							executorService.execute(job);
-							logger.info("Executing job " + job.toolDescription.getDisplayName() + "(" + job.toolDescription.getID() + ")" + ", "+ job.getId() + ", " + job.getInputMessage().getUsername()) ;
-						} else {
-							logger.warn("Got ACCEPT_OFFER for job which is not scheduled.");
-						}
+					// check that we have the job as scheduled
+					CompJob job = jobs.start(jobId);
+					if (job != null) {
+						// run the job
+						jobExecutor.execute(job);
+						logger.info("Executing job " + job.toolDescription.getDisplayName() + "(" + job.toolDescription.getID() + ")" + ", "+ job.getId() + ", " + job.getInputMessage().getUsername()) ;
+					} else {
+						logger.warn("Got ACCEPT_OFFER for job which is not scheduled.");
 					}
 				}
 				
 				// client chose some other as, forget this job if we have it as scheduled
 				else {
 					logger.debug("Removing scheduled job " + jobId);
-					synchronized(jobsLock) {
-
-						if (scheduledJobs.containsKey(jobId)) {
-							scheduledJobs.remove(jobId);
-							activeJobRemoved();
-						}
+					if (jobs.removeIfScheduled(jobId)) {
+						activeJobRemoved();
 					}
 				}
 			}
@@ -322,21 +372,17 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 
 
 	private void cancelJob(String jobId) {
-		CompJob job;
-		synchronized(jobsLock) {
-			if (scheduledJobs.containsKey(jobId)) {
-				job = scheduledJobs.remove(jobId);
-			} else {
-				job = runningJobs.remove(jobId);
-			}
+		CompJob job = jobs.get(jobId);
+		if (job == null) {
+			return;
 		}
 		
-		if (job != null) {
-			job.cancel();
+		if (jobs.removeIfScheduled(jobId)) {
+			activeJobRemoved();
 		}
 		
-		// no activeJobRemoved() here because it get's called when the job actually stops
-		
+		// running jobs keep their slots until removeRunningJob(), when the job actually stops
+		job.cancel();
 	}
 
 
@@ -349,6 +395,10 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 		return sweepWorkDir;
 	}
 
+	public void jobProcessStarted(CompJob job) {
+		resourceMonitor.jobStarted(job.getId(), job.getProcess());
+	}
+
 	public void removeRunningJob(CompJob job) {
 		String hostname = getHost();	
 		
@@ -362,14 +412,21 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 					job.getExecutionStartTime().toString()	+ delimiter + 
 					job.getExecutionEndTime().toString() + delimiter + 
 					hostname + delimiter + 
-					ProcessUtils.humanFriendly(resourceMonitor.getMaxMem(job.getProcess())));
+					ProcessUtils.humanFriendly(resourceMonitor.getMaxMem(job.getId())));
+			ProcResourceSampler.JobResources resources = resourceMonitor.getResources(job.getId());
+			if (resources != null) {
+				logger.info("job " + job.getId() + " resources: " + resources);
+			}
+			updateResourceProfile(job);
 		} catch (Exception e) {
 			logger.warn("got exception when logging a job to be removed", e);
 		}
 		logger.debug("comp server removing job " + job.getId() + "(" + job.getState() + ")");
-		synchronized(jobsLock) {
-			this.runningJobs.remove(job.getId());
+		jobs.remove(job.getId());
+		if (resultCache != null) {
+			resultCache.jobEnded(job);
 		}
+		statusCoalescer.remove(job.getId());
 		activeJobRemoved();
 	
 		// send message to manager
@@ -381,13 +438,9 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 
 	
 	private void checkStopGracefully() {
-		if (stopGracefully) {
-			synchronized(jobsLock) {
-				if (this.scheduledJobs.size() == 0 && this.runningJobs.size() == 0) {
-					shutdown();
-					System.exit(0);
-				}
-			}
+		if (stopGracefully && jobs.isEmpty()) {
+			shutdown();
+			System.exit(0);
 		}
 	}
 
@@ -440,11 +493,16 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 	 * 
 	 * For this reason, all the data must be sent before this method returns.
 	 * 
-	 * 
+	 * Status updates of running jobs may be delayed and merged with the next update, 
+	 * see {@link JobStatusCoalescer}. 
 	 */
 	public void sendResultMessage(GenericJobMessage original, GenericResultMessage genericReply) {
 		
-		ResultMessage reply = new ResultMessage(genericReply);
+		// copy, because the job keeps updating the same result message
+		statusCoalescer.update(original, new ResultMessage(genericReply));
+	}
+	
+	private void sendCoalescedResultMessage(GenericJobMessage original, ResultMessage reply) {
 		
 		// for debugging
 		reply.addNamedParameter(ParameterMessage.PARAMETER_AS_ID, id);
@@ -467,8 +525,12 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 		return this.toolboxClient;
 	}
 	
+	public ToolboxSnapshotCache getToolboxSnapshotCache() {
+		return this.toolboxSnapshotCache;
+	}
+	
 	/**
-	 * Sends the message in new thread.
+	 * Sends the message in another thread.
 	 * @param genericJobMessage
 	 * @param reply
 	 */
@@ -480,7 +542,7 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 		
 		reply.setReplyTo(original.getReplyTo());
 
-		new Thread(new Runnable() {
+		replyExecutor.execute(new Runnable() {
 			public void run() {
 				try {
 					endpoint.replyToMessage(original, reply);
@@ -490,17 +552,27 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 					//logger.error("Could not send message.", e);
 				}
 			}
-		}).start();
+		});
 	}
 
 
 	private void activeJobRemoved() {
 		this.updateStatus();
-		sendCompAvailable();
+		sendCompHeartbeat();
 	}
 	
+	/**
+	 * Jobs are either assigned to one comp by the jobmanager or offered to all comps. 
+	 */
 	private void receiveJob(GenericJobMessage jobMessage) {
 
+		String assignedCompId = ((JobMessage)jobMessage).getNamedParameter(ParameterMessage.PARAMETER_ASSIGNED_COMP_ID);
+		if (assignedCompId != null && !id.equals(assignedCompId)) {
+			// assigned to some other comp
+			return;
+		}
+		boolean assigned = assignedCompId != null;
+		
 		logger.info("received job request from: " + jobMessage.getUsername());
 		logger.info("checking if matches guest account: " + DirectoryLayout.getInstance().getConfiguration().getString("security", "guest-username"));
 		
@@ -513,6 +585,7 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 		
 		// don't accept new jobs when shutting down
 		if (stopGracefully) {
+			declineAssignedJob(jobMessage, assigned);
 			return;
 		}
 		
@@ -520,6 +593,7 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 		String toolId = jobMessage.getToolId();
 		if (toolId == null || toolId.isEmpty()) {
 			logger.warn("invalid tool id: " + toolId);
+			declineAssignedJob(jobMessage, assigned);
 			return;
 		}
 		
@@ -528,16 +602,19 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 			toolboxTool = toolboxClient.getTool(toolId);
 		} catch (Exception e) {
 			logger.warn("failed to get tool " + toolId + " from toolbox", e);
+			declineAssignedJob(jobMessage, assigned);
 			return;
 		}
 		if (toolboxTool == null) {
 			logger.warn("tool " + toolId + " not found");
+			declineAssignedJob(jobMessage, assigned);
 			return;
 		}
 		
 		if (("exclude".equals(moduleFilterMode) && toolboxTool.getModule().equals(moduleFilterName)) || 
 				("include".equals(moduleFilterMode) && !toolboxTool.getModule().equals(moduleFilterName))) {
 			logger.warn("tool " + toolId + " in module " + toolboxTool.getModule() + " disabled by module filter");
+			declineAssignedJob(jobMessage, assigned);
 			return;
 		}
 		
@@ -545,10 +622,12 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 		ToolRuntime runtime = runtimeRepository.getRuntime(toolboxTool.getRuntime());
 		if (runtime == null) {
 			logger.warn(String.format("runtime %s for tool %s not found, ignoring job message", toolboxTool.getRuntime(), jobMessage.getToolId()));
+			declineAssignedJob(jobMessage, assigned);
 			return;
 		}
 		if (runtime.isDisabled()) {
 			logger.warn(String.format("runtime %s for tool %s is disabled, ignoring job message", toolboxTool.getRuntime(), jobMessage.getToolId()));
+			declineAssignedJob(jobMessage, assigned);
 			return;
 		}
 		
@@ -568,76 +647,202 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 			return;
 		}
 		
+		// reuse the results of an identical job, if we have them
+		if (resultCache != null) {
+			job = getCachedResultJob(job, toolboxTool);
+		}
+		
+		if (jobs.get(job.getId()) != null) {
+			logger.warn("job " + job.getId() + " received again, ignoring it");
+			return;
+		}
+		
 		// now we know that we can run this job
 		// check if we could run it now or later
-		synchronized(jobsLock) {
-			job.setReceiveTime(new Date());
-			
-			int runningSlots = getSlotSum(runningJobs.values());
-			int schedSlots = getSlotSum(scheduledJobs.values());
-			int requestedSlots = job.getToolDescription().getSlotCount();
-			
-			logger.debug("running slots " + runningSlots + " sceduled slots " + schedSlots + " requested slots " + requestedSlots);
-			if (runningSlots + schedSlots + requestedSlots <= maxJobs) {
-				// could run it now
-				scheduleJob(job);
-				
+		job.setReceiveTime(new Date());
+		job.setScheduleTime(new Date());
+		double requestedSlots = getSlots(job);
+		long requestedMemory = resourceProfiles != null ? getMemory(job) : 0;
+		
+		logger.debug("free slots " + jobs.getFreeSlots() + " requested slots " + requestedSlots + 
+				", free memory " + ProcessUtils.humanFriendly(jobs.getFreeMemory()) + " requested memory " + ProcessUtils.humanFriendly(requestedMemory));
+		if (jobs.add(job, requestedSlots, requestedMemory, assigned ? JobRegistry.Phase.RUNNING : JobRegistry.Phase.SCHEDULED)) {
+			// could run it now
+			if (assigned) {
+				// jobmanager has scheduled it already, no need for offer
+				jobExecutor.execute(job);
+				logger.info("Executing assigned job " + job.toolDescription.getDisplayName() + "(" + job.toolDescription.getID() + ")" + ", "+ job.getId() + ", " + job.getInputMessage().getUsername()) ;
 			} else {
-				// no slot to run it now, ignore it
-				ResultMessage resultMessage = new ResultMessage(jobMessage.getJobId(), JobState.COMP_BUSY, "", "", "", ((JobMessage)jobMessage).getReplyTo());
-				sendReplyMessage((ChipsterMessage)jobMessage, resultMessage);
-				return;
+				scheduleJob(job);
 			}
+			
+		} else {
+			// no slot to run it now, ignore it
+			ResultMessage resultMessage = new ResultMessage(jobMessage.getJobId(), JobState.COMP_BUSY, "", "", "", ((JobMessage)jobMessage).getReplyTo());
+			// tell the jobmanager how many free slots the job needs
+			resultMessage.addNamedParameter(ParameterMessage.PARAMETER_SLOTS, Integer.toString((int) Math.ceil(requestedSlots)));
+			sendReplyMessage((ChipsterMessage)jobMessage, resultMessage);
+			return;
 		}
 		updateStatus();
 	}
 	
-	private int getSlotSum(Collection<CompJob> jobs) {
-		int slots = 0;
-		for (CompJob job : jobs) {
-			slots += job.getToolDescription().getSlotCount();
+	/**
+	 * Replace the job with a {@link CachedResultJob}, if there are results of an identical
+	 * job in the result cache and all its output datasets are in the filebroker storage. 
+	 * Datasets in the cache area aren't reused, because the cache clean-up may remove them.
+	 * 
+	 * @return the original job, if the results can't be reused
+	 */
+	private CompJob getCachedResultJob(CompJob job, ToolboxTool toolboxTool) {
+		GenericJobMessage jobMessage = job.getInputMessage();
+		String key = resultCache.getKey(jobMessage, toolboxTool, job.getToolDescription());
+		job.setResultCacheKey(key);
+		if (key == null) {
+			return job;
 		}
-		return slots;
-	}
-
-	private void scheduleJob(final CompJob job) {
-		synchronized(jobsLock) {
-			job.setScheduleTime(new Date());
-			scheduledJobs.put(job.getId(), job);
-		}	
-
+		
+		JobResultCache.CachedResult cachedResult = resultCache.get(key);
+		if (cachedResult == null) {
+			return job;
+		}
+		
+		List<String> dataIds = cachedResult.getDataIds();
+		List<Long> contentLengths = new ArrayList<Long>(Collections.nCopies(dataIds.size(), (Long) null));
+		List<String> checksums = new ArrayList<String>(Collections.nCopies(dataIds.size(), (String) null));
 		try {
-			// delaying sending of the offer message can be used for
-			// prioritising comp instances 
-			int delay = offerDelay * (runningJobs.size() + scheduledJobs.size()-1);
-			if (delay > 0 ) {
-				Timer timer = new Timer("offer-delay-timer", true);
-				timer.schedule(new TimerTask() {
-
-					@Override
-					public void run() {
-						try {
-							sendOfferMessage(job);
-						} catch (JMSException e) {
-							synchronized(jobsLock) {
-								scheduledJobs.remove(job.getId());
-							}
-							logger.error("Could not send OFFER for job " + job.getId());
-						}
-						updateStatus();
-					}
-
-				}, delay);
-			} else {
-				sendOfferMessage(job);
+			Map<String, FileBrokerArea> available = fileBroker.areAvailable(dataIds, contentLengths, checksums);
+			for (String dataId : dataIds) {
+				if (available.get(dataId) != FileBrokerArea.STORAGE) {
+					logger.info("results of tool " + jobMessage.getToolId() + " aren't in the filebroker storage, running the job");
+					return job;
+				}
 			}
 		} catch (Exception e) {
-			synchronized(jobsLock) {
-				scheduledJobs.remove(job.getId());
+			logger.warn("could not check the cached results of tool " + jobMessage.getToolId() + ", running the job", e);
+			return job;
+		}
+		
+		logger.info("reusing cached results for job " + job.getId() + " of tool " + jobMessage.getToolId());
+		CachedResultJob cachedJob = new CachedResultJob(cachedResult);
+		cachedJob.construct(jobMessage, job.getToolDescription(), this);
+		cachedJob.setResultCacheKey(key);
+		return cachedJob;
+	}
+	
+	/**
+	 * Tell the jobmanager that it should find another comp for the job. Jobs offered to 
+	 * all comps can be ignored silently.
+	 */
+	private void declineAssignedJob(GenericJobMessage jobMessage, boolean assigned) {
+		if (assigned) {
+			ResultMessage resultMessage = new ResultMessage(jobMessage.getJobId(), JobState.COMP_BUSY, "", "", "", ((JobMessage)jobMessage).getReplyTo());
+			sendReplyMessage((ChipsterMessage)jobMessage, resultMessage);
+		}
+	}
+	
+	/**
+	 * Tools that have used less CPU than their slot count in the earlier runs take only
+	 * part of their slots, in quarters, so that the sums stay exact.
+	 */
+	private double getSlots(CompJob job) {
+		if (job instanceof CachedResultJob) {
+			// only copies files in the filebroker
+			return MIN_SLOTS;
+		}
+		int slotCount = job.getToolDescription().getSlotCount();
+		if (resourceProfiles != null) {
+			Double cores = resourceProfiles.getCpuEstimate(job.getToolDescription().getID());
+			if (cores != null) {
+				return Math.min(slotCount, Math.max(MIN_SLOTS, Math.ceil(cores * 4) / 4));
 			}
-			logger.error("Could not send OFFER for job " + job.getId());
 		}
-		updateStatus();
+		return slotCount;
+	}
+	
+	/**
+	 * @return estimated peak memory of the job, bytes
+	 */
+	private long getMemory(CompJob job) {
+		if (job instanceof CachedResultJob) {
+			return 0;
+		}
+		String toolId = job.getToolDescription().getID();
+		if (resourceProfiles.hasProfile(toolId)) {
+			Long estimate = resourceProfiles.getMemoryEstimate(toolId, getInputSize(job.getInputMessage()));
+			if (estimate != null) {
+				return estimate;
+			}
+		}
+		// tools without a profile get the memory of their slots
+		return maxMemory / maxJobs * job.getToolDescription().getSlotCount();
+	}
+	
+	/**
+	 * @return total size of the job's input files in the filebroker, bytes, or null if not known
+	 */
+	private Long getInputSize(GenericJobMessage jobMessage) {
+		long inputSize = 0;
+		try {
+			List<String> dataIds = new ArrayList<>();
+			for (String fileName : jobMessage.getKeys()) {
+				dataIds.add(jobMessage.getId(fileName));
+			}
+			// one request for all inputs
+			Map<String, Long> contentLengths = fileBroker.getContentLengths(dataIds);
+			for (String dataId : dataIds) {
+				Long contentLength = contentLengths.get(dataId);
+				if (contentLength == null) {
+					return null;
+				}
+				inputSize += contentLength;
+			}
+		} catch (Exception e) {
+			logger.warn("could not get the input size of job " + jobMessage.getJobId(), e);
+			return null;
+		}
+		return inputSize;
+	}
+	
+	/**
+	 * Add the resource usage of the job to the profile of its tool.
+	 */
+	private void updateResourceProfile(CompJob job) {
+		if (resourceProfiles == null) {
+			return;
+		}
+		Long maxMem = resourceMonitor.getMaxMem(job.getId());
+		if (maxMem == null || job.getExecutionStartTime() == null || job.getExecutionEndTime() == null) {
+			return;
+		}
+		ProcResourceSampler.JobResources resources = resourceMonitor.getResources(job.getId());
+		Long cpuTime = resources != null ? resources.getCpuTime() : null;
+		long wallTime = job.getExecutionEndTime().getTime() - job.getExecutionStartTime().getTime();
+		resourceProfiles.add(job.getToolDescription().getID(), maxMem, cpuTime, wallTime, job.getInputSize());
+	}
+
+	/**
+	 * Offer the job to the client. The job is removed if the client doesn't accept the 
+	 * offer in time.
+	 */
+	private void scheduleJob(final CompJob job) {
+		scheduler.schedule(new ScheduleTimeoutTask(job.getId()), scheduleTimeout, TimeUnit.SECONDS);
+
+		// delaying sending of the offer message can be used for
+		// prioritising comp instances 
+		int delay = offerDelay * (jobs.size() - 1);
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sendOfferMessage(job);
+				} catch (Exception e) {
+					jobs.removeIfScheduled(job.getId());
+					logger.error("Could not send OFFER for job " + job.getId());
+				}
+				updateStatus();
+			}
+		}, Math.max(delay, 0), TimeUnit.MILLISECONDS);
 	}
 
 	private void sendOfferMessage(CompJob job) throws JMSException {
@@ -653,82 +858,85 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 	
 	
 	private void updateStatus() {
-		synchronized(jobsLock) {
-			loggerStatus.info("scheduled jobs: " + scheduledJobs.size() + 
-					", running jobs: " + runningJobs.size());
-		}
+		loggerStatus.info("scheduled jobs: " + jobs.getCount(JobRegistry.Phase.SCHEDULED) + 
+				", running jobs: " + jobs.getCount(JobRegistry.Phase.RUNNING));
 	}
 
-	private void sendCompAvailable() {
+	/**
+	 * Report the free capacity to the jobmanager. 
+	 */
+	private void sendCompHeartbeat() {
+		int freeSlots = (int) Math.floor(jobs.getFreeSlots());
+		if (resourceProfiles != null) {
+			// don't let the jobmanager assign jobs that wouldn't fit in the memory
+			freeSlots = (int) Math.min(freeSlots, jobs.getFreeMemory() / (maxMemory / maxJobs));
+		}
+		int runningJobCount = jobs.getCount(JobRegistry.Phase.RUNNING);
+		if (stopGracefully) {
+			freeSlots = 0;
+		}
+		
+		CommandMessage heartbeat = new CommandMessage(CommandMessage.COMMAND_COMP_HEARTBEAT);
+		heartbeat.addNamedParameter(ParameterMessage.PARAMETER_AS_ID, id);
+		heartbeat.addNamedParameter(ParameterMessage.PARAMETER_HOST, getHost());
+		heartbeat.addNamedParameter(ParameterMessage.PARAMETER_FREE_SLOTS, Integer.toString(Math.max(freeSlots, 0)));
+		heartbeat.addNamedParameter(ParameterMessage.PARAMETER_RUNNING_JOBS, Integer.toString(runningJobCount));
+		heartbeat.addNamedParameter(ParameterMessage.PARAMETER_LOAD, Double.toString(ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage()));
+		
 		try {
-			jobmanagerTopic.sendMessage(new CommandMessage(CommandMessage.COMMAND_COMP_AVAILABLE));
+			jobmanagerTopic.sendMessage(heartbeat);
 		} catch (JMSException e) {
-			logger.error("could not send comp available message", e);
+			logger.error("could not send heartbeat message", e);
 		}
 	}
 	
 	
 	
 	/**
-	 * The order of the jobs in the receivedJobs and scheduledJobs is FIFO. Because of synchronizations 
-	 * this does not necessarily strictly correspond to the receiveTime and scheduleTime fields of the
-	 * jobs, but is close enough.
-	 * 
-	 * As the jobs are ordered, it is enough to check the jobs until the first new enough job is found
-	 * as the following jobs are newer (almost always, see above).
+	 * Remove the job if the client hasn't accepted the offer yet. 
 	 * 
 	 * TODO send BUSY if timeout?
-	 * 
 	 */
-	private class TimeoutTimerTask extends TimerTask {
+	private class ScheduleTimeoutTask implements Runnable {
+		
+		private String jobId;
+		
+		public ScheduleTimeoutTask(String jobId) {
+			this.jobId = jobId;
+		}
 		
 		@Override
 		public void run() {
-			synchronized(jobsLock) {
-				
-				ArrayList<CompJob> jobsToBeRemoved = new ArrayList<CompJob>();
-
-				// get old scheduled jobs	
-				jobsToBeRemoved.clear();
-				for (CompJob job: scheduledJobs.values()) {
-					if ((System.currentTimeMillis() - scheduleTimeout * 1000) > job.getScheduleTime().getTime()) {
-						jobsToBeRemoved.add(job);
-					} else {
-						break;
-					}
-				}
-
-				// remove old scheduled jobs
-				for (CompJob job: jobsToBeRemoved) {
-					scheduledJobs.remove(job.getId());
-					logger.debug("Removing old scheduled job: " + job.getId());
-					activeJobRemoved();
-				}
+			if (jobs.removeIfScheduled(jobId)) {
+				logger.debug("Removing old scheduled job: " + jobId);
+				activeJobRemoved();
 			}
 		}
 	}
 	
-	public class JobHeartbeatTask extends TimerTask {
+	public class JobHeartbeatTask implements Runnable {
 
 		@Override
 		public void run() {
-			synchronized (jobsLock) {
-				for (CompJob job : getAllJobs()) {
-					job.updateStateToClient();
-				}
+			for (CompJob job : jobs.getJobs()) {
+				job.updateStateToClient();
 			}
 		}	
 	}
 
 	
-	public class CompAvailableTask extends TimerTask {
+	/**
+	 * Heartbeats are sent also when the comp is full, so that the jobmanager knows it's still there.
+	 */
+	public class CompHeartbeatTask implements Runnable {
 
 		@Override
 		public void run() {
-			synchronized (jobsLock) {
-				if (runningJobs.size() + scheduledJobs.size() < maxJobs) {
-					sendCompAvailable();
-				}
+			// an exception would cancel the next runs
+			try {
+				sendCompHeartbeat();
+			} catch (Exception e) {
+				logger.error("could not send comp heartbeat", e);
 			}
 		}	
 	}	
@@ -748,22 +956,21 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 
 		// close toolbox client
 		try {
+			if (toolboxSnapshotCache != null) {
+				toolboxSnapshotCache.close();
+			}
 			toolboxClient.close();
 		} catch (Exception e) {
 			logger.warn("closing toolbox client failed", e);
 		}
 		
+		statusCoalescer.close();
+		scheduler.shutdownNow();
+		replyExecutor.shutdown();
+		
 		logger.info("shutting down");
 	}
 	
-	private synchronized ArrayList<CompJob> getAllJobs() {
-		ArrayList<CompJob> allJobs = new ArrayList<CompJob>();
-		allJobs.addAll(scheduledJobs.values());
-		allJobs.addAll(runningJobs.values());	
-
-		return allJobs;
-	}
-	
 	private class CompAdminMessageListener implements MessagingListener {		
 
 		@Override
@@ -780,8 +987,8 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 					if (stopGracefully) {
 						reply.setStatus("Stopping gracefully...");
 					}
-					reply.setScheduledJobs(scheduledJobs.size());
-					reply.setRunningJobs(runningJobs.size());
+					reply.setScheduledJobs(jobs.getCount(JobRegistry.Phase.SCHEDULED));
+					reply.setRunningJobs(jobs.getCount(JobRegistry.Phase.RUNNING));
 					reply.setHost(getHost());
 					reply.setHostId(id);									
 
@@ -793,12 +1000,9 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 					
 					CommandMessage requestMessage = (CommandMessage) msg;
 					
-					synchronized (jobsLock) {
-									
-						for (CompJob job : getAllJobs()) {
-							JobLogMessage reply = jobToMessage(job);
-							endpoint.replyToMessage(requestMessage, reply);
-						}						
+					for (CompJob job : jobs.getJobs()) {
+						JobLogMessage reply = jobToMessage(job);
+						endpoint.replyToMessage(requestMessage, reply);
 					}
 				}
 
@@ -811,6 +1015,7 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 					if (id.equals(compId)) {
 
 						stopGracefully = true;						
+						sendCompHeartbeat();
 
 						logger.info("Server received a shutdown request. "
 								+ "It will shutdown after all scheduled and running jobs are completed. "
@@ -824,6 +1029,17 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 					}
 				}
 				
+				else if (msg instanceof CommandMessage && CommandMessage.COMMAND_TOOLBOX_UPDATED.equals(((CommandMessage)msg).getCommand())) {
+					toolboxClient.invalidate();
+					if (toolboxSnapshotCache != null) {
+						toolboxSnapshotCache.invalidate();
+					}
+					// the shared scripts of the toolbox may have changed too
+					if (resultCache != null) {
+						resultCache.clear();
+					}
+				}
+				
 				else if (msg instanceof CommandMessage && CommandMessage.COMMAND_CANCEL.equals(((CommandMessage)msg).getCommand())) {
 					CommandMessage requestMessage = (CommandMessage) msg;
 					
@@ -847,17 +1063,15 @@ public class CompServer extends MonitoredNodeBase implements MessagingListener,
 	}
 
 	@Override
-	public HashSet<Process> getRunningJobProcesses() {
-		synchronized (jobsLock) {
-			HashSet<Process> jobProcesses = new HashSet<>();
-			
-			for (CompJob compJob : runningJobs.values()) {
-				if (compJob.getProcess() != null) {
-					jobProcesses.add(compJob.getProcess());
-				}
+	public HashMap<String, Process> getRunningJobProcesses() {
+		HashMap<String, Process> jobProcesses = new HashMap<>();
+		
+		for (CompJob compJob : jobs.getJobs(JobRegistry.Phase.RUNNING)) {
+			if (compJob.getProcess() != null) {
+				jobProcesses.put(compJob.getId(), compJob.getProcess());
 			}
-			
-			return jobProcesses;
 		}
+		
+		return jobProcesses;
 	}
 }
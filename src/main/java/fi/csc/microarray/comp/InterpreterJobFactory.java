@@ -2,7 +2,9 @@ package fi.csc.microarray.comp;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 
@@ -28,6 +30,19 @@ public abstract class InterpreterJobFactory implements JobFactory {
 	protected String toolDir;
 	protected ProcessPool processPool;
 	protected boolean isDisabled = false;
+	
+	protected File workDir;
+	protected int poolSizeMin = 5;
+	protected int poolSizeMax = 20;
+	protected int poolTimeout = 360;
+	protected int processUseCountMax = 10;
+	protected int processLifetimeMax = 36_000;
+	protected ToolDescriptionCache descriptionCache = new ToolDescriptionCache() {
+		@Override
+		protected ToolDescription createToolDescription(ToolboxTool tool) throws CompException {
+			return InterpreterJobFactory.this.createToolDescription(tool);
+		}
+	};
 
 
 	public InterpreterJobFactory(HashMap<String, String> parameters) throws IOException {
@@ -46,12 +61,6 @@ public abstract class InterpreterJobFactory implements JobFactory {
 		this.toolDir = parameters.get("toolDir");
 	
 		// initialize process pool
-		int poolSizeMin = 5;
-		int poolSizeMax = 20;
-		int poolTimeout = 360;
-		int processUseCountMax = 10;
-		int processLifetimeMax = 36_000;
-
 		try {
 			// TODO fix R specificity
 			Configuration configuration = DirectoryLayout.getInstance().getConfiguration();
@@ -63,14 +72,14 @@ public abstract class InterpreterJobFactory implements JobFactory {
 			processLifetimeMax = configuration.getInt("comp", "r-process-pool-process-lifetime-max");
 		} catch (IllegalStateException e) {
 			// DirectoryLayout isn't configured in RestCompServer
-			// use above hard coded values for now, because this class is still in the old chipster project
+			// use the hard coded values for now, because this class is still in the old chipster project
 			// and we can't use the new Config class here		
 			logger.info("process pool config missing, using hard coded defaults (" + e.getMessage() + ")");
 		}
 		
 		try {
-			processPool = new ProcessPool(new File(parameters.get("workDir")), interpreterCommand, poolSizeMin, poolSizeMax, 
-				poolTimeout, processUseCountMax, processLifetimeMax);
+			this.workDir = new File(parameters.get("workDir"));
+			processPool = createProcessPool(poolSizeMin, Collections.<String>emptyList());
 		} catch (Exception e) {
 			logger.warn("disabling handler " + this.getClass().getSimpleName() + ": " + e.getMessage());
 			this.isDisabled = true;
@@ -82,6 +91,42 @@ public abstract class InterpreterJobFactory implements JobFactory {
 
 	protected abstract String getStringDelimeter();
 	protected abstract String getVariableNameSeparator();
+	
+	/**
+	 * Code to run in each new interpreter process.
+	 * 
+	 * @param libraries libraries to load in advance
+	 * @return null if nothing needs to be done
+	 */
+	protected String getProcessInitialiser(List<String> libraries) {
+		return null;
+	}
+	
+	/**
+	 * Code to reset the state of the interpreter process between jobs.
+	 * 
+	 * @return null to never reuse the processes
+	 */
+	protected String getProcessRecycler() {
+		return null;
+	}
+	
+	/**
+	 * Processes of the default pool, without libraries, are not recycled, because any tool
+	 * can use them. 
+	 */
+	protected ProcessPool createProcessPool(int sizeMin, List<String> libraries) throws IOException {
+		String recycler = libraries.isEmpty() ? null : getProcessRecycler();
+		return new ProcessPool(workDir, interpreterCommand, sizeMin, poolSizeMax, 
+				poolTimeout, processUseCountMax, processLifetimeMax, getProcessInitialiser(libraries), recycler);
+	}
+	
+	/**
+	 * Select a process pool for the job.
+	 */
+	protected ProcessPool getProcessPool(ToolDescription description) throws IOException {
+		return processPool;
+	}
 
 	protected ToolDescription createToolDescription(ToolboxTool tool) throws CompException {
 
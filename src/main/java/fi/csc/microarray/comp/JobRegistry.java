@@ -0,0 +1,203 @@
+package fi.csc.microarray.comp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Scheduled and running jobs of the comp and the slots and memory reserved for them.
+ *
+ * <p>Each job moves from SCHEDULED to RUNNING and finally to REMOVED, or from SCHEDULED
+ * directly to REMOVED. The transitions are compare-and-set operations, so when e.g. the
+ * offer is accepted at the same time as the schedule timeout expires, only one of them
+ * wins. The reservations are released exactly once, when the job is removed. Nothing
+ * here takes a lock.</p>
+ */
+public class JobRegistry {
+
+	public static enum Phase {
+		SCHEDULED, RUNNING, REMOVED
+	}
+
+	private static class Entry {
+		private final CompJob job;
+		private final int quarterSlots;
+		private final long memory;
+		private final AtomicReference<Phase> phase;
+
+		public Entry(CompJob job, int quarterSlots, long memory, Phase phase) {
+			this.job = job;
+			this.quarterSlots = quarterSlots;
+			this.memory = memory;
+			this.phase = new AtomicReference<Phase>(phase);
+		}
+	}
+
+	/**
+	 * Total reservations, replaced as a whole so that all values change together.
+	 */
+	private static class Usage {
+		private final int jobs;
+		private final int quarterSlots;
+		private final long memory;
+
+		public Usage(int jobs, int quarterSlots, long memory) {
+			this.jobs = jobs;
+			this.quarterSlots = quarterSlots;
+			this.memory = memory;
+		}
+	}
+
+	private final int maxQuarterSlots;
+	private final long maxMemory;
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final AtomicReference<Usage> usage = new AtomicReference<Usage>(new Usage(0, 0, 0));
+
+	/**
+	 * @param maxSlots
+	 * @param maxMemory bytes, Long.MAX_VALUE if memory is not limited
+	 */
+	public JobRegistry(int maxSlots, long maxMemory) {
+		this.maxQuarterSlots = maxSlots * 4;
+		this.maxMemory = maxMemory;
+	}
+
+	/**
+	 * Add the job, if there are enough free slots and memory for it. A job that needs more
+	 * than the whole memory can still run alone.
+	 *
+	 * @param slots in quarters of a slot
+	 * @param memory bytes
+	 * @param phase SCHEDULED or RUNNING
+	 * @return false if the job doesn't fit or the job is already here
+	 */
+	public boolean add(CompJob job, double slots, long memory, Phase phase) {
+		Entry entry = new Entry(job, (int) Math.round(slots * 4), memory, phase);
+
+		while (true) {
+			Usage current = usage.get();
+			if (current.quarterSlots + entry.quarterSlots > maxQuarterSlots) {
+				return false;
+			}
+			if (current.memory + entry.memory > maxMemory && current.jobs > 0) {
+				return false;
+			}
+			Usage reserved = new Usage(current.jobs + 1, current.quarterSlots + entry.quarterSlots, current.memory + entry.memory);
+			if (usage.compareAndSet(current, reserved)) {
+				break;
+			}
+		}
+
+		if (entries.putIfAbsent(job.getId(), entry) != null) {
+			release(entry);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the job, if it was scheduled and is now running, otherwise null
+	 */
+	public CompJob start(String jobId) {
+		Entry entry = entries.get(jobId);
+		if (entry != null && entry.phase.compareAndSet(Phase.SCHEDULED, Phase.RUNNING)) {
+			return entry.job;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the job, if it was removed by this call, otherwise null
+	 */
+	public CompJob remove(String jobId) {
+		Entry entry = entries.get(jobId);
+		if (entry == null || entry.phase.getAndSet(Phase.REMOVED) == Phase.REMOVED) {
+			return null;
+		}
+		entries.remove(jobId, entry);
+		release(entry);
+		return entry.job;
+	}
+
+	/**
+	 * @return true if the job was scheduled and was removed by this call
+	 */
+	public boolean removeIfScheduled(String jobId) {
+		Entry entry = entries.get(jobId);
+		if (entry == null || !entry.phase.compareAndSet(Phase.SCHEDULED, Phase.REMOVED)) {
+			return false;
+		}
+		entries.remove(jobId, entry);
+		release(entry);
+		return true;
+	}
+
+	public CompJob get(String jobId) {
+		Entry entry = entries.get(jobId);
+		return entry != null ? entry.job : null;
+	}
+
+	/**
+	 * @return jobs in the given phase, in no particular order
+	 */
+	public List<CompJob> getJobs(Phase phase) {
+		List<CompJob> jobs = new ArrayList<CompJob>();
+		for (Entry entry : entries.values()) {
+			if (entry.phase.get() == phase) {
+				jobs.add(entry.job);
+			}
+		}
+		return jobs;
+	}
+
+	/**
+	 * @return all scheduled and running jobs
+	 */
+	public List<CompJob> getJobs() {
+		List<CompJob> jobs = new ArrayList<CompJob>();
+		for (Entry entry : entries.values()) {
+			jobs.add(entry.job);
+		}
+		return jobs;
+	}
+
+	public int getCount(Phase phase) {
+		int count = 0;
+		for (Entry entry : entries.values()) {
+			if (entry.phase.get() == phase) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public boolean isEmpty() {
+		return usage.get().jobs == 0;
+	}
+
+	public int size() {
+		return usage.get().jobs;
+	}
+
+	public double getFreeSlots() {
+		return (maxQuarterSlots - usage.get().quarterSlots) / 4.0;
+	}
+
+	/**
+	 * @return bytes, may be negative if a big job runs alone
+	 */
+	public long getFreeMemory() {
+		return maxMemory - usage.get().memory;
+	}
+
+	private void release(Entry entry) {
+		while (true) {
+			Usage current = usage.get();
+			Usage released = new Usage(current.jobs - 1, current.quarterSlots - entry.quarterSlots, current.memory - entry.memory);
+			if (usage.compareAndSet(current, released)) {
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package fi.csc.microarray.comp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import fi.csc.chipster.toolbox.ToolboxTool;
+import fi.csc.microarray.comp.ToolDescription.ParameterDescription;
+import fi.csc.microarray.messaging.JobState;
+import fi.csc.microarray.messaging.message.GenericJobMessage;
+import fi.csc.microarray.messaging.message.GenericResultMessage;
+import fi.csc.microarray.messaging.message.JobMessage.ParameterSecurityPolicy;
+
+/**
+ * Results of completed jobs, so that a job of the same user with the same tool, inputs and
+ * parameters can reuse the output datasets, if they have been saved to the filebroker storage.
+ * The reusing job gets copies of the datasets with new dataIds, because a client can't have
+ * two datasets with the same dataId.
+ *
+ * <p>Datasets are never modified after they have been uploaded to the filebroker, so the
+ * input dataIds identify the input contents. The tool source is part of the key, so
+ * results of an older version of the tool are not reused. Tools that aren't deterministic
+ * can opt out with the NOCACHE keyword of SADL.</p>
+ */
+public class JobResultCache {
+
+	private static final Logger logger = Logger.getLogger(JobResultCache.class);
+
+	/**
+	 * Parameters are only hashed here, the job checks them before they are used.
+	 */
+	private static final ParameterSecurityPolicy HASH_PARAMETER_POLICY = new ParameterSecurityPolicy() {
+		@Override
+		public boolean isValueValid(String value, ParameterDescription parameterDescription) {
+			return true;
+		}
+	};
+
+	/**
+	 * Output datasets and texts of a completed job.
+	 */
+	public static class CachedResult {
+		private List<String> outputNames = new ArrayList<String>();
+		private List<String> dataIds = new ArrayList<String>();
+		private List<String> names = new ArrayList<String>();
+		private String outputText;
+		private String sourceCode;
+
+		public List<String> getDataIds() {
+			return Collections.unmodifiableList(dataIds);
+		}
+
+		/**
+		 * Copy the cached results to the result message of a new job.
+		 * 
+		 * @param newDataIds dataIds of the copies of the output datasets, in the same order as getDataIds()
+		 */
+		public void copyTo(GenericResultMessage result, List<String> newDataIds) {
+			for (int i = 0; i < outputNames.size(); i++) {
+				result.addDataset(outputNames.get(i), newDataIds.get(i), names.get(i));
+			}
+			result.setOutputText(outputText);
+			result.setSourceCode(sourceCode);
+		}
+	}
+
+	private Map<String, CachedResult> results;
+
+	/**
+	 * @param maxSize the number of results to keep, the least recently used are removed first
+	 */
+	public JobResultCache(final int maxSize) {
+		this.results = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @return the cache key of the job or null if the results of the tool must not be reused
+	 */
+	public String getKey(GenericJobMessage message, ToolboxTool tool, ToolDescription description) {
+		if (!description.isCacheable()) {
+			return null;
+		}
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-256
+			throw new RuntimeException(e);
+		}
+
+		try {
+			update(digest, message.getUsername());
+			update(digest, tool.getId());
+			update(digest, tool.getRuntime());
+			update(digest, tool.getSadlString());
+			update(digest, tool.getSource());
+
+			List<String> parameters = message.getParameters(HASH_PARAMETER_POLICY, description);
+			update(digest, Integer.toString(parameters.size()));
+			for (String parameter : parameters) {
+				update(digest, parameter);
+			}
+
+			List<String> inputs = new ArrayList<String>(message.getKeys());
+			Collections.sort(inputs);
+			update(digest, Integer.toString(inputs.size()));
+			for (String input : inputs) {
+				update(digest, input);
+				update(digest, message.getId(input));
+				update(digest, message.getName(input));
+			}
+		} catch (Exception e) {
+			logger.warn("could not create a result cache key for tool " + tool.getId(), e);
+			return null;
+		}
+
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest()) {
+			key.append(String.format("%02x", b));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Each value is prefixed with its length, so that the values can't be shifted to
+	 * produce the same bytes.
+	 */
+	private static void update(MessageDigest digest, String value) {
+		if (value == null) {
+			digest.update(ByteBuffer.allocate(4).putInt(-1).array());
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+		digest.update(bytes);
+	}
+
+	public synchronized CachedResult get(String key) {
+		return results.get(key);
+	}
+
+	/**
+	 * Store the results of a completed job.
+	 */
+	public synchronized void put(String key, GenericResultMessage result) {
+		CachedResult cached = new CachedResult();
+		for (String outputName : result.getOutputNames()) {
+			cached.outputNames.add(outputName);
+			cached.dataIds.add(result.getDatasetId(outputName));
+			cached.names.add(result.getDatasetName(outputName));
+		}
+		cached.outputText = result.getOutputText();
+		cached.sourceCode = result.getSourceCode();
+		results.put(key, cached);
+	}
+
+	/**
+	 * Store the results of a completed job, or forget the results that a 
+	 * {@link CachedResultJob} couldn't copy.
+	 */
+	public synchronized void jobEnded(CompJob job) {
+		String key = job.getResultCacheKey();
+		if (key == null) {
+			return;
+		}
+		if (job instanceof CachedResultJob) {
+			// the results are in the cache already, unless they couldn't be copied
+			if (job.getState() != JobState.COMPLETED) {
+				results.remove(key);
+			}
+		} else if (job.getState() == JobState.COMPLETED) {
+			put(key, job.getResultMessage());
+		}
+	}
+
+	public synchronized void remove(String key) {
+		results.remove(key);
+	}
+
+	public synchronized void clear() {
+		results.clear();
+		logger.info("result cache cleared");
+	}
+}
@@ -0,0 +1,173 @@
+package fi.csc.microarray.comp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import fi.csc.microarray.messaging.JobState;
+import fi.csc.microarray.messaging.message.GenericJobMessage;
+import fi.csc.microarray.messaging.message.ResultMessage;
+
+/**
+ * Limits the rate of the job status messages sent to the client. Status updates of running
+ * jobs, like the progress of the data transfers, are sent at most maxUpdatesPerSecond times
+ * per second for each job. If there are more updates, only the latest one is sent when the
+ * interval has passed.
+ *
+ * Updates of all other states are sent immediately and the pending update of the job is
+ * dropped, so the client never gets an old update after the job has finished.
+ */
+public class JobStatusCoalescer {
+
+	private static final Logger logger = Logger.getLogger(JobStatusCoalescer.class);
+
+	public static interface StatusSender {
+		public void send(GenericJobMessage original, ResultMessage reply);
+	}
+
+	/**
+	 * Status of one job. The object is also the lock that keeps the updates of the job in order.
+	 */
+	private static class JobStatus {
+		private long lastSent = 0;
+		private GenericJobMessage pendingOriginal;
+		private ResultMessage pendingReply;
+	}
+
+	private long minInterval;
+	private StatusSender sender;
+	private Map<String, JobStatus> jobs = new HashMap<String, JobStatus>();
+	private ScheduledExecutorService scheduler;
+	private boolean ownScheduler;
+
+	/**
+	 * @param maxUpdatesPerSecond zero or less sends all updates immediately
+	 */
+	public JobStatusCoalescer(int maxUpdatesPerSecond, StatusSender sender) {
+		this(maxUpdatesPerSecond, sender, Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "job-status-coalescer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}));
+		this.ownScheduler = true;
+	}
+
+	/**
+	 * Send the delayed updates with the given scheduler, which is not shut down in close().
+	 */
+	public JobStatusCoalescer(int maxUpdatesPerSecond, StatusSender sender, ScheduledExecutorService scheduler) {
+		this.minInterval = maxUpdatesPerSecond > 0 ? 1000 / maxUpdatesPerSecond : 0;
+		this.sender = sender;
+		this.scheduler = scheduler;
+	}
+
+	public void update(GenericJobMessage original, ResultMessage reply) {
+
+		String jobId = reply.getJobId();
+
+		if (minInterval == 0 || jobId == null) {
+			sender.send(original, reply);
+			return;
+		}
+
+		if (reply.getState() != JobState.RUNNING) {
+			JobStatus status;
+			synchronized (jobs) {
+				status = jobs.remove(jobId);
+			}
+			if (status == null) {
+				sender.send(original, reply);
+			} else {
+				// wait for a possible delayed update to be sent first
+				synchronized (status) {
+					status.pendingReply = null;
+					sender.send(original, reply);
+				}
+			}
+			return;
+		}
+
+		JobStatus status;
+		synchronized (jobs) {
+			status = jobs.get(jobId);
+			if (status == null) {
+				status = new JobStatus();
+				jobs.put(jobId, status);
+			}
+		}
+
+		synchronized (status) {
+			long now = System.currentTimeMillis();
+			long wait = status.lastSent + minInterval - now;
+
+			if (wait <= 0 && status.pendingReply == null) {
+				status.lastSent = now;
+				sender.send(original, reply);
+
+			} else {
+				// replace the pending update, schedule sending if it's the first one
+				boolean schedule = status.pendingReply == null;
+				status.pendingOriginal = original;
+				status.pendingReply = reply;
+				if (schedule) {
+					scheduleSend(jobId, status, Math.max(wait, 0));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forget the job, if its final state wasn't sent through this coalescer.
+	 */
+	public void remove(String jobId) {
+		synchronized (jobs) {
+			jobs.remove(jobId);
+		}
+	}
+
+	public void close() {
+		if (ownScheduler) {
+			scheduler.shutdown();
+		}
+	}
+
+	private void scheduleSend(final String jobId, final JobStatus status, long delay) {
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sendPending(jobId, status);
+				} catch (Exception e) {
+					logger.error("could not send job status update", e);
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void sendPending(String jobId, JobStatus status) {
+		synchronized (status) {
+			synchronized (jobs) {
+				// job has finished after the update was scheduled
+				if (jobs.get(jobId) != status) {
+					return;
+				}
+			}
+			if (status.pendingReply != null) {
+				status.lastSent = System.currentTimeMillis();
+				ResultMessage reply = status.pendingReply;
+				GenericJobMessage original = status.pendingOriginal;
+				status.pendingReply = null;
+				status.pendingOriginal = null;
+				sender.send(original, reply);
+			}
+		}
+	}
+}
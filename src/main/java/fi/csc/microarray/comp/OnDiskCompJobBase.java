@@ -3,15 +3,22 @@ package fi.csc.microarray.comp;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
 import fi.csc.microarray.comp.ToolDescription.OutputDescription;
+import fi.csc.microarray.config.Configuration;
+import fi.csc.microarray.config.DirectoryLayout;
 import fi.csc.microarray.exception.MicroarrayException;
 import fi.csc.microarray.filebroker.ChecksumException;
+import fi.csc.microarray.filebroker.FileBrokerClient;
 import fi.csc.microarray.filebroker.FileBrokerClient.FileBrokerArea;
 import fi.csc.microarray.filebroker.FileBrokerException;
 import fi.csc.microarray.filebroker.NotEnoughDiskSpaceException;
@@ -34,6 +41,11 @@ public abstract class OnDiskCompJobBase extends CompJob {
 
 	private static final String JOB_DATA_DIR_NAME = "data";
 	private static final String JOB_TOOLBOX_DIR_NAME = "toolbox";
+	// outside the job directories, so that the logs stay after the work dir is swept 
+	private static final String OUTPUT_LOGS_DIR_NAME = "output-logs";
+	private static final long OUTPUT_LOG_MAX_AGE = 7 * 24 * 60 * 60 * 1000l;
+	private static final long OUTPUT_LOG_PRUNE_INTERVAL = 60 * 60 * 1000l;
+	private static final AtomicLong lastOutputLogPrune = new AtomicLong(0);
 	
 	protected File jobDir;
 	protected File jobDataDir;
@@ -73,10 +85,15 @@ public abstract class OnDiskCompJobBase extends CompJob {
 			getInputFiles();
 			
 			// toolbox
-			if (!this.jobToolboxDir.mkdir()) {
-				throw new IOException("Creating job toolbox dir failed.");
+			ToolboxSnapshotCache snapshotCache = resultHandler.getToolboxSnapshotCache();
+			if (snapshotCache != null) {
+				snapshotCache.linkToolbox(this.jobToolboxDir);
+			} else {
+				if (!this.jobToolboxDir.mkdir()) {
+					throw new IOException("Creating job toolbox dir failed.");
+				}
+				resultHandler.getToolboxClient().getToolboxModules(this.jobToolboxDir);
 			}
-			resultHandler.getToolboxClient().getToolboxModules(this.jobToolboxDir);
 
 		} catch (Exception e) {
 			outputMessage.setErrorMessage("Transferring input data and tools to computing service failed.");
@@ -190,6 +207,7 @@ public abstract class OnDiskCompJobBase extends CompJob {
 			if (resultHandler.shouldSweepWorkDir()) {
 				Files.delTree(jobDir);
 			}
+			pruneOutputLogs();
 		} catch (Exception e) {
 			logger.error("Error when cleaning up job work dir.", e);
 		} finally {
@@ -198,27 +216,107 @@ public abstract class OnDiskCompJobBase extends CompJob {
 	}
 
 
+	/**
+	 * @return capture for the output of the tool process, limited according to the configuration
+	 */
+	protected OutputCapture createOutputCapture() {
+		int headLines = 200;
+		int tailLines = 2000;
+		try {
+			Configuration configuration = DirectoryLayout.getInstance().getConfiguration();
+			headLines = configuration.getInt("comp", "output-head-lines");
+			tailLines = configuration.getInt("comp", "output-tail-lines");
+		} catch (IllegalStateException e) {
+			logger.debug("output capture config missing, using hard coded defaults (" + e.getMessage() + ")");
+		}
+		File outputLog = new File(new File(resultHandler.getWorkDir(), OUTPUT_LOGS_DIR_NAME), getId() + ".log");
+		return new OutputCapture(headLines, tailLines, outputLog, getId());
+	}
+
+	/**
+	 * Remove the old output logs. Done by one job at a time and at most once in the prune 
+	 * interval.
+	 */
+	private void pruneOutputLogs() {
+		long now = System.currentTimeMillis();
+		long lastPrune = lastOutputLogPrune.get();
+		if (now - lastPrune < OUTPUT_LOG_PRUNE_INTERVAL || !lastOutputLogPrune.compareAndSet(lastPrune, now)) {
+			return;
+		}
+		File[] logs = new File(resultHandler.getWorkDir(), OUTPUT_LOGS_DIR_NAME).listFiles();
+		if (logs == null) {
+			return;
+		}
+		for (File log : logs) {
+			if (now - log.lastModified() > OUTPUT_LOG_MAX_AGE && !log.delete()) {
+				logger.warn("could not delete old output log " + log);
+			}
+		}
+	}
+
+	/**
+	 * Wait for the process monitor and send the latest output to the client periodically
+	 * while waiting.
+	 */
+	protected void awaitProcess(CountDownLatch latch, OutputCapture outputCapture) throws InterruptedException {
+		long updateInterval = 10000;
+		try {
+			updateInterval = DirectoryLayout.getInstance().getConfiguration().getInt("comp", "output-update-interval");
+		} catch (IllegalStateException e) {
+			logger.debug("output update interval config missing, using hard coded default (" + e.getMessage() + ")");
+		}
+
+		if (updateInterval <= 0) {
+			latch.await();
+			return;
+		}
+		while (!latch.await(updateInterval, TimeUnit.MILLISECONDS)) {
+			sendOutputUpdate(outputCapture);
+		}
+	}
+
+	private synchronized void sendOutputUpdate(OutputCapture outputCapture) {
+		// process monitor may have already set the final state
+		if (getState() != JobState.RUNNING) {
+			return;
+		}
+		outputMessage.setOutputText(outputCapture.getRecentOutput());
+		updateStateDetailToClient(getStateDetail());
+	}
+
 	private void getInputFiles()
 			throws Exception, JobCancelledException, IOException, FileBrokerException, ChecksumException {
 		LinkedHashMap<String, String> nameMap = new LinkedHashMap<>();
+		long inputSize = 0;
 		
 		if (!this.jobDataDir.mkdir()) {
 			throw new IOException("Creating job data dir failed.");
 		}
 		
+		List<String> dataIds = new ArrayList<>();
+		List<File> localFiles = new ArrayList<>();
 		for (String fileName : inputMessage.getKeys()) {
-			cancelCheck();
-	
-			// get url and output file
-			String dataId = inputMessage.getId(fileName);
-			File localFile = new File(jobDataDir, fileName);
-			
-			// make local file available, by downloading, copying or symlinking
-			resultHandler.getFileBrokerClient().getFile(inputMessage.getSessionId(), dataId, new File(jobDataDir, fileName));
-			logger.debug("made available local file: " + localFile.getName() + " " + localFile.length());
-			
+			dataIds.add(inputMessage.getId(fileName));
+			localFiles.add(new File(jobDataDir, fileName));
 			nameMap.put(fileName, inputMessage.getName(fileName));
 		}
+		cancelCheck();
+		
+		// make local files available, by downloading, copying or symlinking
+		resultHandler.getFileBrokerClient().getFiles(inputMessage.getSessionId(), dataIds, localFiles, new FileBrokerClient.CancelCheck() {
+			@Override
+			public boolean isCancelled() {
+				return isToBeCanceled();
+			}
+		});
+		// the rest of the files were skipped, if the job was cancelled
+		cancelCheck();
+
+		for (File localFile : localFiles) {
+			logger.debug("made available local file: " + localFile.getName() + " " + localFile.length());
+			inputSize += localFile.length();
+		}
+		setInputSize(inputSize);
 		
 		ToolUtils.writeInputDescription(new File(jobDataDir, "chipster-inputs.tsv"), nameMap);
 	
@@ -0,0 +1,200 @@
+package fi.csc.microarray.comp;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Output of a tool process with bounded memory use. The first headLines and the last
+ * tailLines are kept in memory and the lines between them are dropped. When the first
+ * line is dropped, the complete output is written to the spill file instead, so that
+ * it's still available after the job. The output mentions the job id, so that the file can
+ * be found on the server, but not the path of the file.
+ */
+public class OutputCapture {
+
+	private static final Logger logger = Logger.getLogger(OutputCapture.class);
+
+	// very long lines, e.g. progress bars without line breaks, are truncated
+	private static final int MAX_LINE_LENGTH = 10000;
+
+	// lines and characters in the output updates sent while the job is running
+	private static final int RECENT_LINES = 200;
+	private static final int RECENT_CHARS = 64 * 1024;
+
+	private int headLines;
+	private int tailLines;
+	private File spillFile;
+	private String jobId;
+
+	private List<String> head = new ArrayList<String>();
+	private ArrayDeque<String> tail = new ArrayDeque<String>();
+	private long droppedLines = 0;
+	private BufferedWriter spillWriter;
+	private boolean spilled = false;
+	private boolean spillFailed = false;
+
+	/**
+	 * @param headLines
+	 * @param tailLines
+	 * @param spillFile null to keep only the head and tail
+	 */
+	public OutputCapture(int headLines, int tailLines, File spillFile) {
+		this(headLines, tailLines, spillFile, null);
+	}
+
+	/**
+	 * @param jobId job of the output, mentioned in the note about the spill file
+	 */
+	public OutputCapture(int headLines, int tailLines, File spillFile, String jobId) {
+		this.headLines = headLines;
+		this.tailLines = Math.max(tailLines, 1);
+		this.spillFile = spillFile;
+		this.jobId = jobId;
+	}
+
+	public synchronized void addLine(String line) {
+		if (line.length() > MAX_LINE_LENGTH) {
+			line = line.substring(0, MAX_LINE_LENGTH) + "...";
+		}
+
+		if (spillWriter != null) {
+			spill(line);
+		}
+
+		if (head.size() < headLines) {
+			head.add(line);
+			return;
+		}
+
+		tail.addLast(line);
+		if (tail.size() > tailLines) {
+			if (droppedLines == 0) {
+				startSpill();
+			}
+			tail.removeFirst();
+			droppedLines++;
+		}
+	}
+
+	/**
+	 * @return lines kept in memory, without the dropped lines between the head and the tail
+	 */
+	public synchronized List<String> getLines() {
+		List<String> lines = new ArrayList<String>(head.size() + tail.size());
+		lines.addAll(head);
+		lines.addAll(tail);
+		return lines;
+	}
+
+	/**
+	 * @return the head and the tail, and a note about the dropped lines between them
+	 */
+	public synchronized String getOutput() {
+		StringBuilder output = new StringBuilder();
+		for (String line : head) {
+			output.append(line).append("\n");
+		}
+		if (droppedLines > 0) {
+			if (spilled && !spillFailed) {
+				String job = jobId != null ? " of job " + jobId : "";
+				output.append("\n[" + droppedLines + " lines of output omitted, the complete output" + job + " is saved on the server]\n\n");
+			} else {
+				output.append("\n[" + droppedLines + " lines of output omitted]\n\n");
+			}
+		}
+		for (String line : tail) {
+			output.append(line).append("\n");
+		}
+		return output.toString();
+	}
+
+	/**
+	 * The size is limited in characters, which is close enough to bytes for the mostly 
+	 * ASCII output of the tools.
+	 * 
+	 * @return the latest lines for the status updates of a running job
+	 */
+	public synchronized String getRecentOutput() {
+		ArrayList<String> recent = new ArrayList<String>();
+		int chars = 0;
+		Iterator<String> iterator = tail.descendingIterator();
+		while (iterator.hasNext() && recent.size() < RECENT_LINES) {
+			String line = iterator.next();
+			chars += line.length() + 1;
+			if (chars > RECENT_CHARS) {
+				break;
+			}
+			recent.add(line);
+		}
+		for (int i = head.size() - 1; i >= 0 && recent.size() < RECENT_LINES; i--) {
+			chars += head.get(i).length() + 1;
+			if (chars > RECENT_CHARS) {
+				break;
+			}
+			recent.add(head.get(i));
+		}
+
+		StringBuilder output = new StringBuilder();
+		for (int i = recent.size() - 1; i >= 0; i--) {
+			output.append(recent.get(i)).append("\n");
+		}
+		return output.toString();
+	}
+
+	public synchronized void close() {
+		if (spillWriter != null) {
+			try {
+				spillWriter.close();
+			} catch (IOException e) {
+				logger.warn("could not close " + spillFile, e);
+			}
+			spillWriter = null;
+		}
+	}
+
+	/**
+	 * Write the lines seen so far, including the line about to be dropped.
+	 */
+	private void startSpill() {
+		if (spillFile == null) {
+			return;
+		}
+		try {
+			Files.createDirectories(spillFile.getParentFile().toPath());
+			spillWriter = Files.newBufferedWriter(spillFile.toPath(), StandardCharsets.UTF_8);
+			spilled = true;
+			for (String line : head) {
+				spill(line);
+			}
+			for (String line : tail) {
+				spill(line);
+			}
+			logger.debug("output exceeds " + (headLines + tailLines) + " lines, writing it to " + spillFile);
+		} catch (IOException e) {
+			logger.warn("could not create " + spillFile, e);
+		}
+	}
+
+	private void spill(String line) {
+		if (spillFailed) {
+			return;
+		}
+		try {
+			spillWriter.write(line);
+			spillWriter.newLine();
+		} catch (IOException e) {
+			// e.g. disk full, keep capturing to memory
+			logger.warn("could not write to " + spillFile, e);
+			spillFailed = true;
+		}
+	}
+}
@@ -0,0 +1,417 @@
+package fi.csc.microarray.comp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Collects the resource usage of job process trees from the /proc file system of Linux.
+ *
+ * <p>All processes are listed once per sample to find the child processes, so this doesn't
+ * need to fork any commands like {@link ProcessUtils}. Processes that have been seen once
+ * are remembered, so that a grandchild is counted even after its parent has ended. The CPU
+ * time and I/O of ended processes are kept at the last sampled value.</p>
+ *
+ * <p>The results are kept by job id, because pooled processes run several jobs. The CPU and
+ * I/O counters of the job process are cumulative, so their values when the job got the
+ * process are subtracted.</p>
+ */
+public class ProcResourceSampler {
+
+	private static final Logger logger = Logger.getLogger(ProcResourceSampler.class);
+
+	private static final File PROC = new File("/proc");
+
+	// USER_HZ, which is 100 on all common Linux platforms and can't be queried from Java
+	private static final long CLOCK_TICKS_PER_SECOND = 100;
+
+	/**
+	 * Resource usage of one job and all its child processes.
+	 */
+	public static class JobResources {
+		private Process process;
+		private Long pid;
+		private Map<ProcessKey, ProcessSample> processes = new HashMap<>();
+		// counters of the processes that were running already when the job started
+		private Map<ProcessKey, ProcessSample> baseline = new HashMap<>();
+
+		private long mem;
+		private Long maxMem;
+		private long threads;
+		private int processCount;
+
+		/**
+		 * @return current resident memory, bytes
+		 */
+		public synchronized long getMem() {
+			return mem;
+		}
+
+		/**
+		 * @return max resident memory seen, bytes, or null if not sampled yet
+		 */
+		public synchronized Long getMaxMem() {
+			return maxMem;
+		}
+
+		public synchronized long getThreads() {
+			return threads;
+		}
+
+		public synchronized int getProcessCount() {
+			return processCount;
+		}
+
+		/**
+		 * @return user and system CPU time of all processes, milliseconds
+		 */
+		public synchronized long getCpuTime() {
+			long ticks = 0;
+			for (Map.Entry<ProcessKey, ProcessSample> entry : processes.entrySet()) {
+				ticks += entry.getValue().cpuTicks - getBaseline(entry.getKey()).cpuTicks;
+			}
+			return ticks * 1000 / CLOCK_TICKS_PER_SECOND;
+		}
+
+		/**
+		 * @return bytes read by all processes
+		 */
+		public synchronized long getReadBytes() {
+			long bytes = 0;
+			for (Map.Entry<ProcessKey, ProcessSample> entry : processes.entrySet()) {
+				bytes += entry.getValue().readBytes - getBaseline(entry.getKey()).readBytes;
+			}
+			return bytes;
+		}
+
+		/**
+		 * @return bytes written by all processes
+		 */
+		public synchronized long getWriteBytes() {
+			long bytes = 0;
+			for (Map.Entry<ProcessKey, ProcessSample> entry : processes.entrySet()) {
+				bytes += entry.getValue().writeBytes - getBaseline(entry.getKey()).writeBytes;
+			}
+			return bytes;
+		}
+
+		private ProcessSample getBaseline(ProcessKey key) {
+			ProcessSample sample = baseline.get(key);
+			return sample != null ? sample : ZERO;
+		}
+
+		@Override
+		public String toString() {
+			return "mem " + ProcessUtils.humanFriendly(getMem()) +
+					", max mem " + ProcessUtils.humanFriendly(getMaxMem()) +
+					", cpu time " + getCpuTime() + " ms" +
+					", read " + ProcessUtils.humanFriendly(getReadBytes()) +
+					", written " + ProcessUtils.humanFriendly(getWriteBytes()) +
+					", processes " + getProcessCount() +
+					", threads " + getThreads();
+		}
+	}
+
+	/**
+	 * Pids can be reused, so the start time is needed to identify a process.
+	 */
+	private static class ProcessKey {
+		private long pid;
+		private long startTime;
+
+		public ProcessKey(long pid, long startTime) {
+			this.pid = pid;
+			this.startTime = startTime;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (pid ^ (startTime >>> 32) ^ startTime);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ProcessKey)) {
+				return false;
+			}
+			ProcessKey other = (ProcessKey) obj;
+			return pid == other.pid && startTime == other.startTime;
+		}
+	}
+
+	private static class ProcessSample {
+		private long cpuTicks;
+		private long readBytes;
+		private long writeBytes;
+	}
+
+	private static final ProcessSample ZERO = new ProcessSample();
+
+	private static class Stat {
+		private long pid;
+		private long ppid;
+		private long cpuTicks;
+		private long threads;
+		private long startTime;
+	}
+
+	private HashMap<String, JobResources> jobs = new HashMap<>();
+
+	public static boolean isSupported() {
+		return new File(PROC, "self/stat").canRead();
+	}
+
+	/**
+	 * Start collecting the resources of a job from the current counters of its process, 
+	 * which may have run other jobs before.
+	 */
+	public synchronized void start(String jobId, Process process) {
+		JobResources job = createJob(process);
+		if (job.pid != null) {
+			String pidDir = Long.toString(job.pid);
+			Stat stat = readStat(pidDir);
+			if (stat != null) {
+				ProcessSample sample = new ProcessSample();
+				sample.cpuTicks = stat.cpuTicks;
+				readIo(pidDir, sample);
+				job.baseline.put(new ProcessKey(stat.pid, stat.startTime), sample);
+			}
+		}
+		jobs.put(jobId, job);
+	}
+
+	/**
+	 * Sample all processes of the given jobs and forget the jobs that aren't in the list anymore.
+	 *
+	 * @param jobProcesses processes by job id
+	 */
+	public synchronized void sample(Map<String, Process> jobProcesses) {
+		jobs.keySet().retainAll(jobProcesses.keySet());
+		if (jobProcesses.isEmpty()) {
+			return;
+		}
+
+		// read stat of all processes to find the children
+		HashMap<Long, Stat> stats = new HashMap<>();
+		HashMap<Long, List<Long>> children = new HashMap<>();
+		String[] pidDirs = PROC.list();
+		if (pidDirs == null) {
+			logger.warn("could not list " + PROC);
+			return;
+		}
+		for (String pidDir : pidDirs) {
+			if (!isNumber(pidDir)) {
+				continue;
+			}
+			Stat stat = readStat(pidDir);
+			if (stat == null) {
+				// ended already
+				continue;
+			}
+			stats.put(stat.pid, stat);
+			List<Long> siblings = children.get(stat.ppid);
+			if (siblings == null) {
+				siblings = new ArrayList<>(1);
+				children.put(stat.ppid, siblings);
+			}
+			siblings.add(stat.pid);
+		}
+
+		for (Map.Entry<String, Process> entry : jobProcesses.entrySet()) {
+			JobResources job = jobs.get(entry.getKey());
+			if (job == null || job.process != entry.getValue()) {
+				// start() wasn't called, so the process was started for this job
+				job = createJob(entry.getValue());
+				jobs.put(entry.getKey(), job);
+			}
+			if (job.pid != null) {
+				update(job, stats, children);
+			}
+		}
+	}
+
+	/**
+	 * @return null if the job hasn't been sampled
+	 */
+	public synchronized JobResources getResources(String jobId) {
+		return jobs.get(jobId);
+	}
+
+	private JobResources createJob(Process process) {
+		JobResources job = new JobResources();
+		job.process = process;
+		job.pid = ProcessUtils.getPid(process);
+		return job;
+	}
+
+	private void update(JobResources job, HashMap<Long, Stat> stats, HashMap<Long, List<Long>> children) {
+
+		// the job process and the remembered processes that are still running
+		LinkedList<Long> queue = new LinkedList<>();
+		queue.add(job.pid);
+		for (ProcessKey key : job.processes.keySet()) {
+			Stat stat = stats.get(key.pid);
+			if (stat != null && stat.startTime == key.startTime) {
+				queue.add(key.pid);
+			}
+		}
+
+		// and all their children
+		HashMap<Long, Stat> running = new HashMap<>();
+		while (!queue.isEmpty()) {
+			Long pid = queue.removeFirst();
+			Stat stat = stats.get(pid);
+			if (stat == null || running.containsKey(pid)) {
+				continue;
+			}
+			running.put(pid, stat);
+			List<Long> childPids = children.get(pid);
+			if (childPids != null) {
+				queue.addAll(childPids);
+			}
+		}
+
+		long mem = 0;
+		long threads = 0;
+		HashMap<ProcessKey, ProcessSample> samples = new HashMap<>();
+		for (Stat stat : running.values()) {
+			String pidDir = Long.toString(stat.pid);
+			ProcessKey key = new ProcessKey(stat.pid, stat.startTime);
+			ProcessSample sample = new ProcessSample();
+			sample.cpuTicks = stat.cpuTicks;
+			
+			// keep the previous values if the io file can't be read anymore
+			ProcessSample previous = job.processes.get(key);
+			if (previous != null) {
+				sample.readBytes = previous.readBytes;
+				sample.writeBytes = previous.writeBytes;
+			}
+			readIo(pidDir, sample);
+			samples.put(key, sample);
+
+			mem += readRss(pidDir);
+			threads += stat.threads;
+		}
+
+		synchronized (job) {
+			job.processes.putAll(samples);
+			job.mem = mem;
+			job.threads = threads;
+			job.processCount = running.size();
+			if (job.maxMem == null || mem > job.maxMem) {
+				job.maxMem = mem;
+			}
+		}
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("pid " + job.pid + " " + job);
+		}
+	}
+
+	private static boolean isNumber(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+				return false;
+			}
+		}
+		return !s.isEmpty();
+	}
+
+	private static String read(String pidDir, String file) {
+		try {
+			return new String(Files.readAllBytes(new File(new File(PROC, pidDir), file).toPath()), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			// process has ended or we don't have the permission
+			return null;
+		}
+	}
+
+	/**
+	 * Parse /proc/[pid]/stat. The command name may contain spaces and parenthesis, so the
+	 * fields are counted after the last closing parenthesis.
+	 */
+	private static Stat readStat(String pidDir) {
+		String content = read(pidDir, "stat");
+		if (content == null) {
+			return null;
+		}
+		int commEnd = content.lastIndexOf(')');
+		if (commEnd < 0) {
+			return null;
+		}
+		// fields from the third (state) onwards
+		String[] fields = content.substring(commEnd + 2).trim().split(" ");
+		if (fields.length < 20) {
+			return null;
+		}
+		try {
+			Stat stat = new Stat();
+			stat.pid = Long.parseLong(content.substring(0, content.indexOf(' ')));
+			stat.ppid = Long.parseLong(fields[1]);
+			stat.cpuTicks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+			stat.threads = Long.parseLong(fields[17]);
+			stat.startTime = Long.parseLong(fields[19]);
+			return stat;
+		} catch (NumberFormatException e) {
+			logger.warn("failed to parse /proc/" + pidDir + "/stat: " + content);
+			return null;
+		}
+	}
+
+	/**
+	 * @return resident memory from /proc/[pid]/status, bytes
+	 */
+	private static long readRss(String pidDir) {
+		String content = read(pidDir, "status");
+		if (content == null) {
+			return 0;
+		}
+		for (String line : content.split("\n")) {
+			if (line.startsWith("VmRSS:")) {
+				// e.g. "VmRSS:	    1234 kB"
+				String value = line.substring("VmRSS:".length()).trim();
+				int space = value.indexOf(' ');
+				if (space > 0) {
+					value = value.substring(0, space);
+				}
+				try {
+					return Long.parseLong(value) * 1024;
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+		}
+		// kernel threads and zombies don't have memory
+		return 0;
+	}
+
+	/**
+	 * Bytes read and written with system calls from /proc/[pid]/io. Unlike read_bytes and
+	 * write_bytes, rchar and wchar include the reads served from page cache.
+	 */
+	private static void readIo(String pidDir, ProcessSample sample) {
+		String content = read(pidDir, "io");
+		if (content == null) {
+			return;
+		}
+		for (String line : content.split("\n")) {
+			try {
+				if (line.startsWith("rchar:")) {
+					sample.readBytes = Long.parseLong(line.substring("rchar:".length()).trim());
+				} else if (line.startsWith("wchar:")) {
+					sample.writeBytes = Long.parseLong(line.substring("wchar:".length()).trim());
+				}
+			} catch (NumberFormatException e) {
+				logger.warn("failed to parse /proc/" + pidDir + "/io: " + line);
+			}
+		}
+	}
+}
@@ -11,8 +11,10 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 /**
@@ -37,10 +39,17 @@ public class ProcessPool {
 	private final int processUseCountMax;
 	private final int processLifetimeMax;
 	private final String rCommand;
+	private final String initialiser;
+	private final String recycler;
 	
 	private File workDir;
+	private volatile boolean closed = false;
+	private volatile Executor replenishExecutor;
+	// number of processes being created in the background
+	private final AtomicInteger replenishing = new AtomicInteger();
 	
 	private static final String RECYCLE_SUCCESFUL_STRING = "recycling-succesful";
+	private static final String INIT_SUCCESFUL_STRING = "initialisation-succesful";
 	
 	
 	/**
@@ -81,8 +90,20 @@ public class ProcessPool {
 	
 	
 	public ProcessPool(File workDir, String command, int poolSizeMin, int poolSizeMax, int poolTimeout, int processUseCountMax, int processLifetimeMax) throws IOException {
+		this(workDir, command, poolSizeMin, poolSizeMax, poolTimeout, processUseCountMax, processLifetimeMax, null, null);
+	}
+
+	/**
+	 * @param initialiser code to run in each new process before it's used, e.g. to load libraries, or null
+	 * @param recycler code to reset the state of the process before it's reused, or null to never
+	 * reuse processes 
+	 */
+	public ProcessPool(File workDir, String command, int poolSizeMin, int poolSizeMax, int poolTimeout, int processUseCountMax, int processLifetimeMax, 
+			String initialiser, String recycler) throws IOException {
 		this.workDir = workDir;
 		this.rCommand = command;
+		this.initialiser = initialiser;
+		this.recycler = recycler;
 		this.poolSizeMin = poolSizeMin;
 		this.poolSizeMax = poolSizeMax;
 		this.poolTimeout = poolTimeout;
@@ -150,6 +171,12 @@ public class ProcessPool {
 			throw new IOException("Trying to release an unknown process.");
 		}
 		
+		if (closed) {
+			process.destroy();
+			inUseProcesses.remove(process.hashCode());
+			return;
+		}
+		
 		
 		// check the process
 		boolean processOk = true;
@@ -159,6 +186,10 @@ public class ProcessPool {
 		if (!recycle) {
 			logger.debug("Process " + nProcess.getProcess().hashCode() + " not recycled as requested.");
 		} 
+		else if (recycler == null) {
+			processOk = false;
+			logger.debug("Process " + nProcess.getProcess().hashCode() + " not recycled, because recycling is disabled in this pool.");
+		}
 		// check process use count
 		else if (nProcess.getUseCount() >= processUseCountMax) {
 			processOk = false;
@@ -195,50 +226,105 @@ public class ProcessPool {
 			new Thread(recycleMonitor).start();
 			
 			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
-			// TODO add garbage collecting here?
-			writer.write("rm(list=objects())");
-			writer.newLine();
-			writer.write("setwd(\"" + workDir.getAbsolutePath() + "\")");
+			writer.write(recycler);
 			writer.newLine();
 			writer.write("print(\"" + RECYCLE_SUCCESFUL_STRING + "\")");
 			writer.newLine();
 			writer.flush();
 			
 			try {
-				recycleLatch.await(10, TimeUnit.SECONDS);
+				if (!recycleLatch.await(10, TimeUnit.SECONDS)) {
+					processOk = false;
+				}
 			} catch (InterruptedException e) {
 				processOk = false;
 			}
 
 			if (!processOk || recycleLatch.getCount() > 0 || !recycleMonitor.processOk() || process.getErrorStream().available() > 0) {
 				process.destroy();
-				nProcess = createProcess();
+				nProcess = null;
 			}
 			
 		
 		} else {
 			process.destroy();
-			nProcess = createProcess();
+			nProcess = null;
 		}
 
 		
-		// make the (possibly new) process available again, if there is room for it,
-		if (availableProcesses.size() < poolSizeMin && availableProcesses.size() + inUseProcesses.size() <= poolSizeMax) {
+		// make the recycled process available again, if there is room for it,
+		if (nProcess != null && availableProcesses.size() < poolSizeMin && availableProcesses.size() + inUseProcesses.size() <= poolSizeMax) {
 			availableProcesses.add(nProcess);
 		} 
 		// otherwise destroy it
-		else {
+		else if (nProcess != null) {
 			nProcess.getProcess().destroy();
 		}
 		
 		// remove the possibly recycled process from inUse
 		inUseProcesses.remove(process.hashCode());
 		
+		// replace the destroyed process
+		if (nProcess == null) {
+			replenish();
+		}
+		
 		logger.debug("Available processes: " + availableProcesses.size() + ", in use: " + inUseProcesses.size());
 
 	
 	}
 	
+	/**
+	 * Create new processes in the background instead of the job's thread. Used for pools 
+	 * with a slow initialiser.
+	 * 
+	 * @param replenishExecutor executor for creating the processes, or null to create them 
+	 * synchronously
+	 */
+	public void setReplenishExecutor(Executor replenishExecutor) {
+		this.replenishExecutor = replenishExecutor;
+	}
+	
+	/**
+	 * Create a new process, if there are less than the minimum number of processes
+	 * available or being created.
+	 */
+	private void replenish() throws IOException {
+		if (availableProcesses.size() + replenishing.get() >= poolSizeMin) {
+			return;
+		}
+		if (replenishExecutor == null) {
+			makeAvailable(createProcess());
+			return;
+		}
+		
+		replenishing.incrementAndGet();
+		replenishExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					makeAvailable(createProcess());
+				} catch (IOException e) {
+					logger.warn("failed to replace a process", e);
+				} finally {
+					replenishing.decrementAndGet();
+				}
+			}
+		});
+	}
+	
+	private void makeAvailable(NamiProcess nProcess) {
+		if (!closed && availableProcesses.size() < poolSizeMin && availableProcesses.size() + inUseProcesses.size() < poolSizeMax) {
+			availableProcesses.add(nProcess);
+			// the pool may have been closed meanwhile
+			if (closed) {
+				close();
+			}
+		} else {
+			nProcess.getProcess().destroy();
+		}
+	}
+	
 
 	private NamiProcess createProcess() throws IOException {
 
@@ -248,19 +334,67 @@ public class ProcessPool {
 		builder.directory(workDir);
 		builder.redirectErrorStream(true);
 		Process p = builder.start();
+		
+		if (initialiser != null) {
+			initialise(p);
+		}
 		return new NamiProcess(p);
 	}
 	
+	/**
+	 * Run the initialiser and wait until it has finished, so that its output isn't mixed with the 
+	 * output of the job.
+	 */
+	private void initialise(Process process) throws IOException {
+		long startTime = System.currentTimeMillis();
+		CountDownLatch initLatch = new CountDownLatch(1);
+		ProcessMonitor initMonitor = new ProcessMonitor(process, initLatch, INIT_SUCCESFUL_STRING);
+		new Thread(initMonitor).start();
+		
+		try {
+			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
+			writer.write(initialiser);
+			writer.newLine();
+			writer.write("print(\"" + INIT_SUCCESFUL_STRING + "\")");
+			writer.newLine();
+			writer.flush();
+			
+			if (!initLatch.await(poolTimeout, TimeUnit.SECONDS) || !initMonitor.processOk()) {
+				throw new IOException("Initialising a process failed.");
+			}
+		} catch (IOException | InterruptedException e) {
+			process.destroy();
+			throw new IOException("Initialising a process failed.", e);
+		}
+		logger.debug("process initialised in " + (System.currentTimeMillis() - startTime) + " ms");
+	}
+	
+	/**
+	 * Destroy the available processes. Processes in use are destroyed when they are released.
+	 */
+	public void close() {
+		closed = true;
+		for (NamiProcess nProcess = availableProcesses.poll(); nProcess != null; nProcess = availableProcesses.poll()) {
+			nProcess.getProcess().destroy();
+		}
+	}
+	
 	
 	private class ProcessMonitor implements Runnable {
 
 		private CountDownLatch latch;
 		private Process process;
-		private boolean processOk = false;
+		private String successString;
+		private volatile boolean processOk = false;
 		
 		public ProcessMonitor(Process process, CountDownLatch latch) {
+			this(process, latch, RECYCLE_SUCCESFUL_STRING);
+		}
+		
+		public ProcessMonitor(Process process, CountDownLatch latch, String successString) {
 			this.process = process;
 			this.latch = latch;
+			this.successString = successString;
 		}
 		
 		public boolean processOk() {
@@ -273,7 +407,9 @@ public class ProcessPool {
 			
 			boolean readMore = true;
 			try {
-				for (String line = reader.readLine(); readMore ; line = reader.readLine()) {
+				// don't read past the success line, the rest of the output belongs to the next job
+				while (readMore) {
+					String line = reader.readLine();
 					
 					// read end of stream --> error
 					if (line == null ) {
@@ -281,8 +417,8 @@ public class ProcessPool {
 						readMore = false;
 					} 
 					
-					// read recycle successful
-					else if (line.contains(RECYCLE_SUCCESFUL_STRING)) {
+					// read recycle successful, but not R echoing the print command
+					else if (line.contains(successString) && !line.startsWith(">")) {
 						processOk = true;
 						readMore = false;
 					}
@@ -1,6 +1,8 @@
 package fi.csc.microarray.comp;
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
@@ -217,7 +219,13 @@ public class ProcessUtils {
 					return ((Integer) value).longValue();
 				}
 			}
-		} catch (SecurityException | NoSuchFieldException | IllegalArgumentException | IllegalAccessException e) {
+			// Process.pid() since Java 9, called with reflection to compile on Java 8 
+			for (Method method : Process.class.getMethods()) {
+				if (method.getName().equals("pid") && method.getParameterTypes().length == 0) {
+					return (Long) method.invoke(process);
+				}
+			}
+		} catch (SecurityException | NoSuchFieldException | IllegalArgumentException | IllegalAccessException | InvocationTargetException e) {
 			logger.error("failed to get the pid of the process", e);
 		}
 		return null;
@@ -1,8 +1,8 @@
 package fi.csc.microarray.comp;
 
 import java.io.IOException;
-import java.util.Collection;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -17,12 +17,13 @@ import fi.csc.microarray.comp.ProcessUtils.ProcessResourceMonitor;
  * combined memory usage of each process and its child processes every second. When the process disappears
  * from the list of ProcessProvider, it's monitoring results are removed as well.</p>
  * 
- * <p>Java doesn't provide APIs for doing this, so external tools are used instead. There are multiple things
- * that can go wrong or cause inaccuracies, so be prepared for null results.</p>
+ * <p>Java doesn't provide APIs for doing this, so the /proc file system or external tools are used instead. 
+ * There are multiple things that can go wrong or cause inaccuracies, so be prepared for null results.</p>
  * <ul>
  * <li> pid of the process is figured out with the Java Reflection API</li>
- * <li> child processes are parsed from the output of the pgrep command</li>
- * <li> memory usage is parsed from the output of the ps command</li>
+ * <li> on Linux, processes and their resource usage are read from /proc with {@link ProcResourceSampler}</li>
+ * <li> elsewhere child processes are parsed from the output of the pgrep command</li>
+ * <li> and memory usage is parsed from the output of the ps command</li>
  * <li> tracking processes and memory usage by sampling is inaccurate</li>
  * </ul>
  * 
@@ -34,12 +35,16 @@ import fi.csc.microarray.comp.ProcessUtils.ProcessResourceMonitor;
 public class ResourceMonitor {
 	
 	public static interface ProcessProvider {
-		public Collection<Process> getRunningJobProcesses();
+		/**
+		 * @return processes of the running jobs by job id
+		 */
+		public Map<String, Process> getRunningJobProcesses();
 	}
 
 	static final Logger logger = Logger.getLogger(ResourceMonitor.class);
 	
-	private HashMap<Process, ProcessResourceMonitor> monitors = new HashMap<>();	
+	private HashMap<String, ProcessResourceMonitor> monitors = new HashMap<>();	
+	private ProcResourceSampler procSampler;
 	private Timer resourceMonitorTimer;
 	
 	private ProcessProvider processProvider;
@@ -48,6 +53,12 @@ public class ResourceMonitor {
 		if (monitoringInterval >= 0) {
 			this.processProvider = processProvider;
 			
+			if (ProcResourceSampler.isSupported()) {
+				this.procSampler = new ProcResourceSampler();
+			} else {
+				logger.info("/proc not available, monitoring processes with ps");
+			}
+			
 			resourceMonitorTimer = new Timer(true);
 			resourceMonitorTimer.schedule(new ResourceMonitorTask(), monitoringInterval, monitoringInterval);
 		}
@@ -62,24 +73,30 @@ public class ResourceMonitor {
 				
 				long t = System.currentTimeMillis();
 				
-				Collection<Process> runningProcesses = processProvider.getRunningJobProcesses();
+				Map<String, Process> runningProcesses = processProvider.getRunningJobProcesses();
 				
 				logger.debug("running processes " + runningProcesses.size());
 				
-				// remove monitor if the job isn't running anymore
-				monitors.keySet().retainAll(runningProcesses);
-				
-				// create or update monitor of each running job
-				for (Process process : runningProcesses) {
-					if (!monitors.containsKey(process)) {
-						monitors.put(process, new ProcessResourceMonitor(process));					
-					}						
-					monitors.get(process).update();
+				if (procSampler != null) {
+					// all jobs at once
+					procSampler.sample(runningProcesses);
+				} else {
+					// remove monitor if the job isn't running anymore
+					monitors.keySet().retainAll(runningProcesses.keySet());
+
+					// create or update monitor of each running job
+					for (Map.Entry<String, Process> entry : runningProcesses.entrySet()) {
+						ProcessResourceMonitor monitor = monitors.get(entry.getKey());
+						if (monitor == null) {
+							monitor = new ProcessResourceMonitor(entry.getValue());
+							monitors.put(entry.getKey(), monitor);
+						}						
+						monitor.update();
+					}
 				}
 				
 				long dt = (System.currentTimeMillis() - t);
 				if (dt > 500) {
-					// consider getting information of all pids with a single ps process if this happens often
 					logger.warn("process monitoring took " + (System.currentTimeMillis() - t) + "ms");
 				}
 				
@@ -89,12 +106,40 @@ public class ResourceMonitor {
 		}	
 	}
 	
-	public Long getMaxMem(Process process) {
+	/**
+	 * Start monitoring a job that got a process, which may have been used by other jobs
+	 * before.
+	 */
+	public void jobStarted(String jobId, Process process) {
+		if (procSampler != null) {
+			procSampler.start(jobId, process);
+		}
+	}
+	
+	public Long getMaxMem(String jobId) {
+		if (procSampler != null) {
+			ProcResourceSampler.JobResources resources = procSampler.getResources(jobId);
+			if (resources == null) {
+				return null;
+			}
+			return resources.getMaxMem();
+		}
+		
 		// return null if monitoring is disabled (this.monitors is still initialized) 
-		ProcessResourceMonitor monitor = monitors.get(process);
+		ProcessResourceMonitor monitor = monitors.get(jobId);
 		if (monitor == null) {
 			return null;
 		}
 		return monitor.getMaxMem();
 	}
+	
+	/**
+	 * @return null if monitoring is disabled, /proc isn't available or the process isn't running
+	 */
+	public ProcResourceSampler.JobResources getResources(String jobId) {
+		if (procSampler == null) {
+			return null;
+		}
+		return procSampler.getResources(jobId);
+	}
 }
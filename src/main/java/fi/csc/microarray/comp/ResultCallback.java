@@ -34,7 +34,17 @@ public interface ResultCallback {
 	
 	public void removeRunningJob(CompJob job);
 	
+	/**
+	 * Called when the job has got its process, before the tool is run in it.
+	 */
+	public void jobProcessStarted(CompJob job);
+	
 	public FileBrokerClient getFileBrokerClient() throws Exception;
 	
 	public ToolboxClientComp getToolboxClient();
+	
+	/**
+	 * @return null if the toolbox should be extracted separately for each job
+	 */
+	public ToolboxSnapshotCache getToolboxSnapshotCache();
 }
\ No newline at end of file
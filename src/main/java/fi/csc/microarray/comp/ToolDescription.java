@@ -118,6 +118,16 @@ public class ToolDescription {
 
 	private Integer slotCount;
 	
+	/**
+	 * Libraries loaded by the tool, which the interpreter process can load in advance.
+	 */
+	private List<String> libraries = new LinkedList<String>();
+
+	/**
+	 * Results can be reused for identical jobs, unless the tool opts out with NOCACHE.
+	 */
+	private boolean cacheable = true;
+	
 	public String getCommand() {
 		return command;
 	}
@@ -222,5 +232,20 @@ public class ToolDescription {
 	public void setSlotCount(Integer slotCount) {
 		this.slotCount = slotCount;
 	}
+
+	public List<String> getLibraries() {
+		return libraries;
+	}
+
+	public void setLibraries(List<String> libraries) {
+		this.libraries = libraries;
+	}
+
+	public boolean isCacheable() {
+		return cacheable;
+	}
+
+	public void setCacheable(boolean cacheable) {
+		this.cacheable = cacheable;
+	}
 }
- 
\ No newline at end of file
@@ -0,0 +1,40 @@
+package fi.csc.microarray.comp;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import fi.csc.chipster.toolbox.ToolboxTool;
+
+/**
+ * Parsed ToolDescriptions by tool id. A description is valid only for the same 
+ * ToolboxTool instance that it was created from, so a tool updated in the toolbox 
+ * (and thus in the toolbox client cache) is parsed again.
+ * 
+ * The cached descriptions are shared by all jobs of the tool and must not be modified. 
+ * Subclasses parse the descriptions that aren't in the cache.
+ */
+public abstract class ToolDescriptionCache {
+	
+	private static class Entry {
+		private ToolboxTool tool;
+		private ToolDescription description;
+	}
+
+	private ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * @return the cached description if it was created from the same tool, otherwise a new one
+	 */
+	public ToolDescription get(ToolboxTool tool) throws CompException {
+		Entry entry = entries.get(tool.getId());
+		if (entry != null && entry.tool == tool) {
+			return entry.description;
+		}
+		entry = new Entry();
+		entry.tool = tool;
+		entry.description = createToolDescription(tool);
+		entries.put(tool.getId(), entry);
+		return entry.description;
+	}
+
+	protected abstract ToolDescription createToolDescription(ToolboxTool tool) throws CompException;
+}
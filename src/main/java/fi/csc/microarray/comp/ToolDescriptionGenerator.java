@@ -25,6 +25,7 @@ public class ToolDescriptionGenerator {
 		description.setDisplayName(source.getName().getDisplayName());
 		description.setComment(source.getDescription());
 		description.setSlotCount(source.getSlotCount());
+		description.setCacheable(!source.isNoCache());
 
 		// not interested in inputs, they were figured out when job was submitted
 		// I'm interested in inputs in java jobs
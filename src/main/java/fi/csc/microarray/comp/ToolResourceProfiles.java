@@ -0,0 +1,262 @@
+package fi.csc.microarray.comp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Resource usage of the latest runs of each tool, stored in a file so that it survives
+ * restarts. Comp uses these to estimate how much memory and CPU a new job of the same
+ * tool will need.
+ *
+ * <p>File format is tab separated: tool id, peak memory (bytes), CPU time (ms), wall time
+ * (ms) and input size (bytes). Unknown values are empty.</p>
+ *
+ * <p>Comps of the same work dir share the file. Each save takes a lock, reads the samples 
+ * of the other comps from the file and adds its own new samples to them.</p>
+ */
+public class ToolResourceProfiles {
+
+	private static final Logger logger = Logger.getLogger(ToolResourceProfiles.class);
+
+	// how many latest runs to keep for each tool
+	private static final int SAMPLES_PER_TOOL = 10;
+
+	// sampling misses short peaks
+	private static final double MEMORY_MARGIN = 1.2;
+
+	private static class Sample {
+		private long maxMem;
+		private Long cpuTime;
+		private long wallTime;
+		private Long inputSize;
+	}
+
+	private File file;
+	private File lockFile;
+	private Map<String, LinkedList<Sample>> profiles = new HashMap<>();
+	// samples that haven't been saved yet
+	private Map<String, LinkedList<Sample>> unsaved = new HashMap<>();
+
+	public ToolResourceProfiles(File file) {
+		this.file = file;
+		this.lockFile = new File(file.getParentFile(), file.getName() + ".lock");
+		if (file.exists()) {
+			try {
+				load(profiles);
+				logger.info("loaded resource profiles of " + profiles.size() + " tools");
+			} catch (IOException | RuntimeException e) {
+				logger.warn("could not load tool resource profiles from " + file, e);
+				profiles.clear();
+			}
+		}
+	}
+
+	/**
+	 * Add the resource usage of a finished job and save the profiles.
+	 *
+	 * @param toolId
+	 * @param maxMem peak memory, bytes
+	 * @param cpuTime milliseconds or null if not known
+	 * @param wallTime milliseconds
+	 * @param inputSize bytes or null if not known
+	 */
+	public synchronized void add(String toolId, long maxMem, Long cpuTime, long wallTime, Long inputSize) {
+		Sample sample = new Sample();
+		sample.maxMem = maxMem;
+		sample.cpuTime = cpuTime;
+		sample.wallTime = wallTime;
+		sample.inputSize = inputSize;
+		add(profiles, toolId, sample);
+		add(unsaved, toolId, sample);
+
+		try {
+			save();
+		} catch (IOException e) {
+			logger.warn("could not save tool resource profiles to " + file, e);
+		}
+	}
+
+	public synchronized boolean hasProfile(String toolId) {
+		return profiles.containsKey(toolId);
+	}
+
+	/**
+	 * The highest peak memory of the latest runs. If the input is larger than in any of 
+	 * those runs, the memory is extrapolated with a linear fit of the peak memory to the 
+	 * input size.
+	 *
+	 * @param inputSize bytes or null if not known
+	 * @return estimated peak memory with some margin, bytes, or null if the tool hasn't 
+	 * been run yet
+	 */
+	public synchronized Long getMemoryEstimate(String toolId, Long inputSize) {
+		LinkedList<Sample> samples = profiles.get(toolId);
+		if (samples == null) {
+			return null;
+		}
+		long maxMem = 0;
+		long maxInputSize = 0;
+		for (Sample sample : samples) {
+			maxMem = Math.max(maxMem, sample.maxMem);
+			if (sample.inputSize != null) {
+				maxInputSize = Math.max(maxInputSize, sample.inputSize);
+			}
+		}
+		double estimate = maxMem;
+		if (inputSize != null && inputSize > maxInputSize) {
+			Double fit = fitMemory(samples, inputSize);
+			if (fit != null) {
+				estimate = Math.max(estimate, fit);
+			}
+		}
+		return (long) (estimate * MEMORY_MARGIN);
+	}
+
+	/**
+	 * Least squares fit of the peak memory to the input size. Memory isn't expected to
+	 * decrease when the input grows, so a negative slope is ignored.
+	 *
+	 * @return null if there aren't enough samples with different input sizes
+	 */
+	private static Double fitMemory(LinkedList<Sample> samples, long inputSize) {
+		int n = 0;
+		double sumX = 0;
+		double sumY = 0;
+		for (Sample sample : samples) {
+			if (sample.inputSize != null) {
+				n++;
+				sumX += sample.inputSize;
+				sumY += sample.maxMem;
+			}
+		}
+		if (n < 2) {
+			return null;
+		}
+		double meanX = sumX / n;
+		double meanY = sumY / n;
+		double covariance = 0;
+		double variance = 0;
+		for (Sample sample : samples) {
+			if (sample.inputSize != null) {
+				covariance += (sample.inputSize - meanX) * (sample.maxMem - meanY);
+				variance += (sample.inputSize - meanX) * (sample.inputSize - meanX);
+			}
+		}
+		if (variance <= 0 || covariance <= 0) {
+			return null;
+		}
+		double slope = covariance / variance;
+		return meanY + slope * (inputSize - meanX);
+	}
+
+	/**
+	 * @return average number of cores used in the latest runs or null if not known
+	 */
+	public synchronized Double getCpuEstimate(String toolId) {
+		LinkedList<Sample> samples = profiles.get(toolId);
+		if (samples == null) {
+			return null;
+		}
+		long cpuTime = 0;
+		long wallTime = 0;
+		for (Sample sample : samples) {
+			if (sample.cpuTime != null) {
+				cpuTime += sample.cpuTime;
+				wallTime += sample.wallTime;
+			}
+		}
+		if (wallTime <= 0) {
+			return null;
+		}
+		return cpuTime / (double) wallTime;
+	}
+
+	private static void add(Map<String, LinkedList<Sample>> profiles, String toolId, Sample sample) {
+		LinkedList<Sample> samples = profiles.get(toolId);
+		if (samples == null) {
+			samples = new LinkedList<>();
+			profiles.put(toolId, samples);
+		}
+		samples.add(sample);
+		while (samples.size() > SAMPLES_PER_TOOL) {
+			samples.removeFirst();
+		}
+	}
+
+	private void load(Map<String, LinkedList<Sample>> profiles) throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if (fields.length != 5) {
+					logger.warn("skipping invalid line in " + file + ": " + line);
+					continue;
+				}
+				Sample sample = new Sample();
+				sample.maxMem = Long.parseLong(fields[1]);
+				sample.cpuTime = parseLong(fields[2]);
+				sample.wallTime = Long.parseLong(fields[3]);
+				sample.inputSize = parseLong(fields[4]);
+				add(profiles, fields[0], sample);
+			}
+		}
+	}
+
+	/**
+	 * Merge the new samples with the samples saved by the other comps. Write to a temporary
+	 * file first, so that the readers never see a partial file.
+	 */
+	private void save() throws IOException {
+		try (FileChannel lockChannel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			// released when the channel is closed
+			lockChannel.lock();
+			
+			Map<String, LinkedList<Sample>> merged = new HashMap<>();
+			if (file.exists()) {
+				load(merged);
+			}
+			for (Map.Entry<String, LinkedList<Sample>> entry : unsaved.entrySet()) {
+				for (Sample sample : entry.getValue()) {
+					add(merged, entry.getKey(), sample);
+				}
+			}
+			write(merged);
+			profiles = merged;
+			unsaved.clear();
+		}
+	}
+
+	private void write(Map<String, LinkedList<Sample>> profiles) throws IOException {
+		File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp-" + UUID.randomUUID());
+		try (BufferedWriter writer = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+			for (Map.Entry<String, LinkedList<Sample>> entry : profiles.entrySet()) {
+				for (Sample sample : entry.getValue()) {
+					writer.write(entry.getKey() + "\t" + sample.maxMem + "\t" + toString(sample.cpuTime) + "\t"
+							+ sample.wallTime + "\t" + toString(sample.inputSize) + "\n");
+				}
+			}
+		}
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static Long parseLong(String value) {
+		return value.isEmpty() ? null : Long.parseLong(value);
+	}
+
+	private static String toString(Long value) {
+		return value != null ? value.toString() : "";
+	}
+}
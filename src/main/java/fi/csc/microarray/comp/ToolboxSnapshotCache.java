@@ -0,0 +1,284 @@
+package fi.csc.microarray.comp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import fi.csc.chipster.toolbox.ToolboxClientComp;
+import fi.csc.microarray.util.Files;
+
+/**
+ * Read-only copies of the toolbox modules, named by the checksum of the modules zip. Jobs
+ * get a symlink to the current snapshot instead of downloading and extracting the whole
+ * toolbox for every job.
+ *
+ * The toolbox is downloaded again in the background when the check interval has passed,
+ * but it's extracted only if its checksum has changed. Old snapshots are removed when no
+ * job directory links to them anymore.
+ */
+public class ToolboxSnapshotCache {
+
+	private static final Logger logger = Logger.getLogger(ToolboxSnapshotCache.class);
+
+	private static final String SNAPSHOTS_DIR_NAME = "toolbox-snapshots";
+	private static final String TMP_PREFIX = "tmp-";
+	private static final String JOB_TOOLBOX_DIR_NAME = "toolbox";
+
+	private ToolboxClientComp toolboxClient;
+	private File workDir;
+	private File snapshotsDir;
+	private long checkInterval;
+
+	private File current;
+	private long checked;
+	private long version = 0;
+	private boolean refreshing = false;
+	private Object fetchLock = new Object();
+	private ExecutorService refreshExecutor;
+
+	/**
+	 * @param toolboxClient
+	 * @param workDir the work dir of the comp, where the job directories are
+	 * @param checkInterval how often to check if the toolbox has changed, milliseconds
+	 * @throws IOException
+	 */
+	public ToolboxSnapshotCache(ToolboxClientComp toolboxClient, File workDir, long checkInterval) throws IOException {
+		this.toolboxClient = toolboxClient;
+		this.workDir = workDir;
+		this.snapshotsDir = new File(workDir, SNAPSHOTS_DIR_NAME);
+		this.checkInterval = checkInterval;
+
+		if (!snapshotsDir.isDirectory() && !snapshotsDir.mkdirs()) {
+			throw new IOException("could not create " + snapshotsDir);
+		}
+		removeTmpFiles();
+
+		this.refreshExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "toolbox-snapshot-refresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Create a symlink to the current toolbox snapshot.
+	 *
+	 * @param jobToolboxDir path of the link
+	 * @throws IOException
+	 */
+	public void linkToolbox(File jobToolboxDir) throws IOException {
+		File snapshot = getSnapshot();
+
+		synchronized (this) {
+			// use the newest one, older ones may be removed when the lock is released
+			if (current != null) {
+				snapshot = current;
+			}
+			if (!snapshot.isDirectory()) {
+				throw new IOException("toolbox snapshot " + snapshot.getName() + " was removed");
+			}
+			java.nio.file.Files.createSymbolicLink(jobToolboxDir.toPath(), snapshot.getAbsoluteFile().toPath());
+		}
+	}
+
+	/**
+	 * Forget the current snapshot, e.g. after the toolbox has been updated. The next job
+	 * waits for the new one.
+	 */
+	public synchronized void invalidate() {
+		version++;
+		current = null;
+		logger.info("toolbox snapshot cleared");
+	}
+
+	public void close() {
+		refreshExecutor.shutdownNow();
+	}
+
+	private File getSnapshot() throws IOException {
+		synchronized (this) {
+			if (current != null) {
+				if (!refreshing && System.currentTimeMillis() - checked > checkInterval) {
+					refreshing = true;
+					refreshExecutor.execute(new RefreshTask());
+				}
+				return current;
+			}
+		}
+
+		// there is no snapshot yet, so jobs have to wait for it
+		synchronized (fetchLock) {
+			long fetchVersion;
+			synchronized (this) {
+				if (current != null) {
+					return current;
+				}
+				fetchVersion = version;
+			}
+			File snapshot = fetchSnapshot();
+			setCurrent(snapshot, fetchVersion);
+			return snapshot;
+		}
+	}
+
+	private class RefreshTask implements Runnable {
+		@Override
+		public void run() {
+			try {
+				synchronized (fetchLock) {
+					long fetchVersion;
+					synchronized (ToolboxSnapshotCache.this) {
+						fetchVersion = version;
+					}
+					setCurrent(fetchSnapshot(), fetchVersion);
+				}
+			} catch (Exception e) {
+				// keep using the old one
+				logger.warn("failed to refresh the toolbox snapshot", e);
+			} finally {
+				synchronized (ToolboxSnapshotCache.this) {
+					checked = System.currentTimeMillis();
+					refreshing = false;
+				}
+			}
+		}
+	}
+
+	private synchronized void setCurrent(File snapshot, long fetchVersion) {
+		checked = System.currentTimeMillis();
+
+		// the toolbox was updated during the download, the result may be old
+		if (fetchVersion != version) {
+			return;
+		}
+
+		if (!snapshot.equals(current)) {
+			logger.info("using toolbox snapshot " + snapshot.getName());
+			current = snapshot;
+			removeUnusedSnapshots();
+		}
+	}
+
+	private File fetchSnapshot() throws IOException {
+		long startTime = System.currentTimeMillis();
+		File zipFile = new File(snapshotsDir, TMP_PREFIX + UUID.randomUUID() + ".zip");
+		try {
+			String checksum = toolboxClient.downloadToolboxModules(zipFile);
+			File snapshot = new File(snapshotsDir, checksum);
+
+			if (!snapshot.isDirectory()) {
+				File tmpDir = new File(snapshotsDir, TMP_PREFIX + UUID.randomUUID());
+				try {
+					toolboxClient.extractToolboxModules(zipFile, tmpDir);
+					java.nio.file.Files.move(tmpDir.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					setWritable(snapshot, false);
+				} catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+					// someone else was faster
+				} finally {
+					if (tmpDir.exists()) {
+						setWritable(tmpDir, true);
+						Files.delTree(tmpDir);
+					}
+				}
+				logger.info("toolbox snapshot " + checksum + " created in " + (System.currentTimeMillis() - startTime) + " ms");
+			}
+			return snapshot;
+		} finally {
+			zipFile.delete();
+		}
+	}
+
+	/**
+	 * Remove snapshots that are not current and which no job directory links to.
+	 */
+	private void removeUnusedSnapshots() {
+		Set<String> used = new HashSet<String>();
+		used.add(current.getName());
+
+		File[] jobDirs = workDir.listFiles();
+		if (jobDirs != null) {
+			for (File jobDir : jobDirs) {
+				Path link = new File(jobDir, JOB_TOOLBOX_DIR_NAME).toPath();
+				if (java.nio.file.Files.isSymbolicLink(link)) {
+					try {
+						used.add(java.nio.file.Files.readSymbolicLink(link).getFileName().toString());
+					} catch (IOException e) {
+						logger.warn("could not read toolbox link of " + jobDir.getName(), e);
+					}
+				}
+			}
+		}
+
+		File[] snapshots = snapshotsDir.listFiles();
+		if (snapshots != null) {
+			for (File snapshot : snapshots) {
+				if (snapshot.getName().startsWith(TMP_PREFIX) || used.contains(snapshot.getName())) {
+					continue;
+				}
+				try {
+					setWritable(snapshot, true);
+					Files.delTree(snapshot);
+					logger.info("removed unused toolbox snapshot " + snapshot.getName());
+				} catch (IOException e) {
+					logger.warn("could not remove toolbox snapshot " + snapshot.getName(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove the downloads and extractions that were left behind when the previous comp 
+	 * process was stopped.
+	 */
+	private void removeTmpFiles() {
+		File[] files = snapshotsDir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (!file.getName().startsWith(TMP_PREFIX)) {
+				continue;
+			}
+			try {
+				setWritable(file, true);
+				Files.delTree(file);
+				logger.info("removed incomplete toolbox snapshot " + file.getName());
+			} catch (IOException e) {
+				logger.warn("could not remove incomplete toolbox snapshot " + file.getName(), e);
+			}
+		}
+	}
+
+	private static void setWritable(File file, boolean writable) {
+		if (java.nio.file.Files.isSymbolicLink(file.toPath())) {
+			return;
+		}
+		// make a directory writable before its contents and read-only after them
+		if (writable) {
+			file.setWritable(true, true);
+		}
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				setWritable(child, writable);
+			}
+		}
+		if (!writable) {
+			file.setWritable(false, false);
+		}
+	}
+}
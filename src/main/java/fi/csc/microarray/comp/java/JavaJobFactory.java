@@ -11,6 +11,7 @@ import fi.csc.microarray.comp.CompJob;
 import fi.csc.microarray.comp.JobFactory;
 import fi.csc.microarray.comp.ResultCallback;
 import fi.csc.microarray.comp.ToolDescription;
+import fi.csc.microarray.comp.ToolDescriptionCache;
 import fi.csc.microarray.comp.ToolDescriptionGenerator;
 import fi.csc.microarray.config.ConfigurationLoader.IllegalConfigurationException;
 import fi.csc.microarray.messaging.message.GenericJobMessage;
@@ -23,6 +24,12 @@ public class JavaJobFactory implements JobFactory {
 	static final Logger logger = Logger.getLogger(JavaJobFactory.class);
 	
 	private HashMap<String, String> parameters;
+	private ToolDescriptionCache descriptionCache = new ToolDescriptionCache() {
+		@Override
+		protected ToolDescription createToolDescription(ToolboxTool tool) throws CompException {
+			return JavaJobFactory.this.createToolDescription(tool);
+		}
+	};
 
 	
 	public JavaJobFactory(HashMap<String, String> parameters) throws IOException, IllegalConfigurationException {
@@ -31,7 +38,7 @@ public class JavaJobFactory implements JobFactory {
 
 	@SuppressWarnings(value="unchecked")
 	public CompJob createCompJob(GenericJobMessage message, ToolboxTool tool, ResultCallback resultHandler) throws CompException {
-		ToolDescription description = createToolDescription(tool);
+		ToolDescription description = descriptionCache.get(tool);
 		
 		try {
 			Class<? extends Object> jobClass = (Class<? extends Object>)description.getImplementation();
@@ -18,6 +18,7 @@ import org.apache.log4j.Logger;
 
 import fi.csc.microarray.comp.JobCancelledException;
 import fi.csc.microarray.comp.OnDiskCompJobBase;
+import fi.csc.microarray.comp.OutputCapture;
 import fi.csc.microarray.comp.ProcessPool;
 import fi.csc.microarray.comp.ToolDescription;
 import fi.csc.microarray.comp.ToolDescription.ParameterDescription;
@@ -113,12 +114,15 @@ public class PythonCompJob extends OnDiskCompJobBase {
 
 		public final String ERROR_MESSAGE_TOKEN = "Traceback";
 		
-		private ArrayList<String> outputLines;
+		private OutputCapture outputCapture;
+
+		public PythonProcessMonitor(OutputCapture outputCapture) {
+			this.outputCapture = outputCapture;
+		}
 
 		public void run() {
 			
 			logger.debug("Python process monitor started.");
-			outputLines = new ArrayList<String>();
 			
 			BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
 			
@@ -140,7 +144,7 @@ public class PythonCompJob extends OnDiskCompJobBase {
 					
 					// read normal output
 					else {
-						outputLines.add(line);
+						outputCapture.addLine(line);
 					}
 				}
 				
@@ -148,6 +152,7 @@ public class PythonCompJob extends OnDiskCompJobBase {
 				if (getState() == JobState.FAILED) {
 
 					// find the error token
+					List<String> outputLines = outputCapture.getLines();
 					int errorLineNumber = -1;
 					for (int i = outputLines.size(); i > 0 && errorLineNumber == -1; i--) {
 						if (outputLines.get(i-1).startsWith(ERROR_MESSAGE_TOKEN)) {
@@ -157,13 +162,12 @@ public class PythonCompJob extends OnDiskCompJobBase {
 				
 					// get lines starting from the error token
 					if (errorLineNumber != -1) {
-						String errorMessage = "";
-						errorMessage += outputLines.get(errorLineNumber);
+						StringBuilder errorLines = new StringBuilder();
+						errorLines.append(outputLines.get(errorLineNumber));
 						for (int i = errorLineNumber + 1; i < outputLines.size(); i++) {
-							errorMessage += outputLines.get(i) + "\n";
+							errorLines.append("\n").append(outputLines.get(i));
 						}
-						errorMessage = errorMessage.substring(0, errorMessage.lastIndexOf("\n"));
-						errorMessage = errorMessage.trim();
+						String errorMessage = errorLines.toString().trim();
 						
 						// check for chipster note
 						if (errorMessage.contains(CHIPSTER_NOTE_TOKEN)) {
@@ -182,15 +186,12 @@ public class PythonCompJob extends OnDiskCompJobBase {
 				updateState(JobState.ERROR, "reading Python output failed.");
 			}
 
+			outputCapture.close();
 			waitPythonLatch.countDown();
 		}
 
 		public String getOutput() {
-			StringBuilder output = new StringBuilder();
-			for (String line: outputLines) {
-				output.append(line + "\n");
-			}
-			return output.toString();
+			return outputCapture.getOutput();
 		}
 	
 	}
@@ -276,15 +277,15 @@ public class PythonCompJob extends OnDiskCompJobBase {
 		}
 		if (!processAlive) {
 			outputMessage.setErrorMessage("Starting Python failed.");
-			String output = "";
+			StringBuilder output = new StringBuilder();
 			BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
 			try {
 				for (String line = reader.readLine(); line != null; line = reader.readLine()) {
-					output += line + "\n";
+					output.append(line).append("\n");
 				}
 				reader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
 				for (String line = reader.readLine(); line != null; line = reader.readLine()) {
-					output += line + "\n";
+					output.append(line).append("\n");
 				}
 			} catch (IOException e) {
 				logger.warn("could not read output stream");
@@ -294,13 +295,16 @@ public class PythonCompJob extends OnDiskCompJobBase {
 			return;
 		}
 		
+		// pooled processes may have run other jobs before
+		resultHandler.jobProcessStarted(this);
+		
 		updateStateDetailToClient("running Python");
 
 		
 		// launch the process monitor
 		cancelCheck();
 		logger.debug("about to start the Python process monitor.");
-		PythonProcessMonitor processMonitor = new PythonProcessMonitor();
+		PythonProcessMonitor processMonitor = new PythonProcessMonitor(createOutputCapture());
 		new Thread(processMonitor).start();
 		
 		// combine the inputs into a single string and store it as the source code
@@ -337,7 +341,7 @@ public class PythonCompJob extends OnDiskCompJobBase {
 		cancelCheck();
 		logger.debug("waiting for the script to finish.");
 		try {
-			waitPythonLatch.await();
+			awaitProcess(waitPythonLatch, processMonitor.outputCapture);
 		} catch (InterruptedException e) {
 			outputMessage.setErrorMessage("Running Python was interrupted.");
 			outputMessage.setOutputText(Exceptions.getStackTrace(e));
@@ -32,7 +32,7 @@ public class PythonJobFactory extends InterpreterJobFactory {
 
 	@Override
 	public CompJob createCompJob(GenericJobMessage message, ToolboxTool tool, ResultCallback resultHandler) throws CompException {
-		ToolDescription description = createToolDescription(tool);
+		ToolDescription description = descriptionCache.get(tool);
 		
 		PythonCompJob analysisJob = new PythonCompJob();
 		analysisJob.construct(message, description, resultHandler);
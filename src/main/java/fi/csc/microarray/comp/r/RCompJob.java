@@ -18,6 +18,7 @@ import org.apache.log4j.Logger;
 
 import fi.csc.microarray.comp.JobCancelledException;
 import fi.csc.microarray.comp.OnDiskCompJobBase;
+import fi.csc.microarray.comp.OutputCapture;
 import fi.csc.microarray.comp.ProcessPool;
 import fi.csc.microarray.comp.ToolDescription;
 import fi.csc.microarray.comp.ToolDescription.ParameterDescription;
@@ -26,7 +27,6 @@ import fi.csc.microarray.messaging.JobState;
 import fi.csc.microarray.messaging.message.JobMessage.ParameterSecurityPolicy;
 import fi.csc.microarray.messaging.message.JobMessage.ParameterValidityException;
 import fi.csc.microarray.util.Exceptions;
-import fi.csc.microarray.util.IOUtils;
 
 /**
  * Uses R to run actual analysis operations.
@@ -107,18 +107,22 @@ public class RCompJob extends OnDiskCompJobBase {
 	// injected by handler at right after creation
 	private ProcessPool processPool;
 	private Process process;
+	private boolean scriptSucceeded = false;
 	
 	
 	private class RProcessMonitor implements Runnable {
 		
 		public final String ERROR_MESSAGE_TOKEN = "Error";
 
-		private ArrayList<String> outputLines;
+		private OutputCapture outputCapture;
+
+		public RProcessMonitor(OutputCapture outputCapture) {
+			this.outputCapture = outputCapture;
+		}
 
 		public void run() {
 			
 			logger.debug("R process monitor started.");
-			outputLines = new ArrayList<String>();
 			
 			BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
 			
@@ -140,7 +144,7 @@ public class RCompJob extends OnDiskCompJobBase {
 					
 					// read normal output
 					else {
-						outputLines.add(line);
+						outputCapture.addLine(line);
 					}
 				}
 				
@@ -148,6 +152,7 @@ public class RCompJob extends OnDiskCompJobBase {
 				if (getState() == JobState.FAILED) {
 
 					// find the error token
+					List<String> outputLines = outputCapture.getLines();
 					int errorLineNumber = -1;
 					for (int i = outputLines.size(); i > 0 && errorLineNumber == -1; i--) {
 						if (outputLines.get(i-1).startsWith(ERROR_MESSAGE_TOKEN)) {
@@ -157,13 +162,12 @@ public class RCompJob extends OnDiskCompJobBase {
 				
 					// get lines starting from the error token, except for the last "Execution halted"
 					if (errorLineNumber != -1) {
-						String errorMessage = "";
-						errorMessage += outputLines.get(errorLineNumber).substring(ERROR_MESSAGE_TOKEN.length()) + "\n";
+						StringBuilder errorLines = new StringBuilder();
+						errorLines.append(outputLines.get(errorLineNumber).substring(ERROR_MESSAGE_TOKEN.length()));
 						for (int i = errorLineNumber + 1; i < outputLines.size() - 1; i++) {
-							errorMessage += outputLines.get(i) + "\n";
+							errorLines.append("\n").append(outputLines.get(i));
 						}
-						errorMessage = errorMessage.substring(0, errorMessage.lastIndexOf("\n"));
-						errorMessage = errorMessage.trim();
+						String errorMessage = errorLines.toString().trim();
 						
 						// check for chipster note
 						if (errorMessage.contains(CHIPSTER_NOTE_TOKEN)) {
@@ -182,15 +186,12 @@ public class RCompJob extends OnDiskCompJobBase {
 				updateState(JobState.ERROR, "reading R output failed.");
 			}
 
+			outputCapture.close();
 			waitRLatch.countDown();
 		}
 
 		public String getOutput() {
-			StringBuilder output = new StringBuilder();
-			for (String line: outputLines) {
-				output.append(line + "\n");
-			}
-			return output.toString();
+			return outputCapture.getOutput();
 		}
 	
 	}
@@ -268,15 +269,15 @@ public class RCompJob extends OnDiskCompJobBase {
 		}
 		if (!processAlive) {
 			outputMessage.setErrorMessage("Starting R failed.");
-			String output = "";
+			StringBuilder output = new StringBuilder();
 			BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
 			try {
 				for (String line = reader.readLine(); line != null; line = reader.readLine()) {
-					output += line + "\n";
+					output.append(line).append("\n");
 				}
 				reader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
 				for (String line = reader.readLine(); line != null; line = reader.readLine()) {
-					output += line + "\n";
+					output.append(line).append("\n");
 				}
 			} catch (IOException e) {
 				logger.warn("could not read output stream");
@@ -286,13 +287,16 @@ public class RCompJob extends OnDiskCompJobBase {
 			return;
 		}
 		
+		// pooled processes may have run other jobs before
+		resultHandler.jobProcessStarted(this);
+		
 		updateStateDetailToClient("running R");
 
 		
 		// launch the process monitor
 		cancelCheck();
 		logger.debug("about to start the R process monitor.");
-		RProcessMonitor processMonitor = new RProcessMonitor();
+		RProcessMonitor processMonitor = new RProcessMonitor(createOutputCapture());
 		new Thread(processMonitor).start();
 		
 		// combine the inputs into a single string and store it as the source code
@@ -309,11 +313,10 @@ public class RCompJob extends OnDiskCompJobBase {
 	
 		outputMessage.setSourceCode(inputStringBuilder.toString());
 		
-		// write the input to process
+		// write the input to process, but keep the stdin open to allow recycling of the process
 		logger.debug("writing the input to R.");
-		BufferedWriter writer = null;
 		try {
-			writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
+			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
 			writer.write(inputStringBuilder.toString());
 			writer.newLine();
 			writer.flush();
@@ -321,15 +324,13 @@ public class RCompJob extends OnDiskCompJobBase {
 			// this happens if R has died before or dies while writing the input
 			// process monitor will notice this and set state etc
 			logger.debug("writing input failed", ioe);
-		} finally {
-			IOUtils.closeIfPossible(writer);
 		}
 		
 		// wait for the script to finish
 		cancelCheck();
 		logger.debug("waiting for the script to finish.");
 		try {
-			waitRLatch.await();
+			awaitProcess(waitRLatch, processMonitor.outputCapture);
 		} catch (InterruptedException e) {
 			outputMessage.setErrorMessage("Running R was interrupted.");
 			outputMessage.setOutputText(Exceptions.getStackTrace(e));
@@ -355,6 +356,7 @@ public class RCompJob extends OnDiskCompJobBase {
 			updateState(JobState.TIMEOUT, "");
 			return;
 		case COMPLETED:
+			scriptSucceeded = true;
 			// set state back to running, notify client
 			updateState(JobState.RUNNING, "R script finished successfully");
 			updateStateDetailToClient("R script finished successfully");
@@ -389,10 +391,8 @@ public class RCompJob extends OnDiskCompJobBase {
 	protected void cleanUp() {
 		try {
 			// only try to recycle the process if the script finished succesfully
-			// don't recycle at the moment
 			if (process != null) {
-				//this.resultHandler.getProcessPool().releaseProcess(process, getState().equals(JobState.SUCCESS));
-				processPool.releaseProcess(process, false);
+				processPool.releaseProcess(process, scriptSucceeded);
 			}
 		} catch (Exception e) {
 			logger.error("error when releasing process. ", e);
@@ -1,40 +1,229 @@
 package fi.csc.microarray.comp.r;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 
 import fi.csc.chipster.toolbox.ToolboxTool;
 import fi.csc.microarray.comp.CompException;
 import fi.csc.microarray.comp.CompJob;
 import fi.csc.microarray.comp.InterpreterJobFactory;
+import fi.csc.microarray.comp.ProcessPool;
 import fi.csc.microarray.comp.ResultCallback;
 import fi.csc.microarray.comp.ToolDescription;
+import fi.csc.microarray.config.Configuration;
+import fi.csc.microarray.config.DirectoryLayout;
 import fi.csc.microarray.messaging.message.GenericJobMessage;
 
+/**
+ * Creates R jobs. Tools that load libraries get their processes from a warm pool of
+ * the same set of libraries, where the libraries are loaded already before the job.
+ * Warm pools are created in the background and the default pool is used until the
+ * pool is ready. The least recently used warm pool is closed when there are too many 
+ * of them.
+ */
 public class RJobFactory extends InterpreterJobFactory {
 
 	static final Logger logger = Logger
 			.getLogger(RJobFactory.class);
 
+	/**
+	 * Unconditional library() and require() calls in the beginning of a line, e.g. library(limma)
+	 * or suppressPackageStartupMessages(library("DESeq2")). The name pattern keeps the library
+	 * names safe to insert into R code.
+	 */
+	private static final Pattern LIBRARY_PATTERN = Pattern.compile(
+			"^(?:suppress(?:PackageStartupMessages|Messages|Warnings)\\()?(?:library|require)\\(\\s*[\"']?([A-Za-z][A-Za-z0-9.]*)[\"']?\\s*\\)",
+			Pattern.MULTILINE);
+
+	// environment where the initial state of the process is stored
+	private static final String POOL_ENV_NAME = "chipster:pool";
+
+	private static final String LIST_TEMP_FILES = "list.files(tempdir(), all.files = TRUE, full.names = TRUE, no.. = TRUE)";
+
+	private int warmPoolsMax = 5;
+	private int warmPoolSize = 1;
+	private Map<String, ProcessPool> warmPools;
+	// libraries of the pools that are being created
+	private Set<String> pendingPools = new HashSet<String>();
+	private ExecutorService poolExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "r-process-pool-creator");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
 
 	public RJobFactory(HashMap<String, String> parameters)
 			throws IOException {
 		super(parameters);
+
+		try {
+			Configuration configuration = DirectoryLayout.getInstance().getConfiguration();
+			warmPoolsMax = configuration.getInt("comp", "r-process-pool-warm-pools-max");
+			warmPoolSize = configuration.getInt("comp", "r-process-pool-warm-pool-size");
+		} catch (IllegalStateException e) {
+			logger.info("warm process pool config missing, using hard coded defaults (" + e.getMessage() + ")");
+		}
+
+		this.warmPools = new LinkedHashMap<String, ProcessPool>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ProcessPool> eldest) {
+				if (size() > warmPoolsMax) {
+					logger.info("closing the process pool of libraries " + eldest.getKey());
+					eldest.getValue().close();
+					return true;
+				}
+				return false;
+			}
+		};
 	}
 
 	@Override
 	public CompJob createCompJob(GenericJobMessage message, ToolboxTool tool, ResultCallback resultHandler) throws CompException {
 
-		ToolDescription description = createToolDescription(tool);
-		
+		ToolDescription description = descriptionCache.get(tool);
+
 		RCompJob analysisJob = new RCompJob();
 		analysisJob.construct(message, description, resultHandler);
-		analysisJob.setProcessPool(this.processPool);
+		analysisJob.setProcessPool(getProcessPool(description));
 		return analysisJob;
 	}
 
+	@Override
+	protected ToolDescription createToolDescription(ToolboxTool tool) throws CompException {
+		ToolDescription description = super.createToolDescription(tool);
+		description.setLibraries(parseLibraries(tool.getSource()));
+		return description;
+	}
+
+	/**
+	 * @return the unique library names in alphabetical order
+	 */
+	public static List<String> parseLibraries(String source) {
+		TreeSet<String> libraries = new TreeSet<String>();
+		if (source != null) {
+			Matcher matcher = LIBRARY_PATTERN.matcher(source);
+			while (matcher.find()) {
+				libraries.add(matcher.group(1));
+			}
+		}
+		return new ArrayList<String>(libraries);
+	}
+
+	/**
+	 * Get the warm pool of the tool's libraries. If it doesn't exist yet, start creating it
+	 * in the background and use the default pool, because the first process of the pool
+	 * may take minutes to load the libraries.
+	 */
+	@Override
+	protected ProcessPool getProcessPool(ToolDescription description) {
+		List<String> libraries = description.getLibraries();
+		if (warmPoolsMax <= 0 || libraries.isEmpty()) {
+			return processPool;
+		}
+
+		String key = StringUtils.join(libraries, ",");
+		synchronized (warmPools) {
+			ProcessPool pool = warmPools.get(key);
+			if (pool != null) {
+				return pool;
+			}
+			if (pendingPools.add(key)) {
+				poolExecutor.execute(createWarmPool(key, libraries));
+			}
+		}
+		return processPool;
+	}
+
+	private Runnable createWarmPool(final String key, final List<String> libraries) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				ProcessPool pool = null;
+				try {
+					pool = createProcessPool(warmPoolSize, libraries);
+					// loading the libraries is slow, don't make the released jobs wait for it
+					pool.setReplenishExecutor(poolExecutor);
+					logger.info("created a process pool for libraries " + key);
+				} catch (IOException e) {
+					// try again when the next job needs it
+					logger.warn("failed to create a process pool for libraries " + key, e);
+				} finally {
+					synchronized (warmPools) {
+						pendingPools.remove(key);
+						if (pool != null) {
+							warmPools.put(key, pool);
+						}
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Load the libraries and store the initial state of the process, which is restored
+	 * by the recycler. Missing libraries are only reported, because the job will fail
+	 * anyway when it tries to load them.
+	 */
+	@Override
+	protected String getProcessInitialiser(List<String> libraries) {
+		StringBuilder initialiser = new StringBuilder();
+		for (String library : libraries) {
+			initialiser.append("try(suppressPackageStartupMessages(library(\"" + library + "\")))\n");
+		}
+		initialiser.append("local({ e <- attach(NULL, name = \"" + POOL_ENV_NAME + "\"); "
+				+ "assign(\"options\", options(), envir = e); "
+				+ "assign(\"search\", search(), envir = e); "
+				+ "assign(\"namespaces\", loadedNamespaces(), envir = e); "
+				+ "assign(\"env\", as.list(Sys.getenv()), envir = e); "
+				+ "assign(\"tempfiles\", " + LIST_TEMP_FILES + ", envir = e) })\n");
+		initialiser.append("setwd(\"" + workDir.getAbsolutePath() + "\")");
+		return initialiser.toString();
+	}
+
+	/**
+	 * Clear the workspace and restore the attached packages, options, environment variables,
+	 * temporary files, graphics devices and output sinks to the state after the initialiser.
+	 * Loaded namespaces can't be unloaded reliably, so the process quits instead, if the job
+	 * loaded new ones, and the pool replaces it with a new process.
+	 */
+	@Override
+	protected String getProcessRecycler() {
+		return "rm(list = ls(all.names = TRUE, envir = globalenv()), envir = globalenv())\n"
+				+ "local({ e <- as.environment(\"" + POOL_ENV_NAME + "\"); "
+				+ "for (p in setdiff(search(), get(\"search\", envir = e))) try(detach(p, character.only = TRUE), silent = TRUE); "
+				+ "options(get(\"options\", envir = e)); "
+				+ "env <- get(\"env\", envir = e); "
+				+ "added <- setdiff(names(Sys.getenv()), names(env)); "
+				+ "if (length(added) > 0) Sys.unsetenv(added); "
+				+ "do.call(Sys.setenv, env); "
+				+ "unlink(setdiff(" + LIST_TEMP_FILES + ", get(\"tempfiles\", envir = e)), recursive = TRUE); "
+				+ "if (length(setdiff(loadedNamespaces(), get(\"namespaces\", envir = e))) > 0) quit(save = \"no\") })\n"
+				+ "graphics.off()\n"
+				+ "while (sink.number() > 0) sink()\n"
+				+ "setwd(\"" + workDir.getAbsolutePath() + "\")\n"
+				+ "invisible(gc())";
+	}
+
 	@Override
 	protected String getStringDelimeter() {
 		return RCompJob.STRING_DELIMETER;
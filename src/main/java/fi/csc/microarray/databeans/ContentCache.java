@@ -0,0 +1,523 @@
+package fi.csc.microarray.databeans;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.apache.log4j.Logger;
+
+import fi.csc.microarray.filebroker.ChecksumException;
+import fi.csc.microarray.util.IOUtils;
+
+/**
+ * <p>Size bounded on-disk cache for remote dataset contents. Entries are keyed by dataId
+ * and checksum, so the same content is downloaded only once no matter how many times it
+ * is opened for visualisations, feature queries or local copies.</p>
+ *
+ * <p>Entries are filled on the fly while the content is read. If the reader stops before the
+ * end of the content, the part that was read is kept and the next reader continues the
+ * download from where the previous one stopped, using a range request when the
+ * {@link RangeSource} supports it. Only one reader fills an entry at a time. Other readers 
+ * follow it and read the same file as it grows. If the filling reader stops, they continue 
+ * directly from the source.</p>
+ *
+ * <p>A completed entry is accepted only if its length matches the announced content length
+ * and, when the checksum is known, the md5 of the file matches it. Otherwise the entry is
+ * discarded and the reader gets an IOException at the end of the content, like it would 
+ * from a verified download.</p>
+ *
+ * <p>When the total size of the cache exceeds the limit, least recently used entries are
+ * removed.</p>
+ */
+public class ContentCache {
+
+	private static final Logger logger = Logger.getLogger(ContentCache.class);
+
+	private static final String PART_SUFFIX = ".part";
+
+	/**
+	 * Opens the original content.
+	 */
+	public static interface RangeSource {
+
+		/**
+		 * @param offset number of bytes to skip from the beginning
+		 * @return stream positioned at the given offset
+		 */
+		public InputStream open(long offset) throws IOException;
+	}
+
+	private static class Entry {
+
+		private File file;
+		private String checksum;
+		private long filled = 0;
+		private boolean complete = false;
+		private boolean filling = false;
+		
+		// incremented when the content is found to be corrupted
+		private int discarded = 0;
+
+		public Entry(File file) {
+			this.file = file;
+		}
+	}
+
+	private File cacheDir;
+	private long maxSize;
+	private long totalSize = 0;
+
+	// access ordered, so iteration starts from the least recently used entry
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	/**
+	 * @param cacheDir directory for the cached files, it's created if it doesn't exist
+	 * @param maxSize in bytes
+	 */
+	public ContentCache(File cacheDir, long maxSize) {
+		this.cacheDir = cacheDir;
+		this.maxSize = maxSize;
+
+		cacheDir.mkdirs();
+		loadExistingEntries();
+	}
+
+	/**
+	 * Returns stream for the content. Cached content is read from the disk and the rest is
+	 * fetched from the source and stored to the cache while it's read.
+	 *
+	 * @param dataId
+	 * @param checksum may be null
+	 * @param contentLength may be null if not known
+	 * @param source
+	 */
+	public InputStream getInputStream(String dataId, String checksum, Long contentLength, RangeSource source) throws IOException {
+
+		String key = getKey(dataId, checksum);
+		Entry entry;
+		boolean filling;
+
+		synchronized (this) {
+			entry = entries.get(key);
+			if (entry == null) {
+				entry = new Entry(new File(cacheDir, key));
+				entries.put(key, entry);
+			}
+			entry.checksum = checksum;
+
+			if (entry.complete) {
+				return new FileInputStream(entry.file);
+			}
+
+			filling = entry.filling;
+			entry.filling = true;
+		}
+
+		if (filling) {
+			// someone else is filling it, read the same file
+			return new FollowingInputStream(entry, source);
+		}
+
+		try {
+			return new FillingInputStream(entry, contentLength, source);
+
+		} catch (IOException e) {
+			synchronized (this) {
+				entry.filling = false;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the content completely to the cache, if it isn't there yet, and makes a hard 
+	 * link to the cached file, so that the destination stays even if the entry is evicted. 
+	 * The content is copied, if the file system doesn't support hard links.
+	 *
+	 * @param dest file to create, an existing file is replaced
+	 */
+	public void linkFile(String dataId, String checksum, Long contentLength, RangeSource source, File dest) throws IOException {
+
+		InputStream in = getInputStream(dataId, checksum, contentLength, source);
+		try {
+			byte[] buffer = new byte[64*1024];
+			while (in.read(buffer) != -1) {
+				// only fill the cache
+			}
+		} finally {
+			IOUtils.closeIfPossible(in);
+		}
+
+		File cached;
+		synchronized (this) {
+			Entry entry = entries.get(getKey(dataId, checksum));
+			if (entry == null || !entry.complete) {
+				throw new IOException("content could not be cached: " + dataId);
+			}
+			
+			// eviction takes the same lock, so the file exists here
+			cached = entry.file;
+			Files.deleteIfExists(dest.toPath());
+			try {
+				Files.createLink(dest.toPath(), cached.toPath());
+				return;
+			} catch (IOException | UnsupportedOperationException e) {
+				logger.debug("could not link " + cached + ", copying it", e);
+			}
+		}
+		
+		// an open stream keeps the content readable even if the entry is evicted meanwhile
+		InputStream cachedStream = getInputStream(dataId, checksum, contentLength, source);
+		try {
+			Files.copy(cachedStream, dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			IOUtils.closeIfPossible(cachedStream);
+		}
+	}
+
+	private String getKey(String dataId, String checksum) {
+		String key = dataId;
+		if (checksum != null) {
+			key += "-" + checksum;
+		}
+		return key.replaceAll("[^\\w\\-\\.]", "_");
+	}
+
+	private synchronized void loadExistingEntries() {
+
+		File[] files = cacheDir.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		// oldest first to keep the LRU order approximately
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.compare(f1.lastModified(), f2.lastModified());
+			}
+		});
+
+		for (File file : files) {
+			String name = file.getName();
+			Entry entry;
+			if (name.endsWith(PART_SUFFIX)) {
+				entry = new Entry(new File(cacheDir, name.substring(0, name.length() - PART_SUFFIX.length())));
+			} else {
+				entry = new Entry(file);
+				entry.complete = true;
+			}
+			entry.filled = file.length();
+			totalSize += entry.filled;
+			entries.put(entry.file.getName(), entry);
+		}
+
+		logger.debug("content cache has " + entries.size() + " entries, total " + totalSize + " bytes");
+		evict();
+	}
+
+	private synchronized void updateFilled(Entry entry, long filled) {
+		totalSize += filled - entry.filled;
+		entry.filled = filled;
+		notifyAll();
+	}
+
+	private synchronized void complete(Entry entry, File partFile) {
+		if (partFile.renameTo(entry.file)) {
+			entry.complete = true;
+		} else {
+			logger.warn("could not rename cache file " + partFile);
+		}
+		notifyAll();
+	}
+
+	private synchronized void discard(Entry entry, File partFile) {
+		partFile.delete();
+		updateFilled(entry, 0);
+		entry.discarded++;
+	}
+
+	private synchronized void release(Entry entry) {
+		entry.filling = false;
+		evict();
+		notifyAll();
+	}
+
+	/**
+	 * Remove least recently used entries until the size is under the limit.
+	 */
+	private synchronized void evict() {
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (totalSize > maxSize && iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if (entry.filling) {
+				continue;
+			}
+
+			File file = entry.complete ? entry.file : getPartFile(entry);
+			if (!file.exists() || file.delete()) {
+				totalSize -= entry.filled;
+				iterator.remove();
+			}
+		}
+	}
+
+	private File getPartFile(Entry entry) {
+		return new File(entry.file.getPath() + PART_SUFFIX);
+	}
+
+	private static String calculateMd5(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		try (InputStream in = new DigestInputStream(new FileInputStream(file), digest)) {
+			byte[] buffer = new byte[64*1024];
+			while (in.read(buffer) != -1) {
+				// only calculate the digest
+			}
+		}
+		StringBuilder md5 = new StringBuilder();
+		for (byte b : digest.digest()) {
+			md5.append(String.format("%02x", b));
+		}
+		return md5.toString();
+	}
+
+	/**
+	 * Reads an entry that another reader is filling. Waits for the filling reader when it 
+	 * has read everything that is in the file. If the filling reader stops before the end,
+	 * continues directly from the source without caching.
+	 */
+	private class FollowingInputStream extends InputStream {
+
+		private Entry entry;
+		private RangeSource source;
+		private int discarded;
+
+		private RandomAccessFile raf;
+		private InputStream sourceStream = null;
+		private long position = 0;
+		private boolean closed = false;
+
+		public FollowingInputStream(Entry entry, RangeSource source) throws IOException {
+			this.entry = entry;
+			this.source = source;
+			
+			synchronized (ContentCache.this) {
+				this.discarded = entry.discarded;
+				// the part file is renamed when the entry is completed
+				File file = entry.complete ? entry.file : getPartFile(entry);
+				try {
+					this.raf = new RandomAccessFile(file, "r");
+				} catch (FileNotFoundException e) {
+					// filling reader hasn't created it yet or discarded it already
+					this.sourceStream = source.open(0);
+				}
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = read(b, 0, 1);
+			return n == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+
+			if (len == 0) {
+				return 0;
+			}
+
+			if (sourceStream != null) {
+				return sourceStream.read(b, off, len);
+			}
+
+			long available;
+			synchronized (ContentCache.this) {
+				while (position >= entry.filled && entry.filling && !entry.complete && entry.discarded == discarded) {
+					try {
+						ContentCache.this.wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+				}
+				if (entry.discarded != discarded) {
+					throw new IOException("cached content was discarded while reading it");
+				}
+				available = entry.filled - position;
+				
+				if (available <= 0 && entry.complete) {
+					return -1;
+				}
+			}
+
+			if (available > 0) {
+				raf.seek(position);
+				int n = raf.read(b, off, (int) Math.min(len, available));
+				if (n > 0) {
+					position += n;
+				}
+				return n;
+			}
+
+			// filling reader stopped before the end
+			raf.close();
+			sourceStream = source.open(position);
+			return sourceStream.read(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+
+			IOUtils.closeIfPossible(raf);
+			IOUtils.closeIfPossible(sourceStream);
+		}
+	}
+
+	/**
+	 * Serves the already cached part from the disk and then continues from the source,
+	 * writing everything that is read to the cache.
+	 */
+	private class FillingInputStream extends InputStream {
+
+		private Entry entry;
+		private File partFile;
+		private Long contentLength;
+		private RangeSource source;
+
+		private RandomAccessFile raf;
+		private InputStream sourceStream = null;
+		private long position = 0;
+		private long cachedLength;
+		private boolean ended = false;
+		private boolean closed = false;
+
+		public FillingInputStream(Entry entry, Long contentLength, RangeSource source) throws IOException {
+			this.entry = entry;
+			this.partFile = getPartFile(entry);
+			this.contentLength = contentLength;
+			this.source = source;
+			this.raf = new RandomAccessFile(partFile, "rw");
+			this.cachedLength = raf.length();
+			
+			// open the source right away when nothing is cached, so that the caller gets the errors immediately
+			if (cachedLength == 0) {
+				try {
+					sourceStream = source.open(0);
+				} catch (IOException e) {
+					raf.close();
+					throw e;
+				}
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = read(b, 0, 1);
+			return n == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+
+			if (len == 0) {
+				return 0;
+			}
+
+			// cached part
+			if (position < cachedLength) {
+				raf.seek(position);
+				int n = raf.read(b, off, (int) Math.min(len, cachedLength - position));
+				if (n > 0) {
+					position += n;
+				}
+				return n;
+			}
+
+			if (ended) {
+				return -1;
+			}
+			
+			// everything was cached already, but the entry wasn't completed
+			if (contentLength != null && position >= contentLength) {
+				onSourceEnd();
+				return -1;
+			}
+
+			// rest from the source
+			if (sourceStream == null) {
+				sourceStream = source.open(position);
+			}
+
+			int n = sourceStream.read(b, off, len);
+			if (n == -1) {
+				onSourceEnd();
+				return -1;
+			}
+
+			raf.seek(position);
+			raf.write(b, off, n);
+			position += n;
+			cachedLength = position;
+			updateFilled(entry, position);
+
+			return n;
+		}
+
+		private void onSourceEnd() throws IOException {
+			ended = true;
+			raf.close();
+			if (contentLength != null && contentLength != position) {
+				logger.warn("content length mismatch, expected " + contentLength + " but got " + position + " bytes, discarding " + partFile);
+				discard(entry, partFile);
+				throw new IOException("content length mismatch, expected " + contentLength + " but got " + position + " bytes");
+			}
+			
+			// the file may have been filled by several readers, so the whole file is checked
+			if (entry.checksum != null) {
+				String md5 = calculateMd5(partFile);
+				if (!entry.checksum.equals(md5)) {
+					logger.warn("checksum mismatch, expected " + entry.checksum + " but got " + md5 + ", discarding " + partFile);
+					discard(entry, partFile);
+					throw new IOException(new ChecksumException());
+				}
+			}
+			complete(entry, partFile);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+
+			IOUtils.closeIfPossible(raf);
+			IOUtils.closeIfPossible(sourceStream);
+			release(entry);
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package fi.csc.microarray.databeans;
+
+import java.util.List;
+
+/**
+ * Listener that handles the changes of a bulk operation at once. Events of a batch are
+ * delivered after the whole operation has finished, so the listener must take the state
+ * of the data from the data items, not from the order of the events.
+ * 
+ * @see DataManager#beginEventBatch()
+ */
+public interface DataChangeBatchListener extends DataChangeListener {
+
+	/**
+	 * Called once at the end of the batch instead of calling {@link #dataChanged(DataChangeEvent)}
+	 * for each event.
+	 * 
+	 * @param events coalesced events of the batch in the order they were dispatched
+	 */
+	public void dataChangedInBatch(List<DataChangeEvent> events);
+}
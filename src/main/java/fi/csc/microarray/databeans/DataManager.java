@@ -11,10 +11,15 @@ import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -28,6 +33,8 @@ import org.eclipse.jetty.util.IO;
 
 import fi.csc.microarray.client.Session;
 import fi.csc.microarray.client.operation.OperationRecord;
+import fi.csc.microarray.config.DirectoryLayout;
+import fi.csc.microarray.databeans.ContentCache.RangeSource;
 import fi.csc.microarray.databeans.DataBean.DataNotAvailableHandling;
 import fi.csc.microarray.databeans.DataBean.Link;
 import fi.csc.microarray.databeans.features.Feature;
@@ -42,6 +49,7 @@ import fi.csc.microarray.exception.MicroarrayException;
 import fi.csc.microarray.filebroker.ChecksumException;
 import fi.csc.microarray.filebroker.ChecksumInputStream;
 import fi.csc.microarray.filebroker.ContentLengthException;
+import fi.csc.microarray.filebroker.FileBrokerClient;
 import fi.csc.microarray.filebroker.FileBrokerClient.FileBrokerArea;
 import fi.csc.microarray.filebroker.FileBrokerException;
 import fi.csc.microarray.filebroker.NotEnoughDiskSpaceException;
@@ -145,6 +153,7 @@ public class DataManager {
 
 	public static final String DATA_NA_INFOTEXT = "Data currently not available";
 	private static final String TEMP_DIR_PREFIX = "chipster";
+	private static final String CONTENT_CACHE_DIR = "content-cache";
 	private static final int MAX_FILENAME_LENGTH = 256;
 	private static final Logger logger = Logger.getLogger(DataManager.class);
 
@@ -177,6 +186,10 @@ public class DataManager {
 	private LinkedList<DataChangeListener> listeners = new LinkedList<DataChangeListener>();
 	
 	private boolean eventsEnabled = false;
+	
+	// events of the ongoing bulk operations, guarded by this list
+	private LinkedList<DataChangeEvent> batchedEvents = new LinkedList<DataChangeEvent>();
+	private int eventBatchDepth = 0;
 
 	private DataFolder rootFolder;	
 	private File repositoryRoot;
@@ -190,11 +203,33 @@ public class DataManager {
 	// creates also JMS traffic
 	private ExecutorService executor = Executors.newFixedThreadPool(10);
 	
+	// parallel input uploads, kept separate from the type tagging executor above
+	private static final int UPLOAD_THREADS = 4;
+	private ExecutorService uploadExecutor = Executors.newFixedThreadPool(UPLOAD_THREADS);
+	
+	// null if disabled
+	private ContentCache contentCache = null;
+	
 	public DataManager() throws Exception {
 		rootFolder = createFolder(DataManager.ROOT_NAME);
 
 		// initialize repository 		
 		repositoryRoot = createRepository();
+		
+		contentCache = createContentCache();
+	}
+	
+	private ContentCache createContentCache() {
+		try {
+			long size = DirectoryLayout.getInstance().getConfiguration().getInt("client", "content-cache-size") * 1024l * 1024l;
+			if (size > 0) {
+				File cacheDir = new File(DirectoryLayout.getInstance().getClientSettingsDir(), CONTENT_CACHE_DIR);
+				return new ContentCache(cacheDir, size);
+			}
+		} catch (Exception e) {
+			logger.warn("content cache is disabled", e);
+		}
+		return null;
 	}
 
 	public void setRootFolder(DataFolder folder) {
@@ -369,22 +404,130 @@ public class DataManager {
 	
 	public void dispatchEvent(DataChangeEvent event) {
 		if (eventsEnabled) {
-			// dispatch events only for connected datas
-			for (DataChangeListener listener : listeners) {
-				if (listener == null) {
-					logger.error("One of the DataChangeListeners listeners was null.");
-				} else {
-					logger.debug("Notifying DataChangeListener " + listener.toString());
+			synchronized (batchedEvents) {
+				if (eventBatchDepth > 0) {
+					batchedEvents.add(event);
+					return;
 				}
-				try {
-					listener.dataChanged(event);
-					
-				} catch (RuntimeException e) {
-					// we will not let GUI problems to stop important DataBean manipulation operations
-					// and possibly lead to DataBean model corruption
-					logger.error("DataChangeEvent dispatch failed", e);
+			}
+			deliverEvent(event);
+		}
+	}
+	
+	/**
+	 * Dispatches the events as one batch.
+	 */
+	public void dispatchEvents(List<? extends DataChangeEvent> events) {
+		beginEventBatch();
+		try {
+			for (DataChangeEvent event : events) {
+				dispatchEvent(event);
+			}
+		} finally {
+			endEventBatch();
+		}
+	}
+	
+	/**
+	 * Starts collecting events of a bulk operation. The events are delivered when
+	 * {@link #endEventBatch()} has been called as many times as this method. Calls must be
+	 * paired with try-finally, otherwise the events are never delivered.
+	 * 
+	 * @see DataChangeBatchListener
+	 */
+	public void beginEventBatch() {
+		synchronized (batchedEvents) {
+			eventBatchDepth++;
+		}
+	}
+	
+	/**
+	 * Delivers the collected events in the EDT, if this was the outermost batch. 
+	 */
+	public void endEventBatch() {
+		final List<DataChangeEvent> events;
+		synchronized (batchedEvents) {
+			eventBatchDepth--;
+			if (eventBatchDepth > 0 || batchedEvents.isEmpty()) {
+				return;
+			}
+			events = coalesceEvents(batchedEvents);
+			batchedEvents.clear();
+		}
+		
+		logger.debug("delivering a batch of " + events.size() + " events");
+		
+		ThreadUtils.runInEDT(new Runnable() {
+			@Override
+			public void run() {
+				for (DataChangeListener listener : listeners) {
+					try {
+						if (listener instanceof DataChangeBatchListener) {
+							((DataChangeBatchListener) listener).dataChangedInBatch(events);
+						} else {
+							for (DataChangeEvent event : events) {
+								listener.dataChanged(event);
+							}
+						}
+					} catch (RuntimeException e) {
+						// same as in deliverEvent()
+						logger.error("DataChangeEvent dispatch failed", e);
+					}
 				}
 			}
+		});
+	}
+	
+	/**
+	 * Removes events that don't change anything when all of them are handled at once: 
+	 * repeated content changes and items that were both created and removed in the batch.
+	 */
+	private List<DataChangeEvent> coalesceEvents(List<DataChangeEvent> events) {
+		
+		Set<DataItem> created = new HashSet<DataItem>();
+		Set<DataItem> cancelled = new HashSet<DataItem>();
+		for (DataChangeEvent event : events) {
+			if (event instanceof DataItemCreatedEvent) {
+				created.add(event.getDataItem());
+			} else if (event instanceof DataItemRemovedEvent && created.remove(event.getDataItem())) {
+				cancelled.add(event.getDataItem());
+			}
+		}
+		
+		List<DataChangeEvent> coalesced = new ArrayList<DataChangeEvent>(events.size());
+		Set<DataItem> contentChanged = new HashSet<DataItem>();
+		for (DataChangeEvent event : events) {
+			DataItem item = event.getDataItem();
+			if (cancelled.contains(item)) {
+				continue;
+			}
+			if (event instanceof LinksChangedEvent && cancelled.contains(((LinksChangedEvent) event).getTarget())) {
+				continue;
+			}
+			if (event instanceof ContentChangedEvent && !contentChanged.add(item)) {
+				continue;
+			}
+			coalesced.add(event);
+		}
+		return coalesced;
+	}
+	
+	private void deliverEvent(DataChangeEvent event) {
+		// dispatch events only for connected datas
+		for (DataChangeListener listener : listeners) {
+			if (listener == null) {
+				logger.error("One of the DataChangeListeners listeners was null.");
+			} else {
+				logger.debug("Notifying DataChangeListener " + listener.toString());
+			}
+			try {
+				listener.dataChanged(event);
+				
+			} catch (RuntimeException e) {
+				// we will not let GUI problems to stop important DataBean manipulation operations
+				// and possibly lead to DataBean model corruption
+				logger.error("DataChangeEvent dispatch failed", e);
+			}
 		}
 	}
 	
@@ -699,7 +842,12 @@ public class DataManager {
 	 * Remove all DataBeans and DataFolders, except for the root folder.
 	 */
 	public void deleteAllDataItems() {
-		deleteDataFolder(getRootFolder());
+		beginEventBatch();
+		try {
+			deleteDataFolder(getRootFolder());
+		} finally {
+			endEventBatch();
+		}
 	}
 	
 	private void deleteDataBean(DataBean bean) {
@@ -791,6 +939,40 @@ public class DataManager {
 		}
 	}
 		
+	/**
+	 * @param location closest content location of the bean or null if it's only in the filebroker
+	 * @return source for the content cache or null if the content is local or the cache is disabled
+	 */
+	private RangeSource getCacheSource(DataBean bean, final ContentLocation location) {
+		if (contentCache == null) {
+			return null;
+		}
+		
+		if (location != null) {
+			if (!(location.getHandler() instanceof RemoteContentHandler)) {
+				return null;
+			}
+			return new RangeSource() {
+				@Override
+				public InputStream open(long offset) throws IOException {
+					return remoteContentHandler.getInputStream(location, offset);
+				}
+			};
+		}
+		
+		final String dataId = bean.getId();
+		return new RangeSource() {
+			@Override
+			public InputStream open(long offset) throws IOException {
+				try {
+					return Session.getSession().getServiceAccessor().getFileBrokerClient().getInputStream(dataId, offset);
+				} catch (FileBrokerException e) {
+					throw new IOException(e);
+				}
+			}
+		};
+	}
+	
 	private InputStream getBaseContentStream(DataBean bean, DataNotAvailableHandling naHandling) throws IOException {
 
 		// try local content locations first
@@ -799,6 +981,12 @@ public class DataManager {
 		
 		if (location != null) {
 			
+			// remote locations go through the content cache
+			RangeSource cacheSource = getCacheSource(bean, location);
+			if (cacheSource != null) {
+				return contentCache.getInputStream(bean.getId(), bean.getChecksum(), bean.getSize(), cacheSource);
+			}
+			
 			// local available TODO maybe check if it really is available
 			return location.getHandler().getInputStream(location);
 		 
@@ -807,6 +995,10 @@ public class DataManager {
 		// try from filebroker
 		Exception remoteException;
 		try {
+			RangeSource cacheSource = getCacheSource(bean, null);
+			if (cacheSource != null) {
+				return contentCache.getInputStream(bean.getId(), bean.getChecksum(), bean.getSize(), cacheSource);
+			}
 			return Session.getSession().getServiceAccessor().getFileBrokerClient().getInputStream(bean.getId());
 		} catch (Exception e) {
 			remoteException = e;
@@ -989,8 +1181,17 @@ public class DataManager {
 	private void convertToLocalTempDataBean(DataBean bean) throws IOException {
 		
 		try {
-			// copy contents to new file
 			File newFile = this.createNewRepositoryFile(bean.getName());
+			
+			// link remote contents from the cache, it verifies the checksum
+			RangeSource cacheSource = getCacheSource(bean, getClosestContentLocation(bean));
+			if (cacheSource != null) {
+				contentCache.linkFile(bean.getId(), bean.getChecksum(), bean.getSize(), cacheSource, newFile);
+				addContentLocationForDataBean(bean, StorageMethod.LOCAL_TEMP, newFile.toURI().toURL());
+				return;
+			}
+			
+			// copy contents to new file
 			BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(newFile));
 			ChecksumInputStream inputStream = getContentStream(bean, DataNotAvailableHandling.EXCEPTION_ON_NA);
 			BufferedInputStream in = new BufferedInputStream(inputStream);
@@ -1121,15 +1322,8 @@ public class DataManager {
 				future.get();
 			}
 			
-			// dispatch events in EDT
-			ThreadUtils.runInEDT(new Runnable() {					
-				@Override
-				public void run() {
-					for (DataItemCreatedEvent event : events) {
-						dispatchEvent(event);
-					}
-				}
-			});
+			// dispatch events as one batch, they are delivered in EDT
+			dispatchEvents(events);
 			
 		} catch (InterruptedException | ExecutionException e) {
 			Session.getSession().getApplication().reportExceptionThreadSafely(e);
@@ -1289,6 +1483,219 @@ public class DataManager {
 		}
 	}
 
+	/**
+	 * Bulk version of {@link #uploadToCacheIfNeeded(DataBean, CopyProgressListener)}. Availability 
+	 * of all beans is checked with a single filebroker request and the missing ones are 
+	 * uploaded in parallel.
+	 * 
+	 * @param beans
+	 * @param progressListeners listener for each bean in the same order, may be null
+	 * @throws NotEnoughDiskSpaceException
+	 * @throws FileBrokerException
+	 * @throws IOException
+	 * @throws Exception
+	 */
+	public void uploadToCacheIfNeeded(List<DataBean> beans, final List<CopyProgressListener> progressListeners) throws NotEnoughDiskSpaceException, FileBrokerException, IOException, Exception {
+		
+		int locked = 0;
+		try {
+			// keep the beans locked until all uploads are done
+			for (DataBean bean : beans) {
+				bean.getLock().readLock().lock();
+				locked++;
+			}
+
+			// check what is already available in cache or storage
+			List<String> dataIds = new ArrayList<>();
+			List<Long> sizes = new ArrayList<>();
+			List<String> checksums = new ArrayList<>();
+			for (DataBean bean : beans) {
+				dataIds.add(bean.getId());
+				sizes.add(bean.getSize());
+				checksums.add(bean.getChecksum());
+			}
+			Map<String, FileBrokerArea> available = Session.getSession().getServiceAccessor().getFileBrokerClient().areAvailable(dataIds, sizes, checksums);
+
+			// same content can be given for several inputs, upload it only once but report 
+			// the progress to the listeners of all those inputs
+			LinkedHashMap<String, DataBean> missing = new LinkedHashMap<>();
+			HashMap<String, List<CopyProgressListener>> listenersById = new HashMap<>();
+			for (int i = 0; i < beans.size(); i++) {
+				DataBean bean = beans.get(i);
+				if (available.containsKey(bean.getId())) {
+					// nothing to transfer, report the input as complete so that the total progress can reach the end
+					if (progressListeners != null && progressListeners.get(i) != null) {
+						progressListeners.get(i).progress(getContentLength(bean));
+					}
+					continue;
+				}
+				if (!missing.containsKey(bean.getId())) {
+					missing.put(bean.getId(), bean);
+					listenersById.put(bean.getId(), new ArrayList<CopyProgressListener>());
+				}
+				if (progressListeners != null && progressListeners.get(i) != null) {
+					listenersById.get(bean.getId()).add(progressListeners.get(i));
+				}
+			}
+			
+			Map<String, CopyProgressListener> progressListenerById = new HashMap<>();
+			for (final Entry<String, List<CopyProgressListener>> entry : listenersById.entrySet()) {
+				progressListenerById.put(entry.getKey(), new CopyProgressListener() {
+					@Override
+					public void progress(long bytes) {
+						for (CopyProgressListener listener : entry.getValue()) {
+							listener.progress(bytes);
+						}
+					}
+				});
+			}
+
+			List<String> uploaded = uploadAll(missing.values(), FileBrokerArea.CACHE, progressListenerById);
+			logger.debug(beans.size() + " inputs, " + uploaded.size() + " uploaded");
+
+		} finally {
+			for (int i = 0; i < locked; i++) {
+				beans.get(i).getLock().readLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Bulk version of {@link #uploadToStorageIfNeeded(DataBean)}. Availability of all beans 
+	 * is checked and the beans in cache are moved to storage with single filebroker requests. 
+	 * The rest are uploaded in parallel.
+	 * 
+	 * @param beans
+	 * @return beans that are in storage
+	 * @throws Exception
+	 */
+	public List<DataBean> uploadToStorageIfNeeded(List<DataBean> beans) throws Exception {
+		
+		FileBrokerClient fileBrokerClient = Session.getSession().getServiceAccessor().getFileBrokerClient();
+		
+		// check what is already available in cache or storage
+		List<String> dataIds = new ArrayList<>();
+		List<Long> sizes = new ArrayList<>();
+		List<String> checksums = new ArrayList<>();
+		for (DataBean bean : beans) {
+			dataIds.add(bean.getId());
+			sizes.add(bean.getSize());
+			checksums.add(bean.getChecksum());
+		}
+		Map<String, FileBrokerArea> available = fileBrokerClient.areAvailable(dataIds, sizes, checksums);
+		
+		// move from cache if possible
+		List<String> inCache = new ArrayList<>();
+		for (Entry<String, FileBrokerArea> entry : available.entrySet()) {
+			if (entry.getValue() == FileBrokerArea.CACHE) {
+				inCache.add(entry.getKey());
+			}
+		}
+		List<String> moved = fileBrokerClient.moveFromCacheToStorage(inCache);
+		HashSet<String> inStorage = new HashSet<>(moved);
+		for (Entry<String, FileBrokerArea> entry : available.entrySet()) {
+			if (entry.getValue() == FileBrokerArea.STORAGE) {
+				inStorage.add(entry.getKey());
+			}
+		}
+		
+		// upload the rest
+		LinkedHashMap<String, DataBean> missing = new LinkedHashMap<>();
+		for (DataBean bean : beans) {
+			if (!inStorage.contains(bean.getId())) {
+				missing.put(bean.getId(), bean);
+			}
+		}
+		List<String> uploaded = uploadAll(missing.values(), FileBrokerArea.STORAGE, null);
+		
+		logger.debug(beans.size() + " beans, " + moved.size() + " moved from cache, " + uploaded.size() + " uploaded");
+		
+		inStorage.addAll(uploaded);
+		
+		List<DataBean> stored = new ArrayList<>();
+		for (DataBean bean : beans) {
+			if (inStorage.contains(bean.getId())) {
+				stored.add(bean);
+			}
+		}
+		return stored;
+	}
+
+	/**
+	 * Upload beans in parallel. The upload urls are requested with a single filebroker request.
+	 * 
+	 * @param progressListeners listener of each dataId, may be null
+	 * @return dataIds of the beans that were uploaded
+	 */
+	private List<String> uploadAll(Collection<DataBean> beans, FileBrokerArea area, final Map<String, CopyProgressListener> progressListeners) throws Exception {
+
+		FileBrokerClient fileBrokerClient = Session.getSession().getServiceAccessor().getFileBrokerClient();
+		
+		// content may have been removed after the beans were given to us
+		final List<DataBean> uploadable = new ArrayList<>();
+		List<String> dataIds = new ArrayList<>();
+		List<Long> contentLengths = new ArrayList<>();
+		long totalLength = 0;
+		for (DataBean bean : beans) {
+			if (bean.getContentLocations().size() > 0) {
+				uploadable.add(bean);
+				dataIds.add(bean.getId());
+				contentLengths.add(getContentLength(bean));
+				totalLength += getContentLength(bean);
+			}
+		}
+		if (uploadable.isEmpty()) {
+			return new ArrayList<>();
+		}
+		
+		// getNewURLs() doesn't request the disk space like addFile() does
+		if (area == FileBrokerArea.CACHE && totalLength > 0 && !fileBrokerClient.requestDiskSpace(totalLength)) {
+			throw new NotEnoughDiskSpaceException();
+		}
+		final Map<String, URL> urls = fileBrokerClient.getNewURLs(dataIds, contentLengths, area);
+
+		ArrayList<Callable<Boolean>> uploads = new ArrayList<>();
+		for (final DataBean bean : uploadable) {
+			uploads.add(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					CopyProgressListener progressListener = progressListeners != null ? progressListeners.get(bean.getId()) : null;
+					return upload(bean, urls.get(bean.getId()), progressListener);
+				}
+			});
+		}
+		
+		try {
+			for (Future<Boolean> future : uploadExecutor.invokeAll(uploads)) {
+				future.get();
+			}
+		} catch (ExecutionException e) {
+			// throw the original exception so that callers can handle e.g. NotEnoughDiskSpaceException 
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+		return dataIds;
+	}
+	
+	private boolean upload(DataBean dataBean, URL url, CopyProgressListener progressListener) throws Exception {
+		try {
+			String checksum = Session.getSession().getServiceAccessor().getFileBrokerClient().addFile(
+					url, 
+					getContentStream(dataBean, DataNotAvailableHandling.EXCEPTION_ON_NA), 
+					getContentLength(dataBean), 
+					progressListener);
+			
+			setOrVerifyChecksum(dataBean, checksum);
+
+		} catch (Exception e) {
+			logger.warn("could not upload data: " + dataBean.getName(), e);
+			throw e;
+		}
+		return true;
+	}
+
 	private boolean upload(DataBean dataBean, FileBrokerArea area, CopyProgressListener progressListener) throws Exception {
 		// check if content is still available
 		if (dataBean.getContentLocations().size() == 0) {
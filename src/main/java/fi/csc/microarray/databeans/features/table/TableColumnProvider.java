@@ -350,6 +350,22 @@ public class TableColumnProvider extends FeatureProviderBase {
 		String footerStarter = null;
 		boolean hasColumnNames = true;
 		LinkedHashMap<String, Column> columns = new LinkedHashMap<String, Column>();
+		
+		public long getHeaderBytes() {
+			return headerBytes;
+		}
+		
+		public String getFooterStarter() {
+			return footerStarter;
+		}
+		
+		public boolean hasColumnNames() {
+			return hasColumnNames;
+		}
+		
+		public String[] getColumnNames() {
+			return columns.keySet().toArray(new String[0]);
+		}
 	}
 
 	public static class TableColumn extends BasicFeature {
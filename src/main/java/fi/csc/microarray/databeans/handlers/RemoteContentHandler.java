@@ -10,6 +10,7 @@ import java.util.Date;
 import java.util.LinkedList;
 
 import fi.csc.microarray.databeans.DataManager.ContentLocation;
+import fi.csc.microarray.util.IOUtils;
 import fi.csc.microarray.util.KeyAndTrustManager;
 import fi.csc.microarray.util.UrlTransferUtil;
 
@@ -46,11 +47,35 @@ public class RemoteContentHandler implements ContentHandler {
 	
 	@Override
 	public InputStream getInputStream(ContentLocation location) throws IOException {
+		return getInputStream(location, 0);
+	}
+	
+	/**
+	 * Get stream starting from the given offset. Uses a HTTP range request and 
+	 * falls back to skipping if the server doesn't support ranges.
+	 */
+	public InputStream getInputStream(ContentLocation location, long offset) throws IOException {
 		checkCompatibility(location);
 		HttpURLConnection connection = (HttpURLConnection)location.getUrl().openConnection();
 		// filebroker isn't a ContentLocation, so use CA certs
 		KeyAndTrustManager.configureForCACertificates(connection);
-		return connection.getInputStream();
+		if (offset > 0) {
+			connection.setRequestProperty("Range", "bytes=" + offset + "-");
+		}
+		InputStream stream = connection.getInputStream();
+		
+		if (offset > 0 && connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+			long skipped = 0;
+			while (skipped < offset) {
+				long n = stream.skip(offset - skipped);
+				if (n <= 0) {
+					IOUtils.closeIfPossible(stream);
+					throw new IOException("could not skip to offset " + offset + ": " + location.getUrl());
+				}
+				skipped += n;
+			}
+		}
+		return stream;
 	}
 
 	@Override
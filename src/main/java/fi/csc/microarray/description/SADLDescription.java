@@ -30,6 +30,7 @@ public class SADLDescription {
 	private LinkedList<Output> outputs = new LinkedList<Output>();
 	private LinkedList<Parameter> parameters = new LinkedList<Parameter>();
 	private Integer slotCount;
+	private boolean noCache = false;
 
 	public SADLDescription() {
 		// for Jackson
@@ -466,4 +467,15 @@ public class SADLDescription {
 	public Integer getSlotCount() {
 		return this.slotCount;
 	}
+
+	/**
+	 * @return true if the results of the tool must not be reused from the result cache
+	 */
+	public boolean isNoCache() {
+		return noCache;
+	}
+
+	public void setNoCache(boolean noCache) {
+		this.noCache = noCache;
+	}
 }
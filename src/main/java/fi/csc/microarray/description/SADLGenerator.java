@@ -90,6 +90,10 @@ public class SADLGenerator {
 			string += SADLSyntax.KEYWORD_SLOTS + " " + sadl.getRuntime() + "\n";
 		}
 		
+		if (sadl.isNoCache()) {
+			string += SADLSyntax.KEYWORD_NOCACHE + "\n";
+		}
+		
 		return string;
 	}
 
@@ -149,6 +149,12 @@ public class SADLParser {
 			description.setSlotCount(slotCount);
 		}
 		
+		//	read possible result cache opt-out
+		while (nextTokenIs(tokens, SADLSyntax.KEYWORD_NOCACHE)) {
+			skip(tokens, SADLSyntax.KEYWORD_NOCACHE);
+			description.setNoCache(true);
+		}
+		
 		// check that no trailing content was left behind
 		if (tokens.hasNext() && !nextTokenIs(tokens, SADLSyntax.KEYWORD_TOOL)) {
 			// content other then new description was left 
@@ -17,7 +17,7 @@ package fi.csc.microarray.description;
  * 
  * <pre>
  * -> TOOL+
- * TOOL -> "TOOL" NAME DESCRIPTION INPUT* OUTPUT* PARAMETER*
+ * TOOL -> "TOOL" NAME DESCRIPTION INPUT* OUTPUT* PARAMETER* RUNTIME? SLOTS? NOCACHE?
  * INPUT -> "INPUT" META? OPTIONALITY? NAME "TYPE" TYPE_NAME DESCRIPTION
  * OUTPUT -> "OUTPUT" META? OPTIONALITY? NAME DESCRIPTION
  * PARAMETER -> "PARAMETER" OPTIONALITY? NAME "TYPE" PARAMETER_TYPE PARAMETER_FROM? PARAMETER_TO? PARAMETER_DEFAULT? DESCRIPTION 
@@ -28,6 +28,9 @@ package fi.csc.microarray.description;
  * PARAMETER_TO -> "TO" TOKEN
  * PARAMETER_DEFAULT -> "DEFAULT" PARAMETER_DEFAULT_ELEMENT
  * PARAMETER_DEFAULT_ELEMENT -> TOKEN | TOKEN "," PARAMETER_DEFAULT_ELEMENT 
+ * RUNTIME -> "RUNTIME" TOKEN
+ * SLOTS -> "SLOTS" TOKEN
+ * NOCACHE -> "NOCACHE" (results of the tool are never reused from the result cache)
  * OPTIONALITY -> "OPTIONAL"
  * META -> "META"
  * NAME -> TOKEN | TOKEN ":" TOKEN
@@ -79,6 +82,7 @@ public class SADLSyntax {
 	public static final String KEYWORD_TOOL = "TOOL";
 	public static final String KEYWORD_RUNTIME = "RUNTIME";
 	public static final String KEYWORD_SLOTS = "SLOTS";
+	public static final String KEYWORD_NOCACHE = "NOCACHE";
 
 	public static final String NAME_SET_DESIGNATOR = "{...}";
 	public static final String NAME_SEPARATOR = ":";
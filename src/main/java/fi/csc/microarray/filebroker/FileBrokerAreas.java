@@ -61,6 +61,39 @@ public class FileBrokerAreas {
 		return renameDataFile(cacheFile, storageFile);
 	}
 	
+	/**
+	 * Copy a file from storage to cache with a new fileId. The copy is written to a temporary
+	 * file first, so that the new fileId never points to a partial file.
+	 * 
+	 * @return false if the file isn't in storage
+	 */
+	public boolean copyFromStorageToCache(String fileId, String newFileId) throws IOException {
+		File storageFile = getFile(fileId, FileBrokerArea.STORAGE);
+		File cacheFile = getFile(newFileId, FileBrokerArea.CACHE);
+		if (!storageFile.exists()) {
+			return false;
+		}
+		
+		// md5 file contains the file name, so it's written again instead of copying
+		String md5 = Md5FileUtils.readMd5WithoutParseException(storageFile);
+		if (md5 != null) {
+			Md5FileUtils.writeMd5(md5, cacheFile);
+		}
+		
+		File tmpFile = new File(cacheRoot, newFileId + ".copying");
+		boolean copied = false;
+		try {
+			FileUtils.copyFile(storageFile, tmpFile);
+			copied = tmpFile.renameTo(cacheFile);
+			return copied;
+		} finally {
+			tmpFile.delete();
+			if (!copied) {
+				Md5FileUtils.removeMd5(cacheFile);
+			}
+		}
+	}
+	
 	/**
 	 * Rename or move data file and its md5 file. Ensures that md5 file is accessible
 	 * all the time during the operation.  
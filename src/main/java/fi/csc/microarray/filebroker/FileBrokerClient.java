@@ -7,6 +7,7 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import javax.jms.JMSException;
@@ -47,6 +48,25 @@ public interface FileBrokerClient {
 	 */
 	public abstract String addFile(String dataId, FileBrokerArea area, InputStream file, long contentLength, CopyProgressListener progressListener) throws NotEnoughDiskSpaceException, FileBrokerException, IOException;
 
+	/**
+	 * Upload InputStream to an url from {@link #getNewURLs(List, List, FileBrokerArea)}.
+	 * 
+	 * @param contentLength -1 if unknown
+	 * @param progressListener may be null
+	 * @return md5 of the uploaded data, if enabled in configuration
+	 */
+	public String addFile(URL url, InputStream file, long contentLength, CopyProgressListener progressListener) throws FileBrokerException, IOException;
+
+	/**
+	 * Get upload urls for several files using a single request. Unlike addFile(), this 
+	 * doesn't request disk space for the cache.
+	 * 
+	 * @param contentLengths size of each file
+	 * @return upload url of each dataId
+	 * @throws QuotaExceededException if area is STORAGE and the files don't fit in the quota of the user
+	 */
+	public Map<String, URL> getNewURLs(List<String> dataIds, List<Long> contentLengths, FileBrokerArea area) throws FileBrokerException, MalformedURLException;
+
 	/**
 	 * Add file to file broker. Might use local transfer instead of uploading.
 	 * 
@@ -81,6 +101,15 @@ public interface FileBrokerClient {
 	 * @throws JMSException 
 	 */
 	public abstract ChecksumInputStream getInputStream(String dataId) throws IOException, FileBrokerException;
+
+	/**
+	 * Get the InputStream for a file from the FileBroker, starting from the given offset. 
+	 * Checksums are not calculated for streams that don't start from the beginning. 
+	 * 
+	 * @param offset number of bytes to skip
+	 * @see #getInputStream(String)
+	 */
+	public abstract ChecksumInputStream getInputStream(String dataId, long offset) throws IOException, FileBrokerException;
 	
 	/**
 	 * Get File pointed by url to destFile. Might use local file transfer instead
@@ -95,6 +124,21 @@ public interface FileBrokerClient {
 	 */
 	public abstract void getFile(UUID sessionId, String dataId, File destFile) throws IOException, FileBrokerException, ChecksumException;	
 
+	public static interface CancelCheck {
+		public boolean isCancelled();
+	}
+	
+	/**
+	 * Bulk version of {@link #getFile(UUID, String, File)}. Gets the urls of all files 
+	 * using a single request.
+	 * 
+	 * @param dataIds same dataId may be given several times
+	 * @param destFiles destination file of each dataId
+	 * @param cancelCheck checked before each file, the rest of the files are skipped when it 
+	 * returns true. Can be null. 
+	 */
+	public void getFiles(UUID sessionId, List<String> dataIds, List<File> destFiles, CancelCheck cancelCheck) throws IOException, FileBrokerException, ChecksumException;
+
 	/**
 	 * Retrieves the list of public files or folders from the file broker. Method blocks until result is
 	 * retrieved or timeout. Talks to the file broker using JMS.
@@ -141,9 +185,39 @@ public interface FileBrokerClient {
 	 */
 	public boolean isAvailable(String dataId, Long contentLength, String checksum, FileBrokerArea area) throws FileBrokerException;
 
+	/**
+	 * Bulk version of {@link #isAvailable(String, Long, String, FileBrokerArea)}. Checks both 
+	 * cache and storage for all given dataIds using a single request.
+	 * 
+	 * @param dataIds
+	 * @param contentLengths in the same order as dataIds, items can be null if not available
+	 * @param checksums in the same order as dataIds, items can be null if not available
+	 * @return area where each available dataId was found, dataIds that are not available are not included
+	 * @throws FileBrokerException if the filebroker doesn't respond or any of the files is corrupted
+	 */
+	public Map<String, FileBrokerArea> areAvailable(List<String> dataIds, List<Long> contentLengths, List<String> checksums) throws FileBrokerException;
+
 
 	public boolean moveFromCacheToStorage(String dataId) throws FileBrokerException, AuthCancelledException;
 
+	/**
+	 * Bulk version of {@link #moveFromCacheToStorage(String)}. Moves all given dataIds using 
+	 * a single request.
+	 * 
+	 * @param dataIds
+	 * @return dataIds that were moved to storage
+	 * @throws QuotaExceededException if the files don't fit in the quota of the user
+	 */
+	public List<String> moveFromCacheToStorage(List<String> dataIds) throws FileBrokerException, AuthCancelledException;
+
+	/**
+	 * Copy files from storage to cache with new dataIds, using a single request.
+	 * 
+	 * @param newDataIds dataId of the copy of each file
+	 * @return new dataIds of the files that were copied
+	 */
+	public List<String> copyFromStorageToCache(List<String> dataIds, List<String> newDataIds) throws FileBrokerException;
+
 
 	/**
 	 * Internally client should use only dataIds instead of full URL and access data through 
@@ -158,8 +232,27 @@ public interface FileBrokerClient {
 	 */
 	public String getExternalURL(String dataId) throws FileBrokerException, MalformedURLException;
 
+	/**
+	 * Bulk version of {@link #getExternalURL(String)}. Gets the urls of all given dataIds
+	 * using a single request.
+	 * 
+	 * @param dataIds
+	 * @return url of each dataId, dataIds that were not found are not included
+	 */
+	public Map<String, String> getExternalURLs(List<String> dataIds) throws FileBrokerException, MalformedURLException;
+
 
 	public Long getContentLength(String dataId) throws IOException, FileBrokerException;
+	
+	/**
+	 * Bulk version of {@link #getContentLength(String)}. Gets the sizes of all given dataIds
+	 * using a single request.
+	 * 
+	 * @param dataIds
+	 * @return size of each dataId, dataIds that are not available are not included
+	 * @throws FileBrokerException if the filebroker doesn't respond or any of the files is corrupted
+	 */
+	public Map<String, Long> getContentLengths(List<String> dataIds) throws FileBrokerException;
 
 
 	StorageEntryMessageListener getStorageUsage() throws InterruptedException, FileBrokerException;
@@ -9,8 +9,11 @@ import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipException;
 
 import javax.jms.JMSException;
@@ -32,6 +35,7 @@ import fi.csc.microarray.messaging.MessagingListener;
 import fi.csc.microarray.messaging.MessagingTopic;
 import fi.csc.microarray.messaging.MessagingTopic.AccessMode;
 import fi.csc.microarray.messaging.NodeBase;
+import fi.csc.microarray.messaging.OrderedDispatchListener;
 import fi.csc.microarray.messaging.Topics;
 import fi.csc.microarray.messaging.message.BooleanMessage;
 import fi.csc.microarray.messaging.message.ChipsterMessage;
@@ -54,6 +58,14 @@ public class FileServer extends NodeBase implements MessagingListener, DirectMes
 	
 	public static final String ERROR_QUOTA_EXCEEDED = "quota-exceeded";
 	
+	/**
+	 * Per-item values of the area list in the replies to COMMAND_ARE_AVAILABLE and
+	 * COMMAND_MOVE_ALL_FROM_CACHE_TO_STORAGE, in addition to the names of the 
+	 * FileBrokerAreas and ERROR_QUOTA_EXCEEDED.
+	 */
+	public static final String AREA_NOT_AVAILABLE = "not-available";
+	public static final String AREA_CHECK_FAILED = "check-failed";
+	
 	public static final String CACHE_PATH = "cache";
 	public static final String STORAGE_PATH = "storage";
 
@@ -73,6 +85,12 @@ public class FileServer extends NodeBase implements MessagingListener, DirectMes
 	private DiskCleanUp cacheCleanUp;
 	
 	private ExecutorService longRunningTaskExecutor = Executors.newCachedThreadPool();
+	
+	/**
+	 * Handles the items of the bulk requests in parallel.
+	 */
+	private static final int BULK_REQUEST_THREADS = 8;
+	private ExecutorService bulkRequestExecutor = Executors.newFixedThreadPool(BULK_REQUEST_THREADS);
 
 	private int metadataPort;
 	
@@ -80,6 +98,10 @@ public class FileServer extends NodeBase implements MessagingListener, DirectMes
 
 	private long defaultUserQuota; // MB
 	private long quotaWarning; // percentage of the quota
+	
+	// messages of different users are handled in parallel, but sessions can share files, 
+	// so storing and removing them must not interleave
+	private Object sessionLock = new Object();
 
 
 	public static void main(String[] args) {
@@ -204,9 +226,17 @@ public class FileServer extends NodeBase implements MessagingListener, DirectMes
     	}
     }
 
-	protected void addEndpoint(MessagingEndpoint endpoint) throws JMSException {
+	protected void addEndpoint(final MessagingEndpoint endpoint) throws JMSException {
 		MessagingTopic filebrokerTopic = endpoint.createTopic(Topics.Name.AUTHORISED_FILEBROKER_TOPIC, AccessMode.READ);
-		filebrokerTopic.setListener(this);
+		
+		// replies must be sent through the endpoint where the request came from
+		MessagingListener endpointListener = new MessagingListener() {
+			@Override
+			public void onChipsterMessage(ChipsterMessage msg) {
+				FileServer.this.onChipsterMessage(msg, endpoint);
+			}
+		};
+		filebrokerTopic.setListener(new OrderedDispatchListener(endpointListener, "filebroker"));
 	}
 
 	public String getName() {
@@ -264,6 +294,14 @@ public class FileServer extends NodeBase implements MessagingListener, DirectMes
 			handleMoveFromCacheToStorageRequest(endpoint, (CommandMessage)msg);
 			return true;
 			
+		case CommandMessage.COMMAND_MOVE_ALL_FROM_CACHE_TO_STORAGE:			
+			handleMoveAllFromCacheToStorageRequest(endpoint, (CommandMessage)msg);
+			return true;
+			
+		case CommandMessage.COMMAND_COPY_FROM_STORAGE_TO_CACHE:			
+			handleCopyFromStorageToCacheRequest(endpoint, (CommandMessage)msg);
+			return true;
+			
 		case CommandMessage.COMMAND_DISK_SPACE_REQUEST:
 			handleSpaceRequest(endpoint, (CommandMessage)msg);
 			return true;
@@ -281,14 +319,26 @@ public class FileServer extends NodeBase implements MessagingListener, DirectMes
 			handleNewURLRequest(endpoint, msg);
 			return true;
 			
+		case CommandMessage.COMMAND_NEW_URLS_REQUEST:				
+			handleNewURLsRequest(endpoint, msg);
+			return true;
+			
 		case CommandMessage.COMMAND_GET_URL:				
 			handleGetURL(endpoint, msg);
 			return true;
 			
+		case CommandMessage.COMMAND_GET_URLS:				
+			handleGetURLs(endpoint, msg);
+			return true;
+			
 		case CommandMessage.COMMAND_IS_AVAILABLE:				
 			handleIsAvailable(endpoint, msg);
 			return true;
 			
+		case CommandMessage.COMMAND_ARE_AVAILABLE:				
+			handleAreAvailable(endpoint, msg);
+			return true;
+			
 		case CommandMessage.COMMAND_PUBLIC_URL_REQUEST:
 			handlePublicUrlRequest(endpoint, msg);
 			return true;
@@ -388,6 +438,59 @@ public class FileServer extends NodeBase implements MessagingListener, DirectMes
 	
 	
 	
+	/**
+	 * Bulk version of handleNewURLRequest(). The quota is checked once for all files. Replies 
+	 * with a list of urls in the same order as the requested dataIds. The url is an empty 
+	 * string if the dataId is not valid and ERROR_QUOTA_EXCEEDED if the files don't fit in 
+	 * the quota.
+	 */
+	private void handleNewURLsRequest(MessagingEndpoint endpoint, ChipsterMessage msg) throws Exception {
+		
+		// parse request
+		CommandMessage requestMessage = (CommandMessage) msg;
+		String[] fileIds = requestMessage.getNamedParameterAsArray(ParameterMessage.PARAMETER_FILE_ID_LIST);
+		String[] sizes = requestMessage.getNamedParameterAsArray(ParameterMessage.PARAMETER_SIZE_LIST);
+		boolean useCompression = requestMessage.getParameters().contains(ParameterMessage.PARAMETER_USE_COMPRESSION);
+		FileBrokerArea area = FileBrokerArea.valueOf(requestMessage.getNamedParameter(ParameterMessage.PARAMETER_AREA));
+		String username = msg.getUsername();
+		
+		logger.debug("New url request for " + fileIds.length + " files");
+		
+		ChipsterMessage reply;
+		if (fileIds.length != sizes.length) {
+			reply = new CommandMessage(CommandMessage.COMMAND_FILE_OPERATION_FAILED);
+			
+		} else {
+			long totalSize = 0;
+			for (String size : sizes) {
+				totalSize += Long.parseLong(size);
+			}
+			
+			// creating the urls only updates the url repository, so there is nothing to parallelise
+			LinkedList<String> urls = new LinkedList<>();
+			boolean quotaExceeded = area == FileBrokerArea.STORAGE && !checkQuota(username, totalSize);
+			for (int i = 0; i < fileIds.length; i++) {
+				if (!AuthorisedUrlRepository.checkFilenameSyntax(fileIds[i])) {
+					urls.add("");
+				} else if (quotaExceeded) {
+					urls.add(ERROR_QUOTA_EXCEEDED);
+				} else {
+					URL url = urlRepository.createAuthorisedUrl(fileIds[i], useCompression, area, Long.parseLong(sizes[i]));
+					managerClient.urlRequest(username, url);
+					urls.add(url.toString());
+				}
+			}
+			
+			CommandMessage commandReply = new CommandMessage();
+			commandReply.addNamedParameter(ParameterMessage.PARAMETER_FILE_ID_LIST, Strings.delimit(Arrays.asList(fileIds), "\t"));
+			commandReply.addNamedParameter(ParameterMessage.PARAMETER_URL_LIST, Strings.delimit(urls, "\t"));
+			reply = commandReply;
+		}
+		
+		// send reply
+		endpoint.replyToMessage(msg, reply);
+	}
+	
 	private ChipsterMessage createNewURLReply(String fileId, String username, long space, boolean useCompression, FileBrokerArea area) throws Exception {
 		ChipsterMessage reply;
 		if (!AuthorisedUrlRepository.checkFilenameSyntax(fileId)) {
@@ -408,26 +511,77 @@ public class FileServer extends NodeBase implements MessagingListener, DirectMes
 		// parse request
 		CommandMessage requestMessage = (CommandMessage) msg;
 		String fileId = requestMessage.getNamedParameter(ParameterMessage.PARAMETER_FILE_ID);
-		ChipsterMessage reply;
-		URL url = null;
 		
-		// check fileId
-		if (!AuthorisedUrlRepository.checkFilenameSyntax(fileId)) {
-			reply = new CommandMessage(CommandMessage.COMMAND_FILE_OPERATION_DENIED);
-		// find url
-		} else if (filebrokerAreas.fileExists(fileId, FileBrokerArea.CACHE)) {
-			url = urlRepository.constructCacheURL(fileId, "");
-		} else if (filebrokerAreas.fileExists(fileId, FileBrokerArea.STORAGE)) {
-			url = urlRepository.constructStorageURL(fileId, "");
-		}
-
 		// url may be null
-		reply = new UrlMessage(url);
+		ChipsterMessage reply = new UrlMessage(findURL(fileId));
 		
 		// send reply
 		endpoint.replyToMessage(msg, reply);
 	}
 
+	/**
+	 * Bulk version of handleGetURL(). Replies with a list of urls in the same order as the
+	 * requested dataIds. The url is an empty string if the file wasn't found.
+	 */
+	private void handleGetURLs(MessagingEndpoint endpoint, ChipsterMessage msg) throws JMSException, IOException, InterruptedException {
+		
+		// parse request
+		CommandMessage requestMessage = (CommandMessage) msg;
+		String[] fileIds = requestMessage.getNamedParameterAsArray(ParameterMessage.PARAMETER_FILE_ID_LIST);
+		
+		List<Callable<String>> tasks = new LinkedList<>();
+		for (final String fileId : fileIds) {
+			tasks.add(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					URL url = findURL(fileId);
+					return url != null ? url.toString() : "";
+				}
+			});
+		}
+		List<String> urls = invokeAll(tasks);
+		
+		CommandMessage reply = new CommandMessage();
+		reply.addNamedParameter(ParameterMessage.PARAMETER_FILE_ID_LIST, Strings.delimit(Arrays.asList(fileIds), "\t"));
+		reply.addNamedParameter(ParameterMessage.PARAMETER_URL_LIST, Strings.delimit(urls, "\t"));
+		
+		// send reply
+		endpoint.replyToMessage(msg, reply);
+	}
+	
+	/**
+	 * @return url of the file in cache or storage, or null if the fileId is not valid or the file doesn't exist
+	 */
+	private URL findURL(String fileId) throws MalformedURLException {
+		if (!AuthorisedUrlRepository.checkFilenameSyntax(fileId)) {
+			return null;
+		} else if (filebrokerAreas.fileExists(fileId, FileBrokerArea.CACHE)) {
+			return urlRepository.constructCacheURL(fileId, "");
+		} else if (filebrokerAreas.fileExists(fileId, FileBrokerArea.STORAGE)) {
+			return urlRepository.constructStorageURL(fileId, "");
+		}
+		return null;
+	}
+	
+	/**
+	 * Runs the items of a bulk request in parallel and returns the results in the same 
+	 * order as the tasks.
+	 */
+	private List<String> invokeAll(List<Callable<String>> tasks) throws IOException, InterruptedException {
+		LinkedList<String> results = new LinkedList<>();
+		try {
+			for (Future<String> future : bulkRequestExecutor.invokeAll(tasks)) {
+				results.add(future.get());
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+		return results;
+	}
+
 	private void handleIsAvailable(MessagingEndpoint endpoint, ChipsterMessage msg) throws JMSException, SQLException, IOException {
 		
 		// parse request
@@ -464,6 +618,84 @@ public class FileServer extends NodeBase implements MessagingListener, DirectMes
 		endpoint.replyToMessage(msg, reply);
 	}
 
+	/**
+	 * Bulk version of handleIsAvailable(). Checks both cache and storage for each of the
+	 * given dataIds in parallel and replies with a list of the areas where each of them was found
+	 * and a list of their sizes.  
+	 */
+	private void handleAreAvailable(MessagingEndpoint endpoint, ChipsterMessage msg) throws JMSException, SQLException, IOException, InterruptedException {
+		
+		// parse request, empty values are allowed in size and checksum lists
+		CommandMessage requestMessage = (CommandMessage) msg;
+		String[] fileIds = requestMessage.getNamedParameterAsArray(ParameterMessage.PARAMETER_FILE_ID_LIST);
+		String[] sizes = requestMessage.getNamedParameter(ParameterMessage.PARAMETER_SIZE_LIST).split("\t", -1);
+		String[] checksums = requestMessage.getNamedParameter(ParameterMessage.PARAMETER_CHECKSUM_LIST).split("\t", -1);
+
+		ChipsterMessage reply;
+		
+		if (sizes.length < fileIds.length || checksums.length < fileIds.length) {
+			logger.warn("malformed availability request, " + fileIds.length + " dataIds but " + sizes.length + " sizes and " + checksums.length + " checksums");
+			reply = new CommandMessage(CommandMessage.COMMAND_FILE_OPERATION_FAILED);
+			
+		} else {
+			List<Callable<String>> tasks = new LinkedList<>();
+			
+			for (int i = 0; i < fileIds.length; i++) {
+				final String fileId = fileIds[i];
+				final Long size = sizes[i].isEmpty() ? null : Long.parseLong(sizes[i]);
+				final String checksum = checksums[i].isEmpty() ? null : checksums[i];
+
+				tasks.add(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						
+						// check fileId
+						if (!AuthorisedUrlRepository.checkFilenameSyntax(fileId)) {
+							return AREA_CHECK_FAILED;
+						}
+
+						try {
+							if (isAvailable(fileId, size, checksum, FileBrokerArea.CACHE)) {
+								return FileBrokerArea.CACHE.toString();
+							} else if (isAvailable(fileId, size, checksum, FileBrokerArea.STORAGE)) {
+								return FileBrokerArea.STORAGE.toString();
+							} else {
+								return AREA_NOT_AVAILABLE;
+							}
+						} catch (ContentLengthException | ChecksumException e) {
+							logger.info("corrupted data or data id collision (" + fileId + ", " + size + ", " + checksum + ")", e);
+							return AREA_CHECK_FAILED;
+						} catch (ChecksumParseException e) {
+							throw new IOException(e);
+						}
+					}
+				});
+			}
+			List<String> areas = invokeAll(tasks);
+			
+			// sizes of the available files, empty for the others
+			List<String> replySizes = new LinkedList<>();
+			for (int i = 0; i < fileIds.length; i++) {
+				Long size = null;
+				if (FileBrokerArea.CACHE.toString().equals(areas.get(i))) {
+					size = filebrokerAreas.getSize(fileIds[i], FileBrokerArea.CACHE);
+				} else if (FileBrokerArea.STORAGE.toString().equals(areas.get(i))) {
+					size = filebrokerAreas.getSize(fileIds[i], FileBrokerArea.STORAGE);
+				}
+				replySizes.add(size != null ? size.toString() : "");
+			}
+			
+			CommandMessage commandReply = new CommandMessage();
+			commandReply.addNamedParameter(ParameterMessage.PARAMETER_FILE_ID_LIST, Strings.delimit(Arrays.asList(fileIds), "\t"));
+			commandReply.addNamedParameter(ParameterMessage.PARAMETER_AREA_LIST, Strings.delimit(areas, "\t"));
+			commandReply.addNamedParameter(ParameterMessage.PARAMETER_SIZE_LIST, Strings.delimit(replySizes, "\t"));
+			reply = commandReply;
+		}
+
+		// send reply
+		endpoint.replyToMessage(msg, reply);
+	}
+
 	private boolean isAvailable(String fileId, Long size, String checksum, FileBrokerArea area) throws SQLException, ChecksumParseException, IOException, ContentLengthException, ChecksumException {
 				
 		if (!filebrokerAreas.fileExists(fileId, area)) {
@@ -568,29 +800,31 @@ public class FileServer extends NodeBase implements MessagingListener, DirectMes
 	}
 
 	private void storeSession(String username, String name, String sessionId, List<String> fileIds) throws SQLException {
-				
-		// check if we are overwriting previous session
-		String previousSessionUuid = metadataServer.fetchSession(username, name);
-		if (previousSessionUuid != null) {				
-			// move it aside
-			metadataServer.renameSession("_" + name, previousSessionUuid);
-		}
+		synchronized (sessionLock) {
+
+			// check if we are overwriting previous session
+			String previousSessionUuid = metadataServer.fetchSession(username, name);
+			if (previousSessionUuid != null) {				
+				// move it aside
+				metadataServer.renameSession("_" + name, previousSessionUuid);
+			}
 		
-		// store session
-		metadataServer.addSession(username, name, sessionId);
+			// store session
+			metadataServer.addSession(username, name, sessionId);
 		
-		// link files (they have been added when uploaded)
-		for (String fileId : fileIds) {
-			// check if the file is stored in this file broker
-			if (filebrokerAreas.fileExists(fileId, FileBrokerArea.STORAGE)) {
-				metadataServer.linkFileToSession(fileId, sessionId);
+			// link files (they have been added when uploaded)
+			for (String fileId : fileIds) {
+				// check if the file is stored in this file broker
+				if (filebrokerAreas.fileExists(fileId, FileBrokerArea.STORAGE)) {
+					metadataServer.linkFileToSession(fileId, sessionId);
+				}
 			}
-		}
 
-		// remove previous
-		if (previousSessionUuid != null) {
-			removeSession(previousSessionUuid);
-		}					
+			// remove previous
+			if (previousSessionUuid != null) {
+				removeSession(previousSessionUuid);
+			}					
+		}
 	}
 
 	private void handleRemoveSessionRequest(MessagingEndpoint endpoint, final CommandMessage requestMessage) throws JMSException {
@@ -625,16 +859,18 @@ public class FileServer extends NodeBase implements MessagingListener, DirectMes
 	}
 
 	protected void removeSession(String sessionId) throws SQLException {
-		
-		// remove from database (including related data)
-		List<String> removedFiles = metadataServer.removeSession(sessionId);
-
-		// remove from filesystem
-		for (String removedFile : removedFiles) {
-			File dataFile = new File(storageRoot, removedFile);
-			dataFile.delete();
-			Md5FileUtils.removeMd5(dataFile);
-		}		
+		synchronized (sessionLock) {
+			
+			// remove from database (including related data)
+			List<String> removedFiles = metadataServer.removeSession(sessionId);
+
+			// remove from filesystem
+			for (String removedFile : removedFiles) {
+				File dataFile = new File(storageRoot, removedFile);
+				dataFile.delete();
+				Md5FileUtils.removeMd5(dataFile);
+			}
+		}
 	}
 
 	private void handleMoveFromCacheToStorageRequest(final MessagingEndpoint endpoint, final CommandMessage requestMessage) throws JMSException, MalformedURLException {
@@ -693,6 +929,177 @@ public class FileServer extends NodeBase implements MessagingListener, DirectMes
 	}
 	
 	
+	/**
+	 * Bulk version of handleMoveFromCacheToStorageRequest(). The quota is checked once for 
+	 * all files and the files are moved in parallel. Replies with a list of areas, which is
+	 * STORAGE for the files that were moved.
+	 */
+	private void handleMoveAllFromCacheToStorageRequest(final MessagingEndpoint endpoint, final CommandMessage requestMessage) {
+
+		final String[] fileIds = requestMessage.getNamedParameterAsArray(ParameterMessage.PARAMETER_FILE_ID_LIST);
+		logger.debug("move request for " + fileIds.length + " files");
+		
+		longRunningTaskExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+
+				ChipsterMessage reply;
+				try {
+					// check ids and sizes
+					long totalSize = 0;
+					final boolean[] inCache = new boolean[fileIds.length];
+					for (int i = 0; i < fileIds.length; i++) {
+						if (AuthorisedUrlRepository.checkFilenameSyntax(fileIds[i]) && filebrokerAreas.fileExists(fileIds[i], FileBrokerArea.CACHE)) {
+							inCache[i] = true;
+							totalSize += filebrokerAreas.getSize(fileIds[i], FileBrokerArea.CACHE);
+						}
+					}
+
+					List<String> areas;
+					if (!checkQuota(requestMessage.getUsername(), totalSize)) {
+						areas = new LinkedList<>();
+						for (int i = 0; i < fileIds.length; i++) {
+							areas.add(inCache[i] ? ERROR_QUOTA_EXCEEDED : AREA_NOT_AVAILABLE);
+						}
+					} else {
+						
+						// move
+						List<Callable<String>> tasks = new LinkedList<>();
+						for (int i = 0; i < fileIds.length; i++) {
+							final String fileId = fileIds[i];
+							final boolean move = inCache[i];
+							tasks.add(new Callable<String>() {
+								@Override
+								public String call() throws Exception {
+									if (!move) {
+										return AREA_NOT_AVAILABLE;
+									}
+									try {
+										if (filebrokerAreas.moveFromCacheToStorage(fileId)) {
+
+											// add to db
+											long size = filebrokerAreas.getSize(fileId, FileBrokerArea.STORAGE);
+											metadataServer.addFile(fileId, size);
+											return FileBrokerArea.STORAGE.toString();
+										}
+										logger.warn("could not move from cache to storage: " + fileId);
+									} catch (Exception e) {
+										logger.warn("could not move from cache to storage: " + fileId, e);
+									}
+									return AREA_NOT_AVAILABLE;
+								}
+							});
+						}
+						areas = invokeAll(tasks);
+					}
+					
+					CommandMessage commandReply = new CommandMessage();
+					commandReply.addNamedParameter(ParameterMessage.PARAMETER_FILE_ID_LIST, Strings.delimit(Arrays.asList(fileIds), "\t"));
+					commandReply.addNamedParameter(ParameterMessage.PARAMETER_AREA_LIST, Strings.delimit(areas, "\t"));
+					reply = commandReply;
+					
+				} catch (Exception e) {
+					logger.error("could not move files from cache to storage", e);
+					reply = new CommandMessage(CommandMessage.COMMAND_FILE_OPERATION_FAILED);
+				}
+
+				// send reply
+				try {
+					endpoint.replyToMessage(requestMessage, reply);
+
+				} catch (JMSException e) {
+					logger.error("could not send reply message", e);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Copy files from storage to cache with new dataIds. Replies with a list of areas, which is
+	 * CACHE for the files that were copied.
+	 */
+	private void handleCopyFromStorageToCacheRequest(final MessagingEndpoint endpoint, final CommandMessage requestMessage) {
+
+		final String[] fileIds = requestMessage.getNamedParameterAsArray(ParameterMessage.PARAMETER_FILE_ID_LIST);
+		final String[] newFileIds = requestMessage.getNamedParameterAsArray(ParameterMessage.PARAMETER_NEW_FILE_ID_LIST);
+		logger.debug("copy request for " + fileIds.length + " files");
+		
+		longRunningTaskExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+
+				ChipsterMessage reply;
+				try {
+					if (fileIds.length != newFileIds.length) {
+						throw new IllegalArgumentException("lengths of the id lists differ");
+					}
+					
+					// check ids and sizes
+					long totalSize = 0;
+					final boolean[] inStorage = new boolean[fileIds.length];
+					for (int i = 0; i < fileIds.length; i++) {
+						if (AuthorisedUrlRepository.checkFilenameSyntax(fileIds[i]) && AuthorisedUrlRepository.checkFilenameSyntax(newFileIds[i]) 
+								&& filebrokerAreas.fileExists(fileIds[i], FileBrokerArea.STORAGE)) {
+							inStorage[i] = true;
+							totalSize += filebrokerAreas.getSize(fileIds[i], FileBrokerArea.STORAGE);
+						}
+					}
+					
+					List<String> areas = new LinkedList<>();
+					if (!cacheCleanUp.spaceRequest(totalSize, true, null)) {
+						for (int i = 0; i < fileIds.length; i++) {
+							areas.add(AREA_NOT_AVAILABLE);
+						}
+					} else {
+						
+						// copy
+						List<Callable<String>> tasks = new LinkedList<>();
+						for (int i = 0; i < fileIds.length; i++) {
+							final String fileId = fileIds[i];
+							final String newFileId = newFileIds[i];
+							final boolean copy = inStorage[i];
+							tasks.add(new Callable<String>() {
+								@Override
+								public String call() throws Exception {
+									if (copy) {
+										try {
+											if (filebrokerAreas.copyFromStorageToCache(fileId, newFileId)) {
+												return FileBrokerArea.CACHE.toString();
+											}
+										} catch (IOException e) {
+											logger.warn("could not copy from storage to cache: " + fileId, e);
+										}
+									}
+									return AREA_NOT_AVAILABLE;
+								}
+							});
+						}
+						areas = invokeAll(tasks);
+					}
+					
+					CommandMessage commandReply = new CommandMessage();
+					commandReply.addNamedParameter(ParameterMessage.PARAMETER_FILE_ID_LIST, Strings.delimit(Arrays.asList(newFileIds), "\t"));
+					commandReply.addNamedParameter(ParameterMessage.PARAMETER_AREA_LIST, Strings.delimit(areas, "\t"));
+					reply = commandReply;
+					
+				} catch (Exception e) {
+					logger.error("could not copy files from storage to cache", e);
+					reply = new CommandMessage(CommandMessage.COMMAND_FILE_OPERATION_FAILED);
+				}
+
+				// send reply
+				try {
+					endpoint.replyToMessage(requestMessage, reply);
+
+				} catch (JMSException e) {
+					logger.error("could not send reply message", e);
+				}
+			}
+		});
+	}
+	
 	private boolean checkQuota(String username, long additionalBytes) throws SQLException {
 		if (defaultUserQuota == -1) {
 			logger.debug("quota limit disabled");
@@ -714,6 +1121,8 @@ public class FileServer extends NodeBase implements MessagingListener, DirectMes
 		} catch (JMSException e) {
 			logger.error("closing messaging endpoint failed", e);
 		}
+		
+		bulkRequestExecutor.shutdown();
 
 		logger.info("shutting down");
 	}
@@ -9,6 +9,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
@@ -16,8 +17,12 @@ import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 import java.util.zip.InflaterInputStream;
@@ -168,6 +173,12 @@ public class JMSFileBrokerClient implements FileBrokerClient {
 			
 		}
 
+		return addFile(url, file, contentLength, progressListener);
+	}
+	
+	@Override
+	public String addFile(URL url, InputStream file, long contentLength, CopyProgressListener progressListener) throws FileBrokerException, IOException {
+		
 		// Upload the stream into a file at filebroker
 		logger.debug("uploading new file: " + url);
 		String md5;
@@ -183,6 +194,11 @@ public class JMSFileBrokerClient implements FileBrokerClient {
 	
 	@Override
 	public ChecksumInputStream getInputStream(String dataId) throws IOException, FileBrokerException {
+		return getInputStream(dataId, 0);
+	}
+	
+	@Override
+	public ChecksumInputStream getInputStream(String dataId, long offset) throws IOException, FileBrokerException {
 		URL url = null;
 		try {
 			url = getURL(dataId);
@@ -194,15 +210,30 @@ public class JMSFileBrokerClient implements FileBrokerClient {
 			throw new FileNotFoundException("file not found or filebroker didn't respond: " + dataId);
 		}
 		
+		return getInputStream(url, offset);
+	}
+	
+	private ChecksumInputStream getInputStream(URL url, long offset) throws IOException {
+		boolean isCompressed = url.toString().endsWith(".compressed");
 		InputStream payload = null;
 
 		URLConnection connection = null;
+		boolean isPartial = false;
 		try {
 			// make sure http cache is disabled
 			connection = url.openConnection();
 			connection.setUseCaches(false);
-			KeyAndTrustManager.configureForChipsterCertificate(connection);			
+			KeyAndTrustManager.configureForChipsterCertificate(connection);
+			
+			// offsets of compressed files don't match, so those must be skipped after decompression
+			if (offset > 0 && !isCompressed) {
+				connection.setRequestProperty("Range", "bytes=" + offset + "-");
+			}
 			connection.connect();
+			
+			if (connection instanceof HttpURLConnection) {
+				isPartial = ((HttpURLConnection)connection).getResponseCode() == HttpURLConnection.HTTP_PARTIAL;
+			}
 
 			// open stream
 			payload = connection.getInputStream();
@@ -215,11 +246,24 @@ public class JMSFileBrokerClient implements FileBrokerClient {
 		// detect compression
 		
 		InputStream stream = payload;
-		if (url.toString().endsWith(".compressed")) {
+		if (isCompressed) {
 			stream = new InflaterInputStream(payload);
 		}
 		
-		return new ChecksumInputStream(stream, useChecksums, connection);			
+		// server didn't support the range request, skip manually
+		if (offset > 0 && !isPartial) {
+			long skipped = 0;
+			while (skipped < offset) {
+				long n = stream.skip(offset - skipped);
+				if (n <= 0) {
+					IOUtils.closeIfPossible(stream);
+					throw new IOException("could not skip to offset " + offset + ": " + url);
+				}
+				skipped += n;
+			}
+		}
+		
+		return new ChecksumInputStream(stream, useChecksums && offset == 0, connection);			
 	}
 
 	
@@ -258,21 +302,50 @@ public class JMSFileBrokerClient implements FileBrokerClient {
 			
 		} else {
 			// Not available locally, need to download
-			ChecksumInputStream inputStream = null;
-			OutputStream fileStream = null;
-			try {
-				// Download to file
-				inputStream = getInputStream(dataId);				
-				fileStream = new FileOutputStream(destFile);
-				
-				IOUtils.copy(new BufferedInputStream(inputStream), new BufferedOutputStream(fileStream));
-				
-				inputStream.verifyChecksums();
-				
-			} finally {
-				IOUtils.closeIfPossible(inputStream);
-				IOUtils.closeIfPossible(fileStream);
+			download(getInputStream(dataId), destFile);
+		}
+	}
+	
+	@Override
+	public void getFiles(UUID sessionId, List<String> dataIds, List<File> destFiles, CancelCheck cancelCheck) throws IOException, FileBrokerException, ChecksumException {
+		
+		// local files don't need urls
+		if (localFilebrokerCache != null && localFilebrokerStorage != null) {
+			for (int i = 0; i < dataIds.size(); i++) {
+				if (cancelCheck != null && cancelCheck.isCancelled()) {
+					return;
+				}
+				getFile(sessionId, dataIds.get(i), destFiles.get(i));
+			}
+			return;
+		}
+		
+		Map<String, URL> urls = getURLs(new ArrayList<>(new LinkedHashSet<>(dataIds)));
+		for (int i = 0; i < dataIds.size(); i++) {
+			if (cancelCheck != null && cancelCheck.isCancelled()) {
+				return;
 			}
+			URL url = urls.get(dataIds.get(i));
+			if (url == null) {
+				throw new FileNotFoundException("file not found: " + dataIds.get(i));
+			}
+			download(getInputStream(url, 0), destFiles.get(i));
+		}
+	}
+	
+	private void download(ChecksumInputStream inputStream, File destFile) throws IOException, ChecksumException {
+		OutputStream fileStream = null;
+		try {
+			// Download to file
+			fileStream = new FileOutputStream(destFile);
+			
+			IOUtils.copy(new BufferedInputStream(inputStream), new BufferedOutputStream(fileStream));
+			
+			inputStream.verifyChecksums();
+			
+		} finally {
+			IOUtils.closeIfPossible(inputStream);
+			IOUtils.closeIfPossible(fileStream);
 		}
 	}
 
@@ -311,6 +384,112 @@ public class JMSFileBrokerClient implements FileBrokerClient {
 		}
 	}
 
+	@Override
+	public Map<String, FileBrokerArea> areAvailable(List<String> dataIds, List<Long> contentLengths, List<String> checksums) throws FileBrokerException {
+		
+		Map<String, FileBrokerArea> availableAreas = new HashMap<>();
+		if (dataIds.isEmpty()) {
+			return availableAreas;
+		}
+		
+		ParameterMessage reply = requestAvailability(dataIds, contentLengths, checksums);
+		String[] replyIds = reply.getNamedParameterAsArray(ParameterMessage.PARAMETER_FILE_ID_LIST);
+		String[] replyAreas = reply.getNamedParameterAsArray(ParameterMessage.PARAMETER_AREA_LIST);
+		
+		for (int i = 0; i < replyIds.length; i++) {
+			if (!FileServer.AREA_NOT_AVAILABLE.equals(replyAreas[i])) {
+				availableAreas.put(replyIds[i], FileBrokerArea.valueOf(replyAreas[i]));
+			}
+		}
+		return availableAreas;
+	}
+	
+	@Override
+	public Map<String, Long> getContentLengths(List<String> dataIds) throws FileBrokerException {
+		
+		Map<String, Long> contentLengths = new HashMap<>();
+		if (dataIds.isEmpty()) {
+			return contentLengths;
+		}
+		
+		List<Long> noLengths = new LinkedList<>();
+		List<String> noChecksums = new LinkedList<>();
+		for (int i = 0; i < dataIds.size(); i++) {
+			noLengths.add(null);
+			noChecksums.add(null);
+		}
+		
+		ParameterMessage reply = requestAvailability(dataIds, noLengths, noChecksums);
+		String[] replyIds = reply.getNamedParameterAsArray(ParameterMessage.PARAMETER_FILE_ID_LIST);
+		String sizeList = reply.getNamedParameter(ParameterMessage.PARAMETER_SIZE_LIST);
+		if (sizeList == null) {
+			// filebroker is older than this client
+			return contentLengths;
+		}
+		String[] replySizes = sizeList.split("\t", -1);
+		
+		for (int i = 0; i < replyIds.length && i < replySizes.length; i++) {
+			if (!replySizes[i].isEmpty()) {
+				contentLengths.put(replyIds[i], Long.parseLong(replySizes[i]));
+			}
+		}
+		return contentLengths;
+	}
+	
+	/**
+	 * @return reply with as many ids as areas and without corrupted files
+	 */
+	private ParameterMessage requestAvailability(List<String> dataIds, List<Long> contentLengths, List<String> checksums) throws FileBrokerException {
+		ReplyMessageListener replyListener = new ReplyMessageListener();  
+		try {
+			
+			// null values are sent as empty strings
+			LinkedList<String> contentLengthStrings = new LinkedList<>();
+			for (Long contentLength : contentLengths) {
+				contentLengthStrings.add(contentLength != null ? contentLength.toString() : "");
+			}
+			LinkedList<String> checksumStrings = new LinkedList<>();
+			for (String checksum : checksums) {
+				checksumStrings.add(checksum != null ? checksum : "");
+			}
+			
+			CommandMessage requestMessage = new CommandMessage(CommandMessage.COMMAND_ARE_AVAILABLE);
+			requestMessage.addNamedParameter(ParameterMessage.PARAMETER_FILE_ID_LIST, Strings.delimit(dataIds, "\t"));
+			requestMessage.addNamedParameter(ParameterMessage.PARAMETER_SIZE_LIST, Strings.delimit(contentLengthStrings, "\t"));
+			requestMessage.addNamedParameter(ParameterMessage.PARAMETER_CHECKSUM_LIST, Strings.delimit(checksumStrings, "\t"));
+			filebrokerTopic.sendReplyableMessage(requestMessage, replyListener);
+			
+			// wait
+			ParameterMessage reply = replyListener.waitForReply(QUICK_POLL_OPERATION_TIMEOUT, TimeUnit.SECONDS);
+			
+			// check how it went
+			if (reply == null) {
+				throw new RuntimeException("timeout while waiting for the filebroker");
+			}
+			
+			if (reply.getNamedParameter(ParameterMessage.PARAMETER_FILE_ID_LIST) == null || reply.getNamedParameter(ParameterMessage.PARAMETER_AREA_LIST) == null) {
+				throw new FileBrokerException("availability check failed");
+			}
+			
+			String[] replyIds = reply.getNamedParameterAsArray(ParameterMessage.PARAMETER_FILE_ID_LIST);
+			String[] replyAreas = reply.getNamedParameterAsArray(ParameterMessage.PARAMETER_AREA_LIST);
+			if (replyIds.length != replyAreas.length) {
+				throw new FileBrokerException("availability check failed");
+			}
+			
+			for (int i = 0; i < replyIds.length; i++) {
+				if (FileServer.AREA_CHECK_FAILED.equals(replyAreas[i])) {
+					throw new FileBrokerException("corrupted data or data id collision: " + replyIds[i]);
+				}
+			}
+			return reply;
+			
+		} catch (JMSException | AuthCancelledException e) {
+			throw new FileBrokerException(e);
+		} finally {
+			replyListener.cleanUp();
+		}
+	}
 	
 	@Override
 	public boolean moveFromCacheToStorage(String dataId) throws FileBrokerException, AuthCancelledException {
@@ -345,6 +524,97 @@ public class JMSFileBrokerClient implements FileBrokerClient {
 		}
 	}
 	
+	@Override
+	public List<String> moveFromCacheToStorage(List<String> dataIds) throws FileBrokerException, AuthCancelledException {
+		logger.debug("moving " + dataIds.size() + " files from cache to storage");
+		
+		LinkedList<String> moved = new LinkedList<>();
+		if (dataIds.isEmpty()) {
+			return moved;
+		}
+		
+		ReplyMessageListener replyListener = new ReplyMessageListener();  
+		try {
+			
+			// ask file broker to move them
+			CommandMessage moveRequestMessage = new CommandMessage(CommandMessage.COMMAND_MOVE_ALL_FROM_CACHE_TO_STORAGE);
+			moveRequestMessage.addNamedParameter(ParameterMessage.PARAMETER_FILE_ID_LIST, Strings.delimit(dataIds, "\t"));
+			filebrokerTopic.sendReplyableMessage(moveRequestMessage, replyListener);
+			
+			// wait
+			ParameterMessage reply = replyListener.waitForReply(MOVE_FROM_CACHE_TO_STORAGE_TIMEOUT, TimeUnit.HOURS);
+			
+			// check how it went
+			if (reply == null) {
+				throw new RuntimeException("timeout while waiting for the filebroker");
+			}
+			
+			String[] replyIds = parseList(reply, ParameterMessage.PARAMETER_FILE_ID_LIST);
+			String[] replyAreas = parseList(reply, ParameterMessage.PARAMETER_AREA_LIST);
+			if (replyIds == null || replyAreas == null || replyIds.length != replyAreas.length) {
+				throw new FileBrokerException("move from cache to storage failed");
+			}
+			
+			for (int i = 0; i < replyIds.length; i++) {
+				if (FileServer.ERROR_QUOTA_EXCEEDED.equals(replyAreas[i])) {
+					throw new QuotaExceededException();
+				} else if (FileBrokerArea.STORAGE.toString().equals(replyAreas[i])) {
+					moved.add(replyIds[i]);
+				}
+			}
+			return moved;
+			
+		} catch (JMSException e) {
+			throw new FileBrokerException(e);
+		} finally {
+			replyListener.cleanUp();
+		}
+	}
+	
+	@Override
+	public List<String> copyFromStorageToCache(List<String> dataIds, List<String> newDataIds) throws FileBrokerException {
+		logger.debug("copying " + dataIds.size() + " files from storage to cache");
+		
+		LinkedList<String> copied = new LinkedList<>();
+		if (dataIds.isEmpty()) {
+			return copied;
+		}
+		
+		ReplyMessageListener replyListener = new ReplyMessageListener();  
+		try {
+			CommandMessage copyRequestMessage = new CommandMessage(CommandMessage.COMMAND_COPY_FROM_STORAGE_TO_CACHE);
+			copyRequestMessage.addNamedParameter(ParameterMessage.PARAMETER_FILE_ID_LIST, Strings.delimit(dataIds, "\t"));
+			copyRequestMessage.addNamedParameter(ParameterMessage.PARAMETER_NEW_FILE_ID_LIST, Strings.delimit(newDataIds, "\t"));
+			filebrokerTopic.sendReplyableMessage(copyRequestMessage, replyListener);
+			
+			// wait, copying may need a cache clean-up first
+			ParameterMessage reply = replyListener.waitForReply(SPACE_REQUEST_TIMEOUT, TimeUnit.SECONDS);
+			
+			// check how it went
+			if (reply == null) {
+				throw new FileBrokerException("timeout while waiting for the filebroker");
+			}
+			
+			String[] replyIds = parseList(reply, ParameterMessage.PARAMETER_FILE_ID_LIST);
+			String[] replyAreas = parseList(reply, ParameterMessage.PARAMETER_AREA_LIST);
+			if (replyIds == null || replyAreas == null || replyIds.length != replyAreas.length) {
+				throw new FileBrokerException("copy from storage to cache failed");
+			}
+			
+			for (int i = 0; i < replyIds.length; i++) {
+				if (FileBrokerArea.CACHE.toString().equals(replyAreas[i])) {
+					copied.add(replyIds[i]);
+				}
+			}
+			return copied;
+			
+		} catch (JMSException | AuthCancelledException e) {
+			throw new FileBrokerException(e);
+		} finally {
+			replyListener.cleanUp();
+		}
+	}
+	
 	/**
 	 * @see fi.csc.microarray.filebroker.FileBrokerClient#getPublicFiles()
 	 */
@@ -597,6 +867,133 @@ public class JMSFileBrokerClient implements FileBrokerClient {
 		return getURL(dataId).toExternalForm();
 	}
 
+	@Override
+	public Map<String, String> getExternalURLs(List<String> dataIds) throws FileBrokerException, MalformedURLException {
+		Map<String, String> externalUrls = new HashMap<>();
+		for (Map.Entry<String, URL> entry : getURLs(dataIds).entrySet()) {
+			externalUrls.put(entry.getKey(), entry.getValue().toExternalForm());
+		}
+		return externalUrls;
+	}
+	
+	/**
+	 * Bulk version of getURL().
+	 * 
+	 * @return url of each dataId, dataIds that were not found are not included
+	 */
+	private Map<String, URL> getURLs(List<String> dataIds) throws FileBrokerException, MalformedURLException {
+		
+		logger.debug("getting urls for " + dataIds.size() + " dataIds");
+		
+		Map<String, URL> urls = new HashMap<>();
+		if (dataIds.isEmpty()) {
+			return urls;
+		}
+		
+		ReplyMessageListener replyListener = new ReplyMessageListener();  
+		try {
+			CommandMessage getURLsMessage = new CommandMessage(CommandMessage.COMMAND_GET_URLS);
+			getURLsMessage.addNamedParameter(ParameterMessage.PARAMETER_FILE_ID_LIST, Strings.delimit(dataIds, "\t"));
+	
+			filebrokerTopic.sendReplyableMessage(getURLsMessage, replyListener);
+			ParameterMessage reply = replyListener.waitForReply(QUICK_POLL_OPERATION_TIMEOUT, TimeUnit.SECONDS);
+			
+			// check how it went
+			if (reply == null) {
+				throw new RuntimeException("timeout while waiting for the filebroker");
+			}
+			
+			String[] replyIds = parseList(reply, ParameterMessage.PARAMETER_FILE_ID_LIST);
+			String[] replyUrls = parseList(reply, ParameterMessage.PARAMETER_URL_LIST);
+			if (replyIds == null || replyUrls == null || replyIds.length != replyUrls.length) {
+				throw new FileBrokerException("getting urls failed");
+			}
+			
+			// empty url means that the file wasn't found
+			for (int i = 0; i < replyIds.length; i++) {
+				if (!replyUrls[i].isEmpty()) {
+					urls.put(replyIds[i], applyOverridingFilebrokerIp(new URL(replyUrls[i])));
+				}
+			}
+			return urls;
+			
+		} catch (JMSException | AuthCancelledException e) {
+			throw new FileBrokerException(e);
+		} finally {
+			replyListener.cleanUp();
+		}
+	}
+	
+	@Override
+	public Map<String, URL> getNewURLs(List<String> dataIds, List<Long> contentLengths, FileBrokerArea area) throws FileBrokerException, MalformedURLException {
+		
+		logger.debug("getting new urls for " + dataIds.size() + " dataIds");
+		
+		Map<String, URL> urls = new HashMap<>();
+		if (dataIds.isEmpty()) {
+			return urls;
+		}
+		
+		ReplyMessageListener replyListener = new ReplyMessageListener();  
+		try {
+			LinkedList<String> contentLengthStrings = new LinkedList<>();
+			for (Long contentLength : contentLengths) {
+				contentLengthStrings.add(contentLength.toString());
+			}
+			
+			CommandMessage urlRequestMessage = new CommandMessage(CommandMessage.COMMAND_NEW_URLS_REQUEST);
+			urlRequestMessage.addNamedParameter(ParameterMessage.PARAMETER_FILE_ID_LIST, Strings.delimit(dataIds, "\t"));
+			urlRequestMessage.addNamedParameter(ParameterMessage.PARAMETER_SIZE_LIST, Strings.delimit(contentLengthStrings, "\t"));
+			urlRequestMessage.addNamedParameter(ParameterMessage.PARAMETER_AREA, area.toString());
+			if (useCompression) {
+				urlRequestMessage.addParameter(ParameterMessage.PARAMETER_USE_COMPRESSION);
+			}
+	
+			filebrokerTopic.sendReplyableMessage(urlRequestMessage, replyListener);
+			ParameterMessage reply = replyListener.waitForReply(SPACE_REQUEST_TIMEOUT, TimeUnit.SECONDS);
+			
+			// check how it went
+			if (reply == null) {
+				throw new FileBrokerException("filebroker is not responding");
+			}
+			
+			String[] replyIds = parseList(reply, ParameterMessage.PARAMETER_FILE_ID_LIST);
+			String[] replyUrls = parseList(reply, ParameterMessage.PARAMETER_URL_LIST);
+			if (replyIds == null || replyUrls == null || replyIds.length != replyUrls.length) {
+				throw new FileBrokerException("getting new urls failed");
+			}
+			
+			for (int i = 0; i < replyIds.length; i++) {
+				if (FileServer.ERROR_QUOTA_EXCEEDED.equals(replyUrls[i])) {
+					throw new QuotaExceededException();
+				} else if (replyUrls[i].isEmpty()) {
+					throw new FileBrokerException("new url denied: " + replyIds[i]);
+				}
+				urls.put(replyIds[i], applyOverridingFilebrokerIp(new URL(replyUrls[i])));
+			}
+			return urls;
+			
+		} catch (JMSException | AuthCancelledException e) {
+			throw new FileBrokerException(e);
+		} finally {
+			replyListener.cleanUp();
+		}
+	}
+	
+	/**
+	 * Splits a tab separated list of a bulk reply, keeping the empty items. Bulk requests 
+	 * are never sent without items, so an empty string is a list of one empty item.
+	 *  
+	 * @return null if the list is missing
+	 */
+	private String[] parseList(ParameterMessage reply, String key) {
+		String tabSeparated = reply.getNamedParameter(key);
+		if (tabSeparated == null) {
+			return null;
+		}
+		return tabSeparated.split("\t", -1);
+	}
+
 	@Override
 	public Long getContentLength(String dataId) throws IOException, FileBrokerException {
 		URL url = getURL(dataId);
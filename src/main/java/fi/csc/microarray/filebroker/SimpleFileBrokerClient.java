@@ -10,6 +10,7 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import fi.csc.microarray.config.DirectoryLayout;
@@ -38,6 +39,11 @@ public class SimpleFileBrokerClient implements FileBrokerClient {
 	public ChecksumInputStream getInputStream(String dataId) throws IOException {
 		throw new UnsupportedOperationException();
 	}
+
+	@Override
+	public ChecksumInputStream getInputStream(String dataId, long offset) throws IOException {
+		throw new UnsupportedOperationException();
+	}
 	
 	@Override
 	public List<URL> getPublicFiles() throws FileBrokerException, MalformedURLException {
@@ -69,6 +75,21 @@ public class SimpleFileBrokerClient implements FileBrokerClient {
 		throw new UnsupportedOperationException();
 	}
 
+	@Override
+	public void getFiles(UUID sessionId, List<String> dataIds, List<File> files, CancelCheck cancelCheck) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public String addFile(URL url, InputStream content, long contentLength, CopyProgressListener progressListener) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Map<String, URL> getNewURLs(List<String> dataIds, List<Long> contentLengths, FileBrokerArea area) {
+		throw new UnsupportedOperationException();
+	}
+
 	@Override
 	public void addFile(UUID jobId, UUID sessionId, String dataId, FileBrokerArea area, File file, CopyProgressListener progressListener, String datsetName) throws FileBrokerException, IOException {
 		throw new UnsupportedOperationException();
@@ -100,11 +121,26 @@ public class SimpleFileBrokerClient implements FileBrokerClient {
 		throw new UnsupportedOperationException();
 	}
 
+	@Override
+	public Map<String, FileBrokerArea> areAvailable(List<String> dataIds, List<Long> contentLengths, List<String> checksums) {
+		throw new UnsupportedOperationException();
+	}
+
 	@Override
 	public boolean moveFromCacheToStorage(String dataId) {
 		throw new UnsupportedOperationException();
 	}
 
+	@Override
+	public List<String> moveFromCacheToStorage(List<String> dataIds) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public List<String> copyFromStorageToCache(List<String> dataIds, List<String> newDataIds) {
+		throw new UnsupportedOperationException();
+	}
+
 	@Override
 	public List<DbSession> listPublicRemoteSessions() throws FileBrokerException {
 		throw new UnsupportedOperationException();
@@ -116,12 +152,22 @@ public class SimpleFileBrokerClient implements FileBrokerClient {
 		throw new UnsupportedOperationException();
 	}
 
+	@Override
+	public Map<String, String> getExternalURLs(List<String> dataIds) {
+		throw new UnsupportedOperationException();
+	}
+
 	@Override
 	public Long getContentLength(String dataId) throws IOException,
 	FileBrokerException, FileBrokerException {
 		throw new UnsupportedOperationException();
 	}
 
+	@Override
+	public Map<String, Long> getContentLengths(List<String> dataIds) {
+		throw new UnsupportedOperationException();
+	}
+
 	@Override
 	public StorageEntryMessageListener getStorageUsage() throws FileBrokerException,
 			InterruptedException {
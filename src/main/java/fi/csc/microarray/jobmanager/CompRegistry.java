@@ -0,0 +1,197 @@
+package fi.csc.microarray.jobmanager;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Free capacity of the comps, as reported in their periodic heartbeats. The jobmanager
+ * uses this to assign each job directly to one comp, instead of offering all waiting
+ * jobs to all comps.
+ *
+ * The free slots of a comp are decreased when a job is assigned to it and replaced with
+ * the real value in the next heartbeat. The jobmanager doesn't know the slot count of the
+ * tool, so one slot is reserved until a comp declines the job and reports the slot count.
+ * A decline because of too few free slots is forgotten when the comp reports enough free 
+ * slots for the job.
+ */
+public class CompRegistry {
+
+	public static class CompStatus {
+		private String compId;
+		private String host;
+		private int freeSlots;
+		private int runningJobs;
+		private double load;
+		private long lastSeen;
+
+		public String getCompId() {
+			return compId;
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		public int getFreeSlots() {
+			return freeSlots;
+		}
+
+		public int getRunningJobs() {
+			return runningJobs;
+		}
+
+		public double getLoad() {
+			return load;
+		}
+	}
+
+	/**
+	 * What is known about the requirements of a waiting job.
+	 */
+	private static class Reservation {
+		private int slots = 1;
+		// comps that didn't have enough free slots
+		private Set<String> busy = new HashSet<String>();
+		// comps that can't run the job at all
+		private Set<String> unable = new HashSet<String>();
+	}
+
+	private long timeout;
+	private Map<String, CompStatus> comps = new HashMap<String, CompStatus>();
+	private Map<String, Reservation> reservations = new HashMap<String, Reservation>();
+
+	/**
+	 * @param timeout milliseconds after the last heartbeat when the comp is removed
+	 */
+	public CompRegistry(long timeout) {
+		this.timeout = timeout;
+	}
+
+	public synchronized void update(String compId, String host, int freeSlots, int runningJobs, double load) {
+		CompStatus status = comps.get(compId);
+		if (status == null) {
+			status = new CompStatus();
+			status.compId = compId;
+			comps.put(compId, status);
+		}
+		status.host = host;
+		status.freeSlots = freeSlots;
+		status.runningJobs = runningJobs;
+		status.load = load;
+		status.lastSeen = System.currentTimeMillis();
+
+		// the comp can take the jobs that it declined when it was busy
+		for (Reservation reservation : reservations.values()) {
+			if (freeSlots >= reservation.slots) {
+				reservation.busy.remove(compId);
+			}
+		}
+	}
+
+	/**
+	 * Select a comp for the job and reserve the slots of the job from it. The comp with most
+	 * free slots is selected, or the one with the lowest load if there are several.
+	 *
+	 * @return null if none of the comps has enough free slots
+	 */
+	public synchronized CompStatus reserve(String jobId) {
+		Reservation reservation = reservations.get(jobId);
+		int slots = reservation != null ? reservation.slots : 1;
+		CompStatus best = null;
+		for (CompStatus status : comps.values()) {
+			if (status.freeSlots < slots || (reservation != null && 
+					(reservation.busy.contains(status.compId) || reservation.unable.contains(status.compId)))) {
+				continue;
+			}
+			if (best == null || status.freeSlots > best.freeSlots ||
+					(status.freeSlots == best.freeSlots && status.load < best.load)) {
+				best = status;
+			}
+		}
+		if (best != null) {
+			best.freeSlots -= slots;
+		}
+		return best;
+	}
+
+	/**
+	 * Don't assign this job to the same comp again until the comp reports enough free slots
+	 * for it. The comp is also considered full until its next heartbeat.
+	 *
+	 * @param slots slot count of the job, as reported by the comp, or null if the comp can't
+	 * run the job at all
+	 */
+	public synchronized void declined(String jobId, String compId, Integer slots) {
+		Reservation reservation = reservations.get(jobId);
+		if (reservation == null) {
+			reservation = new Reservation();
+			reservations.put(jobId, reservation);
+		}
+		if (slots != null) {
+			reservation.slots = Math.max(slots, 1);
+			reservation.busy.add(compId);
+		} else {
+			reservation.unable.add(compId);
+		}
+
+		CompStatus status = comps.get(compId);
+		if (status != null) {
+			status.freeSlots = 0;
+		}
+	}
+
+	/**
+	 * Forget the declines of a job when it's not waiting anymore.
+	 */
+	public synchronized void jobDone(String jobId) {
+		reservations.remove(jobId);
+	}
+
+	public synchronized boolean isEmpty() {
+		return comps.isEmpty();
+	}
+
+	public synchronized boolean hasFreeSlots() {
+		for (CompStatus status : comps.values()) {
+			if (status.freeSlots > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Remove comps that haven't sent a heartbeat within the timeout.
+	 *
+	 * @return ids of the removed comps
+	 */
+	public synchronized List<String> removeExpired() {
+		List<String> removed = new LinkedList<String>();
+		long now = System.currentTimeMillis();
+		Iterator<CompStatus> iterator = comps.values().iterator();
+		while (iterator.hasNext()) {
+			CompStatus status = iterator.next();
+			if (now - status.lastSeen > timeout) {
+				iterator.remove();
+				removed.add(status.compId);
+			}
+		}
+		return removed;
+	}
+
+	public synchronized String getStatusReport() {
+		String report = "";
+		for (CompStatus status : comps.values()) {
+			report += status.host + " " + status.compId +
+					": free slots " + status.freeSlots +
+					", running jobs " + status.runningJobs +
+					", load " + status.load + "\n";
+		}
+		return report;
+	}
+}
@@ -5,6 +5,8 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import javax.jms.Destination;
 import javax.jms.JMSException;
@@ -16,6 +18,7 @@ import com.google.gson.Gson;
 import fi.csc.microarray.config.Configuration;
 import fi.csc.microarray.config.DirectoryLayout;
 import fi.csc.microarray.constants.ApplicationConstants;
+import fi.csc.microarray.jobmanager.CompRegistry.CompStatus;
 import fi.csc.microarray.jobmanager.model.Job;
 import fi.csc.microarray.jobmanager.model.JobManagerDB;
 import fi.csc.microarray.messaging.JMSMessagingEndpoint;
@@ -25,6 +28,7 @@ import fi.csc.microarray.messaging.MessagingListener;
 import fi.csc.microarray.messaging.MessagingTopic;
 import fi.csc.microarray.messaging.MessagingTopic.AccessMode;
 import fi.csc.microarray.messaging.MonitoredNodeBase;
+import fi.csc.microarray.messaging.OrderedDispatchListener;
 import fi.csc.microarray.messaging.Topics;
 import fi.csc.microarray.messaging.message.ChipsterMessage;
 import fi.csc.microarray.messaging.message.CommandMessage;
@@ -54,6 +58,12 @@ public class JobManager extends MonitoredNodeBase implements MessagingListener,
 	
 	private JobManagerDB jobsDb;
 	
+	private CompRegistry compRegistry;
+	
+	// messages are handled in parallel, but only one thread at a time reads and updates 
+	// the job states, so that an update isn't lost or made to an old copy of the job
+	private Object jobStateLock = new Object();
+	
 	
 	private class ClientMessageListener implements MessagingListener {
 
@@ -94,8 +104,13 @@ public class JobManager extends MonitoredNodeBase implements MessagingListener,
 				// set replyTo to jobmanager
 				msg.setReplyTo(jobManagerTopic.getJMSTopic());
 
+				if (!compRegistry.isEmpty()) {
+					// assign directly to a comp with free slots, or leave it waiting
+					assignWaitingJobs();
+				
+				// no heartbeats from comps, offer to all comps
 				// if no other jobs in 'waiting queue' (state WAITING), send to comps 
-				if (jobsDb.getWaitingJobs().size() <= 1) { // that one is this job
+				} else if (jobsDb.getWaitingJobs().size() <= 1) { // that one is this job
 					// forward to comp, if this fails, job is left waiting, which is ok
 					compTopic.sendMessage(msg);
 				}
@@ -118,7 +133,10 @@ public class JobManager extends MonitoredNodeBase implements MessagingListener,
 				Destination newClientReplyTo = msg.getReplyTo();
 				String jobId = msg.getNamedParameter(ParameterMessage.PARAMETER_JOB_ID);
 				
-				Job job = jobsDb.updateJobReplyTo(jobId, newClientReplyTo);
+				Job job;
+				synchronized (jobStateLock) {
+					job = jobsDb.updateJobReplyTo(jobId, newClientReplyTo);
+				}
 				
 				
 				ResultMessage resultMessage = null;
@@ -157,7 +175,12 @@ public class JobManager extends MonitoredNodeBase implements MessagingListener,
 				
 			} else if (CommandMessage.COMMAND_CANCEL.equals(msg.getCommand())) {
 				String jobId = msg.getNamedParameter(ParameterMessage.PARAMETER_JOB_ID);
-				if (jobsDb.updateJobCancelled(jobsDb.getJob(jobId))) {
+				boolean cancelled;
+				synchronized (jobStateLock) {
+					cancelled = jobsDb.updateJobCancelled(jobsDb.getJob(jobId));
+				}
+				if (cancelled) {
+					compRegistry.jobDone(jobId);
 					compTopic.sendMessage(msg);
 				}
 				
@@ -207,52 +230,15 @@ public class JobManager extends MonitoredNodeBase implements MessagingListener,
 					return;
 				}
 
-				Job job = jobsDb.getJob(jobId);
-				if (job == null) {
-					logger.warn("offer for non-existent job " + jobId);
-					return;
+				synchronized (jobStateLock) {
+					handleOffer(jobId, compId, compHost);
 				}
 				
-				// decide whether to schedule
-				boolean scheduleJob = false;
-
-				if (job.getState() == JobState.WAITING) {
-					scheduleJob = true;
-				} 
-				
-				
-//				// job has never been reported by any analysis server
-//				else if (job.getSecondsSinceCreated() > JOB_DEAD_AFTER && job.getSeen() == null) { 
-//					scheduleJob = true;
-//				} 
-//
-//				// the job has not recently been reported by any analysis server
-////				else if (job.getSecondsSinceLastSeen() > JOB_DEAD_AFTER) {
-////					scheduleJob = true;
-////				}
-
-				// schedule
-				if (scheduleJob) {
-					logger.info("scheduling job " + jobId);
-
-					// create accept message
-					CommandMessage acceptMessage = new CommandMessage(CommandMessage.COMMAND_ACCEPT_OFFER);
-					
-					acceptMessage.addNamedParameter(ParameterMessage.PARAMETER_JOB_ID, jobId);
-					acceptMessage.addNamedParameter(ParameterMessage.PARAMETER_AS_ID, compId);
-					acceptMessage.setUsername(job.getJobMessage().getUsername());
-					
-					// TODO this needed for what?
-					acceptMessage.setReplyTo(jobManagerTopic.getJMSTopic());
-
-					// send accept
-					compTopic.sendMessage(acceptMessage);
-
-					// update job state
-					jobsDb.updateJobScheduled(job, compId, compHost);
-				}
+			} else if (CommandMessage.COMMAND_COMP_HEARTBEAT.equals(msg.getCommand())) {
+				handleCompHeartbeat(msg);
 				
 			} else if (CommandMessage.COMMAND_COMP_AVAILABLE.equals(msg.getCommand())) {
+				// comps without heartbeats
 				scheduleWaitingJobs();
 			}
 				
@@ -269,23 +255,87 @@ public class JobManager extends MonitoredNodeBase implements MessagingListener,
 			}
 		}
 
+		private void handleOffer(String jobId, String compId, String compHost) throws JMSException {
+			Job job = jobsDb.getJob(jobId);
+			if (job == null) {
+				logger.warn("offer for non-existent job " + jobId);
+				return;
+			}
+
+			// decide whether to schedule
+			boolean scheduleJob = false;
+
+			if (job.getState() == JobState.WAITING) {
+				scheduleJob = true;
+			} 
+			
+			
+//			// job has never been reported by any analysis server
+//			else if (job.getSecondsSinceCreated() > JOB_DEAD_AFTER && job.getSeen() == null) { 
+//				scheduleJob = true;
+//			} 
+//
+//			// the job has not recently been reported by any analysis server
+////			else if (job.getSecondsSinceLastSeen() > JOB_DEAD_AFTER) {
+////				scheduleJob = true;
+////			}
+
+			// schedule
+			if (scheduleJob) {
+				logger.info("scheduling job " + jobId);
+
+				// create accept message
+				CommandMessage acceptMessage = new CommandMessage(CommandMessage.COMMAND_ACCEPT_OFFER);
+				
+				acceptMessage.addNamedParameter(ParameterMessage.PARAMETER_JOB_ID, jobId);
+				acceptMessage.addNamedParameter(ParameterMessage.PARAMETER_AS_ID, compId);
+				acceptMessage.setUsername(job.getJobMessage().getUsername());
+				
+				// TODO this needed for what?
+				acceptMessage.setReplyTo(jobManagerTopic.getJMSTopic());
+
+				// send accept
+				compTopic.sendMessage(acceptMessage);
+
+				// update job state
+				jobsDb.updateJobScheduled(job, compId, compHost);
+			}
+		}
+
 		private void handleJobLogMessage(JobLogMessage msg) {
-			jobsDb.updateJobRunning(jobsDb.getJob(msg.getJobId()));
+			synchronized (jobStateLock) {
+				jobsDb.updateJobRunning(jobsDb.getJob(msg.getJobId()));
+			}
 		}
 
 		private void handleResultMessage(ResultMessage msg) throws JMSException {
+			Job job;
+			synchronized (jobStateLock) {
+				job = updateJobState(msg);
+			}
+			
+			// if things are ok, send the result message also to the client
+			if (job != null) {
+				endpoint.sendMessageToClientReplyChannel(job.getReplyTo(), msg);
+			}
+		}
+		
+		/**
+		 * @return the job, if the message should be sent to the client
+		 */
+		private Job updateJobState(ResultMessage msg) {
 			String jobId = msg.getJobId();
 			Job job = jobsDb.getJob(jobId);
 			
 			if (job == null) {
 				logger.warn("no job found for result message with job id: " + jobId);
-				return;
+				return null;
 			}
 			
 			// check if already finished here in jobmanager
 			if (job.getFinished() != null) {
 				logger.warn(String.format("result message for already finished job %s, job state in jobmanager is %s, result message state is %s, comp id is ", jobId, job.getState(), msg.getState(), msg.getNamedParameter(ParameterMessage.PARAMETER_AS_ID)));
-				return;
+				return null;
 			}
 			
 			JobState jobStateFromComp = msg.getState();
@@ -300,30 +350,45 @@ public class JobManager extends MonitoredNodeBase implements MessagingListener,
 				
 				// don't continue if update fails
 				if (!jobsDb.updateJobFinished(job, jobStateFromComp, msg)) {
-					return;
+					return null;
 				}
+				compRegistry.jobDone(jobId);
 				
 			} else if (jobStateFromComp == JobState.RUNNING) {
 				// don't continue if update fails
 				if (!jobsDb.updateJobRunning(job)) {
-					return;
+					return null;
 				}
 					
 			} else if (jobStateFromComp == JobState.NEW) {
 				// not used at the moment, no need to forward to the client
-				return;
+				return null;
 			
 			} else if (jobStateFromComp == JobState.COMP_BUSY) {
-				// TODO refactor away
-			    // jobsDb.updateJobWaiting(jobId);
-				return;
+				// the comp that the job was assigned to can't run it, try the other comps
+				String compId = msg.getNamedParameter(ParameterMessage.PARAMETER_AS_ID);
+				if (job.getState() == JobState.SCHEDULED && compId != null && compId.equals(job.getCompId())) {
+					logger.info("job " + jobId + " declined by comp " + compId);
+					Integer slots = null;
+					try {
+						String slotsString = msg.getNamedParameter(ParameterMessage.PARAMETER_SLOTS);
+						if (slotsString != null) {
+							slots = Integer.parseInt(slotsString);
+						}
+					} catch (NumberFormatException e) {
+						logger.warn("invalid slot count from comp " + compId);
+					}
+					compRegistry.declined(jobId, compId, slots);
+					if (jobsDb.updateJobWaiting(jobId)) {
+						assignWaitingJobs();
+					}
+				}
+				return null;
 				
 			} else {
 				logger.warn("job " + jobId + " in state " + jobStateFromComp + ", sending result message to " + job.getReplyTo());
 			}
-			// if things are ok, send the result message also to the client
-			endpoint.sendMessageToClientReplyChannel(job.getReplyTo(), msg);
-			
+			return job;
 		}
 	}
 
@@ -339,6 +404,8 @@ public class JobManager extends MonitoredNodeBase implements MessagingListener,
 		logger.info("starting jobmanager service...");
 
 		jobMaxWaitTime = configuration.getInt("jobmanager", "job-max-wait-time");
+		int compHeartbeatTimeout = configuration.getInt("jobmanager", "comp-heartbeat-timeout") * 1000;
+		compRegistry = new CompRegistry(compHeartbeatTimeout);
 		
 		// initialize jobs db
 		this.jobsDb = new JobManagerDB(configuration);
@@ -347,15 +414,31 @@ public class JobManager extends MonitoredNodeBase implements MessagingListener,
 		this.endpoint = new JMSMessagingEndpoint(this);
 
 		fromClientTopic = endpoint.createTopic(Topics.Name.AUTHORISED_REQUEST_TOPIC, AccessMode.READ);
-		fromClientTopic.setListener(new ClientMessageListener());
+		fromClientTopic.setListener(new OrderedDispatchListener(new ClientMessageListener(), "jobmanager-client"));
 
 		jobManagerAdminTopic = endpoint.createTopic(Topics.Name.JOBMANAGER_ADMIN_TOPIC, AccessMode.READ);
 		jobManagerAdminTopic.setListener(this);
 		
 		jobManagerTopic = endpoint.createTopic(Topics.Name.JOBMANAGER_TOPIC, AccessMode.READ);
-		jobManagerTopic.setListener(new CompMessageListener());
+		jobManagerTopic.setListener(new OrderedDispatchListener(new CompMessageListener(), "jobmanager-comp"));
 		
 		compTopic = endpoint.createTopic(Topics.Name.AUTHORIZED_MANAGED_REQUEST_TOPIC, AccessMode.WRITE);
+		
+		// notice lost comps also when none of the comps is sending heartbeats
+		Timer compExpiryTimer = new Timer("jobmanager-comp-expiry", true);
+		compExpiryTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					if (!compRegistry.isEmpty()) {
+						removeExpiredComps();
+						assignWaitingJobs();
+					}
+				} catch (Exception e) {
+					logger.error("comp expiry check failed", e);
+				}
+			}
+		}, compHeartbeatTimeout, compHeartbeatTimeout);
 
 		// create keep-alive thread and register shutdown hook
 		KeepAliveShutdownHandler.init(this);
@@ -368,49 +451,141 @@ public class JobManager extends MonitoredNodeBase implements MessagingListener,
 	
 
 	private void scheduleWaitingJobs() {
-		List<Job> waitingJobs = jobsDb.getWaitingJobs();
-		if (waitingJobs.size() > 0) {
-			logger.info("rescheduling " + waitingJobs.size() + " waiting jobs");
-		}
+		synchronized (jobStateLock) {
+			List<Job> waitingJobs = jobsDb.getWaitingJobs();
+			if (waitingJobs.size() > 0) {
+				logger.info("rescheduling " + waitingJobs.size() + " waiting jobs");
+			}
 		
-		List<String> jobsToBeExpired = new LinkedList<String>(); // avoid removing during iteration 
+			List<String> jobsToBeExpired = new LinkedList<String>(); // avoid removing during iteration 
 
-		// reschedule
-		for (Job job: waitingJobs) {
-			try {
-				if (!rescheduleJob(job.getJobId())) {
-					jobsToBeExpired.add(job.getJobId());
-				};
-			} catch (Exception e) {
-				logger.warn("could not reschedule job " + job.getJobId(), e);
+			// reschedule
+			for (Job job: waitingJobs) {
+				try {
+					if (!rescheduleJob(job.getJobId())) {
+						jobsToBeExpired.add(job.getJobId());
+					};
+				} catch (Exception e) {
+					logger.warn("could not reschedule job " + job.getJobId(), e);
+				}
+			}
+
+			// remove expired (and non-existent)
+			for (String jobId: jobsToBeExpired) {
+				expireWaitingJob(jobId);
+			}
+		}
+	}
+	
+	private void expireWaitingJob(String jobId) {
+		try {
+			jobsDb.updateJobMaxWaitTimeReached(jobId);
+			compRegistry.jobDone(jobId);
+
+			// inform client
+			Job job = jobsDb.getJob(jobId); 
+			if ( job != null) {
+				logger.warn("sending job wait expired for job " + jobId);
+				ResultMessage msg = new ResultMessage();
+				msg.setJobId(jobId);
+				msg.setState(JobState.FAILED);
+				msg.setErrorMessage("There was no computing server available to run this job, please try again later on");
+				try {
+					endpoint.sendMessageToClientReplyChannel(job.getReplyTo(), msg);
+				} catch (Exception e) {
+					// avoid unnecessary logging if client is not there
+				}
 			}
+		} catch (Exception e) {
+			logger.error(Exceptions.getStackTrace(e));
 		}
+	}
+	
+	private void handleCompHeartbeat(CommandMessage msg) {
+		String compId = msg.getNamedParameter(ParameterMessage.PARAMETER_AS_ID);
+		String compHost = msg.getNamedParameter(ParameterMessage.PARAMETER_HOST);
+		int freeSlots;
+		int runningJobs;
+		double load;
+		try {
+			freeSlots = Integer.parseInt(msg.getNamedParameter(ParameterMessage.PARAMETER_FREE_SLOTS));
+			runningJobs = Integer.parseInt(msg.getNamedParameter(ParameterMessage.PARAMETER_RUNNING_JOBS));
+			load = Double.parseDouble(msg.getNamedParameter(ParameterMessage.PARAMETER_LOAD));
+		} catch (NumberFormatException | NullPointerException e) {
+			logger.warn("invalid heartbeat from comp " + compId);
+			return;
+		}
+		if (compId == null || compId.isEmpty()) {
+			logger.warn("heartbeat without comp id");
+			return;
+		}
+		
+		compRegistry.update(compId, compHost, freeSlots, runningJobs, load);
+		removeExpiredComps();
+		assignWaitingJobs();
+	}
+	
+	/**
+	 * Jobs assigned to a lost comp can be assigned again, if the comp didn't start them yet.
+	 */
+	private void removeExpiredComps() {
+		synchronized (jobStateLock) {
+			for (String expiredCompId : compRegistry.removeExpired()) {
+				logger.warn("no heartbeats from comp " + expiredCompId + ", removing it");
+				for (Job job : jobsDb.getScheduledJobs(expiredCompId)) {
+					jobsDb.updateJobWaiting(job.getJobId());
+				}
+			}
+		}
+	}
 
-		// remove expired (and non-existent)
-		for (String jobId: jobsToBeExpired) {
-			try {
-				jobsDb.updateJobMaxWaitTimeReached(jobId);
-
-				// inform client
-				Job job = jobsDb.getJob(jobId); 
-				if ( job != null) {
-					logger.warn("sending job wait expired for job " + jobId);
-					ResultMessage msg = new ResultMessage();
-					msg.setJobId(jobId);
-					msg.setState(JobState.FAILED);
-					msg.setErrorMessage("There was no computing server available to run this job, please try again later on");
-					try {
-						endpoint.sendMessageToClientReplyChannel(job.getReplyTo(), msg);
-					} catch (Exception e) {
-						// avoid unnecessary logging if client is not there
+	/**
+	 * Assign the waiting jobs to the comps with free slots, oldest jobs first. Each job
+	 * is sent only once and only the assigned comp handles it.
+	 */
+	private void assignWaitingJobs() {
+		synchronized (jobStateLock) {
+			for (Job job : jobsDb.getWaitingJobs()) {
+				try {
+					if (job.getSecondsSinceCreated() > jobMaxWaitTime) {
+						logger.warn("max wait time reached for job " + job.getJobId());
+						expireWaitingJob(job.getJobId());
+						continue;
 					}
+
+					// some other comp may still accept the next job, if this one was declined by the free comps
+					CompStatus comp = compRegistry.reserve(job.getJobId());
+					if (comp != null) {
+						assignJob(job, comp);
+					}
+				} catch (Exception e) {
+					logger.warn("could not assign job " + job.getJobId(), e);
 				}
-			} catch (Exception e) {
-				logger.error(Exceptions.getStackTrace(e));
 			}
 		}
 	}
 	
+	private void assignJob(Job job, CompStatus comp) {
+		String jobId = job.getJobId();
+		
+		JobMessage jobMessage = job.getJobMessage();
+		jobMessage.setReplyTo(jobManagerTopic.getJMSTopic());
+		jobMessage.addNamedParameter(ParameterMessage.PARAMETER_ASSIGNED_COMP_ID, comp.getCompId());
+		
+		// update before sending, the comp may reply immediately
+		if (!jobsDb.updateJobScheduled(job, comp.getCompId(), comp.getHost())) {
+			return;
+		}
+		logger.info("assigning job " + jobId + " to comp " + comp.getCompId());
+
+		try {
+			compTopic.sendMessage(jobMessage);
+		} catch (JMSException e) {
+			logger.error("send message failed when assigning job " + jobId);
+			jobsDb.updateJobWaiting(jobId);
+		}
+	}
+	
 	/**
 	 * 
 	 * @param jobId
@@ -462,8 +637,14 @@ public class JobManager extends MonitoredNodeBase implements MessagingListener,
 					
 					String jobId = commandMessage.getNamedParameter(ParameterMessage.PARAMETER_JOB_ID);
 					logger.info(String.format("cancel request from admin web for job %s", jobId));
-					Job job = jobsDb.getJob(jobId);
-					if (jobsDb.updateJobCancelled(job)) {
+					Job job;
+					boolean cancelled;
+					synchronized (jobStateLock) {
+						job = jobsDb.getJob(jobId);
+						cancelled = jobsDb.updateJobCancelled(job);
+					}
+					if (cancelled) {
+						compRegistry.jobDone(jobId);
 						compTopic.sendMessage(commandMessage);
 						logger.info(String.format("sending cancel for job %s to comps", jobId));
 						// inform client
@@ -486,6 +667,9 @@ public class JobManager extends MonitoredNodeBase implements MessagingListener,
 							"all: " + jobsDb.getJobCount() + "\n" +
 							"\n";
 					
+					report += "COMPS\n\n";
+					report += compRegistry.getStatusReport() + "\n";
+					
 					report += "MEMORY\n\n";
 					report += sysStats + "\n";
 
@@ -164,6 +164,27 @@ public class JobManagerDB {
 	}
 
 
+	public List<Job> getScheduledJobs(String compId) {
+		this.hibernate.beginTransaction();
+		try {
+			@SuppressWarnings("unchecked")
+			List<Job> jobs = this.hibernate.session().createQuery(
+					"from Job "
+							+ "where state=:state "
+							+ "and compId=:compId "
+							+ "order by created")
+							.setParameter("state", JobState.SCHEDULED)
+							.setParameter("compId", compId)
+							.list();
+
+			this.hibernate.commit();
+			return jobs;
+		} catch (Throwable e) {
+			this.hibernate.rollback();
+			throw e;
+		}
+	}
+
 	public boolean updateJobScheduled(Job job, String compId, String compHost) {
 		if (job == null) {
 			logger.warn("update scheduled failed: job is null");
@@ -314,10 +335,11 @@ public class JobManagerDB {
 
 
 	/**
-	 * Not used at the moment
+	 * Put the job back to waiting, when the comp it was assigned to declined it or 
+	 * was lost.
 	 * 
 	 * @param jobId
-	 * @return
+	 * @return false if the job doesn't exist or has finished already
 	 */
 	public boolean updateJobWaiting(String jobId) {
 		Job job = getJob(jobId);
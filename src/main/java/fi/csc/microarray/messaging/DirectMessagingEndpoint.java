@@ -1,6 +1,11 @@
 package fi.csc.microarray.messaging;
 
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jms.Destination;
 import javax.jms.JMSException;
@@ -18,28 +23,63 @@ import fi.csc.microarray.messaging.message.ChipsterMessage;
  * If the receiver needs to communicate simultaneously through multiple endpoints, it must implement
  * DirectMessagingListener instead of MessagingListener to know where to reply.
  * 
+ * Messages are delivered asynchronously by a thread pool of the endpoint. Each topic has a bounded
+ * queue, delivered in order by one thread at a time, and senders block when the queue is full. 
+ * Listeners must be thread safe.
+ * 
  * @author klemela
  */
 
 public class DirectMessagingEndpoint implements MessagingEndpoint {
 	
+	public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+	
+	private static AtomicInteger endpointCount = new AtomicInteger(0);
+	
 	private String username;
+	private int queueCapacity;
+	private ExecutorService deliveryExecutor;
+	
+	private Object deliveryLock = new Object();
+	private int undelivered = 0;
 
-	public DirectMessagingEndpoint() {		
+	public DirectMessagingEndpoint() {
+		this(null);
 	}
 	
 	/**
 	 * @param username sender of the message
 	 */
 	public DirectMessagingEndpoint(String username) {
+		this(username, DEFAULT_QUEUE_CAPACITY);
+	}
+	
+	/**
+	 * @param username sender of the message
+	 * @param queueCapacity maximum number of undelivered messages in each topic
+	 */
+	public DirectMessagingEndpoint(String username, int queueCapacity) {
 		this.username = username;
+		this.queueCapacity = queueCapacity;
+		
+		final String threadName = "direct-messaging-" + endpointCount.incrementAndGet() + "-";
+		this.deliveryExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private AtomicInteger threadCount = new AtomicInteger(0);
+			
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, threadName + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 	}
 
-	private HashMap<ChipsterMessage, DirectMessagingTopic> replyTopicMap = new HashMap<ChipsterMessage, DirectMessagingTopic>();
-	private HashMap<Name, DirectMessagingTopic> topicMap = new HashMap<Name, DirectMessagingTopic>();
+	private Map<String, DirectMessagingTopic> replyTopicMap = new ConcurrentHashMap<String, DirectMessagingTopic>();
+	private Map<Name, DirectMessagingTopic> topicMap = new ConcurrentHashMap<Name, DirectMessagingTopic>();
 	
 	public void mapReplyTopic(ChipsterMessage original, DirectMessagingTopic replyTopic) {
-		replyTopicMap.put(original, replyTopic);
+		replyTopicMap.put(original.getMessageID(), replyTopic);
 	}
 	
 	@Override
@@ -56,7 +96,7 @@ public class DirectMessagingEndpoint implements MessagingEndpoint {
 		
 		// add to map, if does not exist
 		if (!topicMap.containsKey(topicName)) {
-			topicMap.put(topicName, new DirectMessagingTopic(topicName.name(), accessMode, this));
+			topicMap.putIfAbsent(topicName, new DirectMessagingTopic(topicName.name(), accessMode, this));
 		}
 		
 		return topicMap.get(topicName);
@@ -64,12 +104,11 @@ public class DirectMessagingEndpoint implements MessagingEndpoint {
 
 	@Override
 	public void replyToMessage(ChipsterMessage original, ChipsterMessage reply)	throws JMSException {
-		DirectMessagingTopic replyTopic = replyTopicMap.get(original);
+		DirectMessagingTopic replyTopic = replyTopicMap.remove(original.getMessageID());
 		if (replyTopic == null) {
 			throw new IllegalArgumentException("Can't send reply: " + reply + ", because there isn't reply topic for original message: " + original);
 		}
 		replyTopic.sendMessage(reply);
-		replyTopicMap.remove(original);
 	}
 
 	@Override
@@ -79,7 +118,44 @@ public class DirectMessagingEndpoint implements MessagingEndpoint {
 
 	@Override
 	public void close() throws JMSException {
-		// ignore
+		deliveryExecutor.shutdown();
+	}
+	
+	/**
+	 * Waits until all messages sent through this endpoint have been delivered. Must not be
+	 * called by the listeners.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void flush() throws InterruptedException {
+		synchronized (deliveryLock) {
+			while (undelivered > 0) {
+				deliveryLock.wait();
+			}
+		}
+	}
+	
+	int getQueueCapacity() {
+		return queueCapacity;
+	}
+	
+	void execute(Runnable delivery) {
+		deliveryExecutor.execute(delivery);
+	}
+	
+	void messageQueued() {
+		synchronized (deliveryLock) {
+			undelivered++;
+		}
+	}
+	
+	void messageDelivered() {
+		synchronized (deliveryLock) {
+			undelivered--;
+			if (undelivered == 0) {
+				deliveryLock.notifyAll();
+			}
+		}
 	}
 
 	@Override
@@ -1,20 +1,53 @@
 package fi.csc.microarray.messaging;
 
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.jms.JMSException;
 
+import org.apache.log4j.Logger;
+
 import fi.csc.microarray.messaging.message.ChipsterMessage;
 
 public class DirectMessagingTopic extends MessagingTopic {
+	
+	private static final Logger logger = Logger.getLogger(DirectMessagingTopic.class);
+	
+	/**
+	 * Delivery threads never wait for the queue capacity, because a listener sending to its own 
+	 * full queue would wait for itself.
+	 */
+	private static ThreadLocal<Boolean> isDeliveryThread = new ThreadLocal<Boolean>();
+	
+	private static class Delivery {
+		private ChipsterMessage message;
+		private boolean hasPermit;
+		
+		public Delivery(ChipsterMessage message, boolean hasPermit) {
+			this.message = message;
+			this.hasPermit = hasPermit;
+		}
+	}
 
-	private LinkedList<MessagingListener> listeners = new LinkedList<MessagingListener>();
+	private List<MessagingListener> listeners = new CopyOnWriteArrayList<MessagingListener>();
 	private DirectMessagingEndpoint endpoint;
+	private String topicName;
+	
+	private Queue<Delivery> queue = new ConcurrentLinkedQueue<Delivery>();
+	private Semaphore capacity;
+	private AtomicBoolean delivering = new AtomicBoolean(false);
 	
 	public DirectMessagingTopic(String topicName, AccessMode accessMode, DirectMessagingEndpoint endpoint)
 			throws JMSException {
 		super(null, topicName, Type.MOCK, AccessMode.WRITE, endpoint);
 		this.endpoint = endpoint;
+		this.topicName = topicName;
+		this.capacity = new Semaphore(endpoint.getQueueCapacity());
 	}
 	
 	@Override
@@ -22,6 +55,75 @@ public class DirectMessagingTopic extends MessagingTopic {
 		
 		setUsername(message);
 		
+		boolean hasPermit = false;
+		if (isDeliveryThread.get() == null) {
+			try {
+				capacity.acquire();
+				hasPermit = true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new JMSException("interrupted while waiting for the queue of topic " + topicName);
+			}
+		}
+		
+		queue.add(new Delivery(message, hasPermit));
+		endpoint.messageQueued();
+		scheduleDelivery();
+	}
+	
+	/**
+	 * Starts a delivery task, if there isn't one already running. Only one task at a time
+	 * delivers the messages of this topic to keep them in order.
+	 */
+	private void scheduleDelivery() {
+		if (delivering.compareAndSet(false, true)) {
+			try {
+				endpoint.execute(new Runnable() {
+					@Override
+					public void run() {
+						deliverQueued();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				logger.warn("endpoint is closed, messages of topic " + topicName + " won't be delivered");
+				for (Delivery delivery = queue.poll(); delivery != null; delivery = queue.poll()) {
+					if (delivery.hasPermit) {
+						capacity.release();
+					}
+					endpoint.messageDelivered();
+				}
+				delivering.set(false);
+			}
+		}
+	}
+	
+	private void deliverQueued() {
+		isDeliveryThread.set(true);
+		try {
+			for (Delivery delivery = queue.poll(); delivery != null; delivery = queue.poll()) {
+				try {
+					deliver(delivery.message);
+				} catch (Exception e) {
+					logger.error("exception when handling a message of topic " + topicName, e);
+				} finally {
+					if (delivery.hasPermit) {
+						capacity.release();
+					}
+					endpoint.messageDelivered();
+				}
+			}
+		} finally {
+			isDeliveryThread.remove();
+			delivering.set(false);
+		}
+		
+		// a message may have been added after the loop ended
+		if (!queue.isEmpty()) {
+			scheduleDelivery();
+		}
+	}
+	
+	private void deliver(ChipsterMessage message) {
 		// DirectMessagingEndpoint guarantees that everyone has the same DirectMessagingTopic instance
 		for (MessagingListener listener : listeners) {
 			if (listener instanceof DirectMessagingListener) {
@@ -40,7 +142,7 @@ public class DirectMessagingTopic extends MessagingTopic {
 	}
 
 	@Override
-	protected void sendReplyableMessage(fi.csc.microarray.messaging.message.ChipsterMessage message, TempTopicMessagingListener replyListener, AuthMessagingListener authenticationListener) throws JMSException {
+	protected void sendReplyableMessage(fi.csc.microarray.messaging.message.ChipsterMessage message, TempTopicMessagingListener replyListener, AuthMessagingListener authenticationListener, ReplyTopicType replyTopicType) throws JMSException {
 		sendReplyableMessage(message, replyListener); // ignore authentication
 	}
 		
@@ -59,6 +161,11 @@ public class DirectMessagingTopic extends MessagingTopic {
 		
 	}
 	
+	@Override
+	public String getName() {
+		return topicName;
+	}
+	
 	@Override		
 	public void removeListener() throws JMSException {
 		throw new UnsupportedOperationException("not supported by DirectMessagingTopic");
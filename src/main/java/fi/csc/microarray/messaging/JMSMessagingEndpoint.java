@@ -13,7 +13,7 @@ import java.security.cert.CertificateException;
 import javax.jms.Connection;
 import javax.jms.Destination;
 import javax.jms.JMSException;
-import javax.jms.MapMessage;
+import javax.jms.Message;
 import javax.jms.Session;
 import javax.net.ssl.SSLHandshakeException;
 
@@ -29,6 +29,7 @@ import fi.csc.microarray.messaging.MessagingTopic.AccessMode;
 import fi.csc.microarray.messaging.MessagingTopic.Type;
 import fi.csc.microarray.messaging.auth.AuthenticatedTopic;
 import fi.csc.microarray.messaging.auth.AuthenticationRequestListener;
+import fi.csc.microarray.messaging.message.BinaryMessageCodec;
 import fi.csc.microarray.messaging.message.ChipsterMessage;
 import fi.csc.microarray.messaging.message.CommandMessage;
 import fi.csc.microarray.util.KeyAndTrustManager;
@@ -63,11 +64,17 @@ public class JMSMessagingEndpoint implements MessagingEndpoint, MessagingListene
 	 * Is redialling enabled?
 	 */
 	private final boolean useReliable;
+	
+	/**
+	 * Send messages in the compact binary format? Received messages are understood in both formats.
+	 */
+	private final boolean useBinaryMessages;
 
 	private final String DEFAULT_REPLY_CHANNEL = Topics.MultiplexName.REPLY_TO.toString();
 	
 	private ActiveMQConnection connection;
 	private MessagingTopic adminTopic = null;
+	private SharedReplyTopic replyTopic = null;
 	private Node master;
 	private AuthenticationRequestListener authenticationListener;
 	private String sessionID = null;
@@ -112,6 +119,7 @@ public class JMSMessagingEndpoint implements MessagingEndpoint, MessagingListene
 		
 		// set broker address
 		useReliable = configuration.getBoolean("messaging", "use-reliable");
+		useBinaryMessages = configuration.getBoolean("messaging", "use-binary-messages");
 		brokerUrl =  protocol + "://" + host + ":" + port;
 		
 		// setup keystore if needed
@@ -161,6 +169,9 @@ public class JMSMessagingEndpoint implements MessagingEndpoint, MessagingListene
 			// create admin topic
 			adminTopic = createTopic(Topics.Name.ADMIN_TOPIC, AccessMode.READ_WRITE); // endpoint reacts to requests from admin-topic
 			adminTopic.setListener(this);
+			
+			// one reply topic for all request-reply exchanges of this endpoint
+			replyTopic = new SharedReplyTopic(connection.createSession(false, Session.AUTO_ACKNOWLEDGE), this);
 			logger.debug("endpoint created succesfully");
 			
 		} catch (JMSException e) {			
@@ -255,14 +266,12 @@ public class JMSMessagingEndpoint implements MessagingEndpoint, MessagingListene
     @Override
 	public void replyToMessage(ChipsterMessage original, ChipsterMessage reply, String replyChannel) throws JMSException {
     	reply.setMultiplexChannel(replyChannel);
+    	reply.setCorrelationID(original.getCorrelationID());
     	Destination replyToDest = original.getReplyTo();
     	sendMessage(replyToDest, reply);
     }
 
 
-	/**
-	 * Not multithread safe.
-	 */
     public void sendMessageToClientReplyChannel(Destination replyToDest, ChipsterMessage message) throws JMSException {
 		message.setMultiplexChannel(DEFAULT_REPLY_CHANNEL);
 		sendMessage(replyToDest, message);
@@ -270,14 +279,13 @@ public class JMSMessagingEndpoint implements MessagingEndpoint, MessagingListene
 
     
     /**
-	 * Not multithread safe.
+	 * Uses a session of its own, so it can be called from several threads.
 	 */
     private void sendMessage(Destination replyToDest, ChipsterMessage message) throws JMSException {
 		Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
     	try {
-			MapMessage mapMessage = session.createMapMessage();
-	    	message.marshal(mapMessage);
-	    	session.createProducer(replyToDest).send(mapMessage);
+			Message jmsMessage = BinaryMessageCodec.createJMSMessage(session, message, useBinaryMessages);
+	    	session.createProducer(replyToDest).send(jmsMessage);
     	} finally {
     		session.close();
     	}
@@ -320,10 +328,24 @@ public class JMSMessagingEndpoint implements MessagingEndpoint, MessagingListene
 	 */
     @Override
 	public void close() throws JMSException {
+    	if (replyTopic != null) {
+    		replyTopic.close();
+    	}
     	connection.stop();
     	connection.close();	
     }
     
+	public boolean isBinaryMessagesEnabled() {
+		return useBinaryMessages;
+	}
+    
+	/**
+	 * Returns the reply topic that is shared by all replyable messages sent through this endpoint.
+	 */
+	public SharedReplyTopic getReplyTopic() {
+		return replyTopic;
+	}
+    
 	/* (non-Javadoc)
 	 * @see fi.csc.microarray.messaging.MessagingEndpointIntrfc#getAuthenticationListener()
 	 */
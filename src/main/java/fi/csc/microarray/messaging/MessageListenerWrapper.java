@@ -1,5 +1,6 @@
 package fi.csc.microarray.messaging;
 
+import javax.jms.BytesMessage;
 import javax.jms.JMSException;
 import javax.jms.MapMessage;
 import javax.jms.Message;
@@ -7,6 +8,7 @@ import javax.jms.MessageListener;
 
 import org.apache.log4j.Logger;
 
+import fi.csc.microarray.messaging.message.BinaryMessageCodec;
 import fi.csc.microarray.messaging.message.ChipsterMessage;
 import fi.csc.microarray.util.Exceptions;
 
@@ -33,6 +35,12 @@ public class MessageListenerWrapper implements MessageListener {
 		String msgClass = "";
 		MapMessage mapMessage = null;
 		try {
+			if (BinaryMessageCodec.isBinary(msg)) {
+				logger.debug("binary message received");
+				actualListener.onChipsterMessage(BinaryMessageCodec.decode((BytesMessage)msg));
+				return;
+			}
+			
 			msgClass = msg.getStringProperty(ChipsterMessage.KEY_CLASS);
 			logger.debug("message received, class is " + msgClass);
 			mapMessage = (MapMessage)msg;
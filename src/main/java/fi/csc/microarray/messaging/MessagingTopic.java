@@ -5,7 +5,7 @@
 package fi.csc.microarray.messaging;
 
 import javax.jms.JMSException;
-import javax.jms.MapMessage;
+import javax.jms.Message;
 import javax.jms.MessageConsumer;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
@@ -14,6 +14,7 @@ import javax.jms.Topic;
 
 import org.apache.log4j.Logger;
 
+import fi.csc.microarray.messaging.message.BinaryMessageCodec;
 import fi.csc.microarray.messaging.message.ChipsterMessage;
 
 /**
@@ -35,6 +36,16 @@ public class MessagingTopic {
 		MOCK;
 	}
 	
+	/**
+	 * Replies go either to the long-lived reply topic of the endpoint or to a dedicated
+	 * temporary topic. Dedicated topics are needed when the reply topic is stored by the
+	 * receiver and replies are sent to it without the original message, like with jobs.
+	 */
+	public static enum ReplyTopicType {
+		SHARED,
+		DEDICATED;
+	}
+	
 	public static enum AccessMode {
 		READ,
 		WRITE,
@@ -74,10 +85,16 @@ public class MessagingTopic {
 	
 
 	/**
-	 * Not multithread safe.
+	 * Creating the temporary topic uses the shared JMS session, so it's synchronised like
+	 * sending.
 	 */
-	protected void sendReplyableMessage(ChipsterMessage message, TempTopicMessagingListener replyListener, AuthMessagingListener authenticationListener) throws JMSException {
-		MessagingTopic tempTopic = new MessagingTopic(session, null, Type.TEMPORARY, AccessMode.READ_WRITE, endpoint);
+	protected void sendReplyableMessage(ChipsterMessage message, TempTopicMessagingListener replyListener, AuthMessagingListener authenticationListener, ReplyTopicType replyTopicType) throws JMSException {
+		synchronized (session) {
+			sendReplyableMessageInSession(message, replyListener, authenticationListener, replyTopicType);
+		}
+	}
+	
+	private void sendReplyableMessageInSession(ChipsterMessage message, TempTopicMessagingListener replyListener, AuthMessagingListener authenticationListener, ReplyTopicType replyTopicType) throws JMSException {
 		
 		MultiplexingMessagingListener plexer = new MultiplexingMessagingListener();
 		plexer.addChannel(Topics.MultiplexName.REPLY_TO.toString(), replyListener);
@@ -85,45 +102,71 @@ public class MessagingTopic {
 			plexer.addChannel(Topics.MultiplexName.AUTHORISE_TO.toString(), authenticationListener);
 			authenticationListener.addPendingReplyListener(replyListener);
 		}
-		tempTopic.setListener(plexer);
 		
-		replyListener.setTempTopic(tempTopic);
-		message.setReplyTo(tempTopic.topic);
+		SharedReplyTopic sharedTopic = null;
+		if (replyTopicType == ReplyTopicType.SHARED && endpoint instanceof JMSMessagingEndpoint) {
+			sharedTopic = ((JMSMessagingEndpoint)endpoint).getReplyTopic();
+		}
+		
+		if (sharedTopic != null) {
+			// replies are routed to the plexer by the id of this message
+			message.setCorrelationID(message.getMessageID());
+			replyListener.setTempTopic(sharedTopic.register(message.getCorrelationID(), plexer));
+			message.setReplyTo(sharedTopic.getJMSTopic());
+			
+		} else {
+			MessagingTopic tempTopic = new MessagingTopic(session, null, Type.TEMPORARY, AccessMode.READ_WRITE, endpoint);
+			tempTopic.setListener(plexer);
+			replyListener.setTempTopic(tempTopic);
+			message.setReplyTo(tempTopic.topic);
+		}
 		sendMessage(message);
 		
 	}
 	
 	/**
-	 * Sends the message and creates a temporary topic for replying.
-	 * Not multithread safe.
+	 * Sends the message and uses the shared reply topic of the endpoint for replying.
 	 * 
-	 * @param replyListener receives replies (if any) through hidden temporary topic
+	 * @param replyListener receives replies (if any) through hidden reply topic
 	 */
 	public void sendReplyableMessage(ChipsterMessage message, TempTopicMessagingListener replyListener) throws JMSException {
-		sendReplyableMessage(message, replyListener, null);
+		sendReplyableMessage(message, replyListener, ReplyTopicType.SHARED);
+	}
+	
+	/**
+	 * Sends the message and creates a temporary topic for replying, if
+	 * a dedicated topic is requested.
+	 * 
+	 * @param replyListener receives replies (if any) through hidden reply topic
+	 */
+	public void sendReplyableMessage(ChipsterMessage message, TempTopicMessagingListener replyListener, ReplyTopicType replyTopicType) throws JMSException {
+		sendReplyableMessage(message, replyListener, null, replyTopicType);
 	}
 	
 	/**
 	 * The basic message sending method. Sends a message without reply possibility.
-	 * Not multithread safe.
+	 * The JMS session is shared by all senders of the topic, so sending is synchronised
+	 * to allow sending from the dispatch worker threads.
 	 */
 	public void sendMessage(ChipsterMessage message) throws JMSException {
 
 		// log
 		logger.debug("sending " + message);
 		
-		// marshal message to MapMessage
-		MapMessage mapMessage = session.createMapMessage();
-		message.marshal(mapMessage);
-		
-		MessageProducer producer = null;
-		try {
-			producer = session.createProducer(topic);
-			producer.send(mapMessage);
-		} finally {
+		synchronized (session) {
+			// marshal message to MapMessage or to the binary format
+			boolean useBinary = endpoint instanceof JMSMessagingEndpoint && ((JMSMessagingEndpoint)endpoint).isBinaryMessagesEnabled();
+			Message jmsMessage = BinaryMessageCodec.createJMSMessage(session, message, useBinary);
+
+			MessageProducer producer = null;
 			try {
-				producer.close();
-			} catch (Exception e) {
+				producer = session.createProducer(topic);
+				producer.send(jmsMessage);
+			} finally {
+				try {
+					producer.close();
+				} catch (Exception e) {
+				}
 			}
 		}
 	}
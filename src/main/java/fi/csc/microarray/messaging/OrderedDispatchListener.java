@@ -0,0 +1,139 @@
+package fi.csc.microarray.messaging;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import fi.csc.microarray.config.DirectoryLayout;
+import fi.csc.microarray.messaging.message.ChipsterMessage;
+import fi.csc.microarray.messaging.message.GenericJobMessage;
+import fi.csc.microarray.messaging.message.JobLogMessage;
+import fi.csc.microarray.messaging.message.ParameterMessage;
+import fi.csc.microarray.messaging.message.ResultMessage;
+
+/**
+ * <p>Hands the messages of a topic over to a pool of worker threads, so that a slow request
+ * doesn't stall the other messages of the topic. The messages are unmarshalled in the JMS
+ * session thread as before, only the handling is moved to the workers.</p>
+ *
+ * <p>Messages with the same key are handled in the order they were received. The key is the
+ * job id for the job related messages, otherwise the session id or the username. Each key
+ * is assigned to one single threaded worker, so messages with different keys may be handled
+ * in parallel.</p>
+ *
+ * <p>Each worker has a bounded queue. When it's full, the JMS session thread waits for
+ * room, so no more messages are received until the workers catch up.</p>
+ *
+ * <p>The actual listener must be thread safe, if there is more than one worker.</p>
+ */
+public class OrderedDispatchListener implements MessagingListener {
+
+	private static final Logger logger = Logger.getLogger(OrderedDispatchListener.class);
+
+	private MessagingListener actualListener;
+	private ThreadPoolExecutor[] workers;
+
+	/**
+	 * Uses the number of workers and the queue size configured in messaging/dispatch-threads 
+	 * and messaging/dispatch-queue-size.
+	 */
+	public OrderedDispatchListener(MessagingListener actualListener, String name) {
+		this(actualListener, 
+				DirectoryLayout.getInstance().getConfiguration().getInt("messaging", "dispatch-threads"), 
+				DirectoryLayout.getInstance().getConfiguration().getInt("messaging", "dispatch-queue-size"), 
+				name);
+	}
+
+	public OrderedDispatchListener(MessagingListener actualListener, int workerCount, int queueSize, final String name) {
+		this.actualListener = actualListener;
+		this.workers = new ThreadPoolExecutor[Math.max(workerCount, 1)];
+
+		// wait for room in the queue instead of rejecting the message
+		RejectedExecutionHandler waitForRoom = new RejectedExecutionHandler() {
+			@Override
+			public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+				if (executor.isShutdown()) {
+					logger.warn("message dropped, because " + name + " dispatch is closed");
+					return;
+				}
+				logger.debug(name + " dispatch queue is full, waiting");
+				try {
+					executor.getQueue().put(task);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					logger.warn("interrupted while waiting for room in the " + name + " dispatch queue, message dropped");
+				}
+			}
+		};
+
+		for (int i = 0; i < workers.length; i++) {
+			final String threadName = name + "-dispatch-" + i;
+			workers[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(Math.max(queueSize, 1)), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, threadName);
+					thread.setDaemon(true);
+					return thread;
+				}
+			}, waitForRoom);
+			// the tasks put to the queue directly need a running thread
+			workers[i].prestartAllCoreThreads();
+		}
+	}
+
+	public void onChipsterMessage(final ChipsterMessage msg) {
+		String key = getKey(msg);
+
+		// mask the sign bit instead of Math.abs(), which is negative for Integer.MIN_VALUE
+		int worker = (key.hashCode() & 0x7fffffff) % workers.length;
+
+		workers[worker].execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					actualListener.onChipsterMessage(msg);
+				} catch (Exception e) {
+					logger.error("Exception when handling a message.", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns the key that defines the ordering of the message.
+	 */
+	public static String getKey(ChipsterMessage msg) {
+		String jobId = null;
+		if (msg instanceof GenericJobMessage) {
+			jobId = ((GenericJobMessage)msg).getJobId();
+		} else if (msg instanceof ResultMessage) {
+			jobId = ((ResultMessage)msg).getJobId();
+		} else if (msg instanceof JobLogMessage) {
+			jobId = ((JobLogMessage)msg).getJobId();
+		} else if (msg instanceof ParameterMessage) {
+			jobId = ((ParameterMessage)msg).getNamedParameter(ParameterMessage.PARAMETER_JOB_ID);
+		}
+
+		if (jobId != null) {
+			return jobId;
+		}
+		if (msg.getSessionID() != null) {
+			return msg.getSessionID();
+		}
+		if (msg.getUsername() != null) {
+			return msg.getUsername();
+		}
+		// nothing to keep in order
+		return msg.getMessageID() != null ? msg.getMessageID() : "";
+	}
+
+	public void close() {
+		for (ThreadPoolExecutor worker : workers) {
+			worker.shutdown();
+		}
+	}
+}
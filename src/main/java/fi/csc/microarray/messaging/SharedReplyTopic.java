@@ -0,0 +1,164 @@
+package fi.csc.microarray.messaging;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.JMSException;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+import org.apache.log4j.Logger;
+
+import fi.csc.microarray.messaging.message.ChipsterMessage;
+
+/**
+ * <p>One long-lived temporary topic for the replies of all requests sent through an
+ * endpoint. Replies are routed to the listeners by the correlation id of the message, so
+ * there is no need to create and delete a temporary topic on the broker for every
+ * request.</p>
+ *
+ * <p>Listeners are unregistered when the reply listener is cleaned up. Registrations that
+ * are never cleaned up are removed by a scheduler after {@link #REGISTRATION_TIMEOUT}.</p>
+ */
+public class SharedReplyTopic implements MessagingListener {
+
+	private static final Logger logger = Logger.getLogger(SharedReplyTopic.class);
+
+	/**
+	 * Maximum lifetime of a registration in milliseconds. Reply listeners have their own,
+	 * much shorter timeouts, this only prevents leaking listeners that are never cleaned up.
+	 */
+	private static final long REGISTRATION_TIMEOUT = 60*60*1000;
+	private static final long SWEEP_INTERVAL = 60*1000;
+
+	private static class Registration {
+		private MessagingListener listener;
+		private long created = System.currentTimeMillis();
+
+		public Registration(MessagingListener listener) {
+			this.listener = listener;
+		}
+	}
+
+	/**
+	 * Handle that is given to the reply listener instead of a temporary topic of its own.
+	 * Deleting it only removes the registration.
+	 */
+	private class RegistrationTopic extends MessagingTopic {
+
+		private String correlationID;
+
+		public RegistrationTopic(String correlationID, MessagingEndpoint endpoint) throws JMSException {
+			super(null, null, Type.MOCK, AccessMode.WRITE, endpoint);
+			this.correlationID = correlationID;
+		}
+
+		@Override
+		public void delete() {
+			unregister(correlationID);
+		}
+
+		@Override
+		public String getName() throws JMSException {
+			return SharedReplyTopic.this.topic.getName();
+		}
+
+		@Override
+		public Topic getJMSTopic() {
+			return SharedReplyTopic.this.topic.getJMSTopic();
+		}
+	}
+
+	private MessagingTopic topic;
+	private MessagingEndpoint endpoint;
+	private Map<String, Registration> registrations = new ConcurrentHashMap<String, Registration>();
+	private ScheduledExecutorService scheduler;
+	private ExecutorService authenticationExecutor;
+
+	public SharedReplyTopic(Session session, MessagingEndpoint endpoint) throws JMSException {
+		this.endpoint = endpoint;
+		this.topic = new MessagingTopic(session, null, MessagingTopic.Type.TEMPORARY, MessagingTopic.AccessMode.READ, endpoint);
+		this.topic.setListener(this);
+
+		ThreadFactory daemonThreads = new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "shared-reply-topic");
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads);
+		this.authenticationExecutor = Executors.newSingleThreadExecutor(daemonThreads);
+
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				removeExpired();
+			}
+		}, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Starts routing replies with the given correlation id to the listener.
+	 *
+	 * @return topic handle for the reply listener, deleting it ends the registration
+	 */
+	public MessagingTopic register(String correlationID, MessagingListener listener) throws JMSException {
+		registrations.put(correlationID, new Registration(listener));
+		return new RegistrationTopic(correlationID, endpoint);
+	}
+
+	public void unregister(String correlationID) {
+		registrations.remove(correlationID);
+	}
+
+	public Topic getJMSTopic() {
+		return topic.getJMSTopic();
+	}
+
+	public void onChipsterMessage(final ChipsterMessage msg) {
+		String correlationID = msg.getCorrelationID();
+		final Registration registration = correlationID != null ? registrations.get(correlationID) : null;
+		if (registration == null) {
+			logger.debug("no listener for reply " + msg.getMessageID() + " with correlation id " + correlationID + ", reply is ignored");
+			return;
+		}
+
+		if (Topics.MultiplexName.AUTHORISE_TO.toString().equals(msg.getMultiplexChannel())) {
+			// authentication requests wait for the user, so they must not block the other replies
+			authenticationExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					registration.listener.onChipsterMessage(msg);
+				}
+			});
+		} else {
+			registration.listener.onChipsterMessage(msg);
+		}
+	}
+
+	private void removeExpired() {
+		long expiredBefore = System.currentTimeMillis() - REGISTRATION_TIMEOUT;
+		Iterator<Registration> iterator = registrations.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().created < expiredBefore) {
+				iterator.remove();
+				logger.debug("removed expired reply listener registration");
+			}
+		}
+	}
+
+	public void close() throws JMSException {
+		scheduler.shutdownNow();
+		authenticationExecutor.shutdownNow();
+		registrations.clear();
+		topic.delete();
+	}
+}
@@ -36,7 +36,8 @@ public class CompAdmin {
 				+ "   --list-jobs                   list jobs on compute servers\n"
 				+ "   --cancel=JOB                  cancel a job with given id\n"		
 				+ "   --stop-gracefully=COMP        wait for running jobs to complete and stop the service with given id\n"
-				+ "   --stop-gracefully-slowest     gracefully stop the slowest server\n");
+				+ "   --stop-gracefully-slowest     gracefully stop the slowest server\n"
+				+ "   --toolbox-updated             make compute servers get the tools again after a toolbox reload\n");
 	}
 
 	public int waitTime = 3; // seconds
@@ -66,6 +67,7 @@ public class CompAdmin {
 		boolean listComps = false;
 		boolean listJobs = false;
 		boolean shutdownOne = false;
+		boolean toolboxUpdated = false;
 		boolean quiet = false;
 
 		do {
@@ -113,6 +115,9 @@ public class CompAdmin {
 			case "--stop-gracefully-slowest":
 				shutdownOne = true;
 				break;
+			case "--toolbox-updated":
+				toolboxUpdated = true;
+				break;
 			default:
 				break;
 			}
@@ -153,6 +158,9 @@ public class CompAdmin {
 			if (shutdownOne) {
 				stopGracefully(null);
 			}
+			if (toolboxUpdated) {
+				compAPI.toolboxUpdated();
+			}
 			
 			endpoint.close();
 
@@ -47,4 +47,13 @@ public class CompAdminAPI extends ServerAdminAPI {
 			logger.error("stopping comp gracefully failed", e);
 		}
 	}
+	
+	/**
+	 * Tell all comps to drop their cached tools and toolbox snapshots. Use this after
+	 * the toolbox service has been reloaded, otherwise the comps notice the changes only
+	 * when their caches expire.
+	 */
+	public void toolboxUpdated() throws JMSException {
+		getTopic().sendMessage(new CommandMessage(CommandMessage.COMMAND_TOOLBOX_UPDATED));
+	}
 }
\ No newline at end of file
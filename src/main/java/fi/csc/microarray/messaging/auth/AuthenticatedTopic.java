@@ -64,6 +64,7 @@ public class AuthenticatedTopic extends MessagingTopic {
 							replyMsg.setPassword(credentials.password);
 							replyMsg.setSessionID(msg.getSessionID());
 							replyMsg.setReplyTo(authMsg.getReplyTo());
+							replyMsg.setCorrelationID(authMsg.getCorrelationID());
 							
 							// FIXME sometimes reply to this send (ack) is not received as reply temp topic
 							// gets deleted before that
@@ -113,13 +114,17 @@ public class AuthenticatedTopic extends MessagingTopic {
 		super.sendMessage(message);
 	}
 	
-	public void sendReplyableMessage(ChipsterMessage message, TempTopicMessagingListener replyListener) throws JMSException {
+	/**
+	 * @see MessagingTopic#sendReplyableMessage(ChipsterMessage, TempTopicMessagingListener, ReplyTopicType)
+	 */
+	@Override
+	public void sendReplyableMessage(ChipsterMessage message, TempTopicMessagingListener replyListener, ReplyTopicType replyTopicType) throws JMSException {
 		// attach session id to messages other than login messages
 		if (!(message instanceof AuthenticationMessage && ((AuthenticationMessage)message).isLogin())) {
 			attachSessionID(message);
 		}
 		logger.debug("added authentication listener to message");
-		super.sendReplyableMessage(message, replyListener, authMessagingListener);
+		super.sendReplyableMessage(message, replyListener, authMessagingListener, replyTopicType);
 	}
 	
 	private void attachSessionID(ChipsterMessage msg) {
@@ -0,0 +1,344 @@
+package fi.csc.microarray.messaging.benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.JMSException;
+
+import org.apache.activemq.broker.BrokerService;
+import org.apache.commons.io.FileUtils;
+
+import fi.csc.microarray.auth.Authenticator;
+import fi.csc.microarray.config.DirectoryLayout;
+import fi.csc.microarray.messaging.JMSMessagingEndpoint;
+import fi.csc.microarray.messaging.JobState;
+import fi.csc.microarray.messaging.MessagingListener;
+import fi.csc.microarray.messaging.MessagingTopic;
+import fi.csc.microarray.messaging.MessagingTopic.AccessMode;
+import fi.csc.microarray.messaging.NodeBase;
+import fi.csc.microarray.messaging.ReplyMessageListener;
+import fi.csc.microarray.messaging.Topics;
+import fi.csc.microarray.messaging.auth.SimpleAuthenticationRequestListener;
+import fi.csc.microarray.messaging.message.ChipsterMessage;
+import fi.csc.microarray.messaging.message.JobMessage;
+import fi.csc.microarray.messaging.message.ParameterMessage;
+import fi.csc.microarray.messaging.message.ResultMessage;
+import fi.csc.microarray.util.CommandLineParser;
+import fi.csc.microarray.util.CommandLineParser.CommandLineException;
+
+/**
+ * <p>Load generator for measuring the messaging throughput and latency on a single machine.
+ * Starts an embedded ActiveMQ broker, fake comps that reply to every job message and
+ * clients that send job messages one after another and wait for the reply. Prints the
+ * request-reply latency percentiles and message rates of the topics.</p>
+ *
+ * <p>Clients send the jobs to the authorised request topic, unless -authenticator is given.
+ * In that case an Authenticator is started in the same JVM and the jobs go through the
+ * request topic and the login of the clients. The jobmanager is not included, each job is
+ * handled by one of the comps selected by the job id.</p>
+ *
+ * <p>Run for example with <code>java -cp ... fi.csc.microarray.messaging.benchmark.MessagingBenchmark -clients 20 -comps 4</code></p>
+ */
+public class MessagingBenchmark {
+
+	private static final String USERNAME = "benchmark";
+	private static final String PASSWORD = "benchmark";
+	private static final int REPLY_TIMEOUT = 60; // seconds
+
+	private int clientCount;
+	private int compCount;
+	private int messagesPerClient;
+	private boolean useAuthenticator;
+
+	private AtomicLong requestsSent = new AtomicLong(0);
+	private AtomicLong requestsReceived = new AtomicLong(0);
+	private AtomicLong repliesReceived = new AtomicLong(0);
+	private AtomicLong timeouts = new AtomicLong(0);
+
+	private static class BenchmarkNode extends NodeBase {
+		private String name;
+
+		public BenchmarkNode(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	public MessagingBenchmark(int clientCount, int compCount, int messagesPerClient, boolean useAuthenticator) {
+		this.clientCount = clientCount;
+		this.compCount = compCount;
+		this.messagesPerClient = messagesPerClient;
+		this.useAuthenticator = useAuthenticator;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		CommandLineParser cmdParser = new CommandLineParser();
+		cmdParser.addParameter("-clients", false, true, "10", "number of clients sending jobs");
+		cmdParser.addParameter("-comps", false, true, "2", "number of comps replying to jobs");
+		cmdParser.addParameter("-messages", false, true, "1000", "number of jobs sent by each client");
+		cmdParser.addParameter("-port", false, true, "61699", "port of the embedded broker");
+		cmdParser.addParameter("-authenticator", false, false, null, "send jobs through the authenticator");
+		cmdParser.addParameter("-binary", false, false, null, "use the binary message format");
+
+		try {
+			cmdParser.parse(args);
+		} catch (CommandLineException e) {
+			System.out.println("Illegal parameters: " + e.getMessage());
+			System.out.println(cmdParser.getDescription());
+			System.exit(1);
+		}
+		if (cmdParser.userAskedHelp()) {
+			System.out.println(cmdParser.getDescription());
+			System.exit(0);
+		}
+
+		int port = Integer.parseInt(cmdParser.getValue("-port"));
+		boolean useAuthenticator = cmdParser.hasValue("-authenticator");
+
+		// layout and configuration for all components in this JVM
+		File baseDir = Files.createTempDirectory("chipster-benchmark").toFile();
+		writeConfiguration(baseDir, port, cmdParser.hasValue("-binary"));
+		DirectoryLayout.setBaseDirOverride(baseDir);
+
+		BrokerService broker = new BrokerService();
+		broker.setBrokerName("benchmark");
+		broker.setPersistent(false);
+		broker.setUseJmx(false);
+		broker.addConnector("tcp://localhost:" + port);
+		broker.start();
+
+		int exitCode = 0;
+		try {
+			if (useAuthenticator) {
+				// initialises the directory layout too
+				new Authenticator(null);
+			} else {
+				DirectoryLayout.initialiseServerLayout(Arrays.asList(new String[] {}));
+			}
+
+			MessagingBenchmark benchmark = new MessagingBenchmark(
+					Integer.parseInt(cmdParser.getValue("-clients")),
+					Integer.parseInt(cmdParser.getValue("-comps")),
+					Integer.parseInt(cmdParser.getValue("-messages")),
+					useAuthenticator);
+			benchmark.run();
+
+		} catch (Exception e) {
+			e.printStackTrace();
+			exitCode = 1;
+		} finally {
+			broker.stop();
+			FileUtils.deleteDirectory(baseDir);
+		}
+
+		// authenticator keeps the JVM alive
+		System.exit(exitCode);
+	}
+
+	public void run() throws Exception {
+
+		System.out.println("Starting " + compCount + " comps and " + clientCount + " clients, " + messagesPerClient + " jobs per client" +
+				(useAuthenticator ? ", through authenticator" : ""));
+
+		List<JMSMessagingEndpoint> endpoints = new LinkedList<JMSMessagingEndpoint>();
+		try {
+			for (int i = 0; i < compCount; i++) {
+				JMSMessagingEndpoint endpoint = new JMSMessagingEndpoint(new BenchmarkNode("benchmark-comp-" + i));
+				endpoints.add(endpoint);
+				startComp(endpoint, i);
+			}
+
+			final long[][] latencies = new long[clientCount][];
+			Thread[] clients = new Thread[clientCount];
+			for (int i = 0; i < clientCount; i++) {
+				JMSMessagingEndpoint endpoint = new JMSMessagingEndpoint(new BenchmarkNode("benchmark-client-" + i), new SimpleAuthenticationRequestListener(USERNAME, PASSWORD), false);
+				endpoints.add(endpoint);
+				Topics.Name topicName = useAuthenticator ? Topics.Name.REQUEST_TOPIC : Topics.Name.AUTHORISED_REQUEST_TOPIC;
+				final MessagingTopic topic = endpoint.createTopic(topicName, AccessMode.WRITE);
+				final int client = i;
+				clients[i] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						latencies[client] = runClient(topic);
+					}
+				}, "benchmark-client-" + i);
+			}
+
+			long startTime = System.nanoTime();
+			for (Thread client : clients) {
+				client.start();
+			}
+			for (Thread client : clients) {
+				client.join();
+			}
+			long elapsed = System.nanoTime() - startTime;
+
+			printResults(latencies, elapsed);
+
+		} finally {
+			for (JMSMessagingEndpoint endpoint : endpoints) {
+				try {
+					endpoint.close();
+				} catch (JMSException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Every comp receives all jobs, but only one of them replies.
+	 */
+	private void startComp(final JMSMessagingEndpoint endpoint, final int index) throws JMSException {
+		MessagingTopic topic = endpoint.createTopic(Topics.Name.AUTHORISED_REQUEST_TOPIC, AccessMode.READ);
+		topic.setListener(new MessagingListener() {
+			@Override
+			public void onChipsterMessage(ChipsterMessage msg) {
+				if (!(msg instanceof JobMessage)) {
+					return;
+				}
+				JobMessage jobMessage = (JobMessage) msg;
+				if ((jobMessage.getJobId().hashCode() & 0x7fffffff) % compCount != index) {
+					return;
+				}
+				requestsReceived.incrementAndGet();
+
+				ResultMessage reply = new ResultMessage(jobMessage.getJobId(), JobState.COMPLETED, "", null, "benchmark output", null);
+				try {
+					endpoint.replyToMessage(jobMessage, reply);
+				} catch (JMSException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return latency of each job in nanoseconds, -1 for timeouts
+	 */
+	private long[] runClient(MessagingTopic topic) {
+		long[] latencies = new long[messagesPerClient];
+		for (int i = 0; i < messagesPerClient; i++) {
+			JobMessage jobMessage = new JobMessage(UUID.randomUUID().toString(), "benchmark.R", new LinkedList<String>());
+			ReplyMessageListener replyListener = new ReplyMessageListener();
+			try {
+				long start = System.nanoTime();
+				topic.sendReplyableMessage(jobMessage, replyListener);
+				requestsSent.incrementAndGet();
+				ParameterMessage reply = replyListener.waitForReply(REPLY_TIMEOUT, TimeUnit.SECONDS);
+				if (reply != null) {
+					latencies[i] = System.nanoTime() - start;
+					repliesReceived.incrementAndGet();
+				} else {
+					latencies[i] = -1;
+					timeouts.incrementAndGet();
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+				latencies[i] = -1;
+			} finally {
+				replyListener.cleanUp();
+			}
+		}
+		return latencies;
+	}
+
+	private void printResults(long[][] clientLatencies, long elapsed) {
+
+		long[] latencies = new long[clientCount * messagesPerClient];
+		int count = 0;
+		for (long[] clientLatency : clientLatencies) {
+			if (clientLatency == null) {
+				// client thread failed
+				continue;
+			}
+			for (long latency : clientLatency) {
+				if (latency >= 0) {
+					latencies[count++] = latency;
+				}
+			}
+		}
+		latencies = Arrays.copyOf(latencies, count);
+		Arrays.sort(latencies);
+
+		double seconds = elapsed / 1000_000_000.0;
+		String requestTopic = (useAuthenticator ? Topics.Name.REQUEST_TOPIC : Topics.Name.AUTHORISED_REQUEST_TOPIC).toString();
+
+		System.out.println();
+		System.out.println(String.format("duration        %10.2f s", seconds));
+		System.out.println(String.format("replies         %10d", count));
+		System.out.println(String.format("timeouts        %10d", timeouts.get()));
+		System.out.println();
+		System.out.println("messages per second");
+		System.out.println(String.format("  %-32s %10.1f  (sent by clients)", requestTopic, requestsSent.get() / seconds));
+		System.out.println(String.format("  %-32s %10.1f  (handled by comps)", Topics.Name.AUTHORISED_REQUEST_TOPIC, requestsReceived.get() / seconds));
+		System.out.println(String.format("  %-32s %10.1f  (received by clients)", "reply topics", repliesReceived.get() / seconds));
+		System.out.println();
+		System.out.println("request-reply latency");
+		if (count > 0) {
+			System.out.println(String.format("  min   %10.2f ms", latencies[0] / 1000_000.0));
+			for (double percentile : new double[] {50, 90, 99, 99.9}) {
+				System.out.println(String.format("  p%-4s %10.2f ms", (percentile % 1 == 0 ? "" + (int) percentile : "" + percentile), getPercentile(latencies, percentile) / 1000_000.0));
+			}
+			System.out.println(String.format("  max   %10.2f ms", latencies[count - 1] / 1000_000.0));
+		}
+	}
+
+	/**
+	 * @param sorted sorted values
+	 * @param percentile between 0 and 100
+	 */
+	static long getPercentile(long[] sorted, double percentile) {
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.min(Math.max(index, 0), sorted.length - 1)];
+	}
+
+	private static void writeConfiguration(File baseDir, int port, boolean useBinary) throws IOException {
+		File confDir = new File(baseDir, "conf");
+		File securityDir = new File(baseDir, "security");
+		confDir.mkdirs();
+		new File(baseDir, "logs").mkdirs();
+		securityDir.mkdirs();
+
+		File usersFile = new File(securityDir, "users");
+		try (PrintWriter users = new PrintWriter(new FileWriter(usersFile))) {
+			users.println(USERNAME + ":" + PASSWORD + "::benchmark user");
+		}
+
+		try (PrintWriter jaas = new PrintWriter(new FileWriter(new File(confDir, "jaas.config")))) {
+			jaas.println("Chipster {");
+			jaas.println("	fi.csc.microarray.auth.SimpleFileLoginModule sufficient passwdFile=\"" + usersFile.getAbsolutePath() + "\";");
+			jaas.println("};");
+		}
+
+		try (PrintWriter config = new PrintWriter(new FileWriter(new File(confDir, "chipster-config.xml")))) {
+			config.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+			config.println("<configuration content-version=\"3\">");
+			config.println("	<configuration-module moduleId=\"messaging\">");
+			config.println("		<entry entryKey=\"broker-host\"><value>localhost</value></entry>");
+			config.println("		<entry entryKey=\"broker-protocol\"><value>tcp</value></entry>");
+			config.println("		<entry entryKey=\"broker-port\"><value>" + port + "</value></entry>");
+			config.println("		<entry entryKey=\"use-reliable\"><value>false</value></entry>");
+			config.println("		<entry entryKey=\"use-binary-messages\"><value>" + useBinary + "</value></entry>");
+			config.println("	</configuration-module>");
+			config.println("	<configuration-module moduleId=\"security\">");
+			config.println("		<entry entryKey=\"username\"><value>" + USERNAME + "</value></entry>");
+			config.println("		<entry entryKey=\"password\"><value>" + PASSWORD + "</value></entry>");
+			config.println("	</configuration-module>");
+			config.println("</configuration>");
+		}
+	}
+}
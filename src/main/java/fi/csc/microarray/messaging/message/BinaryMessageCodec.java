@@ -0,0 +1,373 @@
+package fi.csc.microarray.messaging.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.Session;
+
+import org.apache.activemq.command.ActiveMQMapMessage;
+
+/**
+ * <p>Compact binary wire format for {@link ChipsterMessage}s. The message is marshalled as
+ * usual, but instead of sending the properties and values as separate entries of a
+ * {@link MapMessage}, they are written as length-prefixed fields into the body of one
+ * {@link BytesMessage}. Long strings, like the output text of a job, are compressed.</p>
+ *
+ * <p>Message classes are identified by a number from a registered type table, so the
+ * receiver doesn't need reflection to create the message. Messages of classes that are not
+ * in the table are sent as {@link MapMessage}s. Receivers understand both formats.</p>
+ */
+public class BinaryMessageCodec {
+
+	/**
+	 * JMS property that tells the receiver the format of a {@link BytesMessage}.
+	 */
+	public static final String KEY_CODEC = "codec";
+	public static final String CODEC_NAME = "chipster-binary-1";
+
+	/**
+	 * Strings of at least this many bytes are compressed.
+	 */
+	private static final int COMPRESSION_THRESHOLD = 4*1024;
+
+	private static final byte TAG_NULL = 0;
+	private static final byte TAG_STRING = 1;
+	private static final byte TAG_COMPRESSED_STRING = 2;
+	private static final byte TAG_BOOLEAN = 3;
+	private static final byte TAG_INT = 4;
+	private static final byte TAG_LONG = 5;
+	private static final byte TAG_DOUBLE = 6;
+	private static final byte TAG_BYTES = 7;
+
+	private static interface MessageFactory {
+		public ChipsterMessage create();
+	}
+
+	private static Map<Short, MessageFactory> factories = new HashMap<Short, MessageFactory>();
+	private static Map<Class<? extends ChipsterMessage>, Short> typeIds = new HashMap<Class<? extends ChipsterMessage>, Short>();
+
+	/*
+	 * Type ids are part of the wire format. Never change or reuse them, only add new ones.
+	 */
+	static {
+		register(1, AuthenticationMessage.class, new MessageFactory() {
+			public ChipsterMessage create() {
+				return new AuthenticationMessage();
+			}
+		});
+		register(2, BooleanMessage.class, new MessageFactory() {
+			public ChipsterMessage create() {
+				return new BooleanMessage();
+			}
+		});
+		register(3, CommandMessage.class, new MessageFactory() {
+			public ChipsterMessage create() {
+				return new CommandMessage();
+			}
+		});
+		register(4, FeedbackMessage.class, new MessageFactory() {
+			public ChipsterMessage create() {
+				return new FeedbackMessage();
+			}
+		});
+		register(5, JobLogMessage.class, new MessageFactory() {
+			public ChipsterMessage create() {
+				return new JobLogMessage();
+			}
+		});
+		register(6, JobMessage.class, new MessageFactory() {
+			public ChipsterMessage create() {
+				return new JobMessage();
+			}
+		});
+		register(7, JsonMessage.class, new MessageFactory() {
+			public ChipsterMessage create() {
+				return new JsonMessage();
+			}
+		});
+		register(8, ModuleDescriptionMessage.class, new MessageFactory() {
+			public ChipsterMessage create() {
+				return new ModuleDescriptionMessage();
+			}
+		});
+		register(9, PayloadMessage.class, new MessageFactory() {
+			public ChipsterMessage create() {
+				return new PayloadMessage();
+			}
+		});
+		register(10, ResultMessage.class, new MessageFactory() {
+			public ChipsterMessage create() {
+				return new ResultMessage();
+			}
+		});
+		register(11, ServerStatusMessage.class, new MessageFactory() {
+			public ChipsterMessage create() {
+				return new ServerStatusMessage();
+			}
+		});
+		register(12, SourceMessage.class, new MessageFactory() {
+			public ChipsterMessage create() {
+				return new SourceMessage();
+			}
+		});
+		register(13, SuccessMessage.class, new MessageFactory() {
+			public ChipsterMessage create() {
+				return new SuccessMessage();
+			}
+		});
+		register(14, UrlListMessage.class, new MessageFactory() {
+			public ChipsterMessage create() {
+				return new UrlListMessage();
+			}
+		});
+		register(15, UrlMessage.class, new MessageFactory() {
+			public ChipsterMessage create() {
+				return new UrlMessage();
+			}
+		});
+	}
+
+	private static void register(int typeId, Class<? extends ChipsterMessage> messageClass, MessageFactory factory) {
+		factories.put((short) typeId, factory);
+		typeIds.put(messageClass, (short) typeId);
+	}
+
+	/**
+	 * Creates the JMS message. Binary format is used if it's enabled and the message class
+	 * is registered, otherwise the message is a {@link MapMessage}.
+	 */
+	public static Message createJMSMessage(Session session, ChipsterMessage message, boolean useBinary) throws JMSException {
+		if (useBinary && typeIds.containsKey(message.getClass())) {
+			try {
+				BytesMessage bytesMessage = session.createBytesMessage();
+				bytesMessage.writeBytes(encode(message));
+				bytesMessage.setStringProperty(KEY_CODEC, CODEC_NAME);
+				bytesMessage.setJMSReplyTo(message.getReplyTo());
+				return bytesMessage;
+			} catch (IOException e) {
+				// value types that the binary format doesn't support
+			}
+		}
+
+		MapMessage mapMessage = session.createMapMessage();
+		message.marshal(mapMessage);
+		return mapMessage;
+	}
+
+	/**
+	 * @return true if the message was created with {@link #createJMSMessage(Session, ChipsterMessage, boolean)} using the binary format
+	 */
+	public static boolean isBinary(Message message) throws JMSException {
+		return message instanceof BytesMessage && CODEC_NAME.equals(message.getStringProperty(KEY_CODEC));
+	}
+
+	public static ChipsterMessage decode(BytesMessage message) throws JMSException, IOException {
+		byte[] bytes = new byte[(int) message.getBodyLength()];
+		message.readBytes(bytes);
+
+		ActiveMQMapMessage mapMessage = new ActiveMQMapMessage();
+		ChipsterMessage chipsterMessage = decode(bytes, mapMessage);
+		mapMessage.setJMSReplyTo(message.getJMSReplyTo());
+		mapMessage.setJMSMessageID(message.getJMSMessageID());
+		chipsterMessage.unmarshal(mapMessage);
+		return chipsterMessage;
+	}
+
+	static byte[] encode(ChipsterMessage message) throws JMSException, IOException {
+		ActiveMQMapMessage mapMessage = new ActiveMQMapMessage();
+		message.marshal(mapMessage);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeShort(typeIds.get(message.getClass()));
+
+		Map<String, Object> properties = mapMessage.getProperties();
+		out.writeInt(properties.size());
+		for (Map.Entry<String, Object> property : properties.entrySet()) {
+			writeString(out, property.getKey());
+			writeValue(out, property.getValue());
+		}
+
+		Map<String, Object> content = mapMessage.getContentMap();
+		out.writeInt(content.size());
+		for (Map.Entry<String, Object> entry : content.entrySet()) {
+			writeString(out, entry.getKey());
+			writeValue(out, entry.getValue());
+		}
+
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Creates the message and fills the map message with the properties and values that
+	 * were marshalled by the sender.
+	 */
+	static ChipsterMessage decode(byte[] bytes, MapMessage mapMessage) throws JMSException, IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+
+		short typeId = in.readShort();
+		MessageFactory factory = factories.get(typeId);
+		if (factory == null) {
+			throw new IOException("unknown message type " + typeId);
+		}
+
+		int propertyCount = in.readInt();
+		for (int i = 0; i < propertyCount; i++) {
+			String name = readString(in);
+			Object value = readValue(in);
+			if (value != null) {
+				mapMessage.setObjectProperty(name, value);
+			}
+		}
+
+		int entryCount = in.readInt();
+		for (int i = 0; i < entryCount; i++) {
+			String name = readString(in);
+			Object value = readValue(in);
+			if (value != null) {
+				mapMessage.setObject(name, value);
+			}
+		}
+
+		return factory.create();
+	}
+
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(TAG_NULL);
+
+		} else if (value instanceof String) {
+			byte[] utf8 = ((String) value).getBytes(StandardCharsets.UTF_8);
+			if (utf8.length >= COMPRESSION_THRESHOLD) {
+				out.writeByte(TAG_COMPRESSED_STRING);
+				out.writeInt(utf8.length);
+				writeBytes(out, compress(utf8));
+			} else {
+				out.writeByte(TAG_STRING);
+				writeBytes(out, utf8);
+			}
+
+		} else if (value instanceof Boolean) {
+			out.writeByte(TAG_BOOLEAN);
+			out.writeBoolean((Boolean) value);
+
+		} else if (value instanceof Integer) {
+			out.writeByte(TAG_INT);
+			out.writeInt((Integer) value);
+
+		} else if (value instanceof Long) {
+			out.writeByte(TAG_LONG);
+			out.writeLong((Long) value);
+
+		} else if (value instanceof Double) {
+			out.writeByte(TAG_DOUBLE);
+			out.writeDouble((Double) value);
+
+		} else if (value instanceof byte[]) {
+			out.writeByte(TAG_BYTES);
+			writeBytes(out, (byte[]) value);
+
+		} else {
+			throw new IOException("unsupported value type " + value.getClass().getName());
+		}
+	}
+
+	private static Object readValue(DataInputStream in) throws IOException {
+		byte tag = in.readByte();
+		switch (tag) {
+		case TAG_NULL:
+			return null;
+		case TAG_STRING:
+			return new String(readBytes(in), StandardCharsets.UTF_8);
+		case TAG_COMPRESSED_STRING:
+			int length = in.readInt();
+			return new String(decompress(readBytes(in), length), StandardCharsets.UTF_8);
+		case TAG_BOOLEAN:
+			return in.readBoolean();
+		case TAG_INT:
+			return in.readInt();
+		case TAG_LONG:
+			return in.readLong();
+		case TAG_DOUBLE:
+			return in.readDouble();
+		case TAG_BYTES:
+			return readBytes(in);
+		default:
+			throw new IOException("unknown value tag " + tag);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String string) throws IOException {
+		writeBytes(out, string.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return new String(readBytes(in), StandardCharsets.UTF_8);
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private static byte[] compress(byte[] bytes) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(bytes);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4);
+			byte[] buffer = new byte[8*1024];
+			while (!deflater.finished()) {
+				int count = deflater.deflate(buffer);
+				out.write(buffer, 0, count);
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] decompress(byte[] bytes, int length) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(bytes);
+			byte[] result = new byte[length];
+			int offset = 0;
+			while (offset < length && !inflater.finished()) {
+				int count = inflater.inflate(result, offset, length - offset);
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				offset += count;
+			}
+			if (offset != length) {
+				throw new IOException("compressed string is corrupted");
+			}
+			return result;
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		} finally {
+			inflater.end();
+		}
+	}
+}
@@ -27,12 +27,14 @@ public abstract class ChipsterMessage {
 	public static final String KEY_USERNAME = "username";
 	public static final String KEY_SESSION_ID = "session-id";
 	public static final String KEY_MULTIPLEX_CHANNEL = "multiplex-channel";
+	public static final String KEY_CORRELATION_ID = "correlation-id";
     
 	private String messageID = UUID.randomUUID().toString();
 	private Destination replyTo = null;
 	private String username;
 	private String sessionID;
 	private String multiplexChannel;
+	private String correlationID;
 	private String jmsMessageID;
 	
 	/**
@@ -45,6 +47,7 @@ public abstract class ChipsterMessage {
 		this.username = from.getStringProperty(KEY_USERNAME);
 		this.multiplexChannel = from.getStringProperty(KEY_MULTIPLEX_CHANNEL);
 		this.sessionID = from.getStringProperty(KEY_SESSION_ID);
+		this.correlationID = from.getStringProperty(KEY_CORRELATION_ID);
 		this.jmsMessageID = from.getJMSMessageID();
 	}
 	
@@ -70,6 +73,7 @@ public abstract class ChipsterMessage {
 		to.setJMSReplyTo(replyTo);
 		to.setStringProperty(KEY_MULTIPLEX_CHANNEL, multiplexChannel);
 		to.setStringProperty(KEY_SESSION_ID, sessionID);
+		to.setStringProperty(KEY_CORRELATION_ID, correlationID);
 	}
 	
 	/**
@@ -138,6 +142,21 @@ public abstract class ChipsterMessage {
 		this.multiplexChannel = multiplexChannel;
 	}
 
+	/**
+	 * Correlation id is used to route replies to the right listener, when the replies of
+	 * several requests are sent to the same reply topic. Replies get the correlation id
+	 * of the original message.
+	 */
+	public String getCorrelationID() {
+		return correlationID;
+	}
+
+	/**
+	 * @see #getCorrelationID()
+	 */
+	public void setCorrelationID(String correlationID) {
+		this.correlationID = correlationID;
+	}
 
 	public String getJmsMessageID() {
 		return jmsMessageID;
@@ -23,9 +23,12 @@ public class CommandMessage extends ParameterMessage {
 	public final static String COMMAND_DESCRIBE = "describe";
 	public final static String COMMAND_GET_SOURCE = "get-source";
 	public final static String COMMAND_COMP_AVAILABLE = "comp-available";
+	public final static String COMMAND_COMP_HEARTBEAT = "comp-heartbeat";
 
 	public final static String COMMAND_NEW_URL_REQUEST ="new-url-request";
+	public final static String COMMAND_NEW_URLS_REQUEST ="new-urls-request";
 	public final static String COMMAND_GET_URL ="get-url";
+	public final static String COMMAND_GET_URLS ="get-urls";
 
 	@Deprecated
 	public final static String COMMAND_PUBLIC_URL_REQUEST ="public-url-request";
@@ -33,7 +36,10 @@ public class CommandMessage extends ParameterMessage {
 	public final static String COMMAND_DISK_SPACE_REQUEST ="disk-space-request";
 
 	public static final String COMMAND_MOVE_FROM_CACHE_TO_STORAGE = "move-from-cache-to-storage";
+	public static final String COMMAND_MOVE_ALL_FROM_CACHE_TO_STORAGE = "move-all-from-cache-to-storage";
+	public static final String COMMAND_COPY_FROM_STORAGE_TO_CACHE = "copy-from-storage-to-cache";
 	public static final String COMMAND_IS_AVAILABLE = "is-available";
+	public static final String COMMAND_ARE_AVAILABLE = "are-available";
 	public static final String COMMAND_STORE_SESSION = "store-session";
 	public static final String COMMAND_REMOVE_SESSION = "remove-session";
 	public static final String COMMAND_LIST_SESSIONS = "list-sessions";
@@ -50,6 +56,7 @@ public class CommandMessage extends ParameterMessage {
 	public static final String COMMAND_LIST_RUNNING_JOBS = "get-running-jobs";
 	public static final String COMMAND_GET_COMP_STATUS = "get-comp-status";
 	public static final String COMMAND_STOP_GRACEFULLY_COMP = "shutdown-comp";
+	public static final String COMMAND_TOOLBOX_UPDATED = "toolbox-updated";
 
 	public static final String COMMAND_GET_JOB = "get-job";
 
@@ -52,11 +52,20 @@ public abstract class ParameterMessage extends ChipsterMessage {
 	public static final String PARAMETER_SESSION_NAME_LIST = "session-name-list";
 	public static final String PARAMETER_SESSION_UUID_LIST = "session-uuid-list";
 	public static final String PARAMETER_FILE_ID_LIST = "file-id-list";	
+	public static final String PARAMETER_CHECKSUM_LIST = "file-checksum-list";
+	public static final String PARAMETER_AREA_LIST = "area-list";
 	public static final String PARAMETER_USERNAME_LIST = "username-list";
 	public static final String PARAMETER_SIZE_LIST = "size-list";
 	public static final String PARAMETER_DATE_LIST = "date-list";
+	public static final String PARAMETER_URL_LIST = "url-list";
+	public static final String PARAMETER_NEW_FILE_ID_LIST = "new-file-id-list";
 	public static final String PARAMETER_STATUS_REPORT = "status-report";
 	public static final String PARAMETER_HOST = "host";
+	public static final String PARAMETER_FREE_SLOTS = "free-slots";
+	public static final String PARAMETER_SLOTS = "slots";
+	public static final String PARAMETER_RUNNING_JOBS = "running-jobs";
+	public static final String PARAMETER_LOAD = "load";
+	public static final String PARAMETER_ASSIGNED_COMP_ID = "assigned-comp-id";
 	public static final String PARAMETER_JSON = "json";
 	public static final String PARAMETER_QUOTA = "quota";
 	public static final String PARAMETER_QUOTA_WARNING = "quota-warning";
@@ -2,7 +2,17 @@ package fi.csc.microarray.security;
 
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.log4j.Logger;
 
 
@@ -11,6 +21,11 @@ import fi.csc.microarray.config.DirectoryLayout;
 /**
  * Implementation of a session pool. Session are given cryptographically strong
  * pseudo random identifier. SecureSessionPool objects are thread-safe.
+ * 
+ * Sessions are kept in a concurrent map, so lookups don't block each other. Expired sessions
+ * are removed by a timer wheel: each session is in the bucket of its expiration time and
+ * the buckets are checked one tick at a time. Sessions that were used after they were put
+ * in the bucket are moved to the bucket of their new expiration time.
  *   
  * @author Aleksi Kallio
  *
@@ -19,15 +34,23 @@ public class SecureSessionPool {
 	
 	private static final Logger logger = Logger.getLogger(SecureSessionPool.class);
 	
+	private static final long TICK = 1000;
+	private static final int WHEEL_SIZE = 600;
+	
 	private long activeTimeout;
 	private long totalTimeout;
 	
-	private Map<String, Session> sessions = new HashMap<String, Session>();
+	private ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+
+	@SuppressWarnings("unchecked")
+	private Set<Session>[] wheel = new Set[WHEEL_SIZE];
+	private volatile long currentTick;
+	private ScheduledExecutorService expiryTimer;
 	
 	public class Session {
 				
 		private long creationTimestamp;
-		private long lastUseTimestamp;
+		private volatile long lastUseTimestamp;
 		
 		private String id;
 		private Map<String, Object> parameters = 
@@ -75,52 +98,144 @@ public class SecureSessionPool {
 		private long getCreationTimestamp() {
 			return creationTimestamp;
 		}
+		
+		private long getExpirationTimestamp() {
+			return Math.min(getLastUseTimestamp() + activeTimeout, getCreationTimestamp() + totalTimeout);
+		}
 	}
 	
+	/**
+	 * Session pool with the lifetimes from the configuration.
+	 */
 	public SecureSessionPool() {
 		// timeouts, hours from config file
-		int activeTimeoutMinutes = DirectoryLayout.getInstance().getConfiguration().getInt("auth", "sessionRefreshTimeout");
-		int totalTimeoutMinutes = DirectoryLayout.getInstance().getConfiguration().getInt("auth", "sessionMaxLifetime");
-
-		this.activeTimeout = 1000 * 60 * activeTimeoutMinutes;
-		this.totalTimeout = 1000 * 60 * totalTimeoutMinutes;
+		this(DirectoryLayout.getInstance().getConfiguration().getInt("auth", "sessionRefreshTimeout"), 
+				DirectoryLayout.getInstance().getConfiguration().getInt("auth", "sessionMaxLifetime"));
+	}
+	
+	/**
+	 * @param activeTimeoutMinutes session expires if it isn't used during this time
+	 * @param totalTimeoutMinutes maximum lifetime of a session
+	 */
+	public SecureSessionPool(int activeTimeoutMinutes, int totalTimeoutMinutes) {
+		this.activeTimeout = 1000l * 60 * activeTimeoutMinutes;
+		this.totalTimeout = 1000l * 60 * totalTimeoutMinutes;
+		
+		for (int i = 0; i < WHEEL_SIZE; i++) {
+			wheel[i] = Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+		}
+		currentTick = System.currentTimeMillis() / TICK;
+		
+		expiryTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "session-expiry");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		expiryTimer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					expireSessions();
+				} catch (Exception e) {
+					logger.error("session expiration failed", e);
+				}
+			}
+		}, TICK, TICK, TimeUnit.MILLISECONDS);
 		
 		logger.info("session lifetimes: active " + activeTimeoutMinutes +  "m, maximum " + totalTimeoutMinutes + "m");
 	}
 	
-	public synchronized Session createSession() {
+	public Session createSession() {
 		String id = CryptoKey.generateRandom();
 		Session session = new Session(id);
-		sessions.put(id, session);
+		addSession(session);
 		return session;
 	}
 	
-	public synchronized void addSession(Session session) {
+	public void addSession(Session session) {
 		sessions.put(session.getID(), session);
+		schedule(session);
 	}
 	
-	public synchronized Session getSession(String id) {
+	public Session getSession(String id) {
 		Session session = sessions.get(id);
 		if (session != null && isExpired(session)) {
 			// session is old
-			sessions.remove(session);
+			sessions.remove(id, session);
 			return null;
 		}
 		return session;
 	}
 	
 	private boolean isExpired(Session session) {
-		return (System.currentTimeMillis() - session.getLastUseTimestamp()) > activeTimeout ||
-			(System.currentTimeMillis() - session.getCreationTimestamp()) > totalTimeout;
+		return System.currentTimeMillis() > session.getExpirationTimestamp();
 	}
 	
-	public synchronized void removeSession(Session session) {
-		sessions.remove(session.id);
+	public void removeSession(Session session) {
+		sessions.remove(session.id, session);
 	}
 
 	public int size() {
 		return sessions.size();
 	}
+	
+	/**
+	 * Stops the expiration timer. Sessions that are in the pool don't expire anymore
+	 * unless they are looked up.
+	 */
+	public void close() {
+		expiryTimer.shutdownNow();
+	}
+	
+	private void schedule(Session session) {
+		// sessions far in the future go around the wheel and are checked on the way
+		long tick = Math.max(session.getExpirationTimestamp() / TICK + 1, currentTick + 1);
+		wheel[(int) (tick % WHEEL_SIZE)].add(session);
+	}
+	
+	/**
+	 * Checks all buckets up to the current time. Only the timer thread calls this.
+	 */
+	private void expireSessions() {
+		long nowTick = System.currentTimeMillis() / TICK;
+		long now = System.currentTimeMillis();
+		int expiredCount = 0;
+		
+		for (; currentTick < nowTick; currentTick++) {
+			Set<Session> bucket = wheel[(int) ((currentTick + 1) % WHEEL_SIZE)];
+			List<Session> notExpired = new LinkedList<Session>();
+			Iterator<Session> iterator = bucket.iterator();
+			while (iterator.hasNext()) {
+				Session session = iterator.next();
+				iterator.remove();
+				
+				if (sessions.get(session.getID()) != session) {
+					// already removed
+					continue;
+				}
+				
+				if (now > session.getExpirationTimestamp()) {
+					sessions.remove(session.getID(), session);
+					expiredCount++;
+				} else {
+					// used after it was scheduled or expires on a later round
+					notExpired.add(session);
+				}
+			}
+			
+			// not while iterating, because the session may end up in the same bucket
+			for (Session session : notExpired) {
+				schedule(session);
+			}
+		}
+		
+		if (expiredCount > 0) {
+			logger.debug(expiredCount + " sessions expired, " + sessions.size() + " sessions left");
+		}
+	}
 
 	public static void main(String[] args) {
 		for (int i = 0; i < 10; i++) {
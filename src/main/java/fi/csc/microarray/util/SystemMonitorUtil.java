@@ -5,6 +5,11 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.management.ManagementFactory;
 
+import javax.management.AttributeNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import fi.csc.microarray.messaging.message.ServerStatusMessage;
 
 public class SystemMonitorUtil {
@@ -53,6 +58,24 @@ public class SystemMonitorUtil {
 		return s.toString();		
 	}
 	
+	/**
+	 * @return physical memory of the host, bytes
+	 */
+	public static long getTotalPhysicalMemory() {
+		// read the attribute, because the getter was renamed in Java 14 and the old one is deprecated
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName os = new ObjectName(ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME);
+			try {
+				return (Long) server.getAttribute(os, "TotalMemorySize");
+			} catch (AttributeNotFoundException e) {
+				return (Long) server.getAttribute(os, "TotalPhysicalMemorySize");
+			}
+		} catch (JMException e) {
+			throw new IllegalStateException("cannot get the physical memory size", e);
+		}
+	}
+	
 	public static long getUsed() {
 		return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
 	}
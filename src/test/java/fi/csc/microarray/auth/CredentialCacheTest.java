@@ -0,0 +1,41 @@
+package fi.csc.microarray.auth;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CredentialCacheTest {
+
+	@Test
+	public void testCachedResult() {
+		CredentialCache cache = new CredentialCache(60000, 60000);
+		Assert.assertNull(cache.get("user", "password".toCharArray()));
+		
+		cache.put("user", "password".toCharArray(), true);
+		cache.put("other", "wrong".toCharArray(), false);
+		
+		Assert.assertTrue(cache.get("user", "password".toCharArray()));
+		Assert.assertFalse(cache.get("other", "wrong".toCharArray()));
+		
+		// other passwords are verified again
+		Assert.assertNull(cache.get("user", "passwore".toCharArray()));
+		Assert.assertNull(cache.get("other", "password".toCharArray()));
+		
+		cache.clear();
+		Assert.assertNull(cache.get("user", "password".toCharArray()));
+	}
+	
+	@Test
+	public void testExpiry() throws InterruptedException {
+		CredentialCache cache = new CredentialCache(500, 50);
+		cache.put("user", "password".toCharArray(), true);
+		cache.put("other", "wrong".toCharArray(), false);
+		
+		// failures expire sooner
+		Thread.sleep(200);
+		Assert.assertTrue(cache.get("user", "password".toCharArray()));
+		Assert.assertNull(cache.get("other", "wrong".toCharArray()));
+		
+		Thread.sleep(500);
+		Assert.assertNull(cache.get("user", "password".toCharArray()));
+	}
+}
@@ -0,0 +1,83 @@
+package fi.csc.microarray.auth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PasswdFileCacheTest {
+	
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void testPlain() throws IOException {
+		File file = write(tmp.newFile(), 
+				"# comment:line", 
+				"", 
+				"user:secret:2999-01-01:anything", 
+				"user:other",
+				"nopassword");
+		PasswdFileCache cache = PasswdFileCache.getInstance(file, PasswdFileCache.Format.PLAIN);
+		
+		List<PasswdFileCache.Entry> entries = cache.getEntries("user");
+		Assert.assertEquals(2, entries.size());
+		Assert.assertTrue(entries.get(0).passwordMatches("secret".toCharArray()));
+		Assert.assertFalse(entries.get(0).passwordMatches("secre".toCharArray()));
+		Assert.assertEquals("2999-01-01", entries.get(0).getExpiration());
+		Assert.assertTrue(entries.get(1).passwordMatches("other".toCharArray()));
+		Assert.assertNull(entries.get(1).getExpiration());
+		
+		Assert.assertFalse(cache.getEntries("nopassword").get(0).passwordMatches("x".toCharArray()));
+		Assert.assertTrue(cache.getEntries("# comment").isEmpty());
+		Assert.assertTrue(cache.getEntries("unknown").isEmpty());
+	}
+	
+	@Test
+	public void testCrypt() throws IOException {
+		File file = write(tmp.newFile(), 
+				"user:abcdefghijklm", 
+				"user:abcdefghijklm extra", 
+				"user:abcdefghijkl",
+				"user:abcdefghijklmn");
+		List<PasswdFileCache.Entry> entries = PasswdFileCache.getInstance(file, PasswdFileCache.Format.CRYPT).getEntries("user");
+		
+		Assert.assertEquals("abcdefghijklm", entries.get(0).getCrypt());
+		Assert.assertEquals("abcdefghijklm", entries.get(1).getCrypt());
+		// too short and too long
+		Assert.assertNull(entries.get(2).getCrypt());
+		Assert.assertNull(entries.get(3).getCrypt());
+	}
+	
+	@Test
+	public void testReloadAfterChange() throws IOException {
+		File file = write(tmp.newFile(), "user:old");
+		PasswdFileCache cache = PasswdFileCache.getInstance(file, PasswdFileCache.Format.PLAIN);
+		Assert.assertTrue(cache.getEntries("user").get(0).passwordMatches("old".toCharArray()));
+		long reloads = PasswdFileCache.reloadChanged();
+		
+		// not changed
+		Assert.assertEquals(reloads, PasswdFileCache.reloadChanged());
+		
+		write(file, "user:new");
+		file.setLastModified(file.lastModified() + 2000);
+		
+		Assert.assertEquals(reloads + 1, PasswdFileCache.reloadChanged());
+		Assert.assertFalse(cache.getEntries("user").get(0).passwordMatches("old".toCharArray()));
+		Assert.assertTrue(cache.getEntries("user").get(0).passwordMatches("new".toCharArray()));
+	}
+	
+	private File write(File file, String... lines) throws IOException {
+		try (PrintWriter writer = new PrintWriter(file)) {
+			for (String line : lines) {
+				writer.println(line);
+			}
+		}
+		return file;
+	}
+}
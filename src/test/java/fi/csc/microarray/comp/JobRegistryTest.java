@@ -0,0 +1,103 @@
+package fi.csc.microarray.comp;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JobRegistryTest {
+
+	private static class TestJob extends CompJob {
+		private String id;
+
+		public TestJob(String id) {
+			this.id = id;
+		}
+
+		@Override
+		public String getId() {
+			return id;
+		}
+
+		@Override
+		protected void cancelRequested() {
+		}
+
+		@Override
+		protected void execute() throws JobCancelledException {
+		}
+	}
+
+	@Test
+	public void testCapacity() {
+		JobRegistry jobs = new JobRegistry(2, 100);
+
+		Assert.assertTrue(jobs.add(new TestJob("big"), 1, 150, JobRegistry.Phase.RUNNING));
+		Assert.assertFalse(jobs.add(new TestJob("small"), 0.25, 10, JobRegistry.Phase.SCHEDULED));
+		Assert.assertNotNull(jobs.remove("big"));
+
+		for (int i = 0; i < 8; i++) {
+			Assert.assertTrue(jobs.add(new TestJob("light" + i), 0.25, 10, JobRegistry.Phase.SCHEDULED));
+		}
+		Assert.assertFalse(jobs.add(new TestJob("light8"), 0.25, 10, JobRegistry.Phase.SCHEDULED));
+		Assert.assertFalse(jobs.add(new TestJob("light0"), 0, 0, JobRegistry.Phase.SCHEDULED));
+		Assert.assertEquals(0.0, jobs.getFreeSlots(), 0);
+		Assert.assertEquals(20, jobs.getFreeMemory());
+	}
+
+	@Test
+	public void testTransitions() {
+		JobRegistry jobs = new JobRegistry(1, Long.MAX_VALUE);
+
+		jobs.add(new TestJob("a"), 1, 0, JobRegistry.Phase.SCHEDULED);
+		Assert.assertNotNull(jobs.start("a"));
+		Assert.assertNull(jobs.start("a"));
+		Assert.assertFalse(jobs.removeIfScheduled("a"));
+		Assert.assertEquals(1, jobs.getCount(JobRegistry.Phase.RUNNING));
+		Assert.assertNotNull(jobs.remove("a"));
+		Assert.assertNull(jobs.remove("a"));
+		Assert.assertTrue(jobs.isEmpty());
+		Assert.assertEquals(1.0, jobs.getFreeSlots(), 0);
+	}
+
+	@Test
+	public void testConcurrentAcceptAndTimeout() throws InterruptedException {
+		final JobRegistry jobs = new JobRegistry(1000, Long.MAX_VALUE);
+		final int jobCount = 1000;
+		for (int i = 0; i < jobCount; i++) {
+			jobs.add(new TestJob("job" + i), 1, 0, JobRegistry.Phase.SCHEDULED);
+		}
+
+		final AtomicInteger started = new AtomicInteger();
+		final AtomicInteger timedOut = new AtomicInteger();
+		final CountDownLatch latch = new CountDownLatch(2);
+		Thread accept = new Thread() {
+			public void run() {
+				for (int i = 0; i < jobCount; i++) {
+					if (jobs.start("job" + i) != null) {
+						started.incrementAndGet();
+					}
+				}
+				latch.countDown();
+			}
+		};
+		Thread timeout = new Thread() {
+			public void run() {
+				for (int i = 0; i < jobCount; i++) {
+					if (jobs.removeIfScheduled("job" + i)) {
+						timedOut.incrementAndGet();
+					}
+				}
+				latch.countDown();
+			}
+		};
+		accept.start();
+		timeout.start();
+		latch.await();
+
+		Assert.assertEquals(jobCount, started.get() + timedOut.get());
+		Assert.assertEquals(started.get(), jobs.size());
+		Assert.assertEquals(jobCount - started.get(), jobs.getFreeSlots(), 0);
+	}
+}
@@ -0,0 +1,211 @@
+package fi.csc.microarray.comp;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fi.csc.chipster.toolbox.ToolboxClientComp;
+import fi.csc.chipster.toolbox.ToolboxTool;
+import fi.csc.microarray.filebroker.FileBrokerClient;
+import fi.csc.microarray.filebroker.FileBrokerException;
+import fi.csc.microarray.messaging.JobState;
+import fi.csc.microarray.messaging.message.GenericJobMessage;
+import fi.csc.microarray.messaging.message.GenericResultMessage;
+import fi.csc.microarray.messaging.message.JobMessage.ParameterSecurityPolicy;
+
+public class JobResultCacheTest {
+
+	private static class TestJobMessage implements GenericJobMessage {
+		private String username = "user";
+		private Map<String, String> inputs = new LinkedHashMap<String, String>();
+		private List<String> parameters = new ArrayList<String>();
+
+		@Override
+		public String getJobId() {
+			return "job";
+		}
+
+		@Override
+		public String getUsername() {
+			return username;
+		}
+
+		@Override
+		public String getToolId() {
+			return "tool.R";
+		}
+
+		@Override
+		public Set<String> getKeys() {
+			return inputs.keySet();
+		}
+
+		@Override
+		public String getId(String fileName) {
+			return inputs.get(fileName);
+		}
+
+		@Override
+		public String getName(String fileName) {
+			return fileName;
+		}
+
+		@Override
+		public List<String> getParameters(ParameterSecurityPolicy securityPolicy, ToolDescription description) {
+			return parameters;
+		}
+
+		@Override
+		public UUID getSessionId() {
+			return null;
+		}
+
+		@Override
+		public void preExecute(File jobWorkDir) {
+		}
+	}
+
+	private static class TestResultCallback implements ResultCallback {
+		private FileBrokerClient fileBroker;
+
+		public TestResultCallback(FileBrokerClient fileBroker) {
+			this.fileBroker = fileBroker;
+		}
+
+		@Override
+		public void sendResultMessage(GenericJobMessage jobMessage, GenericResultMessage resultMessage) {
+		}
+
+		@Override
+		public File getWorkDir() {
+			return null;
+		}
+
+		@Override
+		public boolean shouldSweepWorkDir() {
+			return false;
+		}
+
+		@Override
+		public void removeRunningJob(CompJob job) {
+		}
+
+		@Override
+		public void jobProcessStarted(CompJob job) {
+		}
+
+		@Override
+		public FileBrokerClient getFileBrokerClient() {
+			return fileBroker;
+		}
+
+		@Override
+		public ToolboxClientComp getToolboxClient() {
+			return null;
+		}
+
+		@Override
+		public ToolboxSnapshotCache getToolboxSnapshotCache() {
+			return null;
+		}
+	}
+
+	private static class TestJob extends CompJob {
+		@Override
+		protected void execute() throws JobCancelledException {
+			outputMessage.addDataset("output.tsv", "output-id", "output.tsv");
+		}
+
+		@Override
+		protected void cancelRequested() {
+		}
+	}
+
+	private static TestJobMessage createMessage() {
+		TestJobMessage message = new TestJobMessage();
+		message.inputs.put("a.tsv", "id-a");
+		message.inputs.put("b.tsv", "id-b");
+		message.parameters.add("10");
+		message.parameters.add("mean");
+		return message;
+	}
+
+	private static ToolboxTool createTool(String source) {
+		return new ToolboxTool("tool.R", null, "TOOL tool.R: Tool", source, source, "module", "R");
+	}
+
+	@Test
+	public void testKey() {
+		JobResultCache cache = new JobResultCache(10);
+		ToolDescription description = new ToolDescription();
+		ToolboxTool tool = createTool("x <- 1");
+		String key = cache.getKey(createMessage(), tool, description);
+		Assert.assertNotNull(key);
+
+		// the order of the inputs doesn't matter
+		TestJobMessage reordered = new TestJobMessage();
+		reordered.inputs.put("b.tsv", "id-b");
+		reordered.inputs.put("a.tsv", "id-a");
+		reordered.parameters.addAll(Arrays.asList("10", "mean"));
+		Assert.assertEquals(key, cache.getKey(reordered, tool, description));
+
+		TestJobMessage otherUser = createMessage();
+		otherUser.username = "other";
+		Assert.assertNotEquals(key, cache.getKey(otherUser, tool, description));
+
+		TestJobMessage otherParameter = createMessage();
+		otherParameter.parameters.set(0, "11");
+		Assert.assertNotEquals(key, cache.getKey(otherParameter, tool, description));
+
+		TestJobMessage otherInput = createMessage();
+		otherInput.inputs.put("a.tsv", "id-c");
+		Assert.assertNotEquals(key, cache.getKey(otherInput, tool, description));
+
+		Assert.assertNotEquals(key, cache.getKey(createMessage(), createTool("x <- 2"), description));
+
+		description.setCacheable(false);
+		Assert.assertNull(cache.getKey(createMessage(), tool, description));
+	}
+
+	@Test
+	public void testCopyFailure() {
+		JobResultCache cache = new JobResultCache(10);
+		ToolDescription description = new ToolDescription();
+		String key = cache.getKey(createMessage(), createTool("x <- 1"), description);
+
+		TestJob job = new TestJob();
+		job.construct(createMessage(), description, new TestResultCallback(null));
+		job.setResultCacheKey(key);
+		job.run();
+		cache.jobEnded(job);
+		Assert.assertEquals(Arrays.asList("output-id"), cache.get(key).getDataIds());
+
+		FileBrokerClient failingFileBroker = (FileBrokerClient) Proxy.newProxyInstance(
+				FileBrokerClient.class.getClassLoader(), new Class<?>[] { FileBrokerClient.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				throw new FileBrokerException("storage not available");
+			}
+		});
+
+		CachedResultJob cachedJob = new CachedResultJob(cache.get(key));
+		cachedJob.construct(createMessage(), description, new TestResultCallback(failingFileBroker));
+		cachedJob.setResultCacheKey(key);
+		cachedJob.run();
+		Assert.assertEquals(JobState.ERROR, cachedJob.getState());
+
+		cache.jobEnded(cachedJob);
+		Assert.assertNull(cache.get(key));
+	}
+}
@@ -0,0 +1,78 @@
+package fi.csc.microarray.comp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fi.csc.microarray.messaging.JobState;
+import fi.csc.microarray.messaging.message.GenericJobMessage;
+import fi.csc.microarray.messaging.message.ResultMessage;
+
+public class JobStatusCoalescerTest {
+
+	/**
+	 * Keeps the scheduled tasks until the test runs them.
+	 */
+	private static class ManualScheduler extends ScheduledThreadPoolExecutor {
+
+		private List<Runnable> tasks = new ArrayList<Runnable>();
+
+		public ManualScheduler() {
+			super(0);
+		}
+
+		@Override
+		public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+			tasks.add(command);
+			return null;
+		}
+
+		public void runAll() {
+			List<Runnable> scheduled = new ArrayList<Runnable>(tasks);
+			tasks.clear();
+			for (Runnable task : scheduled) {
+				task.run();
+			}
+		}
+	}
+
+	@Test
+	public void testCoalesce() {
+		final List<ResultMessage> sent = Collections.synchronizedList(new ArrayList<ResultMessage>());
+		ManualScheduler scheduler = new ManualScheduler();
+		JobStatusCoalescer coalescer = new JobStatusCoalescer(2, new JobStatusCoalescer.StatusSender() {
+			@Override
+			public void send(GenericJobMessage original, ResultMessage reply) {
+				sent.add(reply);
+			}
+		}, scheduler);
+
+		// first one is sent immediately, the latest one after the interval
+		for (int i = 0; i < 100; i++) {
+			coalescer.update(null, new ResultMessage("job", JobState.RUNNING, "progress " + i, null, null, null));
+		}
+		Assert.assertEquals(1, sent.size());
+		Assert.assertEquals(1, scheduler.tasks.size());
+		scheduler.runAll();
+		Assert.assertEquals(2, sent.size());
+		Assert.assertEquals("progress 99", sent.get(1).getStateDetail());
+
+		// final state is sent immediately and the pending update is dropped
+		coalescer.update(null, new ResultMessage("job", JobState.RUNNING, "progress 100", null, null, null));
+		coalescer.update(null, new ResultMessage("job", JobState.RUNNING, "progress 101", null, null, null));
+		coalescer.update(null, new ResultMessage("job", JobState.COMPLETED, "", null, null, null));
+		Assert.assertEquals(3, sent.size());
+		scheduler.runAll();
+		coalescer.close();
+		scheduler.shutdown();
+
+		Assert.assertEquals(3, sent.size());
+		Assert.assertEquals(JobState.COMPLETED, sent.get(2).getState());
+	}
+}
@@ -0,0 +1,67 @@
+package fi.csc.microarray.comp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OutputCaptureTest {
+
+	@Test
+	public void testShortOutput() {
+		OutputCapture capture = new OutputCapture(2, 3, null);
+		capture.addLine("a");
+		capture.addLine("b");
+		capture.addLine("c");
+
+		Assert.assertEquals("a\nb\nc\n", capture.getOutput());
+		Assert.assertEquals(3, capture.getLines().size());
+	}
+
+	@Test
+	public void testHeadAndTail() throws IOException {
+		File spillFile = File.createTempFile("output-capture-test", ".log");
+		try {
+			OutputCapture capture = new OutputCapture(2, 3, spillFile, "job-1");
+			for (int i = 0; i < 10; i++) {
+				capture.addLine("line" + i);
+			}
+			capture.close();
+
+			List<String> lines = capture.getLines();
+			Assert.assertEquals(5, lines.size());
+			Assert.assertEquals("line1", lines.get(1));
+			Assert.assertEquals("line7", lines.get(2));
+			Assert.assertTrue(capture.getOutput().contains("[5 lines of output omitted, the complete output of job job-1 is saved on the server]"));
+			Assert.assertFalse(capture.getOutput().contains(spillFile.getName()));
+			Assert.assertEquals("line0\nline1\nline7\nline8\nline9\n", capture.getRecentOutput());
+
+			List<String> spilled = Files.readAllLines(spillFile.toPath(), StandardCharsets.UTF_8);
+			Assert.assertEquals(10, spilled.size());
+			Assert.assertEquals("line5", spilled.get(5));
+		} finally {
+			spillFile.delete();
+		}
+	}
+
+	@Test
+	public void testRecentOutputSize() {
+		OutputCapture capture = new OutputCapture(0, 1000, null);
+		StringBuilder longLine = new StringBuilder();
+		for (int i = 0; i < 9000; i++) {
+			longLine.append("x");
+		}
+		for (int i = 0; i < 100; i++) {
+			capture.addLine(longLine.toString());
+		}
+		capture.addLine("last");
+
+		String recent = capture.getRecentOutput();
+		Assert.assertTrue(recent.length() <= 64 * 1024);
+		Assert.assertTrue(recent.endsWith(longLine + "\nlast\n"));
+	}
+}
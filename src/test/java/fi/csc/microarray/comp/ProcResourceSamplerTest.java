@@ -0,0 +1,65 @@
+package fi.csc.microarray.comp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class ProcResourceSamplerTest {
+
+	@Test
+	public void testReusedProcess() throws IOException, InterruptedException {
+		Assume.assumeTrue(ProcResourceSampler.isSupported());
+
+		Process process = new ProcessBuilder("cat").start();
+		try {
+			ProcResourceSampler sampler = new ProcResourceSampler();
+			HashMap<String, Process> jobs = new HashMap<>();
+
+			// the first job reads 1 MB
+			jobs.put("job1", process);
+			sampler.start("job1", process);
+			pipe(process, 1024 * 1024);
+			sampler.sample(jobs);
+			Assert.assertTrue(sampler.getResources("job1").getReadBytes() >= 1024 * 1024);
+
+			// the second job gets the same process and reads only 100 kB
+			jobs.clear();
+			jobs.put("job2", process);
+			sampler.start("job2", process);
+			pipe(process, 100 * 1024);
+			sampler.sample(jobs);
+
+			Assert.assertNull(sampler.getResources("job1"));
+			long readBytes = sampler.getResources("job2").getReadBytes();
+			Assert.assertTrue(readBytes >= 100 * 1024);
+			Assert.assertTrue(readBytes < 1024 * 1024);
+		} finally {
+			process.destroy();
+		}
+	}
+
+	/**
+	 * Write the bytes to cat and wait until it has echoed them back.
+	 */
+	private void pipe(Process process, int bytes) throws IOException {
+		OutputStream out = process.getOutputStream();
+		InputStream in = process.getInputStream();
+		byte[] buffer = new byte[8192];
+		int written = 0;
+		int read = 0;
+		while (written < bytes) {
+			int length = Math.min(buffer.length, bytes - written);
+			out.write(buffer, 0, length);
+			out.flush();
+			written += length;
+			while (read < written) {
+				read += in.read(buffer, 0, Math.min(buffer.length, written - read));
+			}
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package fi.csc.microarray.comp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ProcessPoolTest {
+	
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	/**
+	 * Echo each line like R does, and print the argument of print().
+	 */
+	private static final String FAKE_R = 
+			"while IFS= read -r line; do\n" +
+			"  echo \"> $line\"\n" +
+			"  case \"$line\" in print*) echo \"[1] ${line#print}\";; esac\n" +
+			"done\n";
+	
+	/**
+	 * Only echo the lines.
+	 */
+	private static final String ECHO_ONLY = 
+			"while IFS= read -r line; do\n" +
+			"  echo \"> $line\"\n" +
+			"done\n";
+	
+	@Test
+	public void testEchoedSuccessLineIsSkipped() throws IOException, InterruptedException {
+		ProcessPool pool = createPool(FAKE_R);
+		try {
+			Process process = pool.getProcess();
+			
+			// the output of the initialiser must not be left for the job
+			Writer writer = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+			writer.write("job\n");
+			writer.flush();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+			Assert.assertEquals("> job", reader.readLine());
+			
+			pool.releaseProcess(process, false);
+		} finally {
+			pool.close();
+		}
+	}
+	
+	@Test(expected = IOException.class)
+	public void testEchoIsNotSuccess() throws IOException {
+		// fails when the initialisation times out
+		createPool(ECHO_ONLY).close();
+	}
+	
+	private ProcessPool createPool(String script) throws IOException {
+		File file = tmp.newFile("fake-r.sh");
+		try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+			writer.print(script);
+		}
+		return new ProcessPool(tmp.getRoot(), "sh " + file.getAbsolutePath(), 1, 2, 2, 10, 60, "init()", null);
+	}
+}
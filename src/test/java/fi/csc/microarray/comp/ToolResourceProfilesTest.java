@@ -0,0 +1,56 @@
+package fi.csc.microarray.comp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ToolResourceProfilesTest {
+
+	private File dir;
+
+	@Before
+	public void init() throws IOException {
+		dir = Files.createTempDirectory("tool-resource-profiles-test").toFile();
+	}
+
+	@After
+	public void cleanUp() {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testSharedFile() {
+		File file = new File(dir, "profiles.tsv");
+		ToolResourceProfiles comp1 = new ToolResourceProfiles(file);
+		ToolResourceProfiles comp2 = new ToolResourceProfiles(file);
+
+		comp1.add("tool1", 1000, null, 10, null);
+		comp2.add("tool2", 2000, null, 10, null);
+
+		// the second save didn't overwrite the first one
+		ToolResourceProfiles restarted = new ToolResourceProfiles(file);
+		Assert.assertTrue(restarted.hasProfile("tool1"));
+		Assert.assertTrue(restarted.hasProfile("tool2"));
+	}
+
+	@Test
+	public void testInputSize() {
+		ToolResourceProfiles profiles = new ToolResourceProfiles(new File(dir, "profiles.tsv"));
+		profiles.add("tool1", 1000, null, 10, 100l);
+		profiles.add("tool1", 2000, null, 10, 200l);
+
+		long estimate = profiles.getMemoryEstimate("tool1", null);
+		Assert.assertEquals(estimate, (long) profiles.getMemoryEstimate("tool1", 150l));
+
+		// larger inputs need more memory
+		Assert.assertTrue(profiles.getMemoryEstimate("tool1", 400l) > 2 * estimate - 100);
+	}
+}
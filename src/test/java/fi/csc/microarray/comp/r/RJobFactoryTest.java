@@ -0,0 +1,36 @@
+package fi.csc.microarray.comp.r;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RJobFactoryTest {
+
+	@Test
+	public void testParseLibraries() {
+		String source = 
+				"library(limma)\n" +
+				"suppressPackageStartupMessages(library(\"DESeq2\"))\n" +
+				"require(edgeR)\n" +
+				"require('Biobase')\n" +
+				"library( limma )\n";
+		
+		// unique and sorted
+		Assert.assertEquals(Arrays.asList("Biobase", "DESeq2", "edgeR", "limma"), RJobFactory.parseLibraries(source));
+	}
+	
+	@Test
+	public void testConditionalLibraries() {
+		String source = 
+				"# library(commented)\n" +
+				"#library(commented2)\n" +
+				"if (x) library(conditional)\n" +
+				"  library(indented)\n" +
+				"library(paste0(\"lib\", x))\n";
+		
+		Assert.assertEquals(Collections.emptyList(), RJobFactory.parseLibraries(source));
+		Assert.assertEquals(Collections.emptyList(), RJobFactory.parseLibraries(null));
+	}
+}
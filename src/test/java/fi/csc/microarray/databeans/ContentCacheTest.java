@@ -0,0 +1,218 @@
+package fi.csc.microarray.databeans;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import fi.csc.microarray.databeans.ContentCache.RangeSource;
+import fi.csc.microarray.util.IOUtils;
+
+public class ContentCacheTest {
+
+	private File cacheDir;
+
+	private static class CountingSource implements RangeSource {
+
+		private byte[] content;
+		private List<Long> offsets = new LinkedList<Long>();
+
+		public CountingSource(byte[] content) {
+			this.content = content;
+		}
+
+		@Override
+		public InputStream open(long offset) throws IOException {
+			offsets.add(offset);
+			return new ByteArrayInputStream(content, (int) offset, content.length - (int) offset);
+		}
+	}
+
+	@Before
+	public void init() throws IOException {
+		cacheDir = Files.createTempDirectory("content-cache-test").toFile();
+	}
+
+	@After
+	public void cleanUp() {
+		for (File file : cacheDir.listFiles()) {
+			file.delete();
+		}
+		cacheDir.delete();
+	}
+
+	@Test
+	public void testDownloadOnce() throws IOException {
+		byte[] content = createContent(100000);
+		CountingSource source = new CountingSource(content);
+		ContentCache cache = new ContentCache(cacheDir, 1024*1024);
+
+		for (int i = 0; i < 3; i++) {
+			Assert.assertArrayEquals(content, readAll(cache.getInputStream("data1", md5(content), (long) content.length, source)));
+		}
+
+		Assert.assertEquals(1, source.offsets.size());
+	}
+
+	@Test
+	public void testChecksumMismatch() throws IOException {
+		byte[] content = createContent(100000);
+		CountingSource source = new CountingSource(content);
+		ContentCache cache = new ContentCache(cacheDir, 1024*1024);
+
+		try {
+			readAll(cache.getInputStream("data1", "abc", (long) content.length, source));
+			Assert.fail("corrupted content was accepted");
+		} catch (IOException e) {
+			// expected
+		}
+
+		// nothing was cached
+		readAll(cache.getInputStream("data1", md5(content), (long) content.length, source));
+		Assert.assertEquals(2, source.offsets.size());
+		Assert.assertEquals(0l, (long) source.offsets.get(1));
+	}
+
+	@Test
+	public void testLengthMismatch() throws IOException {
+		byte[] content = createContent(100000);
+		CountingSource source = new CountingSource(content);
+		ContentCache cache = new ContentCache(cacheDir, 1024*1024);
+
+		try {
+			readAll(cache.getInputStream("data1", null, (long) content.length + 1, source));
+			Assert.fail("truncated content was accepted");
+		} catch (IOException e) {
+			// expected
+		}
+
+		// nothing was cached
+		readAll(cache.getInputStream("data1", null, (long) content.length, source));
+		Assert.assertEquals(2, source.offsets.size());
+		Assert.assertEquals(0l, (long) source.offsets.get(1));
+	}
+
+	@Test
+	public void testConcurrentReaders() throws IOException {
+		byte[] content = createContent(100000);
+		CountingSource source = new CountingSource(content);
+		ContentCache cache = new ContentCache(cacheDir, 1024*1024);
+
+		InputStream filler = cache.getInputStream("data1", null, (long) content.length, source);
+		byte[] head = new byte[1000];
+		Assert.assertEquals(1000, filler.read(head));
+
+		// the second reader reads the same file
+		InputStream follower = cache.getInputStream("data1", null, (long) content.length, source);
+		Assert.assertEquals(1000, follower.read(head));
+		Assert.assertEquals(1, source.offsets.size());
+
+		// and continues from the source when the first one stops
+		filler.close();
+		byte[] rest = readAll(follower);
+		Assert.assertEquals(content.length - 1000, rest.length);
+		Assert.assertEquals(content[1000], rest[0]);
+		Assert.assertEquals(1000l, (long) source.offsets.get(1));
+	}
+
+	@Test
+	public void testLinkFile() throws IOException {
+		byte[] content = createContent(100000);
+		CountingSource source = new CountingSource(content);
+		ContentCache cache = new ContentCache(cacheDir, 1024*1024);
+
+		File dest = File.createTempFile("content-cache-test", ".dat");
+		try {
+			cache.linkFile("data1", md5(content), (long) content.length, source, dest);
+			Assert.assertArrayEquals(content, Files.readAllBytes(dest.toPath()));
+			Assert.assertArrayEquals(content, readAll(cache.getInputStream("data1", md5(content), (long) content.length, source)));
+			Assert.assertEquals(1, source.offsets.size());
+		} finally {
+			dest.delete();
+		}
+	}
+
+	@Test
+	public void testPartialFill() throws IOException {
+		byte[] content = createContent(100000);
+		CountingSource source = new CountingSource(content);
+		ContentCache cache = new ContentCache(cacheDir, 1024*1024);
+
+		// read only the beginning
+		InputStream in = cache.getInputStream("data1", null, (long) content.length, source);
+		byte[] head = new byte[1000];
+		Assert.assertEquals(1000, in.read(head));
+		in.close();
+
+		// the rest is requested from where the previous reader stopped
+		Assert.assertArrayEquals(content, readAll(cache.getInputStream("data1", null, (long) content.length, source)));
+		Assert.assertEquals(2, source.offsets.size());
+		Assert.assertEquals(1000l, (long) source.offsets.get(1));
+
+		// and now it's complete
+		Assert.assertArrayEquals(content, readAll(cache.getInputStream("data1", null, (long) content.length, source)));
+		Assert.assertEquals(2, source.offsets.size());
+	}
+
+	@Test
+	public void testEviction() throws IOException {
+		byte[] content = createContent(100000);
+		CountingSource source = new CountingSource(content);
+		ContentCache cache = new ContentCache(cacheDir, 250000);
+
+		readAll(cache.getInputStream("data1", null, (long) content.length, source));
+		readAll(cache.getInputStream("data2", null, (long) content.length, source));
+		readAll(cache.getInputStream("data1", null, (long) content.length, source));
+
+		// data2 is the least recently used one
+		readAll(cache.getInputStream("data3", null, (long) content.length, source));
+		Assert.assertEquals(3, source.offsets.size());
+
+		readAll(cache.getInputStream("data1", null, (long) content.length, source));
+		Assert.assertEquals(3, source.offsets.size());
+
+		readAll(cache.getInputStream("data2", null, (long) content.length, source));
+		Assert.assertEquals(4, source.offsets.size());
+	}
+
+	private byte[] createContent(int length) {
+		byte[] content = new byte[length];
+		for (int i = 0; i < length; i++) {
+			content[i] = (byte) i;
+		}
+		return content;
+	}
+
+	private String md5(byte[] content) {
+		try {
+			StringBuilder md5 = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("MD5").digest(content)) {
+				md5.append(String.format("%02x", b));
+			}
+			return md5.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private byte[] readAll(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			IOUtils.copy(in, out);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -175,6 +175,17 @@ public class SADLParserTest {
 		Assert.assertTrue(anotherString.contains("main comment (funny\\)"));
 	}
 	
+	@Test
+	public void testNoCache() throws MicroarrayException, IOException {
+		SADLDescription description = generateDescription();
+		Assert.assertFalse(new ChipsterSADLParser().parse(description.toString()).isNoCache());
+		
+		description.setNoCache(true);
+		String string = description.toString();
+		Assert.assertTrue(string.contains(SADLSyntax.KEYWORD_NOCACHE));
+		Assert.assertTrue(new ChipsterSADLParser().parse(string).isNoCache());
+	}
+	
 	private SADLDescription generateDescription() {
 		SADLDescription description = new SADLDescription(Name.createName("name", "longname/displayname"), "main comment (funny)");
 		Input input = new Input(ChipsterInputTypes.GENE_EXPRS, Name.createName("input1", "input1"), true);
@@ -196,6 +207,7 @@ public class SADLParserTest {
 		new SADLParserTest().testParsing();
 		new SADLParserTest().testRoundtrip();
 		new SADLParserTest().testEscapes();
+		new SADLParserTest().testNoCache();
 		System.out.println("SADLParserTest OK");
 	}
 }
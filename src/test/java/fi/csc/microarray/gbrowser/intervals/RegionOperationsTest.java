@@ -7,6 +7,7 @@ import java.io.OutputStream;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -152,6 +153,42 @@ public class RegionOperationsTest {
 	}
 	
 	
+	@Test
+	public void testSweepMatchesCartesianProduct() {
+		RegionOperations tool = new RegionOperations();
+		Random random = new Random(1);
+		
+		List<Feature> left = randomRegions(random, 500);
+		List<Feature> right = randomRegions(random, 500);
+		
+		for (final long minLength : new long[] {0, 1, 20}) {
+			// any other rule than IntersectingPairRule goes through the Cartesian product
+			final RegionOperations.IntersectingPairRule intersectingRule = new RegionOperations.IntersectingPairRule(minLength);
+			RegionOperations.PairRule cartesianRule = new RegionOperations.PairRule() {
+				public boolean isPair(Region l, Region r) {
+					return intersectingRule.isPair(l, r);
+				}
+			};
+			
+			Assert.assertEquals(
+					tool.operate(left, right, cartesianRule, RegionOperations.INCLUDE_ORPHAN_POLICY, RegionOperations.INCLUDE_ORPHAN_POLICY, RegionOperations.ORIGINALS_PAIR_POLICY, false),
+					tool.operate(left, right, intersectingRule, RegionOperations.INCLUDE_ORPHAN_POLICY, RegionOperations.INCLUDE_ORPHAN_POLICY, RegionOperations.ORIGINALS_PAIR_POLICY, false));
+		}
+	}
+	
+	private List<Feature> randomRegions(Random random, int count) {
+		List<Feature> regions = new LinkedList<Feature>();
+		for (int i = 0; i < count; i++) {
+			long start = random.nextInt(10000);
+			long end = start + random.nextInt(random.nextInt(10) == 0 ? 2000 : 100);
+			Chromosome chr = new Chromosome("" + (1 + random.nextInt(3)));
+			LinkedHashMap<DataType, Object> values = RegionOperations.getEmptyExtraFieldMap();
+			values.put(DataType.ID, "region" + i);
+			regions.add(new Feature(new Region(start, end, chr), values));
+		}
+		return regions;
+	}
+	
 	public static void main(String[] args) throws Exception {
 		new RegionOperationsTest().test();
 		new RegionOperationsTest().testSort();
@@ -0,0 +1,94 @@
+package fi.csc.microarray.gbrowser.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fi.csc.microarray.client.visualisation.methods.gbrowser.message.Chromosome;
+import fi.csc.microarray.client.visualisation.methods.gbrowser.runtimeIndex.VcfLineParser;
+import fi.csc.microarray.client.visualisation.methods.gbrowser.util.TsvSorter;
+
+public class TsvSorterTest {
+
+	@Test
+	public void testSort() throws Exception {
+		testSort(-1, false);
+	}
+
+	@Test
+	public void testManyCompressedChunks() throws Exception {
+		// one line per chunk, merged in several rounds
+		testSort(1, true);
+	}
+
+	private void testSort(long chunkSize, boolean compress) throws Exception {
+		File dir = Files.createTempDirectory("tsv-sorter-test").toFile();
+		try {
+			Random random = new Random(1);
+			List<String> header = new ArrayList<String>();
+			header.add("##fileformat=VCFv4.1");
+			header.add("#CHROM\tPOS\tID\tREF\tALT");
+
+			List<String> lines = new ArrayList<String>();
+			for (int i = 0; i < 1000; i++) {
+				String chr = random.nextBoolean() ? "chr" + (1 + random.nextInt(12)) : "" + (1 + random.nextInt(3)) + ".fa";
+				lines.add(chr + "\t" + random.nextInt(100) + "\tid" + i + "\tA\tT\t");
+			}
+
+			List<String> input = new ArrayList<String>(header);
+			input.addAll(lines);
+			File in = new File(dir, "in.vcf");
+			File out = new File(dir, "out.vcf");
+			Files.write(in.toPath(), input, StandardCharsets.UTF_8);
+
+			TsvSorter sorter = new TsvSorter();
+			sorter.setChunkSize(chunkSize);
+			sorter.setCompressTempFiles(compress);
+			sorter.setThreads(4);
+			sorter.sort(in, out, VcfLineParser.Column.CHROM.ordinal(), VcfLineParser.Column.POS.ordinal(), new VcfLineParser());
+
+			// expected: postfix removed, stable sort by chromosome and position
+			List<String> expected = new ArrayList<String>();
+			for (String line : lines) {
+				expected.add(line.replaceFirst("\\.fa\t", "\t"));
+			}
+			Collections.sort(expected, new Comparator<String>() {
+				@Override
+				public int compare(String line1, String line2) {
+					String[] columns1 = line1.split("\t");
+					String[] columns2 = line2.split("\t");
+					int chrComparison = new Chromosome(columns1[0]).compareTo(new Chromosome(columns2[0]));
+					if (chrComparison != 0) {
+						return chrComparison;
+					}
+					return Long.compare(Long.parseLong(columns1[1]), Long.parseLong(columns2[1]));
+				}
+			});
+			expected.addAll(0, header);
+
+			Assert.assertEquals(expected, Files.readAllLines(out.toPath(), StandardCharsets.UTF_8));
+
+			// temporary files are removed
+			Assert.assertEquals(2, dir.list().length);
+
+		} finally {
+			deleteDir(dir);
+		}
+	}
+
+	private void deleteDir(File dir) throws IOException {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+}
@@ -0,0 +1,79 @@
+package fi.csc.microarray.jobmanager;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fi.csc.microarray.jobmanager.CompRegistry.CompStatus;
+
+public class CompRegistryTest {
+
+	@Test
+	public void testReserve() {
+		CompRegistry registry = new CompRegistry(60000);
+		registry.update("comp1", "host1", 1, 3, 0.5);
+		registry.update("comp2", "host2", 2, 2, 1.0);
+
+		// most free slots first
+		Assert.assertEquals("comp2", registry.reserve("job1").getCompId());
+		// same free slots, lower load
+		Assert.assertEquals("comp1", registry.reserve("job2").getCompId());
+		Assert.assertEquals("comp2", registry.reserve("job3").getCompId());
+		Assert.assertNull(registry.reserve("job4"));
+		Assert.assertFalse(registry.hasFreeSlots());
+
+		// next heartbeat replaces the estimate
+		registry.update("comp1", "host1", 2, 2, 0.5);
+		Assert.assertTrue(registry.hasFreeSlots());
+	}
+
+	@Test
+	public void testDeclined() {
+		CompRegistry registry = new CompRegistry(60000);
+		registry.update("comp1", "host1", 4, 0, 0);
+		registry.update("comp2", "host2", 1, 0, 0);
+
+		// comp1 can't run the tool at all
+		registry.declined("job1", "comp1", null);
+		CompStatus comp = registry.reserve("job1");
+		Assert.assertEquals("comp2", comp.getCompId());
+		Assert.assertNull(registry.reserve("job1"));
+
+		registry.update("comp1", "host1", 4, 0, 0);
+		Assert.assertNull(registry.reserve("job1"));
+		registry.jobDone("job1");
+		Assert.assertEquals("comp1", registry.reserve("job1").getCompId());
+	}
+
+	@Test
+	public void testDeclinedBusy() {
+		CompRegistry registry = new CompRegistry(60000);
+		registry.update("comp1", "host1", 2, 0, 0);
+		registry.update("comp2", "host2", 1, 0, 0);
+
+		// the job needs 3 slots
+		registry.declined("job1", "comp1", 3);
+		Assert.assertNull(registry.reserve("job1"));
+		Assert.assertEquals("comp2", registry.reserve("job2").getCompId());
+
+		// comp1 has still too few free slots
+		registry.update("comp1", "host1", 2, 0, 0);
+		Assert.assertNull(registry.reserve("job1"));
+
+		// and now it's free, all the slots are reserved
+		registry.update("comp1", "host1", 4, 0, 0);
+		Assert.assertEquals("comp1", registry.reserve("job1").getCompId());
+		Assert.assertEquals("comp1", registry.reserve("job3").getCompId());
+		Assert.assertFalse(registry.hasFreeSlots());
+	}
+
+	@Test
+	public void testExpiry() throws InterruptedException {
+		CompRegistry registry = new CompRegistry(50);
+		registry.update("comp1", "host1", 1, 0, 0);
+		Thread.sleep(100);
+		registry.update("comp2", "host2", 1, 0, 0);
+
+		Assert.assertEquals(1, registry.removeExpired().size());
+		Assert.assertEquals("comp2", registry.reserve("job1").getCompId());
+	}
+}
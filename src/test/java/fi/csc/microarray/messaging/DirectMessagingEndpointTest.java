@@ -1,5 +1,10 @@
 package fi.csc.microarray.messaging;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import javax.jms.JMSException;
 
 import org.junit.Assert;
@@ -8,6 +13,8 @@ import org.junit.Test;
 import fi.csc.microarray.messaging.MessagingTopic.AccessMode;
 import fi.csc.microarray.messaging.Topics.Name;
 import fi.csc.microarray.messaging.message.ChipsterMessage;
+import fi.csc.microarray.messaging.message.CommandMessage;
+import fi.csc.microarray.messaging.message.ParameterMessage;
 
 public class DirectMessagingEndpointTest {
 	
@@ -18,7 +25,7 @@ public class DirectMessagingEndpointTest {
 	private ChipsterMessage receivedReplyMessage;
 
 	@Test
-	public void test() throws JMSException {
+	public void test() throws JMSException, InterruptedException {
 		DirectMessagingEndpoint endpoint = new DirectMessagingEndpoint();
 		DirectMessagingEndpoint authenticatingEndpoint = new DirectMessagingEndpoint(USERNAME);
 		
@@ -26,7 +33,7 @@ public class DirectMessagingEndpointTest {
 		testEndpoint(authenticatingEndpoint, USERNAME);
 	}
 		
-	public void testEndpoint(MessagingEndpoint endpoint, String username) throws JMSException {
+	public void testEndpoint(DirectMessagingEndpoint endpoint, String username) throws JMSException, InterruptedException {
 		
 		MessagingTopic topic1 = endpoint.createTopic(Name.TEST_TOPIC, AccessMode.WRITE);
 		MessagingTopic topic2 = endpoint.createTopic(Name.REQUEST_TOPIC, AccessMode.WRITE);
@@ -52,7 +59,8 @@ public class DirectMessagingEndpointTest {
 		
 		//send a simple message
 		
-		topic1.sendMessage(message);		
+		topic1.sendMessage(message);
+		endpoint.flush();
 		Assert.assertEquals(message.getMessageID(), receivedMessageTopic1.getMessageID());
 		Assert.assertNull(receivedMessageTopic2);
 		Assert.assertEquals(username, receivedMessageTopic1.getUsername());
@@ -92,7 +100,8 @@ public class DirectMessagingEndpointTest {
 			@Override
 			public void cancel() {
 			}
-		});		
+		});
+		endpoint.flush();
 		Assert.assertEquals(message.getMessageID(), receivedMessageTopic1.getMessageID());
 		Assert.assertNull(receivedMessageTopic2);
 		Assert.assertNull(receivedReplyMessage);
@@ -104,6 +113,7 @@ public class DirectMessagingEndpointTest {
 		//reply to replyable message
 		
 		endpoint.replyToMessage(replyTo, replyMessage);
+		endpoint.flush();
 		
 		Assert.assertNull(receivedMessageTopic1);
 		Assert.assertNull(receivedMessageTopic2);
@@ -112,4 +122,61 @@ public class DirectMessagingEndpointTest {
 		
 		receivedReplyMessage = null;
 	}
+	
+	@Test
+	public void testConcurrentSenders() throws JMSException, InterruptedException {
+		final int senderCount = 4;
+		final int messagesPerSender = 500;
+		
+		// small queue to make the senders wait
+		DirectMessagingEndpoint endpoint = new DirectMessagingEndpoint(null, 10);
+		final MessagingTopic topic = endpoint.createTopic(Name.TEST_TOPIC, AccessMode.WRITE);
+		
+		final Map<String, List<Integer>> received = new HashMap<String, List<Integer>>();
+		topic.setListener(new MessagingListener() {
+			@Override
+			public void onChipsterMessage(ChipsterMessage msg) {
+				CommandMessage cmdMsg = (CommandMessage) msg;
+				String sender = cmdMsg.getNamedParameter(ParameterMessage.PARAMETER_JOB_ID);
+				// messages of one topic are delivered by one thread at a time
+				if (!received.containsKey(sender)) {
+					received.put(sender, new ArrayList<Integer>());
+				}
+				received.get(sender).add(Integer.parseInt(cmdMsg.getCommand()));
+			}
+		});
+		
+		Thread[] senders = new Thread[senderCount];
+		for (int i = 0; i < senderCount; i++) {
+			final String sender = "sender-" + i;
+			senders[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < messagesPerSender; j++) {
+							CommandMessage msg = new CommandMessage("" + j);
+							msg.addNamedParameter(ParameterMessage.PARAMETER_JOB_ID, sender);
+							topic.sendMessage(msg);
+						}
+					} catch (JMSException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+			senders[i].start();
+		}
+		for (Thread sender : senders) {
+			sender.join();
+		}
+		endpoint.flush();
+		endpoint.close();
+		
+		Assert.assertEquals(senderCount, received.size());
+		for (List<Integer> order : received.values()) {
+			Assert.assertEquals(messagesPerSender, order.size());
+			for (int i = 0; i < messagesPerSender; i++) {
+				Assert.assertEquals(i, (int) order.get(i));
+			}
+		}
+	}
 }
@@ -0,0 +1,111 @@
+package fi.csc.microarray.messaging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fi.csc.microarray.messaging.message.ChipsterMessage;
+import fi.csc.microarray.messaging.message.CommandMessage;
+import fi.csc.microarray.messaging.message.ParameterMessage;
+
+public class OrderedDispatchListenerTest {
+
+	@Test
+	public void testOrderPerJob() throws InterruptedException {
+		final int jobCount = 10;
+		final int messagesPerJob = 100;
+		final CountDownLatch latch = new CountDownLatch(jobCount * messagesPerJob);
+		final Map<String, List<Integer>> received = Collections.synchronizedMap(new HashMap<String, List<Integer>>());
+
+		MessagingListener listener = new MessagingListener() {
+			@Override
+			public void onChipsterMessage(ChipsterMessage msg) {
+				CommandMessage cmdMsg = (CommandMessage) msg;
+				String jobId = cmdMsg.getNamedParameter(ParameterMessage.PARAMETER_JOB_ID);
+				synchronized (received) {
+					if (!received.containsKey(jobId)) {
+						received.put(jobId, new ArrayList<Integer>());
+					}
+					received.get(jobId).add(Integer.parseInt(cmdMsg.getCommand()));
+				}
+				latch.countDown();
+			}
+		};
+
+		OrderedDispatchListener dispatcher = new OrderedDispatchListener(listener, 4, 10, "test");
+		for (int i = 0; i < messagesPerJob; i++) {
+			for (int job = 0; job < jobCount; job++) {
+				CommandMessage msg = new CommandMessage("" + i);
+				msg.addNamedParameter(ParameterMessage.PARAMETER_JOB_ID, "job-" + job);
+				dispatcher.onChipsterMessage(msg);
+			}
+		}
+
+		Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+		dispatcher.close();
+
+		Assert.assertEquals(jobCount, received.size());
+		for (List<Integer> order : received.values()) {
+			for (int i = 0; i < messagesPerJob; i++) {
+				Assert.assertEquals(i, (int) order.get(i));
+			}
+		}
+	}
+
+	@Test
+	public void testQueueFull() throws InterruptedException {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch handled = new CountDownLatch(3);
+		MessagingListener listener = new MessagingListener() {
+			@Override
+			public void onChipsterMessage(ChipsterMessage msg) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				handled.countDown();
+			}
+		};
+		final OrderedDispatchListener dispatcher = new OrderedDispatchListener(listener, 1, 1, "test");
+
+		// one message is handled, one waits in the queue and the third one has to wait for room
+		final CountDownLatch sent = new CountDownLatch(1);
+		Thread sender = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < 3; i++) {
+					dispatcher.onChipsterMessage(new CommandMessage("" + i));
+				}
+				sent.countDown();
+			}
+		};
+		sender.start();
+		Assert.assertFalse(sent.await(200, TimeUnit.MILLISECONDS));
+
+		release.countDown();
+		Assert.assertTrue(sent.await(10, TimeUnit.SECONDS));
+		Assert.assertTrue(handled.await(10, TimeUnit.SECONDS));
+		dispatcher.close();
+	}
+
+	@Test
+	public void testKey() {
+		CommandMessage msg = new CommandMessage("test");
+		msg.setUsername("user");
+		Assert.assertEquals("user", OrderedDispatchListener.getKey(msg));
+
+		msg.setSessionID("session");
+		Assert.assertEquals("session", OrderedDispatchListener.getKey(msg));
+
+		msg.addNamedParameter(ParameterMessage.PARAMETER_JOB_ID, "job");
+		Assert.assertEquals("job", OrderedDispatchListener.getKey(msg));
+	}
+}
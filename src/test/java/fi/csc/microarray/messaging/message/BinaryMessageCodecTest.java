@@ -0,0 +1,56 @@
+package fi.csc.microarray.messaging.message;
+
+import java.io.IOException;
+
+import javax.jms.JMSException;
+
+import org.apache.activemq.command.ActiveMQMapMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+import fi.csc.microarray.messaging.JobState;
+
+public class BinaryMessageCodecTest {
+
+	@Test
+	public void testResultMessage() throws JMSException, IOException {
+		StringBuilder output = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			output.append("> print(" + i + ")\n[1] " + i + "\n");
+		}
+
+		ResultMessage original = new ResultMessage("job-1", JobState.COMPLETED, "done", null, output.toString(), null);
+		original.setUsername("user");
+		original.addPayload("output.tsv", "data-id", "output.tsv");
+
+		byte[] bytes = BinaryMessageCodec.encode(original);
+		Assert.assertTrue("output text is compressed", bytes.length < output.length() / 4);
+
+		ActiveMQMapMessage mapMessage = new ActiveMQMapMessage();
+		ResultMessage decoded = (ResultMessage) BinaryMessageCodec.decode(bytes, mapMessage);
+		decoded.unmarshal(mapMessage);
+
+		Assert.assertEquals(original.getMessageID(), decoded.getMessageID());
+		Assert.assertEquals("job-1", decoded.getJobId());
+		Assert.assertEquals(JobState.COMPLETED, decoded.getState());
+		Assert.assertEquals("done", decoded.getStateDetail());
+		Assert.assertEquals(output.toString(), decoded.getOutputText());
+		Assert.assertEquals("user", decoded.getUsername());
+		Assert.assertEquals("data-id", decoded.getId("output.tsv"));
+	}
+
+	@Test
+	public void testCommandMessage() throws JMSException, IOException {
+		CommandMessage original = new CommandMessage(CommandMessage.COMMAND_IS_AVAILABLE);
+		original.addNamedParameter(ParameterMessage.PARAMETER_FILE_ID, "file");
+		original.addParameter("first");
+
+		ActiveMQMapMessage mapMessage = new ActiveMQMapMessage();
+		CommandMessage decoded = (CommandMessage) BinaryMessageCodec.decode(BinaryMessageCodec.encode(original), mapMessage);
+		decoded.unmarshal(mapMessage);
+
+		Assert.assertEquals(CommandMessage.COMMAND_IS_AVAILABLE, decoded.getCommand());
+		Assert.assertEquals("file", decoded.getNamedParameter(ParameterMessage.PARAMETER_FILE_ID));
+		Assert.assertEquals("first", decoded.getParameters().get(0));
+	}
+}